@@ -0,0 +1,213 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.persistence.Entity;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Id;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.stat.Statistics;
+
+import org.junit.Test;
+
+import org.hiberntate.util.ClusteredRegionFactory;
+import org.hiberntate.util.LatencySamples;
+import org.hiberntate.util.LoopbackCluster;
+import org.hiberntate.util.SettingsMatrix;
+import org.hiberntate.util.TransactionUtil;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import org.jboss.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Three EntityManagerFactories forming a {@link LoopbackCluster} with a read-write entity region: one node updates
+ * the entities while the two others keep reading them, for each cluster mode, with synchronous and asynchronous
+ * messages taking {@value #LATENCY_MICROS} microseconds to reach a node. A read is stale when it returns an older
+ * state than the one committed before it started; its staleness is the time since that commit. Synchronous
+ * invalidations and replications never let a node read stale state, at the cost of the writer waiting for the other
+ * nodes; every node ends up with the last committed state in any case.
+ * <p/>
+ * The number of updates can be changed with the {@code harness.cluster.writes} system property.
+ */
+public class ClusteredCacheTest extends WildFlyFunctionalTestCase {
+	private static final Logger log = Logger.getLogger( ClusteredCacheTest.class );
+
+	private static final int NODES = 3;
+	private static final int ACCOUNTS = 100;
+	private static final int WRITES = Integer.getInteger( "harness.cluster.writes", 500 );
+	private static final int LATENCY_MICROS = 200;
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { Account.class };
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	protected void addConfigOptions(Map options) {
+		options.put( AvailableSettings.USE_SECOND_LEVEL_CACHE, "true" );
+		options.put( AvailableSettings.CACHE_REGION_FACTORY, ClusteredRegionFactory.class.getName() );
+		options.put( AvailableSettings.GENERATE_STATISTICS, "true" );
+		options.put( LoopbackCluster.NAME, getClass().getSimpleName() );
+		options.put( LoopbackCluster.LATENCY, String.valueOf( LATENCY_MICROS ) );
+	}
+
+	@Override
+	public Map<Class, String> getCachedClasses() {
+		return Collections.singletonMap( Account.class, "read-write" );
+	}
+
+	@Override
+	protected void afterEntityManagerFactoryBuilt() {
+		inTransaction(
+				entityManager -> {
+					for ( int i = 0; i < ACCOUNTS; i++ ) {
+						entityManager.persist( new Account( i ) );
+					}
+				}
+		);
+	}
+
+	@Test
+	@SettingsMatrix({
+			@SettingsMatrix.Setting(name = LoopbackCluster.MODE, values = { "INVALIDATION", "REPLICATION" }),
+			@SettingsMatrix.Setting(name = LoopbackCluster.SYNC, values = { "true", "false" })
+	})
+	public void testWritesOnOneNode() throws Exception {
+		final List<EntityManagerFactory> nodes = new ArrayList<>();
+		nodes.add( entityManagerFactory() );
+		for ( int i = 1; i < NODES; i++ ) {
+			nodes.add( buildClusterNode() );
+		}
+		for ( EntityManagerFactory node : nodes ) {
+			for ( int id = 0; id < ACCOUNTS; id++ ) {
+				readRevision( node, id );
+			}
+		}
+		final LoopbackCluster cluster = LoopbackCluster.get( getClass().getSimpleName() );
+		cluster.awaitDelivery();
+		for ( EntityManagerFactory node : nodes ) {
+			node.unwrap( SessionFactory.class ).getStatistics().clear();
+		}
+
+		// the revision of each account and the time it was committed
+		final AtomicReferenceArray<long[]> committed = new AtomicReferenceArray<>( ACCOUNTS );
+		for ( int id = 0; id < ACCOUNTS; id++ ) {
+			committed.set( id, new long[] { 0, System.nanoTime() } );
+		}
+		final AtomicBoolean writing = new AtomicBoolean( true );
+		final AtomicLong reads = new AtomicLong();
+		final LatencySamples staleness = new LatencySamples();
+		final ExecutorService readers = Executors.newFixedThreadPool( NODES - 1 );
+		final long writeNanos;
+		final long readNanos;
+		try {
+			final List<Future<?>> readersDone = new ArrayList<>();
+			final long start = System.nanoTime();
+			for ( EntityManagerFactory node : nodes.subList( 1, NODES ) ) {
+				readersDone.add( readers.submit( () -> {
+					while ( writing.get() ) {
+						final int id = ThreadLocalRandom.current().nextInt( ACCOUNTS );
+						final long[] latest = committed.get( id );
+						final long readStart = System.nanoTime();
+						if ( readRevision( node, id ) < latest[0] ) {
+							staleness.record( readStart - latest[1] );
+						}
+						reads.incrementAndGet();
+					}
+				} ) );
+			}
+			for ( int i = 0; i < WRITES; i++ ) {
+				final int id = i * 7919 % ACCOUNTS;
+				final long revision = i + 1;
+				inTransaction( entityManager -> entityManager.find( Account.class, id ).revision = revision );
+				committed.set( id, new long[] { revision, System.nanoTime() } );
+			}
+			writeNanos = System.nanoTime() - start;
+			writing.set( false );
+			for ( Future<?> done : readersDone ) {
+				done.get();
+			}
+			readNanos = System.nanoTime() - start;
+		}
+		finally {
+			readers.shutdownNow();
+		}
+		cluster.awaitDelivery();
+
+		final StringBuilder hitRatios = new StringBuilder();
+		for ( EntityManagerFactory node : nodes ) {
+			final Statistics statistics = node.unwrap( SessionFactory.class ).getStatistics();
+			final long hits = statistics.getSecondLevelCacheHitCount();
+			final long lookups = hits + statistics.getSecondLevelCacheMissCount();
+			hitRatios.append( String.format( " %.0f%%", lookups == 0 ? 0d : 100d * hits / lookups ) );
+		}
+		final String label = settingsMatrix.getCurrentSettingsLabel();
+		log.infof(
+				"%s: %.1f writes/s, %.1f reads/s, %d stale reads (mean %.1f us, max %.1f us after the commit), "
+						+ "cache hit ratio per node%s, %s",
+				settingsMatrix.getCurrentSettings(),
+				WRITES * 1_000_000_000d / writeNanos,
+				reads.get() * 1_000_000_000d / readNanos,
+				staleness.getCount(),
+				staleness.getMean() / 1_000d,
+				staleness.getMax() / 1_000d,
+				hitRatios,
+				cluster
+		);
+		recordMetric( "cluster" + label + ".staleReads", staleness.getCount() );
+		recordMetric( "cluster" + label + ".deliveryMeanMicros", cluster.getDeliveryLatencies().getMean() / 1_000d );
+		recordMetric( "cluster" + label + ".writesPerSecond", WRITES * 1_000_000_000d / writeNanos );
+
+		assertEquals( cluster.getMessagesSent(), cluster.getMessagesDelivered() );
+		for ( EntityManagerFactory node : nodes ) {
+			for ( int id = 0; id < ACCOUNTS; id++ ) {
+				assertEquals( "account " + id, committed.get( id )[0], readRevision( node, id ) );
+			}
+		}
+		if ( label.contains( LoopbackCluster.SYNC + "=true" ) ) {
+			assertEquals( 0, staleness.getCount() );
+		}
+	}
+
+	private static long readRevision(EntityManagerFactory node, int id) {
+		return TransactionUtil.fromTransaction( node, entityManager -> entityManager.find( Account.class, id ).revision );
+	}
+
+	@Entity(name = "Account")
+	public static class Account {
+		@Id
+		Integer id;
+
+		String owner;
+
+		long revision;
+
+		Account() {
+		}
+
+		Account(Integer id) {
+			this.id = id;
+			this.owner = "owner " + id;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.util.List;
+import java.util.Map;
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.Id;
+
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.resource.jdbc.spi.PhysicalConnectionHandlingMode;
+
+import org.junit.Test;
+
+import org.hiberntate.util.JdbcProfiler;
+import org.hiberntate.util.LatencySamples;
+import org.hiberntate.util.SettingsMatrix;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import org.jboss.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Connection churn of a mixed read/write workload under each {@code hibernate.connection.handling_mode}, which ORM
+ * 5.1 does not read yet: the test sets the matching {@code hibernate.connection.acquisition_mode} and
+ * {@code hibernate.connection.release_mode} instead. It runs on the
+ * profiled built-in pool supporting aggressive release like a WildFly JTA datasource (see
+ * {@link JdbcProfiler#AGGRESSIVE_RELEASE}): the connection acquisitions and pool checkouts per transaction, the unit
+ * of work latency and the throughput, each mode being compared with the resource-local default of releasing the
+ * connection after the transaction.
+ */
+public class ConnectionHandlingModeBenchmarkTest extends WildFlyFunctionalTestCase {
+	private static final Logger log = Logger.getLogger( ConnectionHandlingModeBenchmarkTest.class );
+
+	private static final String CONNECTION_HANDLING = "hibernate.connection.handling_mode";
+
+	private static final int ITEMS = 200;
+	private static final int WARMUP = 200;
+	private static final int OPERATIONS = 500;
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { Item.class };
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	protected void addConfigOptions(Map options) {
+		options.put( JdbcProfiler.ENABLED, "true" );
+		options.put( JdbcProfiler.AGGRESSIVE_RELEASE, "true" );
+		if ( settingsMatrix.isActive() ) {
+			final PhysicalConnectionHandlingMode mode = PhysicalConnectionHandlingMode.valueOf(
+					settingsMatrix.getCurrentSettings().get( CONNECTION_HANDLING )
+			);
+			options.put( AvailableSettings.ACQUIRE_CONNECTIONS, mode.getAcquisitionMode().name() );
+			options.put( AvailableSettings.RELEASE_CONNECTIONS, mode.getReleaseMode().name() );
+		}
+	}
+
+	@Override
+	protected void afterEntityManagerFactoryBuilt() {
+		inTransaction(
+				entityManager -> {
+					for ( int i = 0; i < ITEMS; i++ ) {
+						entityManager.persist( new Item( i ) );
+					}
+				}
+		);
+		for ( int i = 0; i < WARMUP; i++ ) {
+			final int operation = i;
+			inTransaction( entityManager -> unitOfWork( entityManager, operation ) );
+		}
+	}
+
+	@Test
+	@SettingsMatrix(mode = SettingsMatrix.Mode.ONE_AT_A_TIME, operations = OPERATIONS, value = @SettingsMatrix.Setting(
+			name = CONNECTION_HANDLING,
+			values = {
+					"DELAYED_ACQUISITION_AND_RELEASE_AFTER_TRANSACTION",
+					"IMMEDIATE_ACQUISITION_AND_HOLD",
+					"DELAYED_ACQUISITION_AND_HOLD",
+					"DELAYED_ACQUISITION_AND_RELEASE_AFTER_STATEMENT"
+			}
+	))
+	public void testMixedWorkload() {
+		final LatencySamples latencies = new LatencySamples();
+		final long start = System.nanoTime();
+		for ( int i = 0; i < OPERATIONS; i++ ) {
+			final int operation = WARMUP + i;
+			final long unitOfWorkStart = System.nanoTime();
+			inTransaction( entityManager -> unitOfWork( entityManager, operation ) );
+			latencies.record( System.nanoTime() - unitOfWorkStart );
+		}
+		final long wallNanos = System.nanoTime() - start;
+
+		final JdbcProfiler profiler = jdbcProfiler();
+		final double acquisitionsPerTransaction = (double) profiler.getAcquisitions() / OPERATIONS;
+		final double checkoutsPerTransaction = (double) profiler.getPoolCheckouts() / OPERATIONS;
+		log.infof(
+				"%s: %.2f acquisitions and %.2f pool checkouts per transaction (checkout wait mean %.1f us), "
+						+ "%.1f tx/s, mean %.1f us, p99 %.1f us",
+				settingsMatrix.getCurrentSettings(),
+				acquisitionsPerTransaction,
+				checkoutsPerTransaction,
+				profiler.getPoolWaits().getMean() / 1_000d,
+				OPERATIONS * 1_000_000_000d / wallNanos,
+				latencies.getMean() / 1_000d,
+				latencies.getPercentile( 99 ) / 1_000d
+		);
+		final String label = settingsMatrix.getCurrentSettingsLabel();
+		recordMetric( "workload" + label + ".acquisitionsPerTransaction", acquisitionsPerTransaction );
+		recordMetric( "workload" + label + ".poolCheckoutsPerTransaction", checkoutsPerTransaction );
+		recordMetric( "workload" + label + ".meanMicros", latencies.getMean() / 1_000d );
+		recordMetric( "workload" + label + ".p99Micros", latencies.getPercentile( 99 ) / 1_000d );
+
+		// every connection went back to the pool
+		assertEquals( profiler.getAcquisitions(), profiler.getReleases() );
+		assertEquals( OPERATIONS, profiler.getCommits() );
+		if ( label.contains( "AFTER_STATEMENT" ) ) {
+			assertTrue( profiler.getAcquisitions() > 2 * OPERATIONS );
+		}
+		else {
+			assertEquals( OPERATIONS, profiler.getAcquisitions() );
+		}
+	}
+
+	/**
+	 * Reads an item and a page of items, updates the item and, every fifth time, inserts a new one.
+	 */
+	private static void unitOfWork(EntityManager entityManager, int operation) {
+		final Item item = entityManager.find( Item.class, operation * 7919 % ITEMS );
+		final List<Item> page = entityManager.createQuery( "select i from Item i where i.stock >= :stock order by i.id", Item.class )
+				.setParameter( "stock", item.stock )
+				.setMaxResults( 10 )
+				.getResultList();
+		item.stock = ( item.stock + page.size() ) % 100;
+		if ( operation % 5 == 0 ) {
+			entityManager.persist( new Item( ITEMS + operation ) );
+		}
+	}
+
+	@Entity(name = "Item")
+	public static class Item {
+		@Id
+		Integer id;
+
+		String name;
+
+		int stock;
+
+		Item() {
+		}
+
+		Item(Integer id) {
+			this.id = id;
+			this.name = "item " + id;
+			this.stock = id % 100;
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.LockModeType;
+import javax.persistence.LockTimeoutException;
+import javax.persistence.PessimisticLockException;
+
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.exception.LockAcquisitionException;
+
+import org.junit.Test;
+
+import org.hiberntate.util.H2LockingMode;
+import org.hiberntate.util.LatencySamples;
+import org.hiberntate.util.SettingsMatrix;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import org.jboss.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Concurrent readers summing a table while writers update its rows under {@link LockModeType#PESSIMISTIC_WRITE},
+ * for each {@link H2LockingMode}: row level MVCC lets the readers run past the writers, while table level locks make
+ * them wait for (and possibly time out on) every writer. Reports the throughput of the readers and writers, the
+ * time spent acquiring the pessimistic locks and the lock timeouts, which are counted rather than failing the test.
+ * <p/>
+ * The workload can be changed with the {@code harness.h2.readers}, {@code harness.h2.writers} and
+ * {@code harness.h2.operations} (per thread) system properties, the lock timeout with {@value H2LockingMode#LOCK_TIMEOUT}.
+ */
+public class H2LockingModeBenchmarkTest extends WildFlyFunctionalTestCase {
+	private static final Logger log = Logger.getLogger( H2LockingModeBenchmarkTest.class );
+
+	private static final int READERS = Integer.getInteger( "harness.h2.readers", 4 );
+	private static final int WRITERS = Integer.getInteger( "harness.h2.writers", 2 );
+	private static final int OPERATIONS = Integer.getInteger( "harness.h2.operations", 100 );
+	private static final int ROWS = 10;
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { Account.class };
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	protected void addConfigOptions(Map options) {
+		options.put( AvailableSettings.POOL_SIZE, String.valueOf( READERS + WRITERS + 1 ) );
+		options.putIfAbsent( H2LockingMode.LOCK_TIMEOUT, "1000" );
+	}
+
+	@Test
+	@SettingsMatrix(value = @SettingsMatrix.Setting(name = H2LockingMode.SETTING, values = {
+			"MVSTORE_MVCC",
+			"MVSTORE_TABLE_LOCKS",
+			"PAGESTORE_MVCC",
+			"PAGESTORE_TABLE_LOCKS"
+	}))
+	public void testReadersAndWriters() throws Exception {
+		inTransaction(
+				entityManager -> {
+					for ( int id = 0; id < ROWS; id++ ) {
+						entityManager.persist( new Account( id ) );
+					}
+				}
+		);
+
+		final LatencySamples reads = new LatencySamples();
+		final LatencySamples lockWaits = new LatencySamples();
+		final AtomicLong writes = new AtomicLong();
+		final AtomicLong timeouts = new AtomicLong();
+
+		final ExecutorService executor = Executors.newFixedThreadPool( READERS + WRITERS );
+		try {
+			final long start = System.nanoTime();
+			final List<Future<?>> futures = new ArrayList<>();
+			for ( int i = 0; i < READERS; i++ ) {
+				futures.add( executor.submit( () -> {
+					for ( int j = 0; j < OPERATIONS; j++ ) {
+						final long readStart = System.nanoTime();
+						try {
+							fromTransaction( entityManager -> entityManager.createQuery(
+									"select sum(a.balance) from Account a",
+									Long.class
+							).getSingleResult() );
+							reads.record( System.nanoTime() - readStart );
+						}
+						catch (RuntimeException e) {
+							countTimeout( e, timeouts );
+						}
+					}
+				} ) );
+			}
+			for ( int i = 0; i < WRITERS; i++ ) {
+				futures.add( executor.submit( () -> {
+					for ( int j = 0; j < OPERATIONS; j++ ) {
+						final int id = ThreadLocalRandom.current().nextInt( ROWS );
+						try {
+							inTransaction(
+									entityManager -> {
+										final long lockStart = System.nanoTime();
+										final Account account = entityManager.find(
+												Account.class,
+												id,
+												LockModeType.PESSIMISTIC_WRITE
+										);
+										lockWaits.record( System.nanoTime() - lockStart );
+										account.balance++;
+									}
+							);
+							writes.incrementAndGet();
+						}
+						catch (RuntimeException e) {
+							countTimeout( e, timeouts );
+						}
+					}
+				} ) );
+			}
+			for ( Future<?> future : futures ) {
+				future.get();
+			}
+			final double seconds = ( System.nanoTime() - start ) / 1_000_000_000d;
+
+			log.infof(
+					"%s, %d readers and %d writers: reads %.1f tx/s (p99 %.2f ms), writes %.1f tx/s, lock wait mean %.2f ms (p99 %.2f ms), %d lock timeouts",
+					settingsMatrix.getCurrentSettings().get( H2LockingMode.SETTING ),
+					READERS,
+					WRITERS,
+					reads.getCount() / seconds,
+					reads.getPercentile( 99 ) / 1_000_000d,
+					writes.get() / seconds,
+					lockWaits.getMean() / 1_000_000d,
+					lockWaits.getPercentile( 99 ) / 1_000_000d,
+					timeouts.get()
+			);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		final long total = fromTransaction(
+				entityManager -> entityManager.createQuery( "select sum(a.balance) from Account a", Long.class )
+						.getSingleResult()
+		);
+		assertEquals( writes.get(), total );
+	}
+
+	private static void countTimeout(RuntimeException failure, AtomicLong timeouts) {
+		for ( Throwable t = failure; t != null; t = t.getCause() ) {
+			if ( t instanceof PessimisticLockException
+					|| t instanceof LockTimeoutException
+					|| t instanceof org.hibernate.PessimisticLockException
+					|| t instanceof LockAcquisitionException ) {
+				timeouts.incrementAndGet();
+				return;
+			}
+		}
+		throw failure;
+	}
+
+	@Entity(name = "Account")
+	public static class Account {
+		@Id
+		Integer id;
+
+		long balance;
+
+		Account() {
+		}
+
+		Account(Integer id) {
+			this.id = id;
+		}
+	}
+}
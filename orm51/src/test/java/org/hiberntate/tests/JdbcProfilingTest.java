@@ -0,0 +1,186 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+
+import org.hibernate.cfg.AvailableSettings;
+
+import org.junit.Test;
+
+import org.hiberntate.util.JdbcProfiler;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import org.jboss.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * What the {@link JdbcProfiler} shows of a few unit of work shapes: batched inserts, re-executing one prepared
+ * statement for each batch, and an N+1 select, preparing the same collection load again for each author, compared to
+ * a join fetch, and where their time goes.
+ */
+public class JdbcProfilingTest extends WildFlyFunctionalTestCase {
+	private static final Logger log = Logger.getLogger( JdbcProfilingTest.class );
+
+	private static final int AUTHORS = 10;
+	private static final int BOOKS = 5;
+	private static final int BATCH_SIZE = 25;
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { Author.class, Book.class };
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	protected void addConfigOptions(Map options) {
+		options.put( JdbcProfiler.ENABLED, "true" );
+		options.put( AvailableSettings.STATEMENT_BATCH_SIZE, String.valueOf( BATCH_SIZE ) );
+	}
+
+	@Test
+	public void testBatchedInserts() {
+		inTransaction(
+				entityManager -> {
+					for ( int i = 0; i < 4 * BATCH_SIZE; i++ ) {
+						entityManager.persist( new Author( i ) );
+					}
+				}
+		);
+
+		final JdbcProfiler profiler = jdbcProfiler();
+		assertEquals( Collections.singletonMap( BATCH_SIZE, 4L ), profiler.getBatchSizes() );
+		assertEquals( 1, profiler.getStatementsPrepared() );
+		assertEquals( 3, profiler.getReExecutions() );
+		assertEquals( 4 + 1, profiler.getRoundTrips() );
+		assertEquals( 1, profiler.getTransactions().getCount() );
+	}
+
+	@Test
+	public void testNPlusOneSelect() {
+		createAuthorsAndBooks();
+		jdbcProfiler().reset();
+
+		final int books = fromTransaction(
+				entityManager -> {
+					int count = 0;
+					for ( Author author : entityManager.createQuery( "select a from Author a", Author.class ).getResultList() ) {
+						count += author.books.size();
+					}
+					return count;
+				}
+		);
+		logProfile( "N+1 select" );
+
+		final JdbcProfiler profiler = jdbcProfiler();
+		assertEquals( AUTHORS * BOOKS, books );
+		assertEquals( 1 + AUTHORS, profiler.getExecutions() );
+		assertEquals( AUTHORS + AUTHORS * BOOKS, profiler.getRowsFetched() );
+		assertEquals( 1, profiler.getTransactions().getCount() );
+	}
+
+	@Test
+	public void testJoinFetch() {
+		createAuthorsAndBooks();
+		jdbcProfiler().reset();
+
+		final int books = fromTransaction(
+				entityManager -> {
+					int count = 0;
+					for ( Author author : entityManager.createQuery(
+							"select distinct a from Author a join fetch a.books",
+							Author.class
+					).getResultList() ) {
+						count += author.books.size();
+					}
+					return count;
+				}
+		);
+		logProfile( "join fetch" );
+
+		final JdbcProfiler profiler = jdbcProfiler();
+		assertEquals( AUTHORS * BOOKS, books );
+		assertEquals( 1, profiler.getExecutions() );
+		assertEquals( AUTHORS * BOOKS, profiler.getRowsFetched() );
+		assertTrue( profiler.getDriverNanos() <= profiler.getTransactions().getTotal() );
+	}
+
+	private void createAuthorsAndBooks() {
+		inTransaction(
+				entityManager -> {
+					for ( int i = 0; i < AUTHORS; i++ ) {
+						final Author author = new Author( i );
+						entityManager.persist( author );
+						for ( int j = 0; j < BOOKS; j++ ) {
+							entityManager.persist( new Book( i * BOOKS + j, author ) );
+						}
+					}
+				}
+		);
+	}
+
+	private void logProfile(String title) {
+		final JdbcProfiler profiler = jdbcProfiler();
+		log.infof(
+				"%s: %.3f ms, of which %.3f ms in the driver, %d round trips, %d rows",
+				title,
+				profiler.getTransactions().getTotal() / 1_000_000d,
+				profiler.getTransactionDriverTimes().getTotal() / 1_000_000d,
+				profiler.getRoundTrips(),
+				profiler.getRowsFetched()
+		);
+	}
+
+	@Entity(name = "Author")
+	public static class Author {
+		@Id
+		Integer id;
+
+		String name;
+
+		@OneToMany(mappedBy = "author")
+		List<Book> books = new ArrayList<>();
+
+		Author() {
+		}
+
+		Author(Integer id) {
+			this.id = id;
+			this.name = "author " + id;
+		}
+	}
+
+	@Entity(name = "Book")
+	public static class Book {
+		@Id
+		Integer id;
+
+		String title;
+
+		@ManyToOne(fetch = FetchType.LAZY)
+		Author author;
+
+		Book() {
+		}
+
+		Book(Integer id, Author author) {
+			this.id = id;
+			this.title = "book " + id;
+			this.author = author;
+		}
+	}
+}
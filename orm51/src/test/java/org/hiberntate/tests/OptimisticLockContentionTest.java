@@ -0,0 +1,142 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Version;
+
+import org.hibernate.cfg.AvailableSettings;
+
+import org.junit.Test;
+
+import org.hiberntate.util.RetryPolicy;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import org.jboss.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Many threads incrementing a small set of versioned rows, retrying the optimistic locking conflicts with a
+ * jittered backoff, reporting the conflict rate, the retries per success and the goodput (successful units of
+ * work per second) as the number of threads grows.
+ * <p/>
+ * The workload can be changed with the {@code harness.contention.threads} (comma separated thread counts),
+ * {@code harness.contention.rows} and {@code harness.contention.updates} (per thread) system properties.
+ */
+public class OptimisticLockContentionTest extends WildFlyFunctionalTestCase {
+	private static final Logger log = Logger.getLogger( OptimisticLockContentionTest.class );
+
+	private static final String THREADS = System.getProperty( "harness.contention.threads", "1,2,4,8" );
+	private static final int ROWS = Integer.getInteger( "harness.contention.rows", 4 );
+	private static final int UPDATES = Integer.getInteger( "harness.contention.updates", 50 );
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { Counter.class };
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	protected void addConfigOptions(Map options) {
+		// one connection per thread, the internal pool fails instead of waiting when it is exhausted
+		int maxThreads = 1;
+		for ( String threads : THREADS.split( "," ) ) {
+			maxThreads = Math.max( maxThreads, Integer.parseInt( threads.trim() ) );
+		}
+		options.put( AvailableSettings.POOL_SIZE, String.valueOf( maxThreads ) );
+	}
+
+	@Test
+	public void testContention() throws Exception {
+		long expectedTotal = 0;
+		for ( String threads : THREADS.split( "," ) ) {
+			expectedTotal += run( Integer.parseInt( threads.trim() ) );
+			final long total = fromTransaction(
+					entityManager -> entityManager.createQuery( "select sum(c.value) from Counter c", Long.class )
+							.getSingleResult()
+			);
+			assertEquals( expectedTotal, total );
+		}
+	}
+
+	/**
+	 * @return the number of successful increments
+	 */
+	private long run(int threads) throws Exception {
+		inTransaction(
+				entityManager -> {
+					for ( int id = 0; id < ROWS; id++ ) {
+						if ( entityManager.find( Counter.class, id ) == null ) {
+							entityManager.persist( new Counter( id ) );
+						}
+					}
+				}
+		);
+
+		final RetryPolicy retryPolicy = new RetryPolicy( 20, 1, 50 );
+		final ExecutorService executor = Executors.newFixedThreadPool( threads );
+		try {
+			final long start = System.nanoTime();
+			final List<Future<?>> futures = new ArrayList<>();
+			for ( int i = 0; i < threads; i++ ) {
+				futures.add( executor.submit( () -> {
+					for ( int j = 0; j < UPDATES; j++ ) {
+						final int id = ThreadLocalRandom.current().nextInt( ROWS );
+						inTransaction( retryPolicy, entityManager -> entityManager.find( Counter.class, id ).value++ );
+					}
+				} ) );
+			}
+			for ( Future<?> future : futures ) {
+				future.get();
+			}
+			final double seconds = ( System.nanoTime() - start ) / 1_000_000_000d;
+
+			log.infof(
+					"%d threads on %d rows: %d successes, %d conflicts, conflict rate %.1f%%, %.2f retries per success, goodput %.1f tx/s",
+					threads,
+					ROWS,
+					retryPolicy.getSuccesses(),
+					retryPolicy.getConflicts(),
+					retryPolicy.getConflictRate() * 100,
+					retryPolicy.getRetriesPerSuccess(),
+					retryPolicy.getSuccesses() / seconds
+			);
+			assertEquals( (long) threads * UPDATES, retryPolicy.getSuccesses() );
+			return retryPolicy.getSuccesses();
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Entity(name = "Counter")
+	public static class Counter {
+		@Id
+		Integer id;
+
+		@Version
+		int version;
+
+		long value;
+
+		Counter() {
+		}
+
+		Counter(Integer id) {
+			this.id = id;
+		}
+	}
+}
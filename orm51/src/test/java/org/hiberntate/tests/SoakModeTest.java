@@ -0,0 +1,116 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+
+import org.junit.Test;
+
+import org.hiberntate.util.JdbcProfiler;
+import org.hiberntate.util.SoakMonitor;
+import org.hiberntate.util.SoakTest;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A short soak run of a steady create/read/update/delete workload, which must not leak, and the detection of
+ * EntityManagers and connections left open by a leaking workload. Run it for longer with e.g.
+ * {@code -Dharness.soak.duration=PT2H -Dharness.soak.sample_interval=PT1M}.
+ */
+public class SoakModeTest extends WildFlyFunctionalTestCase {
+	private static final int LEAKS = 8;
+	private static final int LEAKED_CONNECTIONS = 4;
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { Ticket.class };
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	protected void addConfigOptions(Map options) {
+		options.put( JdbcProfiler.ENABLED, "true" );
+	}
+
+	@Test
+	@SoakTest(duration = "PT6S", sampleInterval = "PT0.5S")
+	public void testSteadyWorkload() {
+		final Long id = fromTransaction(
+				entityManager -> {
+					final Ticket ticket = new Ticket( "soak" );
+					entityManager.persist( ticket );
+					return ticket.id;
+				}
+		);
+		inTransaction(
+				entityManager -> {
+					final Ticket ticket = entityManager.find( Ticket.class, id );
+					ticket.status = "closed";
+					entityManager.createQuery( "select count(t) from Ticket t where t.status = 'open'", Long.class )
+							.getSingleResult();
+				}
+		);
+		inTransaction( entityManager -> entityManager.remove( entityManager.find( Ticket.class, id ) ) );
+	}
+
+	@Test
+	public void testDetectsLeakedEntityManagers() {
+		final SoakMonitor monitor = new SoakMonitor( entityManagerFactory(), jdbcProfiler() );
+		final List<EntityManager> leaked = new ArrayList<>();
+		try {
+			monitor.sample( 0 );
+			for ( int i = 0; i < LEAKS; i++ ) {
+				final EntityManager entityManager = entityManagerFactory().createEntityManager();
+				leaked.add( entityManager );
+				if ( i < LEAKED_CONNECTIONS ) {
+					// a resource-local transaction holds its connection
+					entityManager.getTransaction().begin();
+				}
+				monitor.sample( i + 1 );
+			}
+			final Map<SoakMonitor.Gauge, String> leaks = monitor.findLeaks();
+			assertTrue( leaks.toString(), leaks.containsKey( SoakMonitor.Gauge.ENTITY_MANAGERS ) );
+			assertTrue( leaks.toString(), leaks.containsKey( SoakMonitor.Gauge.CHECKED_OUT_CONNECTIONS ) );
+			assertEquals( LEAKED_CONNECTIONS, monitor.getSamples().get( LEAKS ).get( SoakMonitor.Gauge.CHECKED_OUT_CONNECTIONS ) );
+		}
+		finally {
+			for ( EntityManager entityManager : leaked ) {
+				if ( entityManager.getTransaction().isActive() ) {
+					entityManager.getTransaction().rollback();
+				}
+				entityManager.close();
+			}
+		}
+	}
+
+	@Entity(name = "Ticket")
+	public static class Ticket {
+		@Id
+		@GeneratedValue
+		Long id;
+
+		String title;
+
+		String status;
+
+		Ticket() {
+		}
+
+		Ticket(String title) {
+			this.title = title;
+			this.status = "open";
+		}
+	}
+}
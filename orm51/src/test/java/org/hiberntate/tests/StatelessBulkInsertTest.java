@@ -0,0 +1,104 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.util.Iterator;
+import java.util.stream.IntStream;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import org.hibernate.cfg.AvailableSettings;
+
+import org.junit.Test;
+
+import org.hiberntate.util.SettingsMatrix;
+import org.hiberntate.util.ThroughputReport;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import org.jboss.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Streams the same rows into the database through a {@link org.hibernate.StatelessSession} and through a stateful
+ * EntityManager flushed and cleared every {@value #FLUSH_SIZE} entities, with and without JDBC batching.
+ * <p/>
+ * Note that the statements of stateless sessions are not passed to the statement inspector, so the statement count
+ * of {@link #testStatelessSession()} only covers the final count query.
+ */
+public class StatelessBulkInsertTest extends WildFlyFunctionalTestCase {
+	private static final Logger log = Logger.getLogger( StatelessBulkInsertTest.class );
+
+	private static final int ROWS = 1000;
+	private static final int FLUSH_SIZE = 50;
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { Measurement.class };
+	}
+
+	@Test
+	@SettingsMatrix(value = @SettingsMatrix.Setting(name = AvailableSettings.STATEMENT_BATCH_SIZE, values = { "0", "50" }), operations = ROWS)
+	public void testStatelessSession() {
+		final ThroughputReport report = inStatelessSession( input(), ( session, measurement ) -> session.insert( measurement ) );
+		log.infof( "Stateless session with %s: %s", settingsMatrix.getCurrentSettings(), report );
+		assertEquals( ROWS, report.getRows() );
+		assertEquals( ROWS, count() );
+	}
+
+	@Test
+	@SettingsMatrix(value = @SettingsMatrix.Setting(name = AvailableSettings.STATEMENT_BATCH_SIZE, values = { "0", "50" }), operations = ROWS)
+	public void testStatefulSession() {
+		final ThroughputReport report = ThroughputReport.measure( () -> fromTransaction(
+				entityManager -> {
+					final Iterator<Measurement> input = input();
+					long rows = 0;
+					while ( input.hasNext() ) {
+						entityManager.persist( input.next() );
+						if ( ++rows % FLUSH_SIZE == 0 ) {
+							entityManager.flush();
+							entityManager.clear();
+						}
+					}
+					return rows;
+				}
+		) );
+		log.infof( "Stateful session with %s: %s", settingsMatrix.getCurrentSettings(), report );
+		assertEquals( ROWS, report.getRows() );
+		assertEquals( ROWS, count() );
+	}
+
+	private static Iterator<Measurement> input() {
+		return IntStream.range( 0, ROWS ).mapToObj( Measurement::new ).iterator();
+	}
+
+	private long count() {
+		return fromTransaction(
+				entityManager -> entityManager.createQuery( "select count(m) from Measurement m", Long.class )
+						.getSingleResult()
+		);
+	}
+
+	@Entity(name = "Measurement")
+	public static class Measurement {
+		@Id
+		Integer id;
+
+		String sensor;
+
+		double value;
+
+		Measurement() {
+		}
+
+		Measurement(int id) {
+			this.id = id;
+			this.sensor = "sensor-" + ( id % 10 );
+			this.value = id * 0.5;
+		}
+	}
+}
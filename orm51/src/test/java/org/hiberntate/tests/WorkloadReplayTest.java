@@ -0,0 +1,184 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.FetchType;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+
+import org.junit.Test;
+
+import org.hiberntate.util.Workload;
+import org.hiberntate.util.WorkloadRecorder;
+import org.hiberntate.util.WorkloadReplayer;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Records a small workload the way an integration test would, with a transaction scoped persistence context per
+ * transaction, writes and reads it back, and replays it with several times the data volume on several threads: the
+ * replay prepares the recorded statements once per copy, and each copy works on its own rows.
+ */
+public class WorkloadReplayTest extends WildFlyFunctionalTestCase {
+	private static final int EMPLOYEES = 3;
+	private static final int VOLUME = 8;
+	private static final int CONCURRENCY = 4;
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { Department.class, Employee.class };
+	}
+
+	@Test
+	public void testRecordAndReplay() throws IOException {
+		final WorkloadRecorder recorder = new WorkloadRecorder();
+		recorder.start();
+		try {
+			recordTransaction( recorder, entityManager -> {
+				final Department department = new Department( 1, "research" );
+				entityManager.persist( department );
+				for ( int i = 0; i < EMPLOYEES; i++ ) {
+					entityManager.persist( new Employee( "employee " + i, department, 1000 ) );
+				}
+			} );
+			recordTransaction( recorder, entityManager -> {
+				final Department department = entityManager.find( Department.class, 1 );
+				department.name = "development";
+				final List<Employee> employees = entityManager.createQuery(
+						"select e from Employee e where e.department = :department order by e.id",
+						Employee.class
+				)
+						.setParameter( "department", department )
+						.getResultList();
+				for ( Employee employee : employees ) {
+					employee.salary += 100;
+				}
+			} );
+			recordTransaction( recorder, entityManager -> {
+				final Employee first = entityManager.createQuery(
+						"select e from Employee e where e.department = :department order by e.id",
+						Employee.class
+				)
+						.setParameter( "department", entityManager.getReference( Department.class, 1 ) )
+						.setMaxResults( 1 )
+						.getSingleResult();
+				entityManager.remove( entityManager.find( Employee.class, first.id ) );
+			} );
+			final EntityManager entityManager = recorder.wrap( entityManagerFactory().createEntityManager() );
+			entityManager.find( Department.class, 1 );
+			entityManager.close();
+		}
+		finally {
+			recorder.stop();
+		}
+
+		final Path file = Files.createTempFile( "WorkloadReplayTest", ".workload" );
+		final Workload workload;
+		try {
+			recorder.writeTo( file );
+			workload = Workload.read( file );
+		}
+		finally {
+			Files.delete( file );
+		}
+		assertEquals( 3, workload.count( Workload.BEGIN ) );
+		assertEquals( 1 + EMPLOYEES, workload.count( Workload.UPDATE ) );
+		assertEquals( recorder.getWorkload().getStatementCounts(), workload.getStatementCounts() );
+
+		inTransaction(
+				entityManager -> {
+					entityManager.createQuery( "delete from Employee" ).executeUpdate();
+					entityManager.createQuery( "delete from Department" ).executeUpdate();
+				}
+		);
+
+		final WorkloadReplayer.Report report = replayWorkload( workload, VOLUME, CONCURRENCY );
+		assertEquals( Collections.emptyMap(), report.getFailures() );
+		assertEquals( 3 * VOLUME, report.getTransactions().getCount() );
+		assertEquals( Collections.emptyMap(), report.getStatementDifferences() );
+
+		final long departments = fromTransaction(
+				entityManager -> entityManager.createQuery(
+						"select count(d) from Department d where d.name = 'development'",
+						Long.class
+				).getSingleResult()
+		);
+		assertEquals( VOLUME, departments );
+		final long raisedEmployees = fromTransaction(
+				entityManager -> entityManager.createQuery( "select count(e) from Employee e where e.salary = 1100", Long.class )
+						.getSingleResult()
+		);
+		assertEquals( VOLUME * ( EMPLOYEES - 1 ), raisedEmployees );
+	}
+
+	/**
+	 * Runs the work in a new recorded EntityManager and transaction, as with a transaction scoped persistence context.
+	 */
+	private void recordTransaction(WorkloadRecorder recorder, Consumer<EntityManager> work) {
+		final EntityManager entityManager = recorder.wrap( entityManagerFactory().createEntityManager() );
+		try {
+			entityManager.getTransaction().begin();
+			work.accept( entityManager );
+			entityManager.getTransaction().commit();
+		}
+		finally {
+			if ( entityManager.getTransaction().isActive() ) {
+				entityManager.getTransaction().rollback();
+			}
+			entityManager.close();
+		}
+	}
+
+	@Entity(name = "Department")
+	public static class Department {
+		@Id
+		Integer id;
+
+		String name;
+
+		Department() {
+		}
+
+		Department(Integer id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+	}
+
+	@Entity(name = "Employee")
+	public static class Employee {
+		@Id
+		@GeneratedValue
+		Long id;
+
+		String name;
+
+		@ManyToOne(fetch = FetchType.LAZY)
+		Department department;
+
+		int salary;
+
+		Employee() {
+		}
+
+		Employee(String name, Department department, int salary) {
+			this.name = name;
+			this.department = department;
+			this.salary = salary;
+		}
+	}
+}
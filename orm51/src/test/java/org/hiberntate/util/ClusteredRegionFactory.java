@@ -0,0 +1,102 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.lang.reflect.Field;
+import java.util.Properties;
+
+import org.hibernate.boot.spi.SessionFactoryOptions;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.spi.CacheDataDescription;
+import org.hibernate.cache.spi.CollectionRegion;
+import org.hibernate.cache.spi.EntityRegion;
+import org.hibernate.cache.spi.NaturalIdRegion;
+import org.hibernate.testing.cache.BaseRegion;
+import org.hibernate.testing.cache.CachingRegionFactory;
+
+/**
+ * Region factory making the EntityManagerFactory a node of a {@link LoopbackCluster}, configured by the
+ * {@code harness.cache.cluster.*} settings: the regions and their read-only, nonstrict-read-write and read-write
+ * access strategies are the ones of {@link CachingRegionFactory}, whose storage map of the entity, collection and
+ * natural id regions is replaced by a {@link ClusteredStore}, invalidating or replicating its entries on the other
+ * nodes. The query results and update timestamps regions stay local to the node.
+ * <p/>
+ * e.g. {@code options.put( AvailableSettings.CACHE_REGION_FACTORY, ClusteredRegionFactory.class.getName() )}, with
+ * the other nodes built by {@link WildFlyFunctionalTestCase#buildClusterNode()}
+ */
+public class ClusteredRegionFactory extends CachingRegionFactory {
+	private static final Field STORAGE;
+
+	static {
+		try {
+			STORAGE = BaseRegion.class.getDeclaredField( "cache" );
+			STORAGE.setAccessible( true );
+		}
+		catch (NoSuchFieldException e) {
+			throw new ExceptionInInitializerError( e );
+		}
+	}
+
+	private LoopbackCluster.Node node;
+
+	public ClusteredRegionFactory() {
+	}
+
+	public ClusteredRegionFactory(Properties properties) {
+		super( properties );
+	}
+
+	@Override
+	public void start(SessionFactoryOptions settings, Properties properties) throws CacheException {
+		super.start( settings, properties );
+		node = LoopbackCluster.join( properties );
+	}
+
+	@Override
+	public EntityRegion buildEntityRegion(String regionName, Properties properties, CacheDataDescription metadata)
+			throws CacheException {
+		return clustered( super.buildEntityRegion( regionName, properties, metadata ) );
+	}
+
+	@Override
+	public NaturalIdRegion buildNaturalIdRegion(String regionName, Properties properties, CacheDataDescription metadata)
+			throws CacheException {
+		return clustered( super.buildNaturalIdRegion( regionName, properties, metadata ) );
+	}
+
+	@Override
+	public CollectionRegion buildCollectionRegion(String regionName, Properties properties, CacheDataDescription metadata)
+			throws CacheException {
+		return clustered( super.buildCollectionRegion( regionName, properties, metadata ) );
+	}
+
+	private <R extends org.hibernate.cache.spi.Region> R clustered(R region) {
+		try {
+			STORAGE.set( region, node.store( region.getName() ) );
+		}
+		catch (IllegalAccessException e) {
+			throw new CacheException( "Unable to replace the storage of region " + region.getName(), e );
+		}
+		return region;
+	}
+
+	/**
+	 * @return this EntityManagerFactory in the cluster
+	 */
+	public LoopbackCluster.Node getNode() {
+		return node;
+	}
+
+	@Override
+	public void stop() {
+		if ( node != null ) {
+			node.leave();
+			node = null;
+		}
+		super.stop();
+	}
+}
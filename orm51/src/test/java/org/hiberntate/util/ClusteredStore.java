@@ -0,0 +1,239 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.cache.spi.access.SoftLock;
+
+/**
+ * The storage of a cache region on one node of a {@link LoopbackCluster}, telling the other nodes about its changes
+ * the way the Infinispan region factory does:
+ * <ul>
+ * <li>a removal invalidates the entry on the other nodes;</li>
+ * <li>the soft lock taken by the read-write strategy before an update, and the entry written over the soft lock or a
+ * previous entry once the update completed, invalidate the entry on the other nodes with
+ * {@link LoopbackCluster.Mode#INVALIDATION} and overwrite it with {@link LoopbackCluster.Mode#REPLICATION};</li>
+ * <li>an entry loaded from the database, or inserted, stays on this node with {@link LoopbackCluster.Mode#INVALIDATION}
+ * and is copied to the nodes not having the entry yet with {@link LoopbackCluster.Mode#REPLICATION}, as with the
+ * {@code putForExternalRead} of Infinispan.</li>
+ * </ul>
+ * A load is put only if the entry was not invalidated or replicated by another node since this thread missed it, like
+ * the put-from-load validator of Infinispan: the database state read concurrently with the update of another node
+ * would otherwise stay in the cache after its invalidation. Loads not preceded by a lookup are not validated. The
+ * changes of at most {@value #MAX_CHANGED_KEYS} keys are remembered; past that, and on a clear, they are forgotten
+ * and every pending load is validated against the last change instead, rejecting a few loads that would have been
+ * valid.
+ */
+public class ClusteredStore extends AbstractMap<Object, Object> {
+	private static final int MAX_PENDING_LOADS = 1024;
+	private static final int MAX_CHANGED_KEYS = 16 * 1024;
+
+	private final String regionName;
+	private final LoopbackCluster.Node node;
+	private final Map<Object, Object> entries = new ConcurrentHashMap<>();
+	private final AtomicLong changes = new AtomicLong();
+	private final Map<Object, Long> changedAt = new ConcurrentHashMap<>();
+	private final ThreadLocal<Map<Object, Long>> pendingLoads = ThreadLocal.withInitial( HashMap::new );
+	private final AtomicLong clearedAt = new AtomicLong();
+	private final AtomicLong invalidationsReceived = new AtomicLong();
+	private final AtomicLong rejectedLoads = new AtomicLong();
+
+	ClusteredStore(String regionName, LoopbackCluster.Node node) {
+		this.regionName = regionName;
+		this.node = node;
+	}
+
+	public String getRegionName() {
+		return regionName;
+	}
+
+	@Override
+	public Object get(Object key) {
+		final Object value = entries.get( key );
+		final Map<Object, Long> pending = pendingLoads.get();
+		if ( value == null ) {
+			if ( pending.size() >= MAX_PENDING_LOADS ) {
+				// forgetting the loads which never completed only lets some loads through unvalidated
+				pending.clear();
+			}
+			pending.putIfAbsent( key, changes.get() );
+		}
+		else {
+			pending.remove( key );
+		}
+		return value;
+	}
+
+	@Override
+	public Object put(Object key, Object value) {
+		final Long missedAt = pendingLoads.get().remove( key );
+		final boolean lock = value instanceof SoftLock;
+		final Object[] previous = new Object[1];
+		final boolean[] rejected = new boolean[1];
+		// validated under the lock of the key, which the messages of the other nodes take too
+		entries.compute( key, (k, current) -> {
+			previous[0] = current;
+			if ( !lock && missedAt != null
+					&& ( clearedAt.get() > missedAt || changedAt.getOrDefault( k, 0L ) > missedAt ) ) {
+				rejected[0] = true;
+				return current;
+			}
+			return value;
+		} );
+		if ( rejected[0] ) {
+			rejectedLoads.incrementAndGet();
+			return previous[0];
+		}
+		// a soft lock, or the state of an update written over the soft lock or a previous entry
+		final boolean write = lock || ( missedAt == null && previous[0] != null );
+		if ( node.getMode() == LoopbackCluster.Mode.REPLICATION ) {
+			node.send( regionName, write ? Message.put( key, value ) : Message.putIfAbsent( key, value ) );
+		}
+		else if ( write ) {
+			node.send( regionName, Message.invalidate( key ) );
+		}
+		return previous[0];
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return entries.containsKey( key );
+	}
+
+	@Override
+	public Object remove(Object key) {
+		pendingLoads.get().remove( key );
+		final Object previous = entries.remove( key );
+		node.send( regionName, Message.invalidate( key ) );
+		return previous;
+	}
+
+	@Override
+	public void clear() {
+		forgetChanges( changes.incrementAndGet() );
+		entries.clear();
+		node.send( regionName, Message.clear() );
+	}
+
+	@Override
+	public int size() {
+		return entries.size();
+	}
+
+	@Override
+	public Set<Entry<Object, Object>> entrySet() {
+		return entries.entrySet();
+	}
+
+	/**
+	 * Applies the message of another node.
+	 */
+	void apply(Message message) {
+		final long change = changes.incrementAndGet();
+		switch ( message.kind ) {
+			case INVALIDATE:
+				entries.compute( message.key, (key, current) -> {
+					changedAt.put( key, change );
+					return null;
+				} );
+				invalidationsReceived.incrementAndGet();
+				break;
+			case PUT:
+				entries.compute( message.key, (key, current) -> {
+					changedAt.put( key, change );
+					return message.value;
+				} );
+				break;
+			case PUT_IF_ABSENT:
+				entries.putIfAbsent( message.key, message.value );
+				break;
+			case CLEAR:
+				forgetChanges( change );
+				entries.clear();
+				break;
+		}
+		if ( changedAt.size() > MAX_CHANGED_KEYS ) {
+			forgetChanges( change );
+		}
+	}
+
+	/**
+	 * Rejects the loads pending since before the given change, which the changes of the keys were kept for.
+	 */
+	private void forgetChanges(long change) {
+		// raised first, so that no load slips through between the two
+		clearedAt.accumulateAndGet( change, Math::max );
+		changedAt.clear();
+	}
+
+	/**
+	 * @return the entries this node invalidated on behalf of the other nodes
+	 */
+	public long getInvalidationsReceived() {
+		return invalidationsReceived.get();
+	}
+
+	/**
+	 * @return the loads not put since the entry was invalidated or replicated after the lookup
+	 */
+	public long getRejectedLoads() {
+		return rejectedLoads.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%s on %s: %d entries, %d invalidations received, %d loads rejected",
+				regionName,
+				node.getName(),
+				entries.size(),
+				invalidationsReceived.get(),
+				rejectedLoads.get()
+		);
+	}
+
+	static final class Message {
+		enum Kind {
+			INVALIDATE,
+			PUT,
+			PUT_IF_ABSENT,
+			CLEAR
+		}
+
+		private final Kind kind;
+		private final Object key;
+		private final Object value;
+
+		private Message(Kind kind, Object key, Object value) {
+			this.kind = kind;
+			this.key = key;
+			this.value = value;
+		}
+
+		static Message invalidate(Object key) {
+			return new Message( Kind.INVALIDATE, key, null );
+		}
+
+		static Message put(Object key, Object value) {
+			return new Message( Kind.PUT, key, value );
+		}
+
+		static Message putIfAbsent(Object key, Object value) {
+			return new Message( Kind.PUT_IF_ABSENT, key, value );
+		}
+
+		static Message clear() {
+			return new Message( Kind.CLEAR, null, null );
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javassist.bytecode.AttributeInfo;
+import javassist.bytecode.ClassFile;
+
+import org.hibernate.bytecode.enhance.spi.DefaultEnhancementContext;
+import org.hibernate.bytecode.enhance.spi.Enhancer;
+
+/**
+ * Class loader defining bytecode enhanced copies of the given entity classes (dirty tracking, lazy attribute loading
+ * and association management as done by the Hibernate build plugins with their defaults), along with plain copies of
+ * the other classes of their nests, delegating every other class to its parent.
+ * <p/>
+ * The harness builds the EntityManagerFactory with the enhanced classes when the {@value #ENABLED} setting is
+ * {@code true}. Since they are different classes from the ones the test compiles against, the test can only use them
+ * through queries, reflection or the metamodel.
+ */
+public class EnhancingClassLoader extends ClassLoader {
+	public static final String ENABLED = "harness.enhance";
+
+	private final Set<String> classNames = new LinkedHashSet<>();
+	private final Set<String> topLevelClassNames = new HashSet<>();
+	private final Enhancer enhancer;
+
+	public EnhancingClassLoader(ClassLoader parent, Collection<Class<?>> classes) {
+		super( parent );
+		for ( Class<?> type : classes ) {
+			classNames.add( type.getName() );
+			Class<?> topLevel = type;
+			while ( topLevel.getEnclosingClass() != null ) {
+				topLevel = topLevel.getEnclosingClass();
+			}
+			topLevelClassNames.add( topLevel.getName() );
+		}
+		this.enhancer = new Enhancer( new DefaultEnhancementContext() );
+	}
+
+	/**
+	 * @return the enhanced copies of the classes given to the constructor, in the same order
+	 */
+	public List<Class<?>> getEnhancedClasses() {
+		final List<Class<?>> enhanced = new ArrayList<>();
+		for ( String className : classNames ) {
+			try {
+				enhanced.add( loadClass( className ) );
+			}
+			catch (ClassNotFoundException e) {
+				throw new IllegalStateException( "Could not enhance " + className, e );
+			}
+		}
+		return enhanced;
+	}
+
+	@Override
+	protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+		if ( !isCopied( name ) ) {
+			return super.loadClass( name, resolve );
+		}
+		synchronized ( getClassLoadingLock( name ) ) {
+			Class<?> type = findLoadedClass( name );
+			if ( type == null ) {
+				byte[] bytes = readClass( name );
+				if ( classNames.contains( name ) ) {
+					final byte[] enhanced = enhancer.enhance( name, bytes );
+					if ( enhanced != null ) {
+						bytes = withoutNestAttributes( name, enhanced );
+					}
+				}
+				type = defineClass( name, bytes, 0, bytes.length );
+			}
+			if ( resolve ) {
+				resolveClass( type );
+			}
+			return type;
+		}
+	}
+
+	/**
+	 * Nested entity classes must be defined by the same class loader as their enclosing and sibling classes, so the
+	 * whole class nest is copied.
+	 */
+	private boolean isCopied(String name) {
+		final int nested = name.indexOf( '$' );
+		return topLevelClassNames.contains( nested < 0 ? name : name.substring( 0, nested ) );
+	}
+
+	/**
+	 * Javassist 3.20 predates nest mates: it rewrites the constant pool without fixing the {@code NestHost} and
+	 * {@code NestMembers} attributes of classes compiled for Java 11 or later, so they are dropped from the enhanced
+	 * classes.
+	 */
+	private static byte[] withoutNestAttributes(String name, byte[] bytes) throws ClassNotFoundException {
+		try {
+			final ClassFile classFile = new ClassFile( new DataInputStream( new ByteArrayInputStream( bytes ) ) );
+			final List<AttributeInfo> attributes = classFile.getAttributes();
+			if ( !attributes.removeIf( a -> "NestHost".equals( a.getName() ) || "NestMembers".equals( a.getName() ) ) ) {
+				return bytes;
+			}
+			final ByteArrayOutputStream stripped = new ByteArrayOutputStream( bytes.length );
+			classFile.write( new DataOutputStream( stripped ) );
+			return stripped.toByteArray();
+		}
+		catch (IOException e) {
+			throw new ClassNotFoundException( name, e );
+		}
+	}
+
+	private byte[] readClass(String name) throws ClassNotFoundException {
+		try (InputStream stream = getParent().getResourceAsStream( name.replace( '.', '/' ) + ".class" )) {
+			if ( stream == null ) {
+				throw new ClassNotFoundException( name );
+			}
+			return stream.readAllBytes();
+		}
+		catch (IOException e) {
+			throw new ClassNotFoundException( name, e );
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Garbage collection activity of the whole JVM while a test method ran: young and old collections, their
+ * accumulated collection time, the bytes promoted into the old generation by young collections and the peak usage
+ * of the old generation. The harness measures it for each test method when the {@value #ENABLED} setting is
+ * {@code true}.
+ * <p/>
+ * Collectors are told apart by name ({@code G1 Old Generation}, {@code PS MarkSweep}, {@code ZGC Major Cycles}, ...
+ * are old collectors). Promoted bytes are the growth of the old generation pools across young collections, as
+ * reported by the GC notifications; since these are delivered asynchronously, a collection ending right before
+ * {@link Measurement#stop()} may be missed. The collection time is the one of
+ * {@link GarbageCollectorMXBean#getCollectionTime()}: for concurrent collectors it includes their concurrent phases,
+ * so it is not the time the application was paused.
+ */
+public class GcPressure {
+	public static final String ENABLED = "harness.gc_report";
+
+	private final long youngCollections;
+	private final long oldCollections;
+	private final long collectionMillis;
+	private final long promotedBytes;
+	private final long peakOldGenBytes;
+
+	public GcPressure(
+			long youngCollections,
+			long oldCollections,
+			long collectionMillis,
+			long promotedBytes,
+			long peakOldGenBytes) {
+		this.youngCollections = youngCollections;
+		this.oldCollections = oldCollections;
+		this.collectionMillis = collectionMillis;
+		this.promotedBytes = promotedBytes;
+		this.peakOldGenBytes = peakOldGenBytes;
+	}
+
+	/**
+	 * Starts measuring, resetting the peak usage of the old generation pools.
+	 */
+	public static Measurement start() {
+		return new Measurement();
+	}
+
+	public long getYoungCollections() {
+		return youngCollections;
+	}
+
+	public long getOldCollections() {
+		return oldCollections;
+	}
+
+	public long getCollectionMillis() {
+		return collectionMillis;
+	}
+
+	public long getPromotedBytes() {
+		return promotedBytes;
+	}
+
+	public long getPeakOldGenBytes() {
+		return peakOldGenBytes;
+	}
+
+	/**
+	 * @return the values above by metric name, e.g. {@code gc.promotedBytes}
+	 */
+	public Map<String, Number> getMetrics() {
+		final Map<String, Number> metrics = new LinkedHashMap<>();
+		metrics.put( "gc.youngCollections", youngCollections );
+		metrics.put( "gc.oldCollections", oldCollections );
+		metrics.put( "gc.collectionMillis", collectionMillis );
+		metrics.put( "gc.promotedBytes", promotedBytes );
+		metrics.put( "gc.peakOldGenBytes", peakOldGenBytes );
+		return metrics;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%d young and %d old collections, %d ms collection time, %d KB promoted, old gen peak %d KB",
+				youngCollections,
+				oldCollections,
+				collectionMillis,
+				promotedBytes / 1024,
+				peakOldGenBytes / 1024
+		);
+	}
+
+	static boolean isOldCollector(String name) {
+		return name.contains( "Old" )
+				|| name.contains( "MarkSweep" )
+				|| name.contains( "Major" )
+				|| name.contains( "Full" );
+	}
+
+	static boolean isOldGenPool(MemoryPoolMXBean pool) {
+		return pool.getType() == MemoryType.HEAP
+				&& ( pool.getName().contains( "Old" ) || pool.getName().contains( "Tenured" ) );
+	}
+
+	public static class Measurement implements NotificationListener {
+		private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+		private final List<MemoryPoolMXBean> oldGenPools = new ArrayList<>();
+		private final long[] startCounts;
+		private final long[] startTimes;
+		private final AtomicLong promotedBytes = new AtomicLong();
+
+		private Measurement() {
+			for ( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+				if ( isOldGenPool( pool ) ) {
+					pool.resetPeakUsage();
+					oldGenPools.add( pool );
+				}
+			}
+			startCounts = new long[collectors.size()];
+			startTimes = new long[collectors.size()];
+			for ( int i = 0; i < collectors.size(); i++ ) {
+				startCounts[i] = Math.max( 0, collectors.get( i ).getCollectionCount() );
+				startTimes[i] = Math.max( 0, collectors.get( i ).getCollectionTime() );
+				if ( collectors.get( i ) instanceof NotificationEmitter ) {
+					( (NotificationEmitter) collectors.get( i ) ).addNotificationListener( this, null, null );
+				}
+			}
+		}
+
+		@Override
+		public void handleNotification(Notification notification, Object handback) {
+			if ( !GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals( notification.getType() ) ) {
+				return;
+			}
+			final GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from(
+					(CompositeData) notification.getUserData()
+			);
+			if ( isOldCollector( info.getGcName() ) ) {
+				return;
+			}
+			final Map<String, MemoryUsage> before = info.getGcInfo().getMemoryUsageBeforeGc();
+			final Map<String, MemoryUsage> after = info.getGcInfo().getMemoryUsageAfterGc();
+			for ( MemoryPoolMXBean pool : oldGenPools ) {
+				final MemoryUsage poolBefore = before.get( pool.getName() );
+				final MemoryUsage poolAfter = after.get( pool.getName() );
+				if ( poolBefore != null && poolAfter != null && poolAfter.getUsed() > poolBefore.getUsed() ) {
+					promotedBytes.addAndGet( poolAfter.getUsed() - poolBefore.getUsed() );
+				}
+			}
+		}
+
+		public GcPressure stop() {
+			long young = 0;
+			long old = 0;
+			long millis = 0;
+			for ( int i = 0; i < collectors.size(); i++ ) {
+				final GarbageCollectorMXBean collector = collectors.get( i );
+				if ( collector instanceof NotificationEmitter ) {
+					try {
+						( (NotificationEmitter) collector ).removeNotificationListener( this );
+					}
+					catch (Exception ignore) {
+						// already removed
+					}
+				}
+				final long count = Math.max( 0, collector.getCollectionCount() ) - startCounts[i];
+				if ( isOldCollector( collector.getName() ) ) {
+					old += count;
+				}
+				else {
+					young += count;
+				}
+				millis += Math.max( 0, collector.getCollectionTime() ) - startTimes[i];
+			}
+			long peak = 0;
+			for ( MemoryPoolMXBean pool : oldGenPools ) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+			return new GcPressure( young, old, millis, promotedBytes.get(), peak );
+		}
+	}
+}
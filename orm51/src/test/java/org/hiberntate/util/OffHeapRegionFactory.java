@@ -0,0 +1,108 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hibernate.boot.spi.SessionFactoryOptions;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.spi.CacheDataDescription;
+import org.hibernate.cache.spi.CollectionRegion;
+import org.hibernate.cache.spi.EntityRegion;
+import org.hibernate.cache.spi.NaturalIdRegion;
+import org.hibernate.testing.cache.BaseRegion;
+import org.hibernate.testing.cache.CachingRegionFactory;
+
+/**
+ * Region factory keeping the entity, collection and natural id regions in {@link OffHeapStore}s, one per region,
+ * configured by the {@code harness.cache.offheap.*} settings. The regions and their read-only, nonstrict-read-write
+ * and read-write access strategies are the ones of {@link CachingRegionFactory}, whose storage map is replaced by the
+ * off-heap store; the query results and update timestamps regions stay on the heap.
+ * <p/>
+ * e.g. {@code options.put( AvailableSettings.CACHE_REGION_FACTORY, OffHeapRegionFactory.class.getName() )}
+ */
+public class OffHeapRegionFactory extends CachingRegionFactory {
+	private static final Field STORAGE;
+
+	static {
+		try {
+			STORAGE = BaseRegion.class.getDeclaredField( "cache" );
+			STORAGE.setAccessible( true );
+		}
+		catch (NoSuchFieldException e) {
+			throw new ExceptionInInitializerError( e );
+		}
+	}
+
+	private final Map<String, OffHeapStore> stores = new ConcurrentHashMap<>();
+	private Properties properties = new Properties();
+
+	public OffHeapRegionFactory() {
+	}
+
+	public OffHeapRegionFactory(Properties properties) {
+		super( properties );
+	}
+
+	@Override
+	public void start(SessionFactoryOptions settings, Properties properties) throws CacheException {
+		super.start( settings, properties );
+		this.properties = properties;
+	}
+
+	@Override
+	public EntityRegion buildEntityRegion(String regionName, Properties properties, CacheDataDescription metadata)
+			throws CacheException {
+		return offHeap( super.buildEntityRegion( regionName, properties, metadata ) );
+	}
+
+	@Override
+	public NaturalIdRegion buildNaturalIdRegion(String regionName, Properties properties, CacheDataDescription metadata)
+			throws CacheException {
+		return offHeap( super.buildNaturalIdRegion( regionName, properties, metadata ) );
+	}
+
+	@Override
+	public CollectionRegion buildCollectionRegion(String regionName, Properties properties, CacheDataDescription metadata)
+			throws CacheException {
+		return offHeap( super.buildCollectionRegion( regionName, properties, metadata ) );
+	}
+
+	private <R extends org.hibernate.cache.spi.Region> R offHeap(R region) {
+		final OffHeapStore store = stores.computeIfAbsent(
+				region.getName(),
+				name -> OffHeapStore.create( name, properties )
+		);
+		try {
+			STORAGE.set( region, store );
+		}
+		catch (IllegalAccessException e) {
+			throw new CacheException( "Unable to replace the storage of region " + region.getName(), e );
+		}
+		return region;
+	}
+
+	/**
+	 * @return the stores of the regions, by region name
+	 */
+	public Map<String, OffHeapStore> getStores() {
+		return Collections.unmodifiableMap( stores );
+	}
+
+	@Override
+	public void stop() {
+		for ( OffHeapStore store : stores.values() ) {
+			store.close();
+		}
+		stores.clear();
+		super.stop();
+	}
+}
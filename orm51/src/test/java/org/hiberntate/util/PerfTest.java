@@ -0,0 +1,38 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Turns a test method into a micro-benchmark: the method body (without {@code @Before}/{@code @After}, so with the
+ * same EntityManagerFactory) is executed {@link #warmup()} times to warm up the JIT and Hibernate, then
+ * {@link #iterations()} measured times, each time on {@link #threads()} concurrent threads. The mean, percentiles,
+ * standard deviation and coefficient of variation of the measured executions are logged, and the mean and 99th
+ * percentile recorded through {@link PerformanceResults}.
+ * <p/>
+ * e.g.
+ * <pre>
+ * &#64;Test
+ * &#64;PerfTest(warmup = 10, iterations = 50, threads = 4)
+ * public void testIt() { ... }
+ * </pre>
+ *
+ * @see PerfTestRunner
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface PerfTest {
+	int warmup() default 5;
+
+	int iterations() default 20;
+
+	int threads() default 1;
+}
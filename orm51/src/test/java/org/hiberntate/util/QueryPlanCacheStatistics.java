@@ -0,0 +1,285 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.HibernateException;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.engine.query.spi.HQLQueryPlan;
+import org.hibernate.engine.query.spi.QueryPlanCache;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.internal.util.collections.BoundedConcurrentHashMap;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Hits, misses and evictions of the HQL/JPQL query plan cache of a SessionFactory, and the time spent translating
+ * each query string into a plan. Hibernate does not expose any statistics about this cache, so {@link #install}
+ * replaces its map by a bounded map of the same size and eviction policy counting the lookups: a miss is followed by
+ * the translation of the query and then by the insertion of the new plan, the time between the two is the
+ * translation time of the query string.
+ * <p/>
+ * The harness installs it when the {@value #ENABLED} setting is {@code true} and logs the report after each test.
+ */
+public class QueryPlanCacheStatistics {
+	public static final String ENABLED = "harness.query_plan_stats";
+
+	private static final Logger log = Logger.getLogger( QueryPlanCacheStatistics.class );
+
+	private static final int DEFAULT_MAX_SIZE = 2048;
+	private static final int CONCURRENCY_LEVEL = 20;
+
+	private static final Field PLANS;
+
+	static {
+		try {
+			PLANS = QueryPlanCache.class.getDeclaredField( "queryPlanCache" );
+			PLANS.setAccessible( true );
+		}
+		catch (NoSuchFieldException e) {
+			throw new ExceptionInInitializerError( e );
+		}
+	}
+
+	private final int maxSize;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final AtomicInteger peakSize = new AtomicInteger();
+	private final LatencySamples translations = new LatencySamples();
+	private final Map<String, LatencySamples> translationsByQuery = new ConcurrentHashMap<>();
+	private final ThreadLocal<Long> translationStart = new ThreadLocal<>();
+	private InstrumentedPlans plans;
+
+	private QueryPlanCacheStatistics(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Instruments the query plan cache of the given EntityManagerFactory, keeping the plans it already contains (e.g.
+	 * of the named queries).
+	 */
+	public static QueryPlanCacheStatistics install(EntityManagerFactory entityManagerFactory) {
+		final SessionFactoryImplementor sessionFactory = entityManagerFactory.unwrap( SessionFactoryImplementor.class );
+		final Map properties = sessionFactory.getProperties();
+		// same lookup as QueryPlanCache
+		Integer maxSize = ConfigurationHelper.getInteger( AvailableSettings.QUERY_PLAN_CACHE_MAX_SIZE, properties );
+		if ( maxSize == null ) {
+			maxSize = ConfigurationHelper.getInt(
+					AvailableSettings.QUERY_PLAN_CACHE_MAX_SOFT_REFERENCES,
+					properties,
+					DEFAULT_MAX_SIZE
+			);
+		}
+		final QueryPlanCacheStatistics statistics = new QueryPlanCacheStatistics( maxSize );
+		final QueryPlanCache queryPlanCache = sessionFactory.getQueryPlanCache();
+		try {
+			final InstrumentedPlans plans = statistics.new InstrumentedPlans();
+			plans.putAll( (Map) PLANS.get( queryPlanCache ) );
+			PLANS.set( queryPlanCache, plans );
+			statistics.plans = plans;
+		}
+		catch (IllegalAccessException e) {
+			throw new HibernateException( "Unable to instrument the query plan cache", e );
+		}
+		return statistics;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public double getHitRatio() {
+		final long lookups = getHits() + getMisses();
+		return lookups == 0 ? 0 : (double) getHits() / lookups;
+	}
+
+	/**
+	 * @return the number of plans evicted from the cache to make room for new ones
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int getSize() {
+		return plans.size();
+	}
+
+	/**
+	 * @return the largest number of plans cached at once since the installation
+	 */
+	public int getPeakSize() {
+		return peakSize.get();
+	}
+
+	/**
+	 * @return the translation times of all the query strings
+	 */
+	public LatencySamples getTranslations() {
+		return translations;
+	}
+
+	/**
+	 * @return the translation times keyed by query string; a query string translated more than once had its plan
+	 * evicted in between
+	 */
+	public Map<String, LatencySamples> getTranslationsByQuery() {
+		return translationsByQuery;
+	}
+
+	/**
+	 * @return the totals recorded as performance metrics by metric name, e.g. {@code queryPlan.misses}
+	 */
+	public Map<String, Number> getMetrics() {
+		final Map<String, Number> metrics = new LinkedHashMap<>();
+		metrics.put( "queryPlan.hits", getHits() );
+		metrics.put( "queryPlan.misses", getMisses() );
+		metrics.put( "queryPlan.evictions", getEvictions() );
+		metrics.put( "queryPlan.peakSize", getPeakSize() );
+		metrics.put( "queryPlan.translationMillis", getTranslations().getTotal() / 1_000_000d );
+		return metrics;
+	}
+
+	/**
+	 * @return the number of translations of query strings which had already been translated
+	 */
+	public long getRetranslations() {
+		return translations.getCount() - translationsByQuery.size();
+	}
+
+	private void translated(Object plan) {
+		final Long start = translationStart.get();
+		if ( start == null ) {
+			return;
+		}
+		translationStart.remove();
+		final long elapsed = System.nanoTime() - start;
+		translations.record( elapsed );
+		final String query = plan instanceof HQLQueryPlan ? ( (HQLQueryPlan) plan ).getSourceQuery() : String.valueOf( plan );
+		translationsByQuery.computeIfAbsent( query, q -> new LatencySamples( 16 ) ).record( elapsed );
+		peakSize.accumulateAndGet( plans.size(), Math::max );
+	}
+
+	public void logReport(String title, int topQueries) {
+		if ( getHits() + getMisses() == 0 ) {
+			return;
+		}
+		final List<Map.Entry<String, LatencySamples>> queries = new ArrayList<>( translationsByQuery.entrySet() );
+		queries.sort( Comparator.comparingLong( (Map.Entry<String, LatencySamples> e) -> e.getValue().getTotal() )
+							.reversed() );
+
+		final StringBuilder report = new StringBuilder( "Query plan cache of " ).append( title ).append( ": " )
+				.append( this )
+				.append( String.format(
+						"%n  %-80s %10s %12s %10s %10s",
+						"query",
+						"translated",
+						"total ms",
+						"mean us",
+						"max us"
+				) );
+		for ( Map.Entry<String, LatencySamples> query : queries.subList( 0, Math.min( topQueries, queries.size() ) ) ) {
+			final LatencySamples samples = query.getValue();
+			report.append( String.format(
+					"%n  %-80s %10d %12.3f %10.1f %10.1f",
+					abbreviate( query.getKey(), 80 ),
+					samples.getCount(),
+					samples.getTotal() / 1_000_000d,
+					samples.getMean() / 1_000d,
+					samples.getMax() / 1_000d
+			) );
+		}
+		if ( queries.size() > topQueries ) {
+			report.append( String.format( "%n  ... %d more query strings", queries.size() - topQueries ) );
+		}
+		log.info( report );
+	}
+
+	private static String abbreviate(String query, int length) {
+		final String singleLine = query.replaceAll( "\\s+", " " );
+		return singleLine.length() <= length ? singleLine : singleLine.substring( 0, length - 3 ) + "...";
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%d hits, %d misses (hit ratio %.1f%%), %d evictions, size %d/%d (peak %d), "
+						+ "%d query strings translated %d times in %.3f ms (mean %.1f us, p99 %.1f us)",
+				getHits(),
+				getMisses(),
+				getHitRatio() * 100,
+				getEvictions(),
+				getSize(),
+				maxSize,
+				getPeakSize(),
+				translationsByQuery.size(),
+				translations.getCount(),
+				translations.getTotal() / 1_000_000d,
+				translations.getMean() / 1_000d,
+				translations.getPercentile( 99 ) / 1_000d
+		);
+	}
+
+	/**
+	 * The plan map of {@link QueryPlanCache}, which looks a plan up with {@link #get}, translates the query when it is
+	 * missing and caches the new plan with {@link #putIfAbsent}.
+	 */
+	private class InstrumentedPlans extends BoundedConcurrentHashMap<Object, Object> {
+		private InstrumentedPlans() {
+			super( maxSize, CONCURRENCY_LEVEL, Eviction.LIRS, new EvictionListener<Object, Object>() {
+				@Override
+				public void onEntryEviction(Map<Object, Object> evicted) {
+					evictions.add( evicted.size() );
+				}
+
+				@Override
+				public void onEntryChosenForEviction(Object internalCacheEntry) {
+				}
+			} );
+		}
+
+		@Override
+		public Object get(Object key) {
+			final Object plan = super.get( key );
+			if ( plan == null ) {
+				misses.increment();
+				translationStart.set( System.nanoTime() );
+			}
+			else {
+				hits.increment();
+				translationStart.remove();
+			}
+			return plan;
+		}
+
+		@Override
+		public Object putIfAbsent(Object key, Object plan) {
+			final Object previous = super.putIfAbsent( key, plan );
+			translated( plan );
+			return previous;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Re-runs the annotated test once for every combination of the declared setting values.
+ * <p/>
+ * e.g.
+ * <pre>
+ * &#64;Test
+ * &#64;SettingsMatrix({
+ * 		&#64;SettingsMatrix.Setting(name = AvailableSettings.STATEMENT_BATCH_SIZE, values = { "0", "50" }),
+ * 		&#64;SettingsMatrix.Setting(name = AvailableSettings.ORDER_INSERTS, values = { "false", "true" })
+ * })
+ * public void testIt() { ... }
+ * </pre>
+ * The statement count and the allocation per operation of each combination are also recorded through
+ * {@link PerformanceResults}.
+ * <p/>
+ * With {@link Mode#ONE_AT_A_TIME} the first value of each setting is the baseline and every other value is run on
+ * its own, the other settings keeping their baseline value, to measure the sensitivity to each setting; the baseline
+ * is run again after each variation.
+ *
+ * @see SettingsMatrixRule
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface SettingsMatrix {
+	Setting[] value();
+
+	/**
+	 * The number of operations performed by one run of the test, used to report the allocation per operation.
+	 */
+	int operations() default 1;
+
+	Mode mode() default Mode.ALL_COMBINATIONS;
+
+	enum Mode {
+		/**
+		 * Every combination of the values of all the settings.
+		 */
+		ALL_COMBINATIONS,
+		/**
+		 * The baseline, made of the first value of each setting, then each other value of a single setting, each
+		 * followed by the baseline again.
+		 */
+		ONE_AT_A_TIME
+	}
+
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target({})
+	@interface Setting {
+		String name();
+
+		String[] values();
+	}
+}
@@ -0,0 +1,590 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import javax.persistence.EntityManager;
+
+import org.hibernate.BaseSessionEventListener;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SessionImplementor;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Detects the units of work of {@link TransactionUtil} taking longer than a threshold, set for every unit of work by
+ * the {@value #THRESHOLD} system property (an ISO-8601 duration, e.g.
+ * {@code -Dharness.slow_transaction.threshold=PT0.2S}) or {@link #setThreshold}, or per call, e.g.
+ * {@code TransactionUtil.inTransaction( factory, Duration.ofMillis( 50 ), entityManager -> ... )}.
+ * <p/>
+ * A traced unit of work only keeps references: the SQL of the statements it prepares (handed by the
+ * {@link StatementCounter} of the EntityManagerFactory, which the harness registers) with the time they were
+ * prepared and executed, and the counters of the {@link org.hibernate.SessionEventListener} events of its session
+ * (flushes, flushed entities and collections, second level cache gets). When the unit of work exceeds the threshold,
+ * the managed entities of its persistence context and the caller stack are captured, and the {@link SlowTransaction}
+ * is logged as a warning, handed to the listeners bound with {@link #listen} and appended as a JSON line to the
+ * {@value #LOG_FILE} file when set. Nothing is traced without a threshold.
+ * <p/>
+ * The executions of a statement are timed from the session events; a batch execution is attributed to the statement
+ * prepared last. A session cannot remove its listeners, so one listener is added to each session the first time one
+ * of its units of work is traced, and handed to the traces of the following ones.
+ */
+public final class SlowTransactionDetector {
+	private static final Logger log = Logger.getLogger( SlowTransactionDetector.class );
+
+	public static final String THRESHOLD = "harness.slow_transaction.threshold";
+	public static final String LOG_FILE = "harness.slow_transaction.log";
+
+	static final int MAX_STATEMENTS = 1_000;
+	private static final int MAX_STACK_DEPTH = 32;
+
+	private static volatile Duration threshold = parse( System.getProperty( THRESHOLD ) );
+	private static final List<Consumer<SlowTransaction>> listeners = new CopyOnWriteArrayList<>();
+	private static final Map<Session, TraceListener> sessionListeners = Collections.synchronizedMap( new WeakHashMap<>() );
+
+	private SlowTransactionDetector() {
+	}
+
+	private static Duration parse(String threshold) {
+		return threshold == null || threshold.isEmpty() ? null : Duration.parse( threshold );
+	}
+
+	/**
+	 * @return the threshold of the units of work executed without one, {@code null} when they are not traced
+	 */
+	public static Duration getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Sets the threshold of the units of work executed without one; {@code null} stops tracing them.
+	 */
+	public static void setThreshold(Duration threshold) {
+		SlowTransactionDetector.threshold = threshold;
+	}
+
+	/**
+	 * Binds a listener of the slow transactions of every thread.
+	 *
+	 * @return the action unbinding it
+	 */
+	public static Runnable listen(Consumer<SlowTransaction> listener) {
+		listeners.add( listener );
+		return () -> listeners.remove( listener );
+	}
+
+	/**
+	 * Starts tracing the unit of work of the EntityManager, before its transaction begins.
+	 *
+	 * @param threshold the threshold of this unit of work, {@code null} for the global one
+	 *
+	 * @return the trace, doing nothing when there is no threshold
+	 */
+	static Trace start(EntityManager entityManager, Duration threshold) {
+		final Duration effective = threshold == null ? SlowTransactionDetector.threshold : threshold;
+		if ( effective == null ) {
+			return Trace.DISABLED;
+		}
+		final Session session = entityManager.unwrap( Session.class );
+		final Trace trace = new Trace( (SessionImplementor) session, effective.toNanos() );
+		trace.sessionListener = sessionListeners.computeIfAbsent( session, key -> {
+			final TraceListener listener = new TraceListener();
+			key.addEventListeners( listener );
+			return listener;
+		} );
+		trace.previousTrace = trace.sessionListener.trace;
+		trace.sessionListener.trace = trace;
+		trace.previousListener = StatementCounter.listener();
+		StatementCounter.listen( trace );
+		return trace;
+	}
+
+	/**
+	 * The listener of a session, handing its events to the unit of work traced at the moment, if any.
+	 */
+	private static final class TraceListener extends BaseSessionEventListener {
+		private Trace trace;
+
+		@Override
+		public void jdbcExecuteStatementStart() {
+			if ( trace != null ) {
+				trace.executionStarted();
+			}
+		}
+
+		@Override
+		public void jdbcExecuteStatementEnd() {
+			if ( trace != null ) {
+				trace.executed();
+			}
+		}
+
+		@Override
+		public void jdbcExecuteBatchStart() {
+			if ( trace != null ) {
+				trace.executionStarted();
+			}
+		}
+
+		@Override
+		public void jdbcExecuteBatchEnd() {
+			if ( trace != null ) {
+				trace.executed();
+			}
+		}
+
+		@Override
+		public void flushEnd(int numberOfEntities, int numberOfCollections) {
+			if ( trace != null ) {
+				trace.flushed( numberOfEntities, numberOfCollections );
+			}
+		}
+
+		@Override
+		public void partialFlushEnd(int numberOfEntities, int numberOfCollections) {
+			// the auto flush listener passes the number of entities as the number of collections too
+			if ( trace != null ) {
+				trace.flushed( numberOfEntities, 0 );
+			}
+		}
+
+		@Override
+		public void cacheGetEnd(boolean hit) {
+			if ( trace != null ) {
+				trace.cacheGet( hit );
+			}
+		}
+	}
+
+	/**
+	 * Traces a unit of work: the events of its session and the statements prepared by its thread.
+	 */
+	static class Trace implements Consumer<String> {
+		/**
+		 * The trace of the units of work executed without a threshold.
+		 */
+		static final Trace DISABLED = new Trace( null, Long.MAX_VALUE ) {
+			@Override
+			void actionCompleted() {
+			}
+
+			@Override
+			void completed(String outcome) {
+			}
+		};
+
+		private final SessionImplementor session;
+		private final long thresholdNanos;
+		private final long start = System.nanoTime();
+		private TraceListener sessionListener;
+		private Trace previousTrace;
+		private Consumer<String> previousListener;
+
+		private String[] sql = new String[16];
+		private long[] preparedAt = new long[16];
+		private long[] executions = new long[16];
+		private long[] executionNanos = new long[16];
+		private int statements;
+		private int droppedStatements;
+		private long executionStart;
+
+		private int flushes;
+		private int flushedEntities;
+		private int flushedCollections;
+		private int cacheGets;
+		private int cacheHits;
+		private int managedEntities;
+
+		private Trace(SessionImplementor session, long thresholdNanos) {
+			this.session = session;
+			this.thresholdNanos = thresholdNanos;
+		}
+
+		@Override
+		public void accept(String statement) {
+			if ( previousListener != null ) {
+				previousListener.accept( statement );
+			}
+			if ( statements == MAX_STATEMENTS ) {
+				droppedStatements++;
+				return;
+			}
+			if ( statements == sql.length ) {
+				final int length = Math.min( statements * 2, MAX_STATEMENTS );
+				sql = Arrays.copyOf( sql, length );
+				preparedAt = Arrays.copyOf( preparedAt, length );
+				executions = Arrays.copyOf( executions, length );
+				executionNanos = Arrays.copyOf( executionNanos, length );
+			}
+			sql[statements] = statement;
+			preparedAt[statements] = System.nanoTime();
+			statements++;
+		}
+
+		private void executionStarted() {
+			executionStart = System.nanoTime();
+		}
+
+		private void executed() {
+			if ( statements > 0 && droppedStatements == 0 ) {
+				executions[statements - 1]++;
+				executionNanos[statements - 1] += System.nanoTime() - executionStart;
+			}
+		}
+
+		private void flushed(int numberOfEntities, int numberOfCollections) {
+			flushes++;
+			flushedEntities += numberOfEntities;
+			flushedCollections += numberOfCollections;
+		}
+
+		private void cacheGet(boolean hit) {
+			cacheGets++;
+			if ( hit ) {
+				cacheHits++;
+			}
+		}
+
+		/**
+		 * Called when the action returns, before the transaction completes and the persistence context is cleared.
+		 */
+		void actionCompleted() {
+			if ( session.isOpen() ) {
+				managedEntities = session.getPersistenceContext().getNumberOfManagedEntities();
+			}
+		}
+
+		/**
+		 * Stops tracing, handing the session events and the statements back to the previous listeners, and reports
+		 * the unit of work when it exceeded the threshold; called once, whatever the outcome, by the thread which
+		 * started the trace, in its caller stack.
+		 */
+		void completed(String outcome) {
+			final long elapsed = System.nanoTime() - start;
+			sessionListener.trace = previousTrace;
+			StatementCounter.listen( previousListener );
+			if ( elapsed > thresholdNanos ) {
+				report( new SlowTransaction( this, elapsed, outcome, callerStack() ) );
+			}
+		}
+
+		private static List<StackTraceElement> callerStack() {
+			final List<StackTraceElement> stack = new ArrayList<>();
+			for ( StackTraceElement frame : Thread.currentThread().getStackTrace() ) {
+				final String className = frame.getClassName();
+				if ( stack.isEmpty() && ( className.equals( Thread.class.getName() )
+						|| className.startsWith( SlowTransactionDetector.class.getName() )
+						|| className.startsWith( TransactionUtil.class.getName() ) ) ) {
+					continue;
+				}
+				stack.add( frame );
+				if ( stack.size() == MAX_STACK_DEPTH ) {
+					break;
+				}
+			}
+			return stack;
+		}
+	}
+
+	private static void report(SlowTransaction transaction) {
+		log.warn( transaction );
+		for ( Consumer<SlowTransaction> listener : listeners ) {
+			listener.accept( transaction );
+		}
+		final String file = System.getProperty( LOG_FILE );
+		if ( file != null && !file.isEmpty() ) {
+			append( Paths.get( file ), transaction.toJson() );
+		}
+	}
+
+	private static synchronized void append(Path file, String line) {
+		try {
+			if ( file.toAbsolutePath().getParent() != null ) {
+				Files.createDirectories( file.toAbsolutePath().getParent() );
+			}
+			try ( Writer writer = Files.newBufferedWriter(
+					file,
+					StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND
+			) ) {
+				writer.write( line );
+				writer.write( '\n' );
+			}
+		}
+		catch (IOException e) {
+			log.warnf( e, "Unable to append the slow transaction to %s", file );
+		}
+	}
+
+	/**
+	 * A unit of work which exceeded its threshold.
+	 */
+	public static final class SlowTransaction {
+		private final String thread = Thread.currentThread().getName();
+		private final long elapsedNanos;
+		private final long thresholdNanos;
+		private final String outcome;
+		private final List<Statement> statements;
+		private final int droppedStatements;
+		private final int flushes;
+		private final int flushedEntities;
+		private final int flushedCollections;
+		private final int cacheGets;
+		private final int cacheHits;
+		private final int managedEntities;
+		private final List<StackTraceElement> callerStack;
+
+		private SlowTransaction(Trace trace, long elapsedNanos, String outcome, List<StackTraceElement> callerStack) {
+			this.elapsedNanos = elapsedNanos;
+			this.thresholdNanos = trace.thresholdNanos;
+			this.outcome = outcome;
+			final List<Statement> statements = new ArrayList<>( trace.statements );
+			for ( int i = 0; i < trace.statements; i++ ) {
+				statements.add( new Statement(
+						trace.sql[i],
+						trace.preparedAt[i] - trace.start,
+						trace.executions[i],
+						trace.executionNanos[i]
+				) );
+			}
+			this.statements = Collections.unmodifiableList( statements );
+			this.droppedStatements = trace.droppedStatements;
+			this.flushes = trace.flushes;
+			this.flushedEntities = trace.flushedEntities;
+			this.flushedCollections = trace.flushedCollections;
+			this.cacheGets = trace.cacheGets;
+			this.cacheHits = trace.cacheHits;
+			this.managedEntities = trace.managedEntities;
+			this.callerStack = Collections.unmodifiableList( callerStack );
+		}
+
+		public String getThread() {
+			return thread;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		public long getThresholdNanos() {
+			return thresholdNanos;
+		}
+
+		/**
+		 * @return {@link TransactionUtil#COMMITTED}, {@link TransactionUtil#ROLLED_BACK} or
+		 * {@link TransactionUtil#FAILED}
+		 */
+		public String getOutcome() {
+			return outcome;
+		}
+
+		/**
+		 * @return the statements prepared by the unit of work, in order, at most {@value #MAX_STATEMENTS}
+		 */
+		public List<Statement> getStatements() {
+			return statements;
+		}
+
+		/**
+		 * @return the number of statements beyond {@value #MAX_STATEMENTS}, not captured
+		 */
+		public int getDroppedStatements() {
+			return droppedStatements;
+		}
+
+		public int getFlushes() {
+			return flushes;
+		}
+
+		/**
+		 * @return the entities processed by the flushes, each flush processing every managed entity
+		 */
+		public int getFlushedEntities() {
+			return flushedEntities;
+		}
+
+		/**
+		 * @return the collections processed by the flushes, except the automatic ones before a query
+		 */
+		public int getFlushedCollections() {
+			return flushedCollections;
+		}
+
+		public int getCacheGets() {
+			return cacheGets;
+		}
+
+		public int getCacheHits() {
+			return cacheHits;
+		}
+
+		/**
+		 * @return the entities loaded or persisted in the persistence context when the action returned
+		 */
+		public int getManagedEntities() {
+			return managedEntities;
+		}
+
+		/**
+		 * @return the stack of the caller of {@link TransactionUtil}, innermost frame first
+		 */
+		public List<StackTraceElement> getCallerStack() {
+			return callerStack;
+		}
+
+		String toJson() {
+			final StringBuilder json = new StringBuilder( "{" )
+					.append( "\"thread\":" ).append( quote( thread ) )
+					.append( ",\"elapsedMicros\":" ).append( elapsedNanos / 1_000 )
+					.append( ",\"thresholdMicros\":" ).append( thresholdNanos / 1_000 )
+					.append( ",\"outcome\":" ).append( quote( outcome ) )
+					.append( ",\"managedEntities\":" ).append( managedEntities )
+					.append( ",\"flushes\":" ).append( flushes )
+					.append( ",\"flushedEntities\":" ).append( flushedEntities )
+					.append( ",\"flushedCollections\":" ).append( flushedCollections )
+					.append( ",\"cacheGets\":" ).append( cacheGets )
+					.append( ",\"cacheHits\":" ).append( cacheHits )
+					.append( ",\"droppedStatements\":" ).append( droppedStatements )
+					.append( ",\"statements\":[" );
+			for ( int i = 0; i < statements.size(); i++ ) {
+				final Statement statement = statements.get( i );
+				json.append( i == 0 ? "" : "," )
+						.append( "{\"sql\":" ).append( quote( statement.sql ) )
+						.append( ",\"atMicros\":" ).append( statement.offsetNanos / 1_000 )
+						.append( ",\"executions\":" ).append( statement.executions )
+						.append( ",\"executionMicros\":" ).append( statement.executionNanos / 1_000 )
+						.append( '}' );
+			}
+			json.append( "],\"callerStack\":[" );
+			for ( int i = 0; i < callerStack.size(); i++ ) {
+				json.append( i == 0 ? "" : "," ).append( quote( callerStack.get( i ).toString() ) );
+			}
+			return json.append( "]}" ).toString();
+		}
+
+		private static String quote(String value) {
+			final StringBuilder quoted = new StringBuilder( value.length() + 2 ).append( '"' );
+			for ( int i = 0; i < value.length(); i++ ) {
+				final char c = value.charAt( i );
+				switch ( c ) {
+					case '"':
+					case '\\':
+						quoted.append( '\\' ).append( c );
+						break;
+					case '\n':
+						quoted.append( "\\n" );
+						break;
+					case '\r':
+						quoted.append( "\\r" );
+						break;
+					case '\t':
+						quoted.append( "\\t" );
+						break;
+					default:
+						if ( c < 0x20 ) {
+							quoted.append( String.format( "\\u%04x", (int) c ) );
+						}
+						else {
+							quoted.append( c );
+						}
+				}
+			}
+			return quoted.append( '"' ).toString();
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder builder = new StringBuilder( String.format(
+					Locale.ROOT,
+					"Slow transaction on %s: %.3f ms (threshold %.3f ms), %s, %d managed entities, %d flushes of %d entities "
+							+ "and %d collections, %d/%d second level cache hits, %d statements",
+					thread,
+					elapsedNanos / 1_000_000d,
+					thresholdNanos / 1_000_000d,
+					outcome,
+					managedEntities,
+					flushes,
+					flushedEntities,
+					flushedCollections,
+					cacheHits,
+					cacheGets,
+					statements.size() + droppedStatements
+			) );
+			for ( Statement statement : statements ) {
+				builder.append( String.format(
+						Locale.ROOT,
+						"%n  +%9.3f ms %3dx %9.3f ms  %s",
+						statement.offsetNanos / 1_000_000d,
+						statement.executions,
+						statement.executionNanos / 1_000_000d,
+						statement.sql.replaceAll( "\\s+", " " )
+				) );
+			}
+			if ( droppedStatements > 0 ) {
+				builder.append( String.format( "%n  ... %d more statements", droppedStatements ) );
+			}
+			builder.append( String.format( "%n  called from" ) );
+			for ( StackTraceElement frame : callerStack ) {
+				builder.append( String.format( "%n    at %s", frame ) );
+			}
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * A statement prepared by a slow unit of work.
+	 */
+	public static final class Statement {
+		private final String sql;
+		private final long offsetNanos;
+		private final long executions;
+		private final long executionNanos;
+
+		private Statement(String sql, long offsetNanos, long executions, long executionNanos) {
+			this.sql = sql;
+			this.offsetNanos = offsetNanos;
+			this.executions = executions;
+			this.executionNanos = executionNanos;
+		}
+
+		public String getSql() {
+			return sql;
+		}
+
+		/**
+		 * @return the time it was prepared, from the start of the unit of work
+		 */
+		public long getOffsetNanos() {
+			return offsetNanos;
+		}
+
+		public long getExecutions() {
+			return executions;
+		}
+
+		public long getExecutionNanos() {
+			return executionNanos;
+		}
+	}
+}
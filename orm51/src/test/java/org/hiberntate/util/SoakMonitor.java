@@ -0,0 +1,267 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Samples the resources a slow leak exhausts on a long-lived node, while a workload runs over and over: the open
+ * EntityManagers (from the Hibernate statistics, enabled by the monitor), the connections checked out of the pool and
+ * pooled (when the {@link JdbcProfiler} is enabled), the loaded classes, the used metaspace and the old generation
+ * after a full GC.
+ * <p/>
+ * The first quarter of the samples is the warm-up. A gauge leaks when it grows from each sample to the next after
+ * the warm-up, give or take its noise (e.g. 1 MB for the old generation), and ends more than its allowance (e.g.
+ * 16 MB) above where it started; at least {@value #MIN_SAMPLES} samples after the warm-up are needed.
+ *
+ * @see SoakTest
+ */
+public class SoakMonitor {
+	private static final Logger log = Logger.getLogger( SoakMonitor.class );
+
+	public static final String DURATION = "harness.soak.duration";
+	public static final String SAMPLE_INTERVAL = "harness.soak.sample_interval";
+
+	static final int MIN_SAMPLES = 4;
+
+	public enum Gauge {
+		ENTITY_MANAGERS( "open EntityManagers", 0, 0 ),
+		CHECKED_OUT_CONNECTIONS( "checked out connections", 0, 0 ),
+		POOLED_CONNECTIONS( "pooled connections", 0, 0 ),
+		LOADED_CLASSES( "loaded classes", 0, 200 ),
+		METASPACE_BYTES( "metaspace bytes", 64 * 1024, 4 * 1024 * 1024 ),
+		OLD_GEN_BYTES( "old gen bytes after GC", 1024 * 1024, 16 * 1024 * 1024 );
+
+		private final String description;
+		private final long noise;
+		private final long allowance;
+
+		Gauge(String description, long noise, long allowance) {
+			this.description = description;
+			this.noise = noise;
+			this.allowance = allowance;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+	}
+
+	private final Statistics statistics;
+	private final JdbcProfiler profiler;
+	private final long start = System.nanoTime();
+	private final List<Sample> samples = new ArrayList<>();
+
+	/**
+	 * @param profiler the JDBC profiler of the EntityManagerFactory, {@code null} not to sample the connections
+	 */
+	public SoakMonitor(EntityManagerFactory entityManagerFactory, JdbcProfiler profiler) {
+		this.statistics = entityManagerFactory.unwrap( SessionFactory.class ).getStatistics();
+		this.profiler = profiler;
+		statistics.setStatisticsEnabled( true );
+	}
+
+	/**
+	 * @return the duration of the soak test, unless overridden by the {@value #DURATION} system property
+	 */
+	public static Duration duration(SoakTest soakTest) {
+		return Duration.parse( System.getProperty( DURATION, soakTest.duration() ) );
+	}
+
+	/**
+	 * @return the interval between two samples, unless overridden by the {@value #SAMPLE_INTERVAL} system property
+	 */
+	public static Duration sampleInterval(SoakTest soakTest) {
+		return Duration.parse( System.getProperty( SAMPLE_INTERVAL, soakTest.sampleInterval() ) );
+	}
+
+	/**
+	 * Samples every gauge, after a full GC; no unit of work of the workload should be running.
+	 */
+	public Sample sample(long iterations) {
+		final long[] values = new long[Gauge.values().length];
+		values[Gauge.ENTITY_MANAGERS.ordinal()] = statistics.getSessionOpenCount() - statistics.getSessionCloseCount();
+		if ( profiler == null ) {
+			values[Gauge.CHECKED_OUT_CONNECTIONS.ordinal()] = -1;
+			values[Gauge.POOLED_CONNECTIONS.ordinal()] = -1;
+		}
+		else {
+			final int idle = profiler.getIdleConnections();
+			values[Gauge.CHECKED_OUT_CONNECTIONS.ordinal()] = profiler.getCheckedOutConnections();
+			values[Gauge.POOLED_CONNECTIONS.ordinal()] = idle < 0 ? -1 : idle + profiler.getCheckedOutConnections();
+		}
+		values[Gauge.LOADED_CLASSES.ordinal()] = ManagementFactory.getClassLoadingMXBean().getLoadedClassCount();
+		values[Gauge.METASPACE_BYTES.ordinal()] = metaspaceBytes();
+		values[Gauge.OLD_GEN_BYTES.ordinal()] = oldGenBytesAfterGc();
+		final Sample sample = new Sample( ( System.nanoTime() - start ) / 1_000_000, iterations, values );
+		synchronized ( samples ) {
+			samples.add( sample );
+		}
+		log.debugf( "Soak sample %s", sample );
+		return sample;
+	}
+
+	public List<Sample> getSamples() {
+		synchronized ( samples ) {
+			return new ArrayList<>( samples );
+		}
+	}
+
+	/**
+	 * @return the growth of each gauge from the end of the warm-up to the last sample, {@code -1} when not sampled
+	 */
+	public Map<Gauge, Long> getGrowth() {
+		final List<Sample> steady = steadySamples();
+		final Map<Gauge, Long> growth = new EnumMap<>( Gauge.class );
+		for ( Gauge gauge : Gauge.values() ) {
+			if ( steady.isEmpty() || steady.get( 0 ).get( gauge ) < 0 ) {
+				growth.put( gauge, -1L );
+			}
+			else {
+				growth.put( gauge, steady.get( steady.size() - 1 ).get( gauge ) - steady.get( 0 ).get( gauge ) );
+			}
+		}
+		return growth;
+	}
+
+	/**
+	 * @return the description of the growth of each leaking gauge, empty when nothing leaks or the run was too short
+	 * to tell
+	 */
+	public Map<Gauge, String> findLeaks() {
+		final List<Sample> steady = steadySamples();
+		if ( steady.size() < MIN_SAMPLES ) {
+			return Collections.emptyMap();
+		}
+		final Map<Gauge, String> leaks = new EnumMap<>( Gauge.class );
+		for ( Gauge gauge : Gauge.values() ) {
+			final long first = steady.get( 0 ).get( gauge );
+			final long last = steady.get( steady.size() - 1 ).get( gauge );
+			if ( first < 0 || last - first <= gauge.allowance ) {
+				continue;
+			}
+			boolean growing = true;
+			for ( int i = 1; i < steady.size() && growing; i++ ) {
+				growing = steady.get( i ).get( gauge ) >= steady.get( i - 1 ).get( gauge ) - gauge.noise;
+			}
+			if ( growing ) {
+				leaks.put(
+						gauge,
+						String.format(
+								"%s grew from %d to %d over the last %d samples (%d s)",
+								gauge.description,
+								first,
+								last,
+								steady.size(),
+								( steady.get( steady.size() - 1 ).getElapsedMillis() - steady.get( 0 ).getElapsedMillis() ) / 1_000
+						)
+				);
+			}
+		}
+		return leaks;
+	}
+
+	private List<Sample> steadySamples() {
+		final List<Sample> all = getSamples();
+		return all.subList( all.size() / 4, all.size() );
+	}
+
+	/**
+	 * Logs the samples as a table.
+	 */
+	public void logReport(String title) {
+		final StringBuilder report = new StringBuilder( "Soak samples of " ).append( title ).append( ':' );
+		report.append( String.format( "%n  %10s %12s", "elapsed ms", "iterations" ) );
+		for ( Gauge gauge : Gauge.values() ) {
+			report.append( String.format( " %14s", gauge.name().toLowerCase( Locale.ROOT ) ) );
+		}
+		for ( Sample sample : getSamples() ) {
+			report.append( String.format( "%n  %10d %12d", sample.elapsedMillis, sample.iterations ) );
+			for ( long value : sample.values ) {
+				report.append( String.format( " %14d", value ) );
+			}
+		}
+		log.info( report );
+	}
+
+	private static long metaspaceBytes() {
+		for ( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+			if ( "Metaspace".equals( pool.getName() ) ) {
+				return pool.getUsage().getUsed();
+			}
+		}
+		return -1;
+	}
+
+	private static long oldGenBytesAfterGc() {
+		System.gc();
+		long used = 0;
+		boolean found = false;
+		for ( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+			final MemoryUsage afterGc = pool.getCollectionUsage();
+			if ( GcPressure.isOldGenPool( pool ) && afterGc != null ) {
+				used += afterGc.getUsed();
+				found = true;
+			}
+		}
+		// single generation collectors
+		return found ? used : ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	public static final class Sample {
+		private final long elapsedMillis;
+		private final long iterations;
+		private final long[] values;
+
+		private Sample(long elapsedMillis, long iterations, long[] values) {
+			this.elapsedMillis = elapsedMillis;
+			this.iterations = iterations;
+			this.values = values;
+		}
+
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+
+		public long getIterations() {
+			return iterations;
+		}
+
+		/**
+		 * @return the value of the gauge, {@code -1} when it is not sampled
+		 */
+		public long get(Gauge gauge) {
+			return values[gauge.ordinal()];
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder builder = new StringBuilder()
+					.append( elapsedMillis ).append( " ms, " )
+					.append( iterations ).append( " iterations" );
+			for ( Gauge gauge : Gauge.values() ) {
+				builder.append( ", " ).append( values[gauge.ordinal()] ).append( ' ' ).append( gauge.description );
+			}
+			return builder.toString();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+/**
+ * {@link StatementInspector} counting the SQL statements Hibernate prepares.
+ * <p/>
+ * It also hands the statements prepared by a thread to the listener bound to that thread with {@link #listen}, which
+ * is how {@link WorkloadRecorder}, {@link WorkloadReplayer} and {@link SlowTransactionDetector} see them; a deployment
+ * can register it by class name to the same end.
+ */
+public class StatementCounter implements StatementInspector {
+	private static final ThreadLocal<Consumer<String>> listener = new ThreadLocal<>();
+
+	private final AtomicLong count = new AtomicLong();
+
+	/**
+	 * Binds a listener of the statements prepared by the calling thread, replacing the previous one; {@code null}
+	 * unbinds it.
+	 */
+	public static void listen(Consumer<String> statements) {
+		if ( statements == null ) {
+			listener.remove();
+		}
+		else {
+			listener.set( statements );
+		}
+	}
+
+	/**
+	 * @return the listener bound to the calling thread, {@code null} if none
+	 */
+	static Consumer<String> listener() {
+		return listener.get();
+	}
+
+	@Override
+	public String inspect(String sql) {
+		count.incrementAndGet();
+		final Consumer<String> statements = listener.get();
+		if ( statements != null ) {
+			statements.accept( sql );
+		}
+		return sql;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public void reset() {
+		count.set( 0 );
+	}
+}
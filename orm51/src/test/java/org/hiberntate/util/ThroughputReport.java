@@ -0,0 +1,75 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Rows processed by a bulk unit of work, with its wall time and the bytes allocated by the calling thread.
+ */
+public class ThroughputReport {
+	private final long rows;
+	private final long wallNanos;
+	private final long allocatedBytes;
+
+	public ThroughputReport(long rows, long wallNanos, long allocatedBytes) {
+		this.rows = rows;
+		this.wallNanos = wallNanos;
+		this.allocatedBytes = allocatedBytes;
+	}
+
+	/**
+	 * Runs the work in the calling thread.
+	 *
+	 * @param work returning the number of processed rows
+	 */
+	public static ThroughputReport measure(LongSupplier work) {
+		final long startAllocatedBytes = ThreadAllocation.currentThreadAllocatedBytes();
+		final long start = System.nanoTime();
+		final long rows = work.getAsLong();
+		final long wallNanos = System.nanoTime() - start;
+		return new ThroughputReport(
+				rows,
+				wallNanos,
+				startAllocatedBytes < 0 ? -1 : ThreadAllocation.currentThreadAllocatedBytes() - startAllocatedBytes
+		);
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	public long getWallNanos() {
+		return wallNanos;
+	}
+
+	/**
+	 * @return the allocated bytes, {@code -1} when the JVM does not measure them
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	public double getRowsPerSecond() {
+		return wallNanos == 0 ? 0 : rows * 1_000_000_000d / wallNanos;
+	}
+
+	public long getAllocatedBytesPerRow() {
+		return rows == 0 || allocatedBytes < 0 ? -1 : allocatedBytes / rows;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%d rows in %.3f ms: %.1f rows/s, %d allocated bytes per row",
+				rows,
+				wallNanos / 1_000_000d,
+				getRowsPerSecond(),
+				getAllocatedBytesPerRow()
+		);
+	}
+}
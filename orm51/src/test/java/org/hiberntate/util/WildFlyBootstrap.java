@@ -0,0 +1,232 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.SharedCacheMode;
+import javax.persistence.ValidationMode;
+import javax.persistence.spi.PersistenceUnitTransactionType;
+
+import org.hibernate.bytecode.enhance.spi.EnhancementContext;
+import org.hibernate.cfg.Environment;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+import org.hibernate.jpa.AvailableSettings;
+import org.hibernate.jpa.HibernatePersistenceProvider;
+import org.hibernate.jpa.boot.internal.EntityManagerFactoryBuilderImpl;
+import org.hibernate.jpa.boot.spi.Bootstrap;
+import org.hibernate.jpa.boot.spi.IntegratorProvider;
+import org.hibernate.jpa.boot.spi.PersistenceUnitDescriptor;
+
+/**
+ * Builds an EntityManagerFactory the way WildFly does, from {@code hibernate.properties} and the system properties:
+ * the settings WildFly applies to a persistence unit, the schema and dialect of the harness, and its H2 database
+ * isolation and locking mode. {@link WildFlyFunctionalTestCase} builds the EntityManagerFactory of each test with
+ * it, and {@link LoadGenerator} its EntityManagerFactory outside of JUnit.
+ */
+public final class WildFlyBootstrap {
+	public static final String NAMING_STRATEGY_JPA_COMPLIANT_IMPL = "org.hibernate.boot.model.naming.ImplicitNamingStrategyJpaCompliantImpl";
+
+	private static final Dialect dialect = Dialect.getDialect();
+
+	private WildFlyBootstrap() {
+	}
+
+	public static Dialect getDialect() {
+		return dialect;
+	}
+
+	/**
+	 * @return a private copy of {@code hibernate.properties} and the system properties, never shared with another
+	 * EntityManagerFactory, with the given entities, cache concurrency strategies and orm.xml files and the settings
+	 * of WildFly
+	 */
+	public static Map<Object, Object> createSettings(
+			Class<?>[] annotatedClasses,
+			Map<Class, String> cachedClasses,
+			Map<String, String> cachedCollections,
+			String[] ejb3DD) {
+		Map<Object, Object> config = new HashMap<>( Environment.getProperties() );
+		ArrayList<Class> classes = new ArrayList<>();
+
+		classes.addAll( Arrays.asList( annotatedClasses ) );
+		config.put( AvailableSettings.LOADED_CLASSES, classes );
+		for ( Map.Entry<Class, String> entry : cachedClasses.entrySet() ) {
+			config.put( AvailableSettings.CLASS_CACHE_PREFIX + "." + entry.getKey().getName(), entry.getValue() );
+		}
+		for ( Map.Entry<String, String> entry : cachedCollections.entrySet() ) {
+			config.put( AvailableSettings.COLLECTION_CACHE_PREFIX + "." + entry.getKey(), entry.getValue() );
+		}
+		if ( ejb3DD.length > 0 ) {
+			ArrayList<String> dds = new ArrayList<>();
+			dds.addAll( Arrays.asList( ejb3DD ) );
+			config.put( AvailableSettings.XML_FILE_NAMES, dds );
+		}
+		addWildFlyConfigOptions( config );
+		return config;
+	}
+
+	private static void addWildFlyConfigOptions(Map<Object, Object> config) {
+		config.put(
+				org.hibernate.cfg.AvailableSettings.JPAQL_STRICT_COMPLIANCE,
+				"true"
+		); // JIPI-24 ignore jpql aliases case
+		config.put( org.hibernate.cfg.AvailableSettings.USE_NEW_ID_GENERATOR_MAPPINGS, "true" );
+		config.put( org.hibernate.cfg.AvailableSettings.KEYWORD_AUTO_QUOTING_ENABLED, "false" );
+		config.put( org.hibernate.cfg.AvailableSettings.IMPLICIT_NAMING_STRATEGY, NAMING_STRATEGY_JPA_COMPLIANT_IMPL );
+	}
+
+	/**
+	 * Creates the schema when the EntityManagerFactory is built, and drops it when it is closed, unless
+	 * {@code createSchema} is {@code false}; sets the dialect and gives the owner its own H2 database with the
+	 * configured locking mode.
+	 *
+	 * @see DatabaseIsolation
+	 * @see H2LockingMode
+	 */
+	@SuppressWarnings("unchecked")
+	public static void applyDatabaseSettings(Map settings, Class<?> owner, Dialect dialect, boolean createSchema) {
+		if ( createSchema ) {
+			settings.put( org.hibernate.cfg.AvailableSettings.HBM2DDL_AUTO, "create-drop" );
+		}
+		settings.put( org.hibernate.cfg.AvailableSettings.USE_NEW_ID_GENERATOR_MAPPINGS, "true" );
+		settings.put( org.hibernate.cfg.AvailableSettings.DIALECT, dialect.getClass().getName() );
+		DatabaseIsolation.applySettings( settings, owner );
+		H2LockingMode.applySettings( settings );
+	}
+
+	/**
+	 * Loads the entities with an {@link EnhancingClassLoader} when the {@value EnhancingClassLoader#ENABLED} setting
+	 * is {@code true}.
+	 */
+	@SuppressWarnings("unchecked")
+	public static void applyEnhancementSettings(Map settings, ClassLoader parent) {
+		if ( ConfigurationHelper.getBoolean( EnhancingClassLoader.ENABLED, settings, false ) ) {
+			final EnhancingClassLoader classLoader = new EnhancingClassLoader(
+					parent,
+					(List<Class<?>>) settings.get( AvailableSettings.LOADED_CLASSES )
+			);
+			settings.put( AvailableSettings.LOADED_CLASSES, classLoader.getEnhancedClasses() );
+			settings.put( org.hibernate.cfg.AvailableSettings.CLASSLOADERS, Collections.singletonList( classLoader ) );
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public static void applyIntegrators(Map settings, List<Integrator> integrators) {
+		if ( !integrators.isEmpty() ) {
+			settings.put( EntityManagerFactoryBuilderImpl.INTEGRATOR_PROVIDER, (IntegratorProvider) () -> integrators );
+		}
+	}
+
+	public static EntityManagerFactory build(String persistenceUnitName, Map settings) {
+		return Bootstrap.getEntityManagerFactoryBuilder(
+				new TestingPersistenceUnitDescriptorImpl( persistenceUnitName ),
+				settings
+		).build().unwrap( EntityManagerFactory.class );
+	}
+
+	public static class TestingPersistenceUnitDescriptorImpl implements PersistenceUnitDescriptor {
+		private final String name;
+
+		public TestingPersistenceUnitDescriptorImpl(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public URL getPersistenceUnitRootUrl() {
+			return null;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public String getProviderClassName() {
+			return HibernatePersistenceProvider.class.getName();
+		}
+
+		@Override
+		public boolean isUseQuotedIdentifiers() {
+			return false;
+		}
+
+		@Override
+		public boolean isExcludeUnlistedClasses() {
+			return false;
+		}
+
+		@Override
+		public PersistenceUnitTransactionType getTransactionType() {
+			return null;
+		}
+
+		@Override
+		public ValidationMode getValidationMode() {
+			return null;
+		}
+
+		@Override
+		public SharedCacheMode getSharedCacheMode() {
+			return null;
+		}
+
+		@Override
+		public List<String> getManagedClassNames() {
+			return null;
+		}
+
+		@Override
+		public List<String> getMappingFileNames() {
+			return null;
+		}
+
+		@Override
+		public List<URL> getJarFileUrls() {
+			return null;
+		}
+
+		@Override
+		public Object getNonJtaDataSource() {
+			return null;
+		}
+
+		@Override
+		public Object getJtaDataSource() {
+			return null;
+		}
+
+		@Override
+		public Properties getProperties() {
+			return null;
+		}
+
+		@Override
+		public ClassLoader getClassLoader() {
+			return null;
+		}
+
+		@Override
+		public ClassLoader getTempClassLoader() {
+			return null;
+		}
+
+		@Override
+		public void pushClassTransformer(EnhancementContext enhancementContext) {
+		}
+	}
+}
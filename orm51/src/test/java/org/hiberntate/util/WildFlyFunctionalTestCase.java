@@ -6,33 +6,36 @@
  */
 package org.hiberntate.util;
 
-import java.net.URL;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
-import javax.persistence.SharedCacheMode;
-import javax.persistence.ValidationMode;
-import javax.persistence.spi.PersistenceUnitTransactionType;
 
-import org.hibernate.bytecode.enhance.spi.EnhancementContext;
-import org.hibernate.cfg.Environment;
+import org.hibernate.StatelessSession;
 import org.hibernate.dialect.Dialect;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.internal.util.config.ConfigurationHelper;
 import org.hibernate.jpa.AvailableSettings;
-import org.hibernate.jpa.HibernatePersistenceProvider;
-import org.hibernate.jpa.boot.spi.Bootstrap;
-import org.hibernate.jpa.boot.spi.PersistenceUnitDescriptor;
 
 import org.hibernate.testing.junit4.BaseUnitTestCase;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.rules.TestName;
+import org.junit.rules.TestRule;
+import org.junit.runner.RunWith;
+
+import org.hiberntate.util.jfr.FlightRecordingRule;
 
 import org.jboss.logging.Logger;
 
@@ -41,135 +44,149 @@ import org.jboss.logging.Logger;
  * @author Emmanuel Bernard
  * @author Hardy Ferentschik
  */
+@RunWith(PerfTestRunner.class)
 public abstract class WildFlyFunctionalTestCase extends BaseUnitTestCase {
-	public static final String NAMING_STRATEGY_JPA_COMPLIANT_IMPL = "org.hibernate.boot.model.naming.ImplicitNamingStrategyJpaCompliantImpl";
+	public static final String NAMING_STRATEGY_JPA_COMPLIANT_IMPL = WildFlyBootstrap.NAMING_STRATEGY_JPA_COMPLIANT_IMPL;
 	private static final Logger log = Logger.getLogger( WildFlyFunctionalTestCase.class );
 
 	// IMPL NOTE : Here we use @Before and @After (instead of @BeforeClassOnce and @AfterClassOnce like we do in
 	// BaseCoreFunctionalTestCase) because the old HEM test methodology was to create an EMF for each test method.
 
-	private static final Dialect dialect = Dialect.getDialect();
-
 	private EntityManagerFactory entityManagerFactory;
 
 	private EntityManager em;
 	private ArrayList<EntityManager> isolatedEms = new ArrayList<EntityManager>();
 
-	protected Dialect getDialect() {
-		return dialect;
-	}
+	@ClassRule
+	public static final TestRule flightRecording = new FlightRecordingRule();
 
-	protected EntityManagerFactory entityManagerFactory() {
-		return entityManagerFactory;
-	}
+	private final StatementCounter statementCounter = new StatementCounter();
 
-	@Before
-	@SuppressWarnings({ "UnusedDeclaration" })
-	public void buildEntityManagerFactory() throws Exception {
-		log.trace( "Building EntityManagerFactory" );
+	@Rule
+	public final TestName testName = new TestName();
 
-		entityManagerFactory = Bootstrap.getEntityManagerFactoryBuilder(
-				buildPersistenceUnitDescriptor(),
-				buildSettings()
-		).build().unwrap( EntityManagerFactory.class );
+	private EventTimingIntegrator eventTiming;
 
-		afterEntityManagerFactoryBuilt();
-	}
+	private TransactionExecutor transactionExecutor;
 
-	private PersistenceUnitDescriptor buildPersistenceUnitDescriptor() {
-		return new TestingPersistenceUnitDescriptorImpl( getClass().getSimpleName() );
-	}
+	private List<PersistenceContextFootprint> footprints;
 
-	public static class TestingPersistenceUnitDescriptorImpl implements PersistenceUnitDescriptor {
-		private final String name;
+	@ClassRule
+	public static final GcPressureSummaryRule gcPressureSummary = new GcPressureSummaryRule();
 
-		public TestingPersistenceUnitDescriptorImpl(String name) {
-			this.name = name;
-		}
+	private boolean gcReport;
 
-		@Override
-		public URL getPersistenceUnitRootUrl() {
-			return null;
-		}
+	private GcPressure.Measurement gcPressure;
 
-		@Override
-		public String getName() {
-			return name;
-		}
+	private CacheWarmUp.Report cacheWarmUpReport;
 
-		@Override
-		public String getProviderClassName() {
-			return HibernatePersistenceProvider.class.getName();
-		}
+	private boolean queryPlanStats;
 
-		@Override
-		public boolean isUseQuotedIdentifiers() {
-			return false;
-		}
+	private QueryPlanCacheStatistics queryPlanCacheStatistics;
 
-		@Override
-		public boolean isExcludeUnlistedClasses() {
-			return false;
-		}
+	private JdbcProfiler jdbcProfiler;
 
-		@Override
-		public PersistenceUnitTransactionType getTransactionType() {
-			return null;
-		}
+	private final List<EntityManagerFactory> clusterNodes = new ArrayList<>();
 
-		@Override
-		public ValidationMode getValidationMode() {
-			return null;
-		}
+	@Rule
+	public final SettingsMatrixRule settingsMatrix = new SettingsMatrixRule( statementCounter );
 
-		@Override
-		public SharedCacheMode getSharedCacheMode() {
-			return null;
-		}
+	protected Dialect getDialect() {
+		return WildFlyBootstrap.getDialect();
+	}
 
-		@Override
-		public List<String> getManagedClassNames() {
-			return null;
-		}
+	protected EntityManagerFactory entityManagerFactory() {
+		return entityManagerFactory;
+	}
 
-		@Override
-		public List<String> getMappingFileNames() {
-			return null;
-		}
+	/**
+	 * @return the counter of the SQL statements prepared by the current EntityManagerFactory; it is not registered
+	 * when the test configures its own {@link org.hibernate.cfg.AvailableSettings#STATEMENT_INSPECTOR}
+	 */
+	protected StatementCounter statementCounter() {
+		return statementCounter;
+	}
 
-		@Override
-		public List<URL> getJarFileUrls() {
-			return null;
-		}
+	/**
+	 * Records a metric of this test class to be compared against the module performance baseline.
+	 *
+	 * @see PerformanceResults
+	 */
+	protected void recordMetric(String name, Number value) {
+		PerformanceResults.record( getClass(), name, value );
+	}
 
-		@Override
-		public Object getNonJtaDataSource() {
-			return null;
-		}
+	@Before
+	@SuppressWarnings({ "UnusedDeclaration" })
+	public void buildEntityManagerFactory() throws Exception {
+		log.trace( "Building EntityManagerFactory" );
 
-		@Override
-		public Object getJtaDataSource() {
-			return null;
-		}
+		entityManagerFactory = WildFlyBootstrap.build( getClass().getSimpleName(), buildSettings() );
 
-		@Override
-		public Properties getProperties() {
-			return null;
+		afterEntityManagerFactoryBuilt();
+		warmUpCaches();
+		queryPlanCacheStatistics = queryPlanStats ? QueryPlanCacheStatistics.install( entityManagerFactory ) : null;
+		if ( jdbcProfiler != null ) {
+			jdbcProfiler.reset();
 		}
-
-		@Override
-		public ClassLoader getClassLoader() {
-			return null;
+		if ( gcReport ) {
+			gcPressure = GcPressure.start();
 		}
+		settingsMatrix.startMeasurement();
+	}
 
-		@Override
-		public ClassLoader getTempClassLoader() {
-			return null;
+	private void warmUpCaches() {
+		final Map<String, Object> properties = entityManagerFactory.getProperties();
+		final CacheWarmUp.Strategy strategy = CacheWarmUp.Strategy.fromSetting( properties.get( CacheWarmUp.STRATEGY ) );
+		if ( strategy == CacheWarmUp.Strategy.NONE ) {
+			cacheWarmUpReport = null;
+			return;
 		}
+		cacheWarmUpReport = new CacheWarmUp( strategy, ConfigurationHelper.getInt( CacheWarmUp.BATCH_SIZE, properties, 100 ) )
+				.warmUp( entityManagerFactory, getCachedClasses().keySet(), getCachedCollections().keySet() );
+		log.infof( "Caches of %s: %s", getClass().getSimpleName(), cacheWarmUpReport );
+	}
 
-		@Override
-		public void pushClassTransformer(EnhancementContext enhancementContext) {
-		}
+	/**
+	 * @return the outcome of the cache warm-up of the current EntityManagerFactory, {@code null} when the
+	 * {@value CacheWarmUp#STRATEGY} setting is not set
+	 */
+	protected CacheWarmUp.Report cacheWarmUpReport() {
+		return cacheWarmUpReport;
+	}
+
+	/**
+	 * @return the query plan cache hits, misses and translation times of the current test, {@code null} when the
+	 * {@value QueryPlanCacheStatistics#ENABLED} setting is not {@code true}
+	 */
+	protected QueryPlanCacheStatistics queryPlanCacheStatistics() {
+		return queryPlanCacheStatistics;
+	}
+
+	/**
+	 * @return the JDBC calls profiled since the start of the current test, {@code null} when the
+	 * {@value JdbcProfiler#ENABLED} setting is not {@code true}
+	 */
+	protected JdbcProfiler jdbcProfiler() {
+		return jdbcProfiler;
+	}
+
+	/**
+	 * Builds another EntityManagerFactory of the test class on the same database, without creating the schema, as the
+	 * next node of the {@link LoopbackCluster} of a {@link ClusteredRegionFactory}: its {@value LoopbackCluster#NODE}
+	 * setting is {@code node-1}, {@code node-2}... The nodes share the {@link #statementCounter()} of the test and are
+	 * closed before its EntityManagerFactory.
+	 */
+	@SuppressWarnings("unchecked")
+	protected EntityManagerFactory buildClusterNode() {
+		final Map settings = getConfig();
+		addMappings( settings );
+		WildFlyBootstrap.applyDatabaseSettings( settings, getClass(), getDialect(), false );
+		settings.put( org.hibernate.cfg.AvailableSettings.HBM2DDL_AUTO, "none" );
+		settings.put( LoopbackCluster.NODE, "node-" + ( clusterNodes.size() + 1 ) );
+		final EntityManagerFactory node = WildFlyBootstrap.build( getClass().getSimpleName(), settings );
+		clusterNodes.add( node );
+		return node;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -177,11 +194,21 @@ public abstract class WildFlyFunctionalTestCase extends BaseUnitTestCase {
 		Map settings = getConfig();
 		addMappings( settings );
 
-		if ( createSchema() ) {
-			settings.put( org.hibernate.cfg.AvailableSettings.HBM2DDL_AUTO, "create-drop" );
+		WildFlyBootstrap.applyDatabaseSettings( settings, getClass(), getDialect(), createSchema() );
+		jdbcProfiler = JdbcProfiler.applySettings( settings );
+		WildFlyBootstrap.applyEnhancementSettings( settings, getClass().getClassLoader() );
+		footprints = ConfigurationHelper.getBoolean( PersistenceContextFootprint.ENABLED, settings, false )
+				? Collections.synchronizedList( new ArrayList<>() )
+				: null;
+		gcReport = ConfigurationHelper.getBoolean( GcPressure.ENABLED, settings, false );
+		queryPlanStats = ConfigurationHelper.getBoolean( QueryPlanCacheStatistics.ENABLED, settings, false );
+		final List<Integrator> integrators = new ArrayList<>();
+		FlightRecordingRule.applySettings( settings, integrators );
+		if ( ConfigurationHelper.getBoolean( EventTimingIntegrator.ENABLED, settings, false ) ) {
+			eventTiming = new EventTimingIntegrator();
+			integrators.add( eventTiming );
 		}
-		settings.put( org.hibernate.cfg.AvailableSettings.USE_NEW_ID_GENERATOR_MAPPINGS, "true" );
-		settings.put( org.hibernate.cfg.AvailableSettings.DIALECT, getDialect().getClass().getName() );
+		WildFlyBootstrap.applyIntegrators( settings, integrators );
 		return settings;
 	}
 
@@ -200,37 +227,18 @@ public abstract class WildFlyFunctionalTestCase extends BaseUnitTestCase {
 	}
 
 	protected Map getConfig() {
-		Map<Object, Object> config = Environment.getProperties();
-		ArrayList<Class> classes = new ArrayList<>();
-
-		classes.addAll( Arrays.asList( getAnnotatedClasses() ) );
-		config.put( AvailableSettings.LOADED_CLASSES, classes );
-		for ( Map.Entry<Class, String> entry : getCachedClasses().entrySet() ) {
-			config.put( AvailableSettings.CLASS_CACHE_PREFIX + "." + entry.getKey().getName(), entry.getValue() );
-		}
-		for ( Map.Entry<String, String> entry : getCachedCollections().entrySet() ) {
-			config.put( AvailableSettings.COLLECTION_CACHE_PREFIX + "." + entry.getKey(), entry.getValue() );
-		}
-		if ( getEjb3DD().length > 0 ) {
-			ArrayList<String> dds = new ArrayList<>();
-			dds.addAll( Arrays.asList( getEjb3DD() ) );
-			config.put( AvailableSettings.XML_FILE_NAMES, dds );
-		}
-		addWildFlyConfigOptions( config );
+		Map<Object, Object> config = WildFlyBootstrap.createSettings(
+				getAnnotatedClasses(),
+				getCachedClasses(),
+				getCachedCollections(),
+				getEjb3DD()
+		);
 		addConfigOptions( config );
+		config.putIfAbsent( org.hibernate.cfg.AvailableSettings.STATEMENT_INSPECTOR, statementCounter );
+		settingsMatrix.applySettings( config );
 		return config;
 	}
 
-	private void addWildFlyConfigOptions(Map<Object, Object> config) {
-		config.put(
-				org.hibernate.cfg.AvailableSettings.JPAQL_STRICT_COMPLIANCE,
-				"true"
-		); // JIPI-24 ignore jpql aliases case
-		config.put( org.hibernate.cfg.AvailableSettings.USE_NEW_ID_GENERATOR_MAPPINGS, "true" );
-		config.put( org.hibernate.cfg.AvailableSettings.KEYWORD_AUTO_QUOTING_ENABLED, "false" );
-		config.put( org.hibernate.cfg.AvailableSettings.IMPLICIT_NAMING_STRATEGY, NAMING_STRATEGY_JPA_COMPLIANT_IMPL );
-	}
-
 	protected void addConfigOptions(Map options) {
 	}
 
@@ -263,10 +271,51 @@ public abstract class WildFlyFunctionalTestCase extends BaseUnitTestCase {
 	@After
 	@SuppressWarnings({ "UnusedDeclaration" })
 	public void releaseResources() {
+		settingsMatrix.stopMeasurement();
+		if ( gcPressure != null ) {
+			recordGcPressure( gcPressure.stop() );
+			gcPressure = null;
+		}
+		if ( transactionExecutor != null ) {
+			transactionExecutor.close();
+			transactionExecutor = null;
+		}
+		if ( footprints != null && !footprints.isEmpty() ) {
+			final PersistenceContextFootprint largest = Collections.max(
+					footprints,
+					Comparator.comparingLong( PersistenceContextFootprint::getEstimatedBytes )
+			);
+			log.infof(
+					"Persistence context footprint for %s#%s, largest of %d units of work: %s",
+					getClass().getSimpleName(),
+					testName.getMethodName(),
+					footprints.size(),
+					largest
+			);
+			footprints = null;
+		}
+		if ( queryPlanCacheStatistics != null ) {
+			recordQueryPlanCacheStatistics( queryPlanCacheStatistics );
+			queryPlanCacheStatistics = null;
+		}
+		if ( jdbcProfiler != null ) {
+			recordJdbcProfile( jdbcProfiler );
+			jdbcProfiler = null;
+		}
+		if ( eventTiming != null ) {
+			eventTiming.logReport( getClass().getSimpleName() + "#" + testName.getMethodName() );
+			eventTiming = null;
+		}
 		try {
 			releaseUnclosedEntityManagers();
+			for ( EntityManagerFactory node : clusterNodes ) {
+				if ( node.isOpen() ) {
+					node.close();
+				}
+			}
 		}
 		finally {
+			clusterNodes.clear();
 			if ( entityManagerFactory != null && entityManagerFactory.isOpen() ) {
 				entityManagerFactory.close();
 			}
@@ -274,6 +323,45 @@ public abstract class WildFlyFunctionalTestCase extends BaseUnitTestCase {
 		// Note we don't destroy the service registry as we are not the ones creating it
 	}
 
+	private void recordGcPressure(GcPressure pressure) {
+		final String method = testName.getMethodName() + settingsMatrix.getCurrentSettingsLabel();
+		log.debugf( "GC pressure of %s#%s: %s", getClass().getSimpleName(), method, pressure );
+		gcPressureSummary.add( method, pressure );
+		recordMetrics( method, pressure.getMetrics() );
+	}
+
+	private void recordQueryPlanCacheStatistics(QueryPlanCacheStatistics statistics) {
+		final String method = testName.getMethodName() + settingsMatrix.getCurrentSettingsLabel();
+		statistics.logReport( getClass().getSimpleName() + "#" + method, 10 );
+		recordMetrics( method, statistics.getMetrics() );
+	}
+
+	private void recordJdbcProfile(JdbcProfiler profiler) {
+		final String method = testName.getMethodName() + settingsMatrix.getCurrentSettingsLabel();
+		profiler.logReport( getClass().getSimpleName() + "#" + method );
+		recordMetrics( method, profiler.getMetrics() );
+	}
+
+	private void recordMetrics(String method, Map<String, Number> metrics) {
+		metrics.forEach( (name, value) -> recordMetric( method + "." + name, value ) );
+	}
+
+	/**
+	 * Re-executes a workload recorded by a {@link WorkloadRecorder}, e.g. in an integration test, against the
+	 * EntityManagerFactory of this test: {@code volume} copies of the recorded rows and transactions, on
+	 * {@code concurrency} threads. The report is logged and recorded as {@code <method>.replay.*} metrics.
+	 */
+	protected WorkloadReplayer.Report replayWorkload(Workload workload, int volume, int concurrency) {
+		final WorkloadReplayer.Report report = new WorkloadReplayer( entityManagerFactory, workload )
+				.replay( volume, concurrency );
+		final String method = testName.getMethodName() + settingsMatrix.getCurrentSettingsLabel();
+		log.infof( "Replay of %s in %s#%s: %s", workload, getClass().getSimpleName(), method, report );
+		recordMetric( method + ".replay.statements", report.getStatements() );
+		recordMetric( method + ".replay.meanMicros", report.getTransactions().getMean() / 1_000d );
+		recordMetric( method + ".replay.p99Micros", report.getTransactions().getPercentile( 99 ) / 1_000d );
+		return report;
+	}
+
 	private void releaseUnclosedEntityManagers() {
 		releaseUnclosedEntityManager( this.em );
 
@@ -319,11 +407,76 @@ public abstract class WildFlyFunctionalTestCase extends BaseUnitTestCase {
 	}
 
 	protected void inTransaction(Consumer<EntityManager> action) {
-		TransactionUtil.inTransaction( entityManagerFactory, action );
+		TransactionUtil.inTransaction( entityManagerFactory, profiled( action ) );
 	}
 
 	protected <R> R fromTransaction(Function<EntityManager, R> action) {
-		return TransactionUtil.fromTransaction( entityManagerFactory, action );
+		return TransactionUtil.fromTransaction( entityManagerFactory, profiledFunction( action ) );
+	}
+
+	protected void inTransaction(RetryPolicy retryPolicy, Consumer<EntityManager> action) {
+		TransactionUtil.inTransaction( entityManagerFactory, retryPolicy, profiled( action ) );
+	}
+
+	protected <R> R fromTransaction(RetryPolicy retryPolicy, Function<EntityManager, R> action) {
+		return TransactionUtil.fromTransaction( entityManagerFactory, retryPolicy, profiledFunction( action ) );
+	}
+
+	/**
+	 * @return the executor of {@link #inTransactionAsync} and {@link #fromTransactionAsync}, running at most as many
+	 * units of work as the connection pool has connections, on virtual threads when the
+	 * {@value TransactionExecutor#VIRTUAL_THREADS} setting is {@code true}
+	 */
+	protected TransactionExecutor transactionExecutor() {
+		if ( transactionExecutor == null ) {
+			final Map<String, Object> properties = entityManagerFactory.getProperties();
+			transactionExecutor = TransactionExecutor.create(
+					ConfigurationHelper.getInt( org.hibernate.cfg.AvailableSettings.POOL_SIZE, properties, 20 ),
+					ConfigurationHelper.getBoolean( TransactionExecutor.VIRTUAL_THREADS, properties, false )
+			);
+		}
+		return transactionExecutor;
+	}
+
+	protected CompletableFuture<Void> inTransactionAsync(Consumer<EntityManager> action) {
+		return TransactionUtil.inTransactionAsync( entityManagerFactory, transactionExecutor(), profiled( action ) );
+	}
+
+	protected <R> CompletableFuture<R> fromTransactionAsync(Function<EntityManager, R> action) {
+		return TransactionUtil.fromTransactionAsync( entityManagerFactory, transactionExecutor(), profiledFunction( action ) );
+	}
+
+	private Consumer<EntityManager> profiled(Consumer<EntityManager> action) {
+		if ( footprints == null ) {
+			return action;
+		}
+		return entityManager -> {
+			action.accept( entityManager );
+			footprints.add( PersistenceContextFootprint.of( entityManager ) );
+		};
+	}
+
+	private <R> Function<EntityManager, R> profiledFunction(Function<EntityManager, R> action) {
+		if ( footprints == null ) {
+			return action;
+		}
+		return entityManager -> {
+			final R result = action.apply( entityManager );
+			footprints.add( PersistenceContextFootprint.of( entityManager ) );
+			return result;
+		};
+	}
+
+	protected void inStatelessSession(Consumer<StatelessSession> action) {
+		TransactionUtil.inStatelessSession( entityManagerFactory, action );
+	}
+
+	protected <R> R fromStatelessSession(Function<StatelessSession, R> action) {
+		return TransactionUtil.fromStatelessSession( entityManagerFactory, action );
+	}
+
+	protected <T> ThroughputReport inStatelessSession(Iterator<T> input, BiConsumer<StatelessSession, T> action) {
+		return TransactionUtil.inStatelessSession( entityManagerFactory, input, action );
 	}
 
 	protected void inEntityManager(Consumer<EntityManager> action) {
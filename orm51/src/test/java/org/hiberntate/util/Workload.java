@@ -0,0 +1,516 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A recorded sequence of EntityManager operations and of the shapes of the SQL statements they caused, as written by
+ * {@link WorkloadRecorder} and re-executed by {@link WorkloadReplayer}.
+ * <p/>
+ * The file is line oriented: a header, the SQL shapes ({@code S <n> <shape>}) and query strings
+ * ({@code J <n> <kind> <result class> <query>}) referenced by number, then one line per operation, a type code
+ * followed by space separated tokens:
+ * <pre>
+ * B / C / R                                   begin, commit, rollback
+ * P|M &lt;entity&gt; &lt;id&gt; &lt;g|a|e&gt; &lt;name=value&gt;...   persist, merge (generated, assigned or existing id)
+ * U &lt;entity&gt; &lt;id&gt; &lt;name=value&gt;...             changes of a managed entity found by dirty checking
+ * D|F|G &lt;entity&gt; &lt;id&gt; [lock mode]            remove, find, getReference
+ * Y / Z                                       flush, clear
+ * Q &lt;query&gt; &lt;L|S|X&gt; &lt;first&gt; &lt;max&gt; &lt;option&gt;...  list, single result or update; n:name=, p:position=, lock=, flush=
+ * s &lt;shape&gt;                                   a statement prepared by the preceding operations
+ * </pre>
+ * Values are encoded as {@code <type>:<text>} tokens (see {@link #encode}), {@code r:<entity>:<id>} for entities.
+ */
+public final class Workload {
+	public static final char BEGIN = 'B';
+	public static final char COMMIT = 'C';
+	public static final char ROLLBACK = 'R';
+	public static final char PERSIST = 'P';
+	public static final char MERGE = 'M';
+	public static final char UPDATE = 'U';
+	public static final char REMOVE = 'D';
+	public static final char FIND = 'F';
+	public static final char GET_REFERENCE = 'G';
+	public static final char FLUSH = 'Y';
+	public static final char CLEAR = 'Z';
+	public static final char QUERY = 'Q';
+	public static final char STATEMENT = 's';
+
+	public static final String NULL = "-";
+
+	private static final String HEADER = "# hibernate workload 1";
+
+	private final List<String> shapes = new ArrayList<>();
+	private final Map<String, Integer> shapeNumbers = new HashMap<>();
+	private final List<QueryDefinition> queries = new ArrayList<>();
+	private final Map<QueryDefinition, Integer> queryNumbers = new HashMap<>();
+	private final List<Operation> operations = new ArrayList<>();
+
+	public List<Operation> getOperations() {
+		return Collections.unmodifiableList( operations );
+	}
+
+	public String getShape(int number) {
+		return shapes.get( number );
+	}
+
+	public QueryDefinition getQuery(int number) {
+		return queries.get( number );
+	}
+
+	/**
+	 * @return the number of statements of each SQL shape
+	 */
+	public Map<String, Long> getStatementCounts() {
+		final Map<String, Long> counts = new LinkedHashMap<>();
+		for ( Operation operation : operations ) {
+			if ( operation.getType() == STATEMENT ) {
+				counts.merge( shapes.get( operation.getInt( 0 ) ), 1L, Long::sum );
+			}
+		}
+		return counts;
+	}
+
+	public long count(char type) {
+		return operations.stream().filter( operation -> operation.getType() == type ).count();
+	}
+
+	void add(char type, List<String> arguments) {
+		operations.add( new Operation( type, arguments ) );
+	}
+
+	void addStatement(String shape) {
+		final Integer number = shapeNumbers.computeIfAbsent( shape, s -> {
+			shapes.add( s );
+			return shapes.size() - 1;
+		} );
+		add( STATEMENT, Collections.singletonList( String.valueOf( number ) ) );
+	}
+
+	int query(QueryDefinition query) {
+		return queryNumbers.computeIfAbsent( query, q -> {
+			queries.add( q );
+			return queries.size() - 1;
+		} );
+	}
+
+	public static Workload read(Path file) {
+		try ( BufferedReader reader = Files.newBufferedReader( file, StandardCharsets.UTF_8 ) ) {
+			final Workload workload = new Workload();
+			String line = reader.readLine();
+			if ( !HEADER.equals( line ) ) {
+				throw new IllegalArgumentException( file + " is not a workload recording" );
+			}
+			while ( ( line = reader.readLine() ) != null ) {
+				if ( line.isEmpty() || line.startsWith( "#" ) ) {
+					continue;
+				}
+				if ( line.startsWith( "S " ) ) {
+					final String[] parts = line.split( " ", 3 );
+					workload.shapes.add( unescape( parts[2] ) );
+					workload.shapeNumbers.put( unescape( parts[2] ), Integer.parseInt( parts[1] ) );
+				}
+				else if ( line.startsWith( "J " ) ) {
+					final String[] parts = line.split( " ", 5 );
+					final QueryDefinition query = new QueryDefinition( parts[2], parts[3], unescape( parts[4] ) );
+					workload.queries.add( query );
+					workload.queryNumbers.put( query, Integer.parseInt( parts[1] ) );
+				}
+				else {
+					final String[] parts = line.split( " " );
+					workload.add( parts[0].charAt( 0 ), Arrays.asList( parts ).subList( 1, parts.length ) );
+				}
+			}
+			return workload;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException( "Unable to read the workload " + file, e );
+		}
+	}
+
+	public void write(Path file) {
+		try {
+			if ( file.getParent() != null ) {
+				Files.createDirectories( file.getParent() );
+			}
+			try ( BufferedWriter writer = Files.newBufferedWriter( file, StandardCharsets.UTF_8 ) ) {
+				writer.write( HEADER );
+				writer.newLine();
+				for ( int i = 0; i < shapes.size(); i++ ) {
+					writer.write( "S " + i + " " + escape( shapes.get( i ) ) );
+					writer.newLine();
+				}
+				for ( int i = 0; i < queries.size(); i++ ) {
+					final QueryDefinition query = queries.get( i );
+					writer.write( "J " + i + " " + query.kind + " " + query.resultClass + " " + escape( query.query ) );
+					writer.newLine();
+				}
+				for ( Operation operation : operations ) {
+					writer.write( operation.toString() );
+					writer.newLine();
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException( "Unable to write the workload " + file, e );
+		}
+	}
+
+	private static String escape(String text) {
+		return text.replace( "\\", "\\\\" ).replace( "\n", "\\n" ).replace( "\r", "\\r" );
+	}
+
+	private static String unescape(String text) {
+		final StringBuilder unescaped = new StringBuilder( text.length() );
+		for ( int i = 0; i < text.length(); i++ ) {
+			final char c = text.charAt( i );
+			if ( c == '\\' && i + 1 < text.length() ) {
+				final char next = text.charAt( ++i );
+				unescaped.append( next == 'n' ? '\n' : next == 'r' ? '\r' : next );
+			}
+			else {
+				unescaped.append( c );
+			}
+		}
+		return unescaped.toString();
+	}
+
+	/**
+	 * Encodes a value as a token without spaces.
+	 *
+	 * @param references returns the {@code <entity>:<id>} reference of an entity, {@code null} for other values
+	 */
+	public static String encode(Object value, Function<Object, String> references) {
+		if ( value == null ) {
+			return NULL;
+		}
+		final String reference = references.apply( value );
+		if ( reference != null ) {
+			return "r:" + reference;
+		}
+		if ( value instanceof String ) {
+			return "s:" + urlEncode( (String) value );
+		}
+		if ( value instanceof Integer ) {
+			return "i:" + value;
+		}
+		if ( value instanceof Long ) {
+			return "l:" + value;
+		}
+		if ( value instanceof Short ) {
+			return "h:" + value;
+		}
+		if ( value instanceof Byte ) {
+			return "y:" + value;
+		}
+		if ( value instanceof Double ) {
+			return "d:" + value;
+		}
+		if ( value instanceof Float ) {
+			return "f:" + value;
+		}
+		if ( value instanceof Boolean ) {
+			return "b:" + value;
+		}
+		if ( value instanceof Character ) {
+			return "c:" + urlEncode( value.toString() );
+		}
+		if ( value instanceof BigDecimal ) {
+			return "D:" + value;
+		}
+		if ( value instanceof BigInteger ) {
+			return "I:" + value;
+		}
+		if ( value instanceof UUID ) {
+			return "u:" + value;
+		}
+		if ( value instanceof byte[] ) {
+			return "x:" + Base64.getUrlEncoder().encodeToString( (byte[]) value );
+		}
+		if ( value instanceof Enum ) {
+			return "e:" + ( (Enum<?>) value ).getDeclaringClass().getName() + ":" + ( (Enum<?>) value ).name();
+		}
+		if ( value instanceof Date ) {
+			return "t:" + value.getClass().getName() + ":" + ( (Date) value ).getTime();
+		}
+		if ( value.getClass().getName().startsWith( "java.time." ) ) {
+			return "j:" + value.getClass().getName() + ":" + urlEncode( value.toString() );
+		}
+		if ( value instanceof Serializable ) {
+			return "o:" + Base64.getUrlEncoder().encodeToString( serialize( value ) );
+		}
+		throw new IllegalArgumentException( "Unable to encode a value of type " + value.getClass().getName() );
+	}
+
+	/**
+	 * Decodes a token written by {@link #encode}.
+	 *
+	 * @param references resolves the entity name and id token of an entity reference
+	 */
+	public static Object decode(String token, BiFunction<String, String, Object> references) {
+		if ( NULL.equals( token ) ) {
+			return null;
+		}
+		final String text = token.substring( 2 );
+		switch ( token.charAt( 0 ) ) {
+			case 'r': {
+				final int separator = text.indexOf( ':' );
+				return references.apply( text.substring( 0, separator ), text.substring( separator + 1 ) );
+			}
+			case 's':
+				return urlDecode( text );
+			case 'i':
+				return Integer.valueOf( text );
+			case 'l':
+				return Long.valueOf( text );
+			case 'h':
+				return Short.valueOf( text );
+			case 'y':
+				return Byte.valueOf( text );
+			case 'd':
+				return Double.valueOf( text );
+			case 'f':
+				return Float.valueOf( text );
+			case 'b':
+				return Boolean.valueOf( text );
+			case 'c':
+				return urlDecode( text ).charAt( 0 );
+			case 'D':
+				return new BigDecimal( text );
+			case 'I':
+				return new BigInteger( text );
+			case 'u':
+				return UUID.fromString( text );
+			case 'x':
+				return Base64.getUrlDecoder().decode( text );
+			case 'e': {
+				final int separator = text.lastIndexOf( ':' );
+				return enumValue( loadClass( text.substring( 0, separator ) ), text.substring( separator + 1 ) );
+			}
+			case 't': {
+				final int separator = text.lastIndexOf( ':' );
+				try {
+					return loadClass( text.substring( 0, separator ) ).getConstructor( long.class )
+							.newInstance( Long.parseLong( text.substring( separator + 1 ) ) );
+				}
+				catch (ReflectiveOperationException e) {
+					throw new IllegalArgumentException( "Unable to decode " + token, e );
+				}
+			}
+			case 'j': {
+				final int separator = text.indexOf( ':' );
+				try {
+					return loadClass( text.substring( 0, separator ) ).getMethod( "parse", CharSequence.class )
+							.invoke( null, urlDecode( text.substring( separator + 1 ) ) );
+				}
+				catch (ReflectiveOperationException e) {
+					throw new IllegalArgumentException( "Unable to decode " + token, e );
+				}
+			}
+			case 'o':
+				return deserialize( Base64.getUrlDecoder().decode( text ) );
+			default:
+				throw new IllegalArgumentException( "Unknown value token " + token );
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object enumValue(Class<?> type, String name) {
+		return Enum.valueOf( (Class) type, name );
+	}
+
+	private static Class<?> loadClass(String name) {
+		try {
+			return Class.forName( name, false, classLoader() );
+		}
+		catch (ClassNotFoundException e) {
+			throw new IllegalArgumentException( "Unknown class " + name, e );
+		}
+	}
+
+	private static ClassLoader classLoader() {
+		final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		return classLoader == null ? Workload.class.getClassLoader() : classLoader;
+	}
+
+	private static byte[] serialize(Object value) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try ( ObjectOutputStream output = new ObjectOutputStream( bytes ) ) {
+			output.writeObject( value );
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException( e );
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) {
+		try ( ObjectInputStream input = new ObjectInputStream( new ByteArrayInputStream( bytes ) ) {
+			@Override
+			protected Class<?> resolveClass(ObjectStreamClass description) throws IOException, ClassNotFoundException {
+				try {
+					return Class.forName( description.getName(), false, classLoader() );
+				}
+				catch (ClassNotFoundException e) {
+					return super.resolveClass( description );
+				}
+			}
+		} ) {
+			return input.readObject();
+		}
+		catch (IOException | ClassNotFoundException e) {
+			throw new IllegalArgumentException( "Unable to deserialize a recorded value", e );
+		}
+	}
+
+	static String urlEncode(String text) {
+		try {
+			return URLEncoder.encode( text, "UTF-8" );
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException( e );
+		}
+	}
+
+	static String urlDecode(String text) {
+		try {
+			return URLDecoder.decode( text, "UTF-8" );
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException( e );
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%d transactions, %d operations, %d statements of %d shapes, %d query strings",
+				count( BEGIN ),
+				operations.size() - count( STATEMENT ),
+				count( STATEMENT ),
+				shapes.size(),
+				queries.size()
+		);
+	}
+
+	/**
+	 * One recorded operation, its type code and its tokens.
+	 */
+	public static final class Operation {
+		private final char type;
+		private final List<String> arguments;
+
+		Operation(char type, List<String> arguments) {
+			this.type = type;
+			this.arguments = new ArrayList<>( arguments );
+		}
+
+		public char getType() {
+			return type;
+		}
+
+		public List<String> getArguments() {
+			return Collections.unmodifiableList( arguments );
+		}
+
+		public String get(int index) {
+			return arguments.get( index );
+		}
+
+		public int getInt(int index) {
+			return Integer.parseInt( arguments.get( index ) );
+		}
+
+		public int size() {
+			return arguments.size();
+		}
+
+		@Override
+		public String toString() {
+			return arguments.isEmpty() ? String.valueOf( type ) : type + " " + String.join( " ", arguments );
+		}
+	}
+
+	/**
+	 * A query string, of kind {@code jpql}, {@code named} (the query name) or {@code native}, and the result class
+	 * it was created with: {@code -}, {@code c:<class name>} or {@code m:<result set mapping>}.
+	 */
+	public static final class QueryDefinition {
+		public static final String JPQL = "jpql";
+		public static final String NAMED = "named";
+		public static final String NATIVE = "native";
+
+		private final String kind;
+		private final String resultClass;
+		private final String query;
+
+		public QueryDefinition(String kind, String resultClass, String query) {
+			this.kind = kind;
+			this.resultClass = resultClass;
+			this.query = query;
+		}
+
+		public String getKind() {
+			return kind;
+		}
+
+		public String getResultClass() {
+			return resultClass;
+		}
+
+		public String getQuery() {
+			return query;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if ( this == o ) {
+				return true;
+			}
+			if ( !( o instanceof QueryDefinition ) ) {
+				return false;
+			}
+			final QueryDefinition other = (QueryDefinition) o;
+			return kind.equals( other.kind ) && resultClass.equals( other.resultClass ) && query.equals( other.query );
+		}
+
+		@Override
+		public int hashCode() {
+			return ( kind.hashCode() * 31 + resultClass.hashCode() ) * 31 + query.hashCode();
+		}
+	}
+}
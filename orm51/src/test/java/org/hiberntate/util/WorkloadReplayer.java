@@ -0,0 +1,538 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
+import javax.persistence.LockModeType;
+import javax.persistence.Query;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Re-executes a recorded {@link Workload} against an EntityManagerFactory of the unit test harness, as
+ * {@code volume} copies spread over {@code concurrency} threads.
+ * <p/>
+ * Each copy replays the whole recording with its own rows: the ids generated while persisting are mapped to the ones
+ * generated for the copy, and the numeric (or string) assigned ids are shifted by a stride per copy, so that the
+ * finds, references and entity query parameters of a copy use its own rows. Every recorded transaction runs in a new
+ * EntityManager, as with the transaction scoped persistence context of a container, and so does every operation
+ * recorded outside of a transaction. The other query parameters are replayed as recorded.
+ * <p/>
+ * The shapes of the statements the copies prepare are compared with the recorded ones, multiplied by the volume; the
+ * statement inspector of the EntityManagerFactory must be a {@link StatementCounter} for that.
+ */
+public class WorkloadReplayer {
+	private static final Logger log = Logger.getLogger( WorkloadReplayer.class );
+
+	private final EntityManagerFactory entityManagerFactory;
+	private final Workload workload;
+	private final Map<String, EntityType<?>> entityTypes = new HashMap<>();
+	private final Map<String, Member> members = new ConcurrentHashMap<>();
+	private final long idStride;
+
+	public WorkloadReplayer(EntityManagerFactory entityManagerFactory, Workload workload) {
+		this.entityManagerFactory = entityManagerFactory;
+		this.workload = workload;
+		for ( EntityType<?> entityType : entityManagerFactory.getMetamodel().getEntities() ) {
+			entityTypes.put( entityType.getName(), entityType );
+		}
+		long maxAssignedId = 0;
+		for ( Workload.Operation operation : workload.getOperations() ) {
+			if ( ( operation.getType() == Workload.PERSIST || operation.getType() == Workload.MERGE )
+					&& "a".equals( operation.get( 2 ) ) ) {
+				final Object id = Workload.decode( operation.get( 1 ), (entity, reference) -> null );
+				if ( id instanceof Number ) {
+					maxAssignedId = Math.max( maxAssignedId, Math.abs( ( (Number) id ).longValue() ) );
+				}
+			}
+		}
+		this.idStride = maxAssignedId + 1;
+	}
+
+	public Report replay(int volume, int concurrency) {
+		final Report report = new Report( volume, concurrency );
+		final AtomicInteger nextCopy = new AtomicInteger();
+		final long start = System.nanoTime();
+		try ( TransactionExecutor executor = TransactionExecutor.platformThreads( concurrency ) ) {
+			final List<CompletableFuture<Void>> workers = new ArrayList<>();
+			for ( int i = 0; i < concurrency; i++ ) {
+				workers.add( executor.submit( () -> {
+					StatementCounter.listen( sql -> report.statement( SqlShape.of( sql ) ) );
+					try {
+						for ( int copy = nextCopy.getAndIncrement(); copy < volume; copy = nextCopy.getAndIncrement() ) {
+							replayCopy( copy, report );
+						}
+					}
+					finally {
+						StatementCounter.listen( null );
+					}
+					return null;
+				} ) );
+			}
+			CompletableFuture.allOf( workers.toArray( new CompletableFuture[0] ) ).join();
+		}
+		report.wallNanos = System.nanoTime() - start;
+		return report;
+	}
+
+	private void replayCopy(int copy, Report report) {
+		final Map<String, Object> ids = new HashMap<>();
+		EntityManager entityManager = null;
+		long transactionStart = 0;
+		try {
+			for ( Workload.Operation operation : workload.getOperations() ) {
+				switch ( operation.getType() ) {
+					case Workload.BEGIN:
+						entityManager = entityManagerFactory.createEntityManager();
+						transactionStart = System.nanoTime();
+						entityManager.getTransaction().begin();
+						break;
+					case Workload.COMMIT:
+						entityManager.getTransaction().commit();
+						report.transactions.record( System.nanoTime() - transactionStart );
+						entityManager.close();
+						entityManager = null;
+						break;
+					case Workload.ROLLBACK:
+						entityManager.getTransaction().rollback();
+						report.rollbacks.increment();
+						entityManager.close();
+						entityManager = null;
+						break;
+					case Workload.STATEMENT:
+						break;
+					default:
+						if ( entityManager != null ) {
+							apply( operation, entityManager, ids, copy );
+						}
+						else {
+							final EntityManager nonTransactional = entityManagerFactory.createEntityManager();
+							try {
+								apply( operation, nonTransactional, ids, copy );
+							}
+							finally {
+								nonTransactional.close();
+							}
+						}
+				}
+				report.operations.increment();
+			}
+		}
+		catch (RuntimeException e) {
+			report.failed( copy, e );
+			if ( entityManager != null ) {
+				if ( entityManager.getTransaction().isActive() ) {
+					entityManager.getTransaction().rollback();
+				}
+				entityManager.close();
+			}
+		}
+	}
+
+	private void apply(Workload.Operation operation, EntityManager entityManager, Map<String, Object> ids, int copy) {
+		switch ( operation.getType() ) {
+			case Workload.PERSIST:
+			case Workload.MERGE:
+				persistOrMerge( operation, entityManager, ids, copy );
+				break;
+			case Workload.UPDATE: {
+				final EntityType<?> entityType = entityType( operation.get( 0 ) );
+				final Object entity = entityManager.find( entityType.getJavaType(), id( operation, ids ) );
+				if ( entity != null ) {
+					setProperties( entityType, entity, operation, 2, entityManager, ids );
+				}
+				break;
+			}
+			case Workload.REMOVE: {
+				final Object entity = entityManager.find( entityType( operation.get( 0 ) ).getJavaType(), id( operation, ids ) );
+				if ( entity != null ) {
+					entityManager.remove( entity );
+				}
+				break;
+			}
+			case Workload.FIND:
+				if ( operation.size() > 2 ) {
+					entityManager.find(
+							entityType( operation.get( 0 ) ).getJavaType(),
+							id( operation, ids ),
+							LockModeType.valueOf( operation.get( 2 ) )
+					);
+				}
+				else {
+					entityManager.find( entityType( operation.get( 0 ) ).getJavaType(), id( operation, ids ) );
+				}
+				break;
+			case Workload.GET_REFERENCE:
+				entityManager.getReference( entityType( operation.get( 0 ) ).getJavaType(), id( operation, ids ) );
+				break;
+			case Workload.FLUSH:
+				entityManager.flush();
+				break;
+			case Workload.CLEAR:
+				entityManager.clear();
+				break;
+			case Workload.QUERY:
+				query( operation, entityManager, ids );
+				break;
+			default:
+				throw new IllegalArgumentException( "Unknown workload operation " + operation );
+		}
+	}
+
+	private void persistOrMerge(Workload.Operation operation, EntityManager entityManager, Map<String, Object> ids, int copy) {
+		final EntityType<?> entityType = entityType( operation.get( 0 ) );
+		final Object entity = instantiate( entityType.getJavaType() );
+		final String key = operation.get( 0 ) + ":" + operation.get( 1 );
+		final String idFlag = operation.get( 2 );
+		if ( "a".equals( idFlag ) ) {
+			final Object id = assignedId( Workload.decode( operation.get( 1 ), (name, reference) -> null ), copy );
+			ids.put( key, id );
+			set( entityType, entity, idAttribute( entityType ).getName(), id );
+		}
+		else if ( "e".equals( idFlag ) ) {
+			set( entityType, entity, idAttribute( entityType ).getName(), id( operation, ids ) );
+		}
+		setProperties( entityType, entity, operation, 3, entityManager, ids );
+		if ( operation.getType() == Workload.PERSIST ) {
+			entityManager.persist( entity );
+			if ( "g".equals( idFlag ) ) {
+				ids.put( key, entityManagerFactory.getPersistenceUnitUtil().getIdentifier( entity ) );
+			}
+		}
+		else {
+			final Object merged = entityManager.merge( entity );
+			if ( "g".equals( idFlag ) ) {
+				ids.put( key, entityManagerFactory.getPersistenceUnitUtil().getIdentifier( merged ) );
+			}
+		}
+	}
+
+	private Object assignedId(Object recorded, int copy) {
+		if ( copy == 0 ) {
+			return recorded;
+		}
+		if ( recorded instanceof Integer ) {
+			return (int) ( (Integer) recorded + copy * idStride );
+		}
+		if ( recorded instanceof Long ) {
+			return (Long) recorded + copy * idStride;
+		}
+		if ( recorded instanceof String ) {
+			return recorded + "#" + copy;
+		}
+		throw new IllegalStateException( "Unable to derive the assigned id of copy " + copy + " from " + recorded );
+	}
+
+	private void query(Workload.Operation operation, EntityManager entityManager, Map<String, Object> ids) {
+		final Workload.QueryDefinition definition = workload.getQuery( operation.getInt( 0 ) );
+		final Query query = createQuery( definition, entityManager );
+		final int firstResult = operation.getInt( 2 );
+		if ( firstResult > 0 ) {
+			query.setFirstResult( firstResult );
+		}
+		final int maxResults = operation.getInt( 3 );
+		if ( maxResults != Integer.MAX_VALUE ) {
+			query.setMaxResults( maxResults );
+		}
+		for ( String option : operation.getArguments().subList( 4, operation.size() ) ) {
+			final int separator = option.indexOf( '=' );
+			final String name = option.substring( 0, separator );
+			final String value = option.substring( separator + 1 );
+			if ( name.equals( "lock" ) ) {
+				query.setLockMode( LockModeType.valueOf( value ) );
+			}
+			else if ( name.equals( "flush" ) ) {
+				query.setFlushMode( FlushModeType.valueOf( value ) );
+			}
+			else if ( name.startsWith( "n:" ) ) {
+				query.setParameter( Workload.urlDecode( name.substring( 2 ) ), decode( value, entityManager, ids ) );
+			}
+			else {
+				query.setParameter( Integer.parseInt( name.substring( 2 ) ), decode( value, entityManager, ids ) );
+			}
+		}
+		switch ( operation.get( 1 ) ) {
+			case "S":
+				query.getSingleResult();
+				break;
+			case "X":
+				query.executeUpdate();
+				break;
+			default:
+				query.getResultList();
+		}
+	}
+
+	private Query createQuery(Workload.QueryDefinition definition, EntityManager entityManager) {
+		final String resultClass = definition.getResultClass();
+		switch ( definition.getKind() ) {
+			case Workload.QueryDefinition.NAMED:
+				return resultClass.startsWith( "c:" )
+						? entityManager.createNamedQuery( definition.getQuery(), loadClass( resultClass.substring( 2 ) ) )
+						: entityManager.createNamedQuery( definition.getQuery() );
+			case Workload.QueryDefinition.NATIVE:
+				if ( resultClass.startsWith( "c:" ) ) {
+					return entityManager.createNativeQuery( definition.getQuery(), loadClass( resultClass.substring( 2 ) ) );
+				}
+				if ( resultClass.startsWith( "m:" ) ) {
+					return entityManager.createNativeQuery(
+							definition.getQuery(),
+							Workload.urlDecode( resultClass.substring( 2 ) )
+					);
+				}
+				return entityManager.createNativeQuery( definition.getQuery() );
+			default:
+				return entityManager.createQuery( definition.getQuery() );
+		}
+	}
+
+	private void setProperties(
+			EntityType<?> entityType,
+			Object entity,
+			Workload.Operation operation,
+			int from,
+			EntityManager entityManager,
+			Map<String, Object> ids) {
+		for ( String property : operation.getArguments().subList( from, operation.size() ) ) {
+			final int separator = property.indexOf( '=' );
+			set(
+					entityType,
+					entity,
+					property.substring( 0, separator ),
+					decode( property.substring( separator + 1 ), entityManager, ids )
+			);
+		}
+	}
+
+	private Object decode(String token, EntityManager entityManager, Map<String, Object> ids) {
+		return Workload.decode(
+				token,
+				(entityName, id) -> entityManager.getReference( entityType( entityName ).getJavaType(), id( entityName, id, ids ) )
+		);
+	}
+
+	private Object id(Workload.Operation operation, Map<String, Object> ids) {
+		return id( operation.get( 0 ), operation.get( 1 ), ids );
+	}
+
+	/**
+	 * @return the id of the copy, the recorded one for the rows the recording did not create
+	 */
+	private Object id(String entityName, String id, Map<String, Object> ids) {
+		final Object mapped = ids.get( entityName + ":" + id );
+		return mapped != null ? mapped : Workload.decode( id, (name, reference) -> null );
+	}
+
+	private EntityType<?> entityType(String name) {
+		final EntityType<?> entityType = entityTypes.get( name );
+		if ( entityType == null ) {
+			throw new IllegalArgumentException( "The recorded entity " + name + " is not mapped" );
+		}
+		return entityType;
+	}
+
+	private static SingularAttribute<?, ?> idAttribute(EntityType<?> entityType) {
+		for ( SingularAttribute<?, ?> attribute : entityType.getSingularAttributes() ) {
+			if ( attribute.isId() ) {
+				return attribute;
+			}
+		}
+		throw new IllegalStateException( "Entity " + entityType.getName() + " has no single id attribute" );
+	}
+
+	private void set(EntityType<?> entityType, Object entity, String name, Object value) {
+		final Member member = members.computeIfAbsent( entityType.getName() + "." + name, key -> writer( entityType, name ) );
+		try {
+			if ( member instanceof Field ) {
+				( (Field) member ).set( entity, value );
+			}
+			else {
+				( (Method) member ).invoke( entity, value );
+			}
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IllegalStateException( "Unable to set " + entityType.getName() + "." + name, e );
+		}
+	}
+
+	/**
+	 * @return the field of a field access attribute, the setter of a property access one
+	 */
+	private static Member writer(EntityType<?> entityType, String name) {
+		final Attribute<?, ?> attribute = entityType.getAttribute( name );
+		final Member member = attribute.getJavaMember();
+		if ( member instanceof Field ) {
+			( (Field) member ).setAccessible( true );
+			return member;
+		}
+		final String setter = "set" + Character.toUpperCase( name.charAt( 0 ) ) + name.substring( 1 );
+		for ( Class<?> type = member.getDeclaringClass(); type != null; type = type.getSuperclass() ) {
+			for ( Method method : type.getDeclaredMethods() ) {
+				if ( method.getName().equals( setter ) && method.getParameterCount() == 1 ) {
+					method.setAccessible( true );
+					return method;
+				}
+			}
+		}
+		throw new IllegalStateException( "No setter for " + entityType.getName() + "." + name );
+	}
+
+	private static Object instantiate(Class<?> type) {
+		try {
+			final Constructor<?> constructor = type.getDeclaredConstructor();
+			constructor.setAccessible( true );
+			return constructor.newInstance();
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IllegalStateException( "Unable to instantiate " + type.getName(), e );
+		}
+	}
+
+	private static Class<?> loadClass(String name) {
+		try {
+			return Class.forName( name, false, Thread.currentThread().getContextClassLoader() );
+		}
+		catch (ClassNotFoundException e) {
+			throw new IllegalArgumentException( "Unknown result class " + name, e );
+		}
+	}
+
+	/**
+	 * Outcome of a replay: transaction latencies, failures and the statements compared with the recording.
+	 */
+	public class Report {
+		private final int volume;
+		private final int concurrency;
+		private final LatencySamples transactions = new LatencySamples();
+		private final LongAdder rollbacks = new LongAdder();
+		private final LongAdder operations = new LongAdder();
+		private final Map<String, LongAdder> statements = new ConcurrentHashMap<>();
+		private final Map<Integer, RuntimeException> failures = new ConcurrentHashMap<>();
+		private long wallNanos;
+
+		private Report(int volume, int concurrency) {
+			this.volume = volume;
+			this.concurrency = concurrency;
+		}
+
+		private void statement(String shape) {
+			statements.computeIfAbsent( shape, s -> new LongAdder() ).increment();
+		}
+
+		private void failed(int copy, RuntimeException failure) {
+			if ( failures.isEmpty() ) {
+				log.warnf( failure, "Replay of copy %d failed", copy );
+			}
+			failures.put( copy, failure );
+		}
+
+		public int getVolume() {
+			return volume;
+		}
+
+		public int getConcurrency() {
+			return concurrency;
+		}
+
+		/**
+		 * @return the latencies of the committed transactions, from begin to the end of the commit
+		 */
+		public LatencySamples getTransactions() {
+			return transactions;
+		}
+
+		public long getRollbacks() {
+			return rollbacks.sum();
+		}
+
+		public long getOperations() {
+			return operations.sum();
+		}
+
+		/**
+		 * @return the failure of each failed copy, by copy number
+		 */
+		public Map<Integer, RuntimeException> getFailures() {
+			return Collections.unmodifiableMap( failures );
+		}
+
+		public long getWallNanos() {
+			return wallNanos;
+		}
+
+		public double getTransactionsPerSecond() {
+			return wallNanos == 0 ? 0 : transactions.getCount() * 1_000_000_000d / wallNanos;
+		}
+
+		public long getStatements() {
+			return statements.values().stream().mapToLong( LongAdder::sum ).sum();
+		}
+
+		public long getExpectedStatements() {
+			return workload.count( Workload.STATEMENT ) * volume;
+		}
+
+		/**
+		 * @return for each SQL shape prepared more or less often than in the recording multiplied by the volume, the
+		 * replayed count minus the expected one
+		 */
+		public Map<String, Long> getStatementDifferences() {
+			final Map<String, Long> differences = new LinkedHashMap<>();
+			for ( Map.Entry<String, Long> recorded : workload.getStatementCounts().entrySet() ) {
+				final LongAdder replayed = statements.get( recorded.getKey() );
+				differences.put( recorded.getKey(), ( replayed == null ? 0 : replayed.sum() ) - recorded.getValue() * volume );
+			}
+			for ( Map.Entry<String, LongAdder> replayed : statements.entrySet() ) {
+				differences.putIfAbsent( replayed.getKey(), replayed.getValue().sum() );
+			}
+			differences.values().removeIf( difference -> difference == 0 );
+			return differences;
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder report = new StringBuilder( String.format(
+					"%d copies on %d threads: %d transactions (%d rolled back) in %.3f ms, %.1f tx/s, "
+							+ "mean %.1f us, p99 %.1f us, %d failed copies, %d statements (%d expected)",
+					volume,
+					concurrency,
+					transactions.getCount(),
+					getRollbacks(),
+					wallNanos / 1_000_000d,
+					getTransactionsPerSecond(),
+					transactions.getMean() / 1_000d,
+					transactions.getPercentile( 99 ) / 1_000d,
+					failures.size(),
+					getStatements(),
+					getExpectedStatements()
+			) );
+			for ( Map.Entry<String, Long> difference : getStatementDifferences().entrySet() ) {
+				report.append( String.format( "%n  %+6d  %s", difference.getValue(), difference.getKey() ) );
+			}
+			return report.toString();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util.jfr;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.hibernate.boot.Metadata;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.AutoFlushEventListener;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.FlushEventListener;
+import org.hibernate.event.spi.LoadEventListener;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+
+import jdk.jfr.Event;
+
+/**
+ * Emits a {@link FlushEvent} for each flush and auto-flush and a {@link LoadEvent} for each entity load, by
+ * prepending a listener starting the JFR event and appending one completing it to the Hibernate listener groups.
+ */
+public class JfrIntegrator implements Integrator {
+	private static final ThreadLocal<Map<Object, Event>> IN_PROGRESS = ThreadLocal.withInitial( WeakHashMap::new );
+
+	@Override
+	public void integrate(
+			Metadata metadata,
+			SessionFactoryImplementor sessionFactory,
+			SessionFactoryServiceRegistry serviceRegistry) {
+		final EventListenerRegistry registry = serviceRegistry.getService( EventListenerRegistry.class );
+
+		registry.prependListeners( EventType.FLUSH, (FlushEventListener) event -> start( event, new FlushEvent() ) );
+		registry.appendListeners( EventType.FLUSH, (FlushEventListener) JfrIntegrator::flushed );
+
+		registry.prependListeners( EventType.AUTO_FLUSH, (AutoFlushEventListener) event -> start( event, new FlushEvent() ) );
+		registry.appendListeners( EventType.AUTO_FLUSH, (AutoFlushEventListener) JfrIntegrator::flushed );
+
+		registry.prependListeners( EventType.LOAD, (LoadEventListener) (event, loadType) -> start( event, new LoadEvent() ) );
+		registry.appendListeners( EventType.LOAD, (LoadEventListener) (event, loadType) -> loaded( event ) );
+	}
+
+	@Override
+	public void disintegrate(SessionFactoryImplementor sessionFactory, SessionFactoryServiceRegistry serviceRegistry) {
+	}
+
+	private static void start(Object hibernateEvent, Event jfrEvent) {
+		if ( jfrEvent.isEnabled() ) {
+			jfrEvent.begin();
+			IN_PROGRESS.get().put( hibernateEvent, jfrEvent );
+		}
+	}
+
+	private static void flushed(org.hibernate.event.spi.FlushEvent event) {
+		final FlushEvent jfrEvent = (FlushEvent) IN_PROGRESS.get().remove( event );
+		if ( jfrEvent != null ) {
+			jfrEvent.end();
+			if ( jfrEvent.shouldCommit() ) {
+				jfrEvent.entityCount = event.getNumberOfEntitiesProcessed();
+				jfrEvent.collectionCount = event.getNumberOfCollectionsProcessed();
+				jfrEvent.commit();
+			}
+		}
+	}
+
+	private static void loaded(org.hibernate.event.spi.LoadEvent event) {
+		final LoadEvent jfrEvent = (LoadEvent) IN_PROGRESS.get().remove( event );
+		if ( jfrEvent != null ) {
+			jfrEvent.end();
+			if ( jfrEvent.shouldCommit() ) {
+				jfrEvent.entityName = event.getEntityClassName();
+				jfrEvent.id = String.valueOf( event.getEntityId() );
+				jfrEvent.associationFetch = event.isAssociationFetch();
+				jfrEvent.rowCount = event.getResult() == null ? 0 : 1;
+				jfrEvent.commit();
+			}
+		}
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util.jfr;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.stat.internal.ConcurrentStatisticsImpl;
+import org.hibernate.stat.spi.StatisticsFactory;
+import org.hibernate.stat.spi.StatisticsImplementor;
+
+import org.hiberntate.util.SqlShape;
+
+/**
+ * Statistics emitting a {@link QueryEvent} for every query execution; Hibernate only reports query executions
+ * when {@code hibernate.generate_statistics} is enabled.
+ */
+public class JfrStatistics extends ConcurrentStatisticsImpl {
+
+	public JfrStatistics(SessionFactoryImplementor sessionFactory) {
+		super( sessionFactory );
+	}
+
+	@Override
+	public void queryExecuted(String hql, int rows, long time) {
+		super.queryExecuted( hql, rows, time );
+		final QueryEvent event = new QueryEvent();
+		if ( event.shouldCommit() ) {
+			event.queryShape = SqlShape.of( hql );
+			event.rowCount = rows;
+			event.executionTime = time;
+			event.commit();
+		}
+	}
+
+	public static class Factory implements StatisticsFactory {
+		@Override
+		public StatisticsImplementor buildStatistics(SessionFactoryImplementor sessionFactory) {
+			return new JfrStatistics( sessionFactory );
+		}
+	}
+}
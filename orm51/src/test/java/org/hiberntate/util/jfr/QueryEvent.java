@@ -0,0 +1,35 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * The execution of an HQL/JPQL, criteria or native query as reported to Hibernate statistics. The event is
+ * committed once the query completed, so its own duration is not meaningful: use {@link #executionTime}.
+ */
+@Name("org.hiberntate.Query")
+@Label("Query")
+@Category({ "Hibernate", "Harness" })
+@Description("A Hibernate query execution")
+public class QueryEvent extends Event {
+	@Label("Query Shape")
+	@Description("The query string with its literals replaced by ?")
+	public String queryShape;
+
+	@Label("Rows")
+	public int rowCount;
+
+	@Label("Execution Time")
+	@Timespan(Timespan.MILLISECONDS)
+	public long executionTime;
+}
@@ -15,6 +15,13 @@ import javax.transaction.UserTransaction;
 import org.hibernate.cfg.AvailableSettings;
 import org.hibernate.model.TestEntity;
 
+import org.hiberntate.util.SqlShape;
+import org.hiberntate.util.StatementCounter;
+import org.hiberntate.util.Workload;
+import org.hiberntate.util.WorkloadRecorder;
+
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
@@ -44,6 +51,8 @@ public class WildFlyIntegration53Test {
 	public static WebArchive createDeployment() {
 		return ShrinkWrap.create( WebArchive.class )
 				.addClass( TestEntity.class )
+				// records the workload of the tests for WildFlyFunctionalTestCase#replayWorkload
+				.addClasses( WorkloadRecorder.class, Workload.class, StatementCounter.class, SqlShape.class )
 				.addAsWebInfResource( EmptyAsset.INSTANCE, "beans.xml" )
 				.addAsResource( new StringAsset( persistenceXml().exportAsString() ), "META-INF/persistence.xml" );
 	}
@@ -66,6 +75,10 @@ public class WildFlyIntegration53Test {
 				.value( "create-drop" )
 				.up()
 				.createProperty()
+				.name( AvailableSettings.STATEMENT_INSPECTOR )
+				.value( StatementCounter.class.getName() )
+				.up()
+				.createProperty()
 				.name( AvailableSettings.USE_SECOND_LEVEL_CACHE )
 				.value( "true" )
 				.up()
@@ -86,6 +99,24 @@ public class WildFlyIntegration53Test {
 	@Inject
 	private UserTransaction transaction;
 
+	private final WorkloadRecorder recorder = new WorkloadRecorder();
+
+	/**
+	 * Records the workload of the test through the injected EntityManager and UserTransaction.
+	 */
+	@Before
+	public void recordWorkload() {
+		recorder.start();
+		entityManager = recorder.wrap( entityManager );
+		transaction = recorder.wrap( transaction );
+	}
+
+	@After
+	public void writeWorkload() {
+		recorder.stop();
+		recorder.writeTo( WorkloadRecorder.file( getClass() ) );
+	}
+
 	@Test
 	public void testIt() throws Throwable {
 		log.info( "---> test started." );
@@ -0,0 +1,121 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import org.junit.Test;
+
+import org.hiberntate.util.SettingsMatrix;
+import org.hiberntate.util.TransactionExecutor;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import org.jboss.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Asynchronous units of work on the bounded executor of the harness, with platform and virtual threads: more units
+ * of work than connections are submitted at once, so part of their latency is queueing delay.
+ */
+public class AsyncTransactionTest extends WildFlyFunctionalTestCase {
+	private static final Logger log = Logger.getLogger( AsyncTransactionTest.class );
+
+	private static final int UNITS_OF_WORK = Integer.getInteger( "harness.async.units_of_work", 200 );
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { Request.class };
+	}
+
+	@Test
+	@SettingsMatrix(@SettingsMatrix.Setting(name = TransactionExecutor.VIRTUAL_THREADS, values = { "false", "true" }))
+	public void testConcurrencyIsBoundedByThePoolSize() throws Exception {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+
+		final List<CompletableFuture<Integer>> futures = new ArrayList<>();
+		for ( int i = 0; i < UNITS_OF_WORK; i++ ) {
+			final int id = i;
+			futures.add( fromTransactionAsync( entityManager -> {
+				maxRunning.accumulateAndGet( running.incrementAndGet(), Math::max );
+				try {
+					entityManager.persist( new Request( id ) );
+					entityManager.flush();
+					return id;
+				}
+				finally {
+					running.decrementAndGet();
+				}
+			} ) );
+		}
+		CompletableFuture.allOf( futures.toArray( new CompletableFuture[0] ) ).get();
+
+		final TransactionExecutor executor = transactionExecutor();
+		log.infof(
+				"%d units of work, at most %d concurrently (limit %d): queueing delay mean %.2f ms (p99 %.2f ms), database time mean %.2f ms (p99 %.2f ms)",
+				UNITS_OF_WORK,
+				maxRunning.get(),
+				executor.getMaxConcurrency(),
+				executor.getQueueDelays().getMean() / 1_000_000d,
+				executor.getQueueDelays().getPercentile( 99 ) / 1_000_000d,
+				executor.getExecutionTimes().getMean() / 1_000_000d,
+				executor.getExecutionTimes().getPercentile( 99 ) / 1_000_000d
+		);
+		assertTrue( maxRunning.get() <= executor.getMaxConcurrency() );
+		assertEquals( UNITS_OF_WORK, executor.getExecutionTimes().getCount() );
+		assertEquals(
+				Long.valueOf( UNITS_OF_WORK ),
+				fromTransaction( entityManager -> entityManager.createQuery( "select count(r) from Request r", Long.class )
+						.getSingleResult() )
+		);
+	}
+
+	@Test
+	public void testFailureRollsBack() throws Exception {
+		final IllegalStateException failure = new IllegalStateException( "request failed" );
+		final CompletableFuture<Void> future = inTransactionAsync( entityManager -> {
+			entityManager.persist( new Request( 1 ) );
+			entityManager.flush();
+			throw failure;
+		} );
+		try {
+			future.get();
+			fail( "the unit of work should have failed" );
+		}
+		catch (ExecutionException e) {
+			assertSame( failure, e.getCause() );
+		}
+		assertEquals(
+				Long.valueOf( 0 ),
+				fromTransaction( entityManager -> entityManager.createQuery( "select count(r) from Request r", Long.class )
+						.getSingleResult() )
+		);
+	}
+
+	@Entity(name = "Request")
+	public static class Request {
+		@Id
+		Integer id;
+
+		Request() {
+		}
+
+		Request(Integer id) {
+			this.id = id;
+		}
+	}
+}
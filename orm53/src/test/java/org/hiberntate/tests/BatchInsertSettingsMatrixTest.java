@@ -0,0 +1,73 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+
+import org.hibernate.cfg.AvailableSettings;
+
+import org.junit.Test;
+
+import org.hiberntate.util.SettingsMatrix;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Sweeps the JDBC batching settings over an insert heavy unit of work.
+ */
+public class BatchInsertSettingsMatrixTest extends WildFlyFunctionalTestCase {
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { Author.class, Book.class };
+	}
+
+	@Test
+	@SettingsMatrix(value = {
+			@SettingsMatrix.Setting(name = AvailableSettings.STATEMENT_BATCH_SIZE, values = { "0", "25" }),
+			@SettingsMatrix.Setting(name = AvailableSettings.ORDER_INSERTS, values = { "false", "true" })
+	}, operations = 100)
+	public void testInsert() {
+		inTransaction(
+				entityManager -> {
+					for ( int i = 0; i < 50; i++ ) {
+						Author author = new Author();
+						entityManager.persist( author );
+						Book book = new Book();
+						book.author = author;
+						entityManager.persist( book );
+					}
+				}
+		);
+		assertEquals(
+				Long.valueOf( 50 ),
+				fromTransaction( entityManager -> entityManager.createQuery( "select count(b) from Book b", Long.class )
+						.getSingleResult() )
+		);
+	}
+
+	@Entity(name = "Author")
+	public static class Author {
+		@Id
+		@GeneratedValue
+		Long id;
+	}
+
+	@Entity(name = "Book")
+	public static class Book {
+		@Id
+		@GeneratedValue
+		Long id;
+
+		@ManyToOne
+		Author author;
+	}
+}
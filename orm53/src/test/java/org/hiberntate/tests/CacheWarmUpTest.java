@@ -0,0 +1,164 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.testing.cache.CachingRegionFactory;
+
+import org.junit.Test;
+
+import org.hiberntate.util.CacheWarmUp;
+import org.hiberntate.util.SettingsMatrix;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import org.jboss.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * First request after boot, reading a few categories and their products, with cold caches and with caches preloaded
+ * by each {@link CacheWarmUp.Strategy}: a warmed up request must not hit the database at all.
+ */
+public class CacheWarmUpTest extends WildFlyFunctionalTestCase {
+	private static final Logger log = Logger.getLogger( CacheWarmUpTest.class );
+
+	private static final int CATEGORIES = 200;
+	private static final int PRODUCTS = 10;
+	private static final int REQUESTED = 20;
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { Category.class, Product.class };
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	protected void addConfigOptions(Map options) {
+		options.put( AvailableSettings.USE_SECOND_LEVEL_CACHE, "true" );
+		options.put( AvailableSettings.CACHE_REGION_FACTORY, CachingRegionFactory.class.getName() );
+		options.put( CacheWarmUp.BATCH_SIZE, "50" );
+	}
+
+	@Override
+	public Map<Class, String> getCachedClasses() {
+		final Map<Class, String> cachedClasses = new HashMap<>();
+		cachedClasses.put( Category.class, "read-write" );
+		cachedClasses.put( Product.class, "read-write" );
+		return cachedClasses;
+	}
+
+	@Override
+	public Map<String, String> getCachedCollections() {
+		final Map<String, String> cachedCollections = new HashMap<>();
+		cachedCollections.put( Category.class.getName() + ".products", "read-write" );
+		return cachedCollections;
+	}
+
+	@Override
+	protected void afterEntityManagerFactoryBuilt() {
+		inTransaction(
+				entityManager -> {
+					for ( int i = 0; i < CATEGORIES; i++ ) {
+						final Category category = new Category( i );
+						entityManager.persist( category );
+						for ( int j = 0; j < PRODUCTS; j++ ) {
+							entityManager.persist( new Product( i * PRODUCTS + j, category ) );
+						}
+					}
+				}
+		);
+		entityManagerFactory().getCache().evictAll();
+	}
+
+	@Test
+	@SettingsMatrix(@SettingsMatrix.Setting(name = CacheWarmUp.STRATEGY, values = { "NONE", "BULK_QUERY", "ID_BATCHES" }))
+	public void testFirstRequest() {
+		final String strategy = settingsMatrix.getCurrentSettings().get( CacheWarmUp.STRATEGY );
+		final long statements = statementCounter().getCount();
+		final long start = System.nanoTime();
+		final Set<String> products = fromTransaction(
+				entityManager -> {
+					final Set<String> names = new HashSet<>();
+					for ( int i = 0; i < REQUESTED; i++ ) {
+						for ( Product product : entityManager.find( Category.class, i * CATEGORIES / REQUESTED ).products ) {
+							names.add( product.name );
+						}
+					}
+					return names;
+				}
+		);
+		final long nanos = System.nanoTime() - start;
+		final long requestStatements = statementCounter().getCount() - statements;
+		log.infof(
+				"First request with %s warm-up: %.3f ms, %d statements, warm-up %s",
+				strategy,
+				nanos / 1_000_000d,
+				requestStatements,
+				cacheWarmUpReport()
+		);
+		recordMetric( "firstRequest[" + strategy + "].statements", requestStatements );
+
+		assertEquals( REQUESTED * PRODUCTS, products.size() );
+		if ( cacheWarmUpReport() == null ) {
+			assertTrue( requestStatements > 0 );
+		}
+		else {
+			assertEquals( CATEGORIES + CATEGORIES * PRODUCTS, cacheWarmUpReport().getEntities() );
+			assertEquals( CATEGORIES, cacheWarmUpReport().getCollections() );
+			assertEquals( 0, requestStatements );
+		}
+	}
+
+	@Entity(name = "Category")
+	public static class Category {
+		@Id
+		Integer id;
+
+		String name;
+
+		@OneToMany(mappedBy = "category")
+		Set<Product> products = new HashSet<>();
+
+		Category() {
+		}
+
+		Category(Integer id) {
+			this.id = id;
+			this.name = "category " + id;
+		}
+	}
+
+	@Entity(name = "Product")
+	public static class Product {
+		@Id
+		Integer id;
+
+		String name;
+
+		@ManyToOne
+		Category category;
+
+		Product() {
+		}
+
+		Product(Integer id, Category category) {
+			this.id = id;
+			this.name = "product " + id;
+			this.category = category;
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.persistence.CascadeType;
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.FetchType;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+
+import org.hibernate.cfg.AvailableSettings;
+
+import org.junit.Test;
+
+import org.hiberntate.util.LatencySamples;
+import org.hiberntate.util.SettingsMatrix;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import org.jboss.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Sensitivity of a standard order processing workload to each of the settings WildFly imposes: the workload runs
+ * once with the WildFly values and then once per setting with only that setting flipped, logging the throughput,
+ * statement count and allocation delta of each flag compared to WildFly, and the latency of the units of work.
+ * <p/>
+ * Each unit of work loads an order and its lines, initializes a customer proxy, runs a JPQL query, updates the order
+ * and, every tenth time, persists a new order with generated ids.
+ */
+public class ComplianceSensitivityTest extends WildFlyFunctionalTestCase {
+	private static final Logger log = Logger.getLogger( ComplianceSensitivityTest.class );
+
+	private static final int CUSTOMERS = 50;
+	private static final int ORDERS = 500;
+	private static final int LINES = 3;
+	private static final int WARMUP = 200;
+	private static final int OPERATIONS = 500;
+
+	private List<Long> orderIds;
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { Customer.class, PurchaseOrder.class, OrderLine.class };
+	}
+
+	@Override
+	protected void afterEntityManagerFactoryBuilt() {
+		inTransaction(
+				entityManager -> {
+					for ( int i = 0; i < CUSTOMERS; i++ ) {
+						entityManager.persist( new Customer( i ) );
+					}
+					for ( int i = 0; i < ORDERS; i++ ) {
+						createOrder( entityManager, i % CUSTOMERS );
+					}
+				}
+		);
+		orderIds = fromTransaction(
+				entityManager -> entityManager.createQuery( "select o.id from PurchaseOrder o order by o.id", Long.class )
+						.getResultList()
+		);
+		for ( int i = 0; i < WARMUP; i++ ) {
+			final int operation = i;
+			inTransaction( entityManager -> unitOfWork( entityManager, operation ) );
+		}
+	}
+
+	@Test
+	@SettingsMatrix(mode = SettingsMatrix.Mode.ONE_AT_A_TIME, operations = OPERATIONS, value = {
+			@SettingsMatrix.Setting(name = AvailableSettings.JPAQL_STRICT_COMPLIANCE, values = { "true", "false" }),
+			@SettingsMatrix.Setting(name = AvailableSettings.USE_NEW_ID_GENERATOR_MAPPINGS, values = { "true", "false" }),
+			@SettingsMatrix.Setting(name = AvailableSettings.KEYWORD_AUTO_QUOTING_ENABLED, values = { "false", "true" }),
+			@SettingsMatrix.Setting(name = AvailableSettings.PREFER_GENERATOR_NAME_AS_DEFAULT_SEQUENCE_NAME, values = { "true", "false" }),
+			@SettingsMatrix.Setting(name = AvailableSettings.JPA_TRANSACTION_COMPLIANCE, values = { "true", "false" }),
+			@SettingsMatrix.Setting(name = AvailableSettings.JPA_CLOSED_COMPLIANCE, values = { "true", "false" }),
+			@SettingsMatrix.Setting(name = AvailableSettings.JPA_QUERY_COMPLIANCE, values = { "true", "false" }),
+			@SettingsMatrix.Setting(name = AvailableSettings.JPA_LIST_COMPLIANCE, values = { "true", "false" }),
+			@SettingsMatrix.Setting(name = AvailableSettings.JPA_CACHING_COMPLIANCE, values = { "true", "false" }),
+			@SettingsMatrix.Setting(name = AvailableSettings.JPA_PROXY_COMPLIANCE, values = { "true", "false" }),
+			@SettingsMatrix.Setting(name = AvailableSettings.ENABLE_LAZY_LOAD_NO_TRANS, values = { "false", "true" }),
+			@SettingsMatrix.Setting(name = AvailableSettings.JPA_ID_GENERATOR_GLOBAL_SCOPE_COMPLIANCE, values = { "true", "false" })
+	})
+	public void testWorkload() {
+		final LatencySamples latencies = new LatencySamples();
+		for ( int i = 0; i < OPERATIONS; i++ ) {
+			final int operation = WARMUP + i;
+			final long start = System.nanoTime();
+			inTransaction( entityManager -> unitOfWork( entityManager, operation ) );
+			latencies.record( System.nanoTime() - start );
+		}
+		log.infof(
+				"Units of work with %s: mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us",
+				settingsMatrix.getCurrentSettings(),
+				latencies.getMean() / 1_000d,
+				latencies.getPercentile( 50 ) / 1_000d,
+				latencies.getPercentile( 99 ) / 1_000d,
+				latencies.getMax() / 1_000d
+		);
+		final String label = settingsMatrix.getCurrentSettingsLabel();
+		recordMetric( "workload" + label + ".meanMicros", latencies.getMean() / 1_000d );
+		recordMetric( "workload" + label + ".p99Micros", latencies.getPercentile( 99 ) / 1_000d );
+
+		final long orders = fromTransaction(
+				entityManager -> entityManager.createQuery( "select count(o) from PurchaseOrder o", Long.class )
+						.getSingleResult()
+		);
+		assertEquals( ORDERS + ( WARMUP + OPERATIONS ) / 10, orders );
+	}
+
+	/**
+	 * The orders are visited in a fixed pseudo-random order, so that every run issues the same statements.
+	 */
+	private void unitOfWork(EntityManager entityManager, int operation) {
+		final PurchaseOrder order = entityManager.find( PurchaseOrder.class, orderIds.get( operation * 7919 % ORDERS ) );
+		int quantity = 0;
+		for ( OrderLine line : order.lines ) {
+			quantity += line.quantity;
+		}
+		final Customer customer = entityManager.getReference( Customer.class, operation % CUSTOMERS );
+		final List<PurchaseOrder> recent = entityManager.createQuery(
+				"select o from PurchaseOrder o where o.customer = :customer and o.quantity >= :quantity order by o.id desc",
+				PurchaseOrder.class
+		)
+				.setParameter( "customer", customer )
+				.setParameter( "quantity", 0 )
+				.setMaxResults( 5 )
+				.getResultList();
+		order.quantity = quantity + recent.size() + customer.getName().length();
+		order.revision++;
+		if ( operation % 10 == 0 ) {
+			createOrder( entityManager, operation % CUSTOMERS );
+		}
+	}
+
+	private static void createOrder(EntityManager entityManager, int customerId) {
+		final PurchaseOrder order = new PurchaseOrder();
+		order.customer = entityManager.getReference( Customer.class, customerId );
+		for ( int j = 0; j < LINES; j++ ) {
+			final OrderLine line = new OrderLine();
+			line.order = order;
+			line.quantity = j + 1;
+			order.lines.add( line );
+		}
+		entityManager.persist( order );
+	}
+
+	@Entity(name = "Customer")
+	public static class Customer {
+		@Id
+		Integer id;
+
+		String name;
+
+		Customer() {
+		}
+
+		Customer(Integer id) {
+			this.id = id;
+			this.name = "customer " + id;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	@Entity(name = "PurchaseOrder")
+	public static class PurchaseOrder {
+		@Id
+		@GeneratedValue
+		Long id;
+
+		@ManyToOne(fetch = FetchType.LAZY)
+		Customer customer;
+
+		@OneToMany(mappedBy = "order", cascade = CascadeType.ALL)
+		List<OrderLine> lines = new ArrayList<>();
+
+		int quantity;
+
+		int revision;
+	}
+
+	@Entity(name = "OrderLine")
+	public static class OrderLine {
+		@Id
+		@GeneratedValue
+		Long id;
+
+		@ManyToOne(fetch = FetchType.LAZY)
+		PurchaseOrder order;
+
+		int quantity;
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.util.List;
+import java.util.Map;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import org.hiberntate.util.GcPressure;
+import org.hiberntate.util.PerformanceResults;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads the same rows as one large result list, whose entities and dirty checking snapshots stay reachable until the
+ * end of the transaction and so survive young collections, and page by page, clearing the persistence context after
+ * each page. Compare the promoted bytes of both methods in the GC pressure summary logged after the class, or their
+ * {@code gc.promotedBytes} metrics.
+ * <p/>
+ * How many collections happen, and how much they promote, depends on the heap size and the collector, so the test
+ * only checks that the harness recorded the GC pressure of each method.
+ */
+public class GcPressureTest extends WildFlyFunctionalTestCase {
+	private static final int ROWS = 20_000;
+	private static final int PAGE_SIZE = 500;
+
+	private static volatile Object sink;
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { Document.class };
+	}
+
+	/**
+	 * Runs after the {@code @After} methods, which record the GC pressure of the method.
+	 */
+	@Rule
+	public final TestRule gcPressureRecorded = (base, description) -> new Statement() {
+		@Override
+		public void evaluate() throws Throwable {
+			base.evaluate();
+			assertGcPressureRecorded( description );
+		}
+	};
+
+	@Override
+	@SuppressWarnings("unchecked")
+	protected void addConfigOptions(Map options) {
+		options.put( GcPressure.ENABLED, "true" );
+	}
+
+	@Override
+	protected void afterEntityManagerFactoryBuilt() {
+		inTransaction(
+				entityManager -> {
+					for ( int i = 0; i < ROWS; i++ ) {
+						entityManager.persist( new Document( i ) );
+						if ( i % PAGE_SIZE == 0 ) {
+							entityManager.flush();
+							entityManager.clear();
+						}
+					}
+				}
+		);
+	}
+
+	@Test
+	public void testLargeResultList() {
+		inTransaction(
+				entityManager -> {
+					final List<Document> documents = entityManager.createQuery( "select d from Document d", Document.class )
+							.getResultList();
+					churn();
+					assertEquals( ROWS, documents.size() );
+				}
+		);
+	}
+
+	@Test
+	public void testPagedResults() {
+		inTransaction(
+				entityManager -> {
+					int read = 0;
+					for ( int first = 0; first < ROWS; first += PAGE_SIZE ) {
+						read += entityManager.createQuery( "select d from Document d order by d.id", Document.class )
+								.setFirstResult( first )
+								.setMaxResults( PAGE_SIZE )
+								.getResultList()
+								.size();
+						entityManager.clear();
+					}
+					churn();
+					assertEquals( ROWS, read );
+				}
+		);
+	}
+
+	private static void assertGcPressureRecorded(Description description) {
+		final Map<String, Number> metrics = PerformanceResults.get( GcPressureTest.class );
+		final String prefix = GcPressureTest.class.getSimpleName() + "." + description.getMethodName() + ".gc.";
+		for ( String metric : new String[] {
+				"youngCollections",
+				"oldCollections",
+				"collectionMillis",
+				"promotedBytes",
+				"peakOldGenBytes"
+		} ) {
+			assertTrue( prefix + metric + " not in " + metrics.keySet(), metrics.containsKey( prefix + metric ) );
+		}
+	}
+
+	/**
+	 * Allocates short lived garbage, as the rest of an application would, to trigger young collections.
+	 */
+	private static void churn() {
+		for ( int i = 0; i < 20_000; i++ ) {
+			sink = new byte[16 * 1024];
+		}
+	}
+
+	@Entity(name = "Document")
+	public static class Document {
+		@Id
+		Integer id;
+
+		String title;
+
+		String body;
+
+		Document() {
+		}
+
+		Document(int id) {
+			this.id = id;
+			this.title = "document " + id;
+			this.body = "body of document " + id + ", long enough to make the snapshots worth their promotion";
+		}
+	}
+}
@@ -0,0 +1,330 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import javax.persistence.Entity;
+import javax.persistence.EntityGraph;
+import javax.persistence.EntityManager;
+import javax.persistence.FetchType;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+
+import org.hibernate.Hibernate;
+import org.hibernate.annotations.Fetch;
+import org.hibernate.annotations.FetchMode;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+
+import org.junit.Test;
+
+import org.hiberntate.util.SettingsMatrix;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import org.jboss.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the cost of lazy to-one proxies and lazy to-many collections when traversing an object graph, with
+ * and without batch fetching ({@code hibernate.default_batch_fetch_size} behaves as {@code @BatchSize} on every
+ * entity and collection), with subselect fetching and with a JPA entity graph.
+ * <p/>
+ * The size of the graph can be changed with the {@code harness.lazy.departments} and
+ * {@code harness.lazy.employees} system properties.
+ */
+public class LazyLoadingBenchmarkTest extends WildFlyFunctionalTestCase {
+	private static final Logger log = Logger.getLogger( LazyLoadingBenchmarkTest.class );
+
+	private static final int DEPARTMENTS = Integer.getInteger( "harness.lazy.departments", 20 );
+	private static final int EMPLOYEES = Integer.getInteger( "harness.lazy.employees", 20 );
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { Department.class, Employee.class };
+	}
+
+	@Override
+	protected void afterEntityManagerFactoryBuilt() {
+		inTransaction(
+				entityManager -> {
+					for ( int i = 0; i < DEPARTMENTS; i++ ) {
+						Department department = new Department( i );
+						entityManager.persist( department );
+						for ( int j = 0; j < EMPLOYEES; j++ ) {
+							entityManager.persist( new Employee( i * EMPLOYEES + j, department ) );
+						}
+					}
+				}
+		);
+	}
+
+	@Test
+	@SettingsMatrix(@SettingsMatrix.Setting(name = AvailableSettings.DEFAULT_BATCH_FETCH_SIZE, values = { "0", "16" }))
+	public void testToOneProxies() {
+		final Traversal traversal = traverse(
+				"to-one proxies",
+				entityManager -> {
+					List<Employee> employees = entityManager.createQuery( "select e from Employee e", Employee.class )
+							.getResultList();
+					Set<Object> proxies = newIdentitySet();
+					for ( Employee employee : employees ) {
+						if ( !Hibernate.isInitialized( employee.getDepartment() ) ) {
+							proxies.add( employee.getDepartment() );
+						}
+					}
+					return proxies;
+				},
+				proxies -> {
+					int visited = 0;
+					for ( Object proxy : proxies ) {
+						( (Department) proxy ).getName();
+						visited++;
+					}
+					return visited;
+				}
+		);
+		assertBatchFetching( traversal );
+	}
+
+	@Test
+	@SettingsMatrix(@SettingsMatrix.Setting(name = AvailableSettings.DEFAULT_BATCH_FETCH_SIZE, values = { "0", "16" }))
+	public void testToManyCollections() {
+		final Traversal traversal = traverse(
+				"to-many collections",
+				entityManager -> lazyCollections(
+						entityManager.createQuery( "select d from Department d", Department.class ).getResultList(),
+						Department::getEmployees
+				),
+				LazyLoadingBenchmarkTest::initialize
+		);
+		assertBatchFetching( traversal );
+	}
+
+	@Test
+	public void testSubselectCollections() {
+		final Traversal traversal = traverse(
+				"subselect collections",
+				entityManager -> lazyCollections(
+						entityManager.createQuery( "select d from Department d", Department.class ).getResultList(),
+						Department::getSubselectEmployees
+				),
+				LazyLoadingBenchmarkTest::initialize
+		);
+		// the first collection initializes all of them with a subselect of the load query
+		assertEquals( traversal.toString(), DEPARTMENTS, traversal.lazyReferences );
+		assertEquals( traversal.toString(), 1, traversal.initializationStatements );
+	}
+
+	@Test
+	public void testEntityGraph() {
+		final Traversal traversal = traverse(
+				"entity graph",
+				entityManager -> {
+					EntityGraph<Department> graph = entityManager.createEntityGraph( Department.class );
+					graph.addAttributeNodes( "employees" );
+					return lazyCollections(
+							entityManager.createQuery( "select d from Department d", Department.class )
+									.setHint( "javax.persistence.fetchgraph", graph )
+									.getResultList(),
+							Department::getEmployees
+					);
+				},
+				LazyLoadingBenchmarkTest::initialize
+		);
+		// the collections are fetched by the load query
+		assertEquals( traversal.toString(), 0, traversal.lazyReferences );
+		assertEquals( traversal.toString(), 1, traversal.loadStatements );
+		assertEquals( traversal.toString(), 0, traversal.initializationStatements );
+	}
+
+	/**
+	 * Without batch fetching, the load and the initialization of each lazy reference take N+1 statements; batch
+	 * fetching initializes several references per statement.
+	 */
+	private void assertBatchFetching(Traversal traversal) {
+		final long nPlusOne = 1 + traversal.lazyReferences;
+		final int batchSize = ConfigurationHelper.getInt(
+				AvailableSettings.DEFAULT_BATCH_FETCH_SIZE,
+				entityManagerFactory().getProperties(),
+				0
+		);
+		assertEquals( traversal.toString(), DEPARTMENTS, traversal.lazyReferences );
+		if ( batchSize > 1 ) {
+			assertTrue( traversal + ", N+1 = " + nPlusOne, traversal.getStatements() < nPlusOne );
+		}
+		else {
+			assertEquals( traversal.toString(), nPlusOne, traversal.getStatements() );
+		}
+	}
+
+	/**
+	 * Runs {@code load} and then {@code initialize} in the same transaction, logging the number of statements
+	 * and the time spent by each phase together with the number of lazy references left by the load.
+	 */
+	private Traversal traverse(
+			String scenario,
+			Function<EntityManager, Set<Object>> load,
+			Function<Set<Object>, Integer> initialize) {
+		return fromTransaction(
+				entityManager -> {
+					long statements = statementCounter().getCount();
+					long start = System.nanoTime();
+					Set<Object> lazy = load.apply( entityManager );
+					long loadNanos = System.nanoTime() - start;
+					long loadStatements = statementCounter().getCount() - statements;
+
+					statements = statementCounter().getCount();
+					start = System.nanoTime();
+					int initialized = initialize.apply( lazy );
+					long initNanos = System.nanoTime() - start;
+					long initStatements = statementCounter().getCount() - statements;
+
+					Object batchSize = entityManagerFactory().getProperties()
+							.get( AvailableSettings.DEFAULT_BATCH_FETCH_SIZE );
+					log.infof(
+							"%s (%s=%s): load %.3f ms / %d statements, %d uninitialized, initialization %.3f ms / %d statements (%.1f us each)",
+							scenario,
+							AvailableSettings.DEFAULT_BATCH_FETCH_SIZE,
+							batchSize,
+							loadNanos / 1_000_000d,
+							loadStatements,
+							lazy.size(),
+							initNanos / 1_000_000d,
+							initStatements,
+							initialized == 0 ? 0d : initNanos / 1_000d / initialized
+					);
+
+					String metric = scenario.replace( ' ', '-' ) + "[batch=" + ( batchSize == null ? "none" : batchSize ) + "]";
+					recordMetric( metric + ".loadStatements", loadStatements );
+					recordMetric( metric + ".initializationStatements", initStatements );
+					return new Traversal( lazy.size(), loadStatements, initStatements );
+				}
+		);
+	}
+
+	private static final class Traversal {
+		private final int lazyReferences;
+		private final long loadStatements;
+		private final long initializationStatements;
+
+		private Traversal(int lazyReferences, long loadStatements, long initializationStatements) {
+			this.lazyReferences = lazyReferences;
+			this.loadStatements = loadStatements;
+			this.initializationStatements = initializationStatements;
+		}
+
+		long getStatements() {
+			return loadStatements + initializationStatements;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%d lazy references, %d load statements, %d initialization statements",
+					lazyReferences,
+					loadStatements,
+					initializationStatements
+			);
+		}
+	}
+
+	private static Set<Object> lazyCollections(List<Department> departments, Function<Department, List<Employee>> collection) {
+		Set<Object> lazy = newIdentitySet();
+		for ( Department department : departments ) {
+			if ( !Hibernate.isInitialized( collection.apply( department ) ) ) {
+				lazy.add( collection.apply( department ) );
+			}
+		}
+		return lazy;
+	}
+
+	private static int initialize(Set<Object> collections) {
+		int visited = 0;
+		for ( Object collection : collections ) {
+			for ( Object employee : (List<?>) collection ) {
+				( (Employee) employee ).getName();
+			}
+			visited++;
+		}
+		return visited;
+	}
+
+	private static Set<Object> newIdentitySet() {
+		return Collections.newSetFromMap( new IdentityHashMap<>() );
+	}
+
+	@Entity(name = "Department")
+	public static class Department {
+		@Id
+		Integer id;
+
+		String name;
+
+		@OneToMany(mappedBy = "department")
+		List<Employee> employees = new ArrayList<>();
+
+		@OneToMany(mappedBy = "department")
+		@Fetch(FetchMode.SUBSELECT)
+		List<Employee> subselectEmployees = new ArrayList<>();
+
+		Department() {
+		}
+
+		Department(Integer id) {
+			this.id = id;
+			this.name = "Department " + id;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public List<Employee> getEmployees() {
+			return employees;
+		}
+
+		public List<Employee> getSubselectEmployees() {
+			return subselectEmployees;
+		}
+	}
+
+	@Entity(name = "Employee")
+	public static class Employee {
+		@Id
+		Integer id;
+
+		String name;
+
+		@ManyToOne(fetch = FetchType.LAZY)
+		Department department;
+
+		Employee() {
+		}
+
+		Employee(Integer id, Department department) {
+			this.id = id;
+			this.name = "Employee " + id;
+			this.department = department;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Department getDepartment() {
+			return department;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import org.hiberntate.util.LoadGenerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A short run of the standalone load generator, as the fat jar runs it, and its report.
+ */
+public class LoadGeneratorTest {
+
+	@Test
+	public void testMixedWorkload() throws Exception {
+		final Path reportFile = Files.createTempFile( "load-report", ".json" );
+		try {
+			final LoadGenerator.Report report = new LoadGenerator()
+					.parse(
+							"--workload", "mixed",
+							"--threads", "4",
+							"--dataset", "500",
+							"--warmup", "PT0.5S",
+							"--duration", "PT1S",
+							"--progress", "PT0.5S",
+							"--report", reportFile.toString()
+					)
+					.run();
+			assertEquals( LoadGenerator.Scenario.MIXED, report.getScenario() );
+			assertTrue( report.getTransactions() > 0 );
+			assertEquals( report.getTransactions(), report.getLatencies().getCount() );
+			assertTrue( report.getFailures().toString(), report.getFailures().isEmpty() );
+			assertTrue( report.getMetrics().toString(), report.getMetrics().containsKey( "mixed.gc.youngCollections" ) );
+
+			final String json = new String( Files.readAllBytes( reportFile ), StandardCharsets.UTF_8 );
+			assertTrue( json, json.contains( "\"workload\": \"mixed\"" ) );
+			assertTrue( json, json.contains( "\"transactions\": " + report.getTransactions() + "," ) );
+			assertTrue( json, json.contains( "\"p99\": " ) );
+		}
+		finally {
+			Files.deleteIfExists( reportFile );
+		}
+	}
+
+	@Test
+	public void testInvalidOptions() {
+		for ( String[] args : new String[][] {
+				{ "--workload", "unknown" },
+				{ "--threads", "0" },
+				{ "--duration", "1 minute" },
+				{ "--dataset" },
+				{ "--unknown", "1" }
+		} ) {
+			try {
+				new LoadGenerator().parse( args );
+				fail( String.join( " ", args ) );
+			}
+			catch (IllegalArgumentException expected) {
+			}
+		}
+	}
+}
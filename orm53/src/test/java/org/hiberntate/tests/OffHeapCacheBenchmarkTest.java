@@ -0,0 +1,214 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+
+import org.hibernate.cache.spi.RegionFactory;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+
+import org.junit.Test;
+
+import org.hiberntate.util.CacheWarmUp;
+import org.hiberntate.util.GcPressure;
+import org.hiberntate.util.LatencySamples;
+import org.hiberntate.util.OffHeapRegionFactory;
+import org.hiberntate.util.OffHeapStore;
+import org.hiberntate.util.SettingsMatrix;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import org.jboss.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the on-heap {@link org.hibernate.testing.cache.CachingRegionFactory} and the {@link OffHeapRegionFactory}
+ * for each access strategy: the heap retained by the warmed up entity region, and the latency of cache hits and the
+ * garbage collection activity while reading random entities in fresh persistence contexts. The entities carry about
+ * a kilobyte of text, so that their cached state outweighs the keys and index entries kept on the heap; it is mapped
+ * as a {@link Lob} since the in-memory H2 database would otherwise share the String instances it stores with the
+ * on-heap cache entries.
+ * <p/>
+ * The number of cached entities and of reads can be changed with the {@code harness.offheap.entities} and
+ * {@code harness.offheap.reads} system properties.
+ */
+public class OffHeapCacheBenchmarkTest extends WildFlyFunctionalTestCase {
+	private static final Logger log = Logger.getLogger( OffHeapCacheBenchmarkTest.class );
+
+	private static final int ENTITIES = Integer.getInteger( "harness.offheap.entities", 10_000 );
+	private static final int READS = Integer.getInteger( "harness.offheap.reads", 20_000 );
+	private static final String ACCESS = "harness.offheap.access";
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { Customer.class };
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	protected void addConfigOptions(Map options) {
+		options.put( AvailableSettings.USE_SECOND_LEVEL_CACHE, "true" );
+		options.put( AvailableSettings.CACHE_REGION_FACTORY, OffHeapRegionFactory.class.getName() );
+		options.put( OffHeapStore.CAPACITY, "256m" );
+		options.put( CacheWarmUp.STRATEGY, CacheWarmUp.Strategy.BULK_QUERY.name() );
+	}
+
+	@Override
+	public Map<Class, String> getCachedClasses() {
+		final Map<String, String> settings = settingsMatrix.getCurrentSettings();
+		return Collections.singletonMap(
+				Customer.class,
+				settings == null ? "read-write" : settings.getOrDefault( ACCESS, "read-write" )
+		);
+	}
+
+	@Override
+	protected void afterEntityManagerFactoryBuilt() {
+		inTransaction(
+				entityManager -> entityManager.createNativeQuery(
+						"insert into Customer (id, name, email, street, city, country, phone, notes) "
+								+ "select x, 'customer name ' || x, 'customer' || x || '@example.org', "
+								+ "'street of the customer number ' || x, 'city ' || mod(x, 100), 'country ' || mod(x, 10), "
+								+ "'+00 000 000 ' || x, repeat('some notes about customer ' || x || ' for the account manager. ', 20) "
+								+ "from system_range(0, ?)" )
+						.setParameter( 1, ENTITIES - 1 )
+						.executeUpdate()
+		);
+		entityManagerFactory().getCache().evictAll();
+	}
+
+	@Test
+	@SettingsMatrix({
+			@SettingsMatrix.Setting(name = AvailableSettings.CACHE_REGION_FACTORY, values = {
+					"org.hibernate.testing.cache.CachingRegionFactory",
+					"org.hiberntate.util.OffHeapRegionFactory"
+			}),
+			@SettingsMatrix.Setting(name = ACCESS, values = { "read-only", "nonstrict-read-write", "read-write" })
+	})
+	public void testCacheHits() {
+		final LatencySamples latencies = new LatencySamples();
+		final long statements = statementCounter().getCount();
+		final GcPressure.Measurement measurement = GcPressure.start();
+		for ( int batch = 0; batch < READS; batch += 1000 ) {
+			inTransaction(
+					entityManager -> {
+						for ( int i = 0; i < 1000; i++ ) {
+							read( entityManager, latencies );
+						}
+					}
+			);
+		}
+		final GcPressure gcPressure = measurement.stop();
+		final long readStatements = statementCounter().getCount() - statements;
+
+		final OffHeapStore store = offHeapStore();
+		log.infof(
+				"%s: warm-up %s, hits mean %.1f us, p50 %.1f us, p99 %.1f us, %d statements, %s%s",
+				settingsMatrix.getCurrentSettings(),
+				cacheWarmUpReport(),
+				latencies.getMean() / 1_000d,
+				latencies.getPercentile( 50 ) / 1_000d,
+				latencies.getPercentile( 99 ) / 1_000d,
+				readStatements,
+				gcPressure,
+				store == null ? "" : ", off-heap " + store
+		);
+		recordMetric( "cacheHits" + settingsMatrix.getCurrentSettingsLabel() + ".statements", readStatements );
+
+		assertEquals( ENTITIES, cacheWarmUpReport().getEntities() );
+		assertEquals( 0, readStatements );
+		if ( store != null ) {
+			assertEquals( ENTITIES, store.size() );
+			assertEquals( 0, store.getEvictions() );
+		}
+	}
+
+	@Test
+	public void testEvictionUnderCapacity() {
+		final OffHeapStore lru = new OffHeapStore( "lru", 4096, 64, OffHeapStore.Eviction.LRU, OffHeapStore.BufferType.DIRECT );
+		final OffHeapStore lfu = new OffHeapStore( "lfu", 4096, 64, OffHeapStore.Eviction.LFU, OffHeapStore.BufferType.MAPPED );
+		try {
+			for ( OffHeapStore store : new OffHeapStore[] { lru, lfu } ) {
+				store.put( "hot", "a value read again and again" );
+				for ( int i = 0; i < 100; i++ ) {
+					store.put( "cold " + i, "a value spanning more than one block of the store, read once " + i );
+					assertEquals( "a value read again and again", store.get( "hot" ) );
+				}
+				assertTrue( store.getEvictions() > 0 );
+				assertTrue( store.getUsedBytes() <= 4096 );
+				assertEquals( "a value spanning more than one block of the store, read once 99", store.get( "cold 99" ) );
+				assertNull( store.get( "cold 0" ) );
+				assertNotNull( store.get( "hot" ) );
+			}
+
+			lru.put( "first", "first value" );
+			lru.put( "second", "second value" );
+			for ( int i = 0; i < 100; i++ ) {
+				lru.put( "filler " + i, i );
+			}
+			assertNull( lru.get( "first" ) );
+
+			lru.clear();
+			assertEquals( 0, lru.getUsedBytes() );
+			assertEquals( 0, lru.size() );
+		}
+		finally {
+			lru.close();
+			lfu.close();
+		}
+	}
+
+	private static void read(EntityManager entityManager, LatencySamples latencies) {
+		final int id = ThreadLocalRandom.current().nextInt( ENTITIES );
+		final long start = System.nanoTime();
+		final Customer customer = entityManager.find( Customer.class, id );
+		latencies.record( System.nanoTime() - start );
+		assertEquals( "customer name " + id, customer.name );
+		entityManager.clear();
+	}
+
+	private OffHeapStore offHeapStore() {
+		final RegionFactory regionFactory = entityManagerFactory().unwrap( SessionFactoryImplementor.class )
+				.getServiceRegistry()
+				.getService( RegionFactory.class );
+		if ( regionFactory instanceof OffHeapRegionFactory ) {
+			return ( (OffHeapRegionFactory) regionFactory ).getStores().get( Customer.class.getName() );
+		}
+		return null;
+	}
+
+	@Entity(name = "Customer")
+	public static class Customer {
+		@Id
+		Integer id;
+
+		String name;
+
+		String email;
+
+		String street;
+
+		String city;
+
+		String country;
+
+		String phone;
+
+		@Lob
+		String notes;
+	}
+}
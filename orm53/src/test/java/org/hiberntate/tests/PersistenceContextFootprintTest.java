@@ -0,0 +1,136 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.util.Date;
+import java.util.List;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.ManagedEntity;
+
+import org.junit.Test;
+
+import org.hiberntate.util.EnhancingClassLoader;
+import org.hiberntate.util.PersistenceContextFootprint;
+import org.hiberntate.util.SettingsMatrix;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import org.jboss.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the persistence context footprint of the same graph (orders, their lines and the lazy order proxies of
+ * the lines) loaded normally, read-only ({@link Session#setDefaultReadOnly}, no dirty checking snapshots) and with
+ * bytecode enhanced entities (no identity map entry per entity).
+ * <p/>
+ * The data is inserted with native SQL since the enhanced entity classes differ from the ones compiled here. The
+ * size of the graph can be changed with the {@code harness.footprint.orders} and {@code harness.footprint.lines}
+ * system properties.
+ */
+public class PersistenceContextFootprintTest extends WildFlyFunctionalTestCase {
+	private static final Logger log = Logger.getLogger( PersistenceContextFootprintTest.class );
+
+	private static final int ORDERS = Integer.getInteger( "harness.footprint.orders", 100 );
+	private static final int LINES = Integer.getInteger( "harness.footprint.lines", 5 );
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { PurchaseOrder.class, OrderLine.class };
+	}
+
+	@Override
+	protected void afterEntityManagerFactoryBuilt() {
+		inTransaction(
+				entityManager -> {
+					for ( int i = 0; i < ORDERS; i++ ) {
+						entityManager.createNativeQuery( "insert into PurchaseOrder (id, customer, created) values (?, ?, ?)" )
+								.setParameter( 1, i )
+								.setParameter( 2, "customer " + i )
+								.setParameter( 3, new Date(), TemporalType.TIMESTAMP )
+								.executeUpdate();
+						for ( int j = 0; j < LINES; j++ ) {
+							entityManager.createNativeQuery(
+									"insert into OrderLine (id, product, quantity, purchaseOrder_id) values (?, ?, ?, ?)" )
+									.setParameter( 1, i * LINES + j )
+									.setParameter( 2, "product " + j )
+									.setParameter( 3, j + 1 )
+									.setParameter( 4, i )
+									.executeUpdate();
+						}
+					}
+				}
+		);
+	}
+
+	@Test
+	@SettingsMatrix(@SettingsMatrix.Setting(name = EnhancingClassLoader.ENABLED, values = { "false", "true" }))
+	public void testFootprint() {
+		final boolean enhanced = Boolean.parseBoolean( settingsMatrix.getCurrentSettings().get( EnhancingClassLoader.ENABLED ) );
+
+		final PersistenceContextFootprint normal = load( enhanced, false );
+		assertEquals( ORDERS + ORDERS * LINES, normal.getEntities() );
+		assertEquals( normal.getEntities(), normal.getSnapshots() );
+		assertEquals( ORDERS, normal.getCollections() );
+
+		final PersistenceContextFootprint readOnly = load( enhanced, true );
+		assertEquals( normal.getEntities(), readOnly.getReadOnlyEntities() );
+		assertEquals( 0, readOnly.getSnapshots() );
+		assertTrue( readOnly.getEstimatedBytes() < normal.getEstimatedBytes() );
+	}
+
+	private PersistenceContextFootprint load(boolean enhanced, boolean readOnly) {
+		final String mode = "enhanced=" + enhanced + ",readOnly=" + readOnly;
+		final PersistenceContextFootprint footprint = fromTransaction(
+				entityManager -> {
+					entityManager.unwrap( Session.class ).setDefaultReadOnly( readOnly );
+					final List<?> lines = entityManager.createQuery( "select l from OrderLine l" ).getResultList();
+					entityManager.createQuery( "select distinct o from PurchaseOrder o join fetch o.lines" ).getResultList();
+					assertEquals( enhanced, lines.get( 0 ) instanceof ManagedEntity );
+					return PersistenceContextFootprint.of( entityManager );
+				}
+		);
+		log.infof( "Persistence context with %s: %s", mode, footprint );
+		recordMetric( "footprint[" + mode + "].estimatedBytes", footprint.getEstimatedBytes() );
+		return footprint;
+	}
+
+	@Entity(name = "PurchaseOrder")
+	public static class PurchaseOrder {
+		@Id
+		Integer id;
+
+		String customer;
+
+		@Temporal(TemporalType.TIMESTAMP)
+		Date created;
+
+		@OneToMany(mappedBy = "purchaseOrder")
+		List<OrderLine> lines;
+	}
+
+	@Entity(name = "OrderLine")
+	public static class OrderLine {
+		@Id
+		Integer id;
+
+		String product;
+
+		int quantity;
+
+		@ManyToOne(fetch = FetchType.LAZY)
+		PurchaseOrder purchaseOrder;
+	}
+}
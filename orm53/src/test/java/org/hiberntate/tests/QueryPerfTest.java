@@ -0,0 +1,80 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import org.junit.After;
+import org.junit.Test;
+
+import org.hiberntate.util.PerfTest;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A query turned into a micro-benchmark with {@link PerfTest}.
+ */
+public class QueryPerfTest extends WildFlyFunctionalTestCase {
+	private static final int WARMUP = 10;
+	private static final int ITERATIONS = 50;
+	private static final int THREADS = 2;
+
+	private final AtomicInteger invocations = new AtomicInteger();
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { Item.class };
+	}
+
+	@Override
+	protected void afterEntityManagerFactoryBuilt() {
+		inTransaction(
+				entityManager -> {
+					for ( int i = 0; i < 100; i++ ) {
+						entityManager.persist( new Item( i, "item " + i ) );
+					}
+				}
+		);
+	}
+
+	@Test
+	@PerfTest(warmup = WARMUP, iterations = ITERATIONS, threads = THREADS)
+	public void testQuery() {
+		invocations.incrementAndGet();
+		assertEquals(
+				11,
+				fromTransaction( entityManager -> entityManager.createQuery(
+						"select i from Item i where i.name like :name",
+						Item.class
+				).setParameter( "name", "item 1%" ).getResultList() ).size()
+		);
+	}
+
+	@After
+	public void verifyInvocations() {
+		assertEquals( ( WARMUP + ITERATIONS ) * THREADS, invocations.get() );
+	}
+
+	@Entity(name = "Item")
+	public static class Item {
+		@Id
+		Integer id;
+
+		String name;
+
+		Item() {
+		}
+
+		Item(Integer id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import org.hibernate.cfg.AvailableSettings;
+
+import org.junit.Test;
+
+import org.hiberntate.util.QueryPlanCacheStatistics;
+import org.hiberntate.util.SettingsMatrix;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Query plan cache behaviour of three workloads for several {@code hibernate.query.plan_cache_max_size} values: one
+ * parameterized query executed over and over, a query whose literal changes at each execution, as when values are
+ * concatenated into JPQL, and a fixed set of distinct queries executed in rounds. The plan cache hits, misses,
+ * evictions and translation times are logged and recorded by the harness as {@code <method>.queryPlan.*} metrics.
+ */
+public class QueryPlanCacheBenchmarkTest extends WildFlyFunctionalTestCase {
+	private static final int ACCOUNTS = 200;
+	private static final int EXECUTIONS = 2000;
+	private static final int ROUNDS = 10;
+
+	private static final String[] PROJECTIONS = { "a", "a.id", "a.owner", "a.balance", "a.branch" };
+	private static final String[] PREDICATES = { "a.balance > :value", "a.balance < :value", "a.id > :value", "a.id < :value" };
+	private static final String[] ORDERS = { "", " order by a.id", " order by a.id desc", " order by a.balance", " order by a.owner" };
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { Account.class };
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	protected void addConfigOptions(Map options) {
+		options.put( QueryPlanCacheStatistics.ENABLED, "true" );
+	}
+
+	@Override
+	protected void afterEntityManagerFactoryBuilt() {
+		inTransaction(
+				entityManager -> {
+					for ( int i = 0; i < ACCOUNTS; i++ ) {
+						entityManager.persist( new Account( i ) );
+					}
+				}
+		);
+	}
+
+	@Test
+	@SettingsMatrix(@SettingsMatrix.Setting(name = AvailableSettings.QUERY_PLAN_CACHE_MAX_SIZE, values = { "16", "256", "2048" }))
+	public void testParameterizedQuery() {
+		final String query = "select a from Account a where a.id = :id";
+		inTransaction(
+				entityManager -> {
+					for ( int i = 0; i < EXECUTIONS; i++ ) {
+						entityManager.createQuery( query, Account.class )
+								.setParameter( "id", i % ACCOUNTS )
+								.getSingleResult();
+						entityManager.clear();
+					}
+				}
+		);
+
+		final QueryPlanCacheStatistics statistics = queryPlanCacheStatistics();
+		assertEquals( 1, statistics.getTranslationsByQuery().get( query ).getCount() );
+		assertEquals( 1, statistics.getMisses() );
+		assertTrue( statistics.getHits() >= EXECUTIONS - 1 );
+	}
+
+	@Test
+	@SettingsMatrix(@SettingsMatrix.Setting(name = AvailableSettings.QUERY_PLAN_CACHE_MAX_SIZE, values = { "16", "256", "2048" }))
+	public void testLiteralQueries() {
+		inTransaction(
+				entityManager -> {
+					for ( int i = 0; i < EXECUTIONS; i++ ) {
+						entityManager.createQuery( "select a from Account a where a.owner = 'owner " + i + "'", Account.class )
+								.getResultList();
+					}
+				}
+		);
+
+		final QueryPlanCacheStatistics statistics = queryPlanCacheStatistics();
+		assertEquals( EXECUTIONS, statistics.getMisses() );
+		assertEquals( EXECUTIONS, statistics.getTranslationsByQuery().size() );
+		assertTrue( statistics.getSize() <= statistics.getMaxSize() );
+		if ( statistics.getMaxSize() < EXECUTIONS ) {
+			assertTrue( statistics.getEvictions() > 0 );
+		}
+	}
+
+	@Test
+	@SettingsMatrix(@SettingsMatrix.Setting(name = AvailableSettings.QUERY_PLAN_CACHE_MAX_SIZE, values = { "16", "256", "2048" }))
+	public void testDistinctQueries() {
+		final List<String> queries = new ArrayList<>();
+		for ( String projection : PROJECTIONS ) {
+			for ( String predicate : PREDICATES ) {
+				for ( String order : ORDERS ) {
+					queries.add( "select " + projection + " from Account a where " + predicate + order );
+				}
+			}
+		}
+		inTransaction(
+				entityManager -> {
+					for ( int round = 0; round < ROUNDS; round++ ) {
+						for ( String query : queries ) {
+							entityManager.createQuery( query )
+									.setParameter( "value", ACCOUNTS / 2 )
+									.setMaxResults( 10 )
+									.getResultList();
+						}
+						entityManager.clear();
+					}
+				}
+		);
+
+		final QueryPlanCacheStatistics statistics = queryPlanCacheStatistics();
+		assertEquals( queries.size(), statistics.getTranslationsByQuery().size() );
+		if ( statistics.getMaxSize() >= queries.size() ) {
+			assertEquals( queries.size(), statistics.getMisses() );
+			assertEquals( 0, statistics.getRetranslations() );
+		}
+		else {
+			assertTrue( statistics.getRetranslations() > 0 );
+		}
+	}
+
+	@Entity(name = "Account")
+	public static class Account {
+		@Id
+		Integer id;
+
+		String owner;
+
+		String branch;
+
+		Integer balance;
+
+		Account() {
+		}
+
+		Account(Integer id) {
+			this.id = id;
+			this.owner = "owner " + id;
+			this.branch = "branch " + id % 10;
+			this.balance = id * 7 % 400;
+		}
+	}
+}
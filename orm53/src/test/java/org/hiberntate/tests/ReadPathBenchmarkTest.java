@@ -0,0 +1,231 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.Id;
+import javax.persistence.Tuple;
+
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.jpa.QueryHints;
+import org.hibernate.transform.Transformers;
+import org.hibernate.type.StandardBasicTypes;
+
+import org.junit.Test;
+
+import org.hiberntate.util.ThroughputReport;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import org.jboss.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Reads the same rows as managed entities, read-only entities, JPQL constructor expression DTOs, {@link Tuple}s,
+ * DTOs built by a {@link org.hibernate.transform.ResultTransformer} from native SQL and, as a floor, DTOs built from
+ * a plain JDBC result set, for growing result sizes. Logs the rows per second and the bytes allocated per row of
+ * each read path and records the latter as {@code readPath[<path>,rows=<n>].allocatedBytesPerRow}.
+ * <p/>
+ * Each read path is warmed up on {@value #WARMUP_ROWS} rows before being measured. The result sizes can be changed
+ * with the {@code harness.readpath.sizes} system property, e.g. {@code -Dharness.readpath.sizes=10,1000,100000,1000000};
+ * a million managed entities needs a heap of a few GB.
+ */
+public class ReadPathBenchmarkTest extends WildFlyFunctionalTestCase {
+	private static final Logger log = Logger.getLogger( ReadPathBenchmarkTest.class );
+
+	private static final int[] SIZES = Arrays.stream( System.getProperty( "harness.readpath.sizes", "10,1000,10000" ).split( "," ) )
+			.mapToInt( size -> Integer.parseInt( size.trim() ) )
+			.toArray();
+	private static final int WARMUP_ROWS = 1000;
+
+	private static final String JPQL = "select r from ReportRow r where r.id < :size";
+	private static final String SQL = "select id, category, amount from ReportRow where id < ?";
+
+	private final Map<String, BiFunction<EntityManager, Integer, Integer>> readPaths = new LinkedHashMap<>();
+
+	public ReadPathBenchmarkTest() {
+		readPaths.put( "entity", ReadPathBenchmarkTest::entities );
+		readPaths.put( "readOnlyEntity", ReadPathBenchmarkTest::readOnlyEntities );
+		readPaths.put( "constructor", ReadPathBenchmarkTest::constructorExpression );
+		readPaths.put( "tuple", ReadPathBenchmarkTest::tuples );
+		readPaths.put( "nativeTransformer", ReadPathBenchmarkTest::nativeResultTransformer );
+		readPaths.put( "jdbc", ReadPathBenchmarkTest::jdbc );
+	}
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { ReportRow.class };
+	}
+
+	@Override
+	protected void afterEntityManagerFactoryBuilt() {
+		final int rows = Math.max( WARMUP_ROWS, Arrays.stream( SIZES ).max().orElse( 0 ) );
+		inTransaction(
+				entityManager -> entityManager.createNativeQuery(
+						"insert into ReportRow (id, category, amount, description) "
+								+ "select x, 'category ' || mod(x, 10), x / 100.0, 'description of row ' || x "
+								+ "from system_range(0, ?)" )
+						.setParameter( 1, rows - 1 )
+						.executeUpdate()
+		);
+	}
+
+	@Test
+	public void testReadPaths() {
+		for ( Map.Entry<String, BiFunction<EntityManager, Integer, Integer>> readPath : readPaths.entrySet() ) {
+			read( readPath.getValue(), WARMUP_ROWS );
+		}
+		for ( int size : SIZES ) {
+			final StringBuilder summary = new StringBuilder( "Read paths for " ).append( size ).append( " rows:" );
+			for ( Map.Entry<String, BiFunction<EntityManager, Integer, Integer>> readPath : readPaths.entrySet() ) {
+				final ThroughputReport report = read( readPath.getValue(), size );
+				assertEquals( size, report.getRows() );
+				summary.append( String.format(
+						"%n  %-20s %14.1f rows/s %10d bytes/row",
+						readPath.getKey(),
+						report.getRowsPerSecond(),
+						report.getAllocatedBytesPerRow()
+				) );
+				if ( report.getAllocatedBytesPerRow() >= 0 ) {
+					recordMetric(
+							"readPath[" + readPath.getKey() + ",rows=" + size + "].allocatedBytesPerRow",
+							report.getAllocatedBytesPerRow()
+					);
+				}
+			}
+			log.info( summary );
+		}
+	}
+
+	private ThroughputReport read(BiFunction<EntityManager, Integer, Integer> readPath, int size) {
+		return ThroughputReport.measure( () -> fromTransaction( entityManager -> readPath.apply( entityManager, size ) ) );
+	}
+
+	private static int entities(EntityManager entityManager, int size) {
+		int rows = 0;
+		for ( ReportRow row : entityManager.createQuery( JPQL, ReportRow.class )
+				.setParameter( "size", size )
+				.getResultList() ) {
+			rows += row.category == null ? 0 : 1;
+		}
+		return rows;
+	}
+
+	private static int readOnlyEntities(EntityManager entityManager, int size) {
+		int rows = 0;
+		for ( ReportRow row : entityManager.createQuery( JPQL, ReportRow.class )
+				.setParameter( "size", size )
+				.setHint( QueryHints.HINT_READONLY, true )
+				.getResultList() ) {
+			rows += row.category == null ? 0 : 1;
+		}
+		return rows;
+	}
+
+	private static int constructorExpression(EntityManager entityManager, int size) {
+		int rows = 0;
+		for ( ReportRowSummary row : entityManager.createQuery(
+				"select new " + ReportRowSummary.class.getName() + "(r.id, r.category, r.amount) from ReportRow r where r.id < :size",
+				ReportRowSummary.class
+		).setParameter( "size", size ).getResultList() ) {
+			rows += row.category == null ? 0 : 1;
+		}
+		return rows;
+	}
+
+	private static int tuples(EntityManager entityManager, int size) {
+		int rows = 0;
+		for ( Tuple row : entityManager.createQuery(
+				"select r.id as id, r.category as category, r.amount as amount from ReportRow r where r.id < :size",
+				Tuple.class
+		).setParameter( "size", size ).getResultList() ) {
+			rows += row.get( "category" ) == null ? 0 : 1;
+		}
+		return rows;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int nativeResultTransformer(EntityManager entityManager, int size) {
+		int rows = 0;
+		for ( ReportRowSummary row : (List<ReportRowSummary>) entityManager.createNativeQuery( SQL )
+				.setParameter( 1, size )
+				.unwrap( SQLQuery.class )
+				.addScalar( "id", StandardBasicTypes.INTEGER )
+				.addScalar( "category", StandardBasicTypes.STRING )
+				.addScalar( "amount", StandardBasicTypes.BIG_DECIMAL )
+				.setResultTransformer( Transformers.aliasToBean( ReportRowSummary.class ) )
+				.list() ) {
+			rows += row.category == null ? 0 : 1;
+		}
+		return rows;
+	}
+
+	private static int jdbc(EntityManager entityManager, int size) {
+		return entityManager.unwrap( Session.class ).doReturningWork(
+				connection -> {
+					final List<ReportRowSummary> result = new ArrayList<>();
+					try (PreparedStatement statement = connection.prepareStatement( SQL )) {
+						statement.setInt( 1, size );
+						try (ResultSet resultSet = statement.executeQuery()) {
+							while ( resultSet.next() ) {
+								result.add( new ReportRowSummary(
+										resultSet.getInt( 1 ),
+										resultSet.getString( 2 ),
+										resultSet.getBigDecimal( 3 )
+								) );
+							}
+						}
+					}
+					int rows = 0;
+					for ( ReportRowSummary row : result ) {
+						rows += row.category == null ? 0 : 1;
+					}
+					return rows;
+				}
+		);
+	}
+
+	@Entity(name = "ReportRow")
+	public static class ReportRow {
+		@Id
+		Integer id;
+
+		String category;
+
+		BigDecimal amount;
+
+		String description;
+	}
+
+	public static class ReportRowSummary {
+		Integer id;
+
+		String category;
+
+		BigDecimal amount;
+
+		public ReportRowSummary() {
+		}
+
+		public ReportRowSummary(Integer id, String category, BigDecimal amount) {
+			this.id = id;
+			this.category = category;
+			this.amount = amount;
+		}
+	}
+}
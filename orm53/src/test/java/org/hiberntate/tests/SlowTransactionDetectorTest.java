@@ -0,0 +1,228 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.tests;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.Id;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.hiberntate.util.SlowTransactionDetector;
+import org.hiberntate.util.TransactionUtil;
+import org.hiberntate.util.WildFlyFunctionalTestCase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Units of work exceeding their threshold, given per call or globally, are reported with their statements, flush
+ * and persistence context counts and caller, even when an Error interrupts them; the other ones are not.
+ */
+public class SlowTransactionDetectorTest extends WildFlyFunctionalTestCase {
+	private static final int ITEMS = 10;
+	private static final Duration THRESHOLD = Duration.ofMillis( 20 );
+
+	private final List<SlowTransactionDetector.SlowTransaction> reported = new CopyOnWriteArrayList<>();
+	private Runnable unbind;
+
+	@Override
+	protected Class<?>[] getAnnotatedClasses() {
+		return new Class[] { Item.class };
+	}
+
+	@Before
+	public void listen() {
+		// the runner reuses the test instance
+		reported.clear();
+		unbind = SlowTransactionDetector.listen( reported::add );
+	}
+
+	@After
+	public void unbind() {
+		unbind.run();
+		SlowTransactionDetector.setThreshold( null );
+	}
+
+	@Test
+	public void testSlowTransactionIsReported() {
+		TransactionUtil.inTransaction(
+				entityManagerFactory(),
+				THRESHOLD,
+				entityManager -> {
+					for ( int i = 0; i < ITEMS; i++ ) {
+						entityManager.persist( new Item( i ) );
+					}
+					entityManager.createQuery( "select count(i) from Item i", Long.class ).getSingleResult();
+					pause();
+				}
+		);
+
+		assertEquals( 1, reported.size() );
+		final SlowTransactionDetector.SlowTransaction slow = reported.get( 0 );
+		assertEquals( TransactionUtil.COMMITTED, slow.getOutcome() );
+		assertTrue( slow.getElapsedNanos() > THRESHOLD.toNanos() );
+		assertEquals( ITEMS, slow.getManagedEntities() );
+		// the query auto flushes the inserts, and the commit flushes again
+		assertEquals( 2, slow.getFlushes() );
+		assertEquals( 2 * ITEMS, slow.getFlushedEntities() );
+		final List<String> statements = slow.getStatements().stream()
+				.map( statement -> statement.getSql().toLowerCase() )
+				.collect( Collectors.toList() );
+		assertTrue( statements.toString(), statements.get( 0 ).startsWith( "insert into item" ) );
+		assertTrue( statements.toString(), statements.get( statements.size() - 1 ).startsWith( "select count(" ) );
+		for ( SlowTransactionDetector.Statement statement : slow.getStatements() ) {
+			assertTrue( statement.getSql(), statement.getExecutions() > 0 );
+		}
+		final StackTraceElement caller = slow.getCallerStack().get( 0 );
+		assertEquals( slow.toString(), getClass().getName(), caller.getClassName() );
+		assertEquals( slow.toString(), "testSlowTransactionIsReported", caller.getMethodName() );
+	}
+
+	@Test
+	public void testFastTransactionIsNotReported() {
+		TransactionUtil.inTransaction( entityManagerFactory(), Duration.ofMinutes( 1 ), entityManager -> entityManager.persist( new Item( 1 ) ) );
+		inTransaction( entityManager -> pause() );
+
+		assertTrue( reported.isEmpty() );
+	}
+
+	@Test
+	public void testGlobalThreshold() throws Exception {
+		final Path log = Files.createTempFile( "slow-transactions", ".jsonl" );
+		final String buildLog = System.getProperty( SlowTransactionDetector.LOG_FILE );
+		System.setProperty( SlowTransactionDetector.LOG_FILE, log.toString() );
+		try {
+			SlowTransactionDetector.setThreshold( THRESHOLD );
+			inTransaction( entityManager -> entityManager.persist( new Item( 1 ) ) );
+			try {
+				inTransaction(
+						entityManager -> {
+							entityManager.find( Item.class, 1 ).name = "renamed";
+							pause();
+							throw new IllegalStateException( "rolled back" );
+						}
+				);
+				fail();
+			}
+			catch (IllegalStateException expected) {
+			}
+
+			assertEquals( 1, reported.size() );
+			assertEquals( TransactionUtil.ROLLED_BACK, reported.get( 0 ).getOutcome() );
+			assertEquals( 1, reported.get( 0 ).getManagedEntities() );
+			final List<String> lines = Files.readAllLines( log, StandardCharsets.UTF_8 );
+			assertEquals( 1, lines.size() );
+			assertTrue( lines.get( 0 ), lines.get( 0 ).contains( "\"outcome\":\"rolled back\"" ) );
+			assertTrue( lines.get( 0 ), lines.get( 0 ).contains( "\"sql\":\"select" ) );
+		}
+		finally {
+			if ( buildLog == null ) {
+				System.clearProperty( SlowTransactionDetector.LOG_FILE );
+			}
+			else {
+				System.setProperty( SlowTransactionDetector.LOG_FILE, buildLog );
+			}
+			Files.deleteIfExists( log );
+		}
+	}
+
+	@Test
+	public void testErrorIsReported() {
+		final EntityManager entityManager = createEntityManager();
+		try {
+			TransactionUtil.inTransaction(
+					entityManager,
+					THRESHOLD,
+					em -> {
+						em.persist( new Item( 1 ) );
+						pause();
+						throw new AssertionError( "interrupted" );
+					}
+			);
+			fail();
+		}
+		catch (AssertionError expected) {
+			// an Error is not rolled back by TransactionUtil
+			entityManager.getTransaction().rollback();
+		}
+		assertEquals( 1, reported.size() );
+		assertEquals( TransactionUtil.FAILED, reported.get( 0 ).getOutcome() );
+
+		// the session listener of the first unit of work hands the events of the second one to its trace
+		TransactionUtil.inTransaction(
+				entityManager,
+				THRESHOLD,
+				em -> {
+					em.persist( new Item( 2 ) );
+					pause();
+				}
+		);
+		assertEquals( 2, reported.size() );
+		assertEquals( TransactionUtil.COMMITTED, reported.get( 1 ).getOutcome() );
+		assertEquals( 1, reported.get( 1 ).getFlushes() );
+		assertEquals( 1, reported.get( 1 ).getStatements().size() );
+		assertEquals( 1, reported.get( 1 ).getStatements().get( 0 ).getExecutions() );
+	}
+
+	@Test
+	public void testCompletedByActionIsReportedAsFailed() {
+		try {
+			TransactionUtil.inTransaction(
+					entityManagerFactory(),
+					THRESHOLD,
+					entityManager -> {
+						entityManager.persist( new Item( 1 ) );
+						pause();
+						entityManager.getTransaction().commit();
+					}
+			);
+			fail();
+		}
+		catch (RuntimeException expected) {
+			assertEquals( TransactionUtil.ACTION_COMPLETED_TXN, expected.getMessage() );
+		}
+		// TransactionUtil did not roll back the transaction the action committed
+		assertEquals( 1, reported.size() );
+		assertEquals( TransactionUtil.FAILED, reported.get( 0 ).getOutcome() );
+	}
+
+	private static void pause() {
+		try {
+			Thread.sleep( THRESHOLD.toMillis() * 2 );
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Entity(name = "Item")
+	public static class Item {
+		@Id
+		Integer id;
+
+		String name;
+
+		Item() {
+		}
+
+		Item(Integer id) {
+			this.id = id;
+			this.name = "item " + id;
+		}
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.metamodel.EntityType;
+
+import org.hibernate.CacheMode;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+/**
+ * Preloads the second level cache regions of the given entities and collection roles, so that the first requests
+ * after a deployment do not all miss the cache.
+ * <p/>
+ * With {@link Strategy#BULK_QUERY} each entity is read by one query (collections by one query join fetching them),
+ * which is the fastest but materializes the whole table in one persistence context. With {@link Strategy#ID_BATCHES}
+ * the ids are scrolled and the entities (or collection owners) are loaded in batches of the size set by
+ * {@value #BATCH_SIZE} ({@code 100} by default), clearing the persistence context after each batch. Both load
+ * with {@link CacheMode#REFRESH}, overwriting stale entries.
+ * <p/>
+ * The harness warms up the regions of {@code getCachedClasses()} and {@code getCachedCollections()} after
+ * {@code afterEntityManagerFactoryBuilt()} when {@value #STRATEGY} is set to one of the strategies.
+ */
+public class CacheWarmUp {
+	public static final String STRATEGY = "harness.cache.warmup";
+	public static final String BATCH_SIZE = "harness.cache.warmup.batch_size";
+
+	public enum Strategy {
+		NONE,
+		BULK_QUERY,
+		ID_BATCHES;
+
+		public static Strategy fromSetting(Object value) {
+			return value == null ? NONE : valueOf( value.toString().trim().toUpperCase( Locale.ROOT ).replace( '-', '_' ) );
+		}
+	}
+
+	private final Strategy strategy;
+	private final int batchSize;
+
+	public CacheWarmUp(Strategy strategy, int batchSize) {
+		this.strategy = strategy;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param collectionRoles the roles of the collections, i.e. the owner class name and the attribute name, as in
+	 * {@code getCachedCollections()}
+	 */
+	public Report warmUp(EntityManagerFactory entityManagerFactory, Collection<Class> entities, Collection<String> collectionRoles) {
+		if ( strategy == Strategy.NONE ) {
+			return new Report( strategy, 0, 0, 0, 0 );
+		}
+		final long usedHeapBefore = usedHeapAfterGc();
+		final long start = System.nanoTime();
+		long loadedEntities = 0;
+		long loadedCollections = 0;
+		final EntityManager entityManager = entityManagerFactory.createEntityManager();
+		try {
+			entityManager.getTransaction().begin();
+			final Session session = entityManager.unwrap( Session.class );
+			session.setCacheMode( CacheMode.REFRESH );
+			session.setDefaultReadOnly( true );
+			for ( Class entity : entities ) {
+				final EntityType<?> type = entityManagerFactory.getMetamodel().entity( entity );
+				loadedEntities += load( session, type, "select e from " + type.getName() + " e" );
+			}
+			for ( String role : collectionRoles ) {
+				final int separator = role.lastIndexOf( '.' );
+				final EntityType<?> owner = entityType( entityManagerFactory, role.substring( 0, separator ) );
+				loadedCollections += load(
+						session,
+						owner,
+						"select distinct e from " + owner.getName() + " e left join fetch e." + role.substring( separator + 1 )
+				);
+			}
+			entityManager.getTransaction().commit();
+		}
+		finally {
+			if ( entityManager.getTransaction().isActive() ) {
+				entityManager.getTransaction().rollback();
+			}
+			entityManager.close();
+		}
+		final long nanos = System.nanoTime() - start;
+		return new Report( strategy, loadedEntities, loadedCollections, nanos, usedHeapAfterGc() - usedHeapBefore );
+	}
+
+	private long load(Session session, EntityType<?> type, String query) {
+		if ( strategy == Strategy.BULK_QUERY ) {
+			final int loaded = session.createQuery( query ).list().size();
+			session.clear();
+			return loaded;
+		}
+		final String id = type.getId( type.getIdType().getJavaType() ).getName();
+		final String batchQuery = query + " where e." + id + " in (:ids)";
+		long loaded = 0;
+		final Query ids = session.createQuery( "select e." + id + " from " + type.getName() + " e order by e." + id );
+		ids.setFetchSize( batchSize );
+		final ScrollableResults results = ids.scroll( ScrollMode.FORWARD_ONLY );
+		try {
+			final List<Object> batch = new ArrayList<>( batchSize );
+			while ( results.next() ) {
+				batch.add( results.get( 0 ) );
+				if ( batch.size() == batchSize ) {
+					loaded += loadBatch( session, batchQuery, batch );
+				}
+			}
+			if ( !batch.isEmpty() ) {
+				loaded += loadBatch( session, batchQuery, batch );
+			}
+		}
+		finally {
+			results.close();
+		}
+		return loaded;
+	}
+
+	private static int loadBatch(Session session, String query, List<Object> ids) {
+		final int loaded = session.createQuery( query ).setParameterList( "ids", ids ).list().size();
+		session.clear();
+		ids.clear();
+		return loaded;
+	}
+
+	private static EntityType<?> entityType(EntityManagerFactory entityManagerFactory, String className) {
+		for ( EntityType<?> type : entityManagerFactory.getMetamodel().getEntities() ) {
+			if ( type.getJavaType().getName().equals( className ) ) {
+				return type;
+			}
+		}
+		throw new IllegalArgumentException( "No entity " + className );
+	}
+
+	private static long usedHeapAfterGc() {
+		System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * Outcome of a warm-up; the heap growth, measured after full collections, approximates the memory retained by the
+	 * cache regions when they live on the heap.
+	 */
+	public static class Report {
+		private final Strategy strategy;
+		private final long entities;
+		private final long collections;
+		private final long nanos;
+		private final long heapGrowthBytes;
+
+		public Report(Strategy strategy, long entities, long collections, long nanos, long heapGrowthBytes) {
+			this.strategy = strategy;
+			this.entities = entities;
+			this.collections = collections;
+			this.nanos = nanos;
+			this.heapGrowthBytes = heapGrowthBytes;
+		}
+
+		public Strategy getStrategy() {
+			return strategy;
+		}
+
+		public long getEntities() {
+			return entities;
+		}
+
+		public long getCollections() {
+			return collections;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		public long getHeapGrowthBytes() {
+			return heapGrowthBytes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%s warm-up of %d entities and %d collection owners in %.3f ms, heap grew by %d KB",
+					strategy,
+					entities,
+					collections,
+					nanos / 1_000_000d,
+					heapGrowthBytes / 1024
+			);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.util.Map;
+import java.util.Properties;
+
+import org.hibernate.boot.spi.SessionFactoryOptions;
+import org.hibernate.cache.cfg.spi.DomainDataRegionBuildingContext;
+import org.hibernate.cache.cfg.spi.DomainDataRegionConfig;
+import org.hibernate.cache.spi.DomainDataRegion;
+import org.hibernate.cache.spi.support.DomainDataRegionTemplate;
+import org.hibernate.cache.spi.support.DomainDataStorageAccess;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.testing.cache.CachingRegionFactory;
+
+/**
+ * Region factory making the EntityManagerFactory a node of a {@link LoopbackCluster}, configured by the
+ * {@code harness.cache.cluster.*} settings: the entity, collection and natural id regions are kept in
+ * {@link ClusteredStore}s, which invalidate or replicate their entries on the other nodes, with the read-only,
+ * nonstrict-read-write and read-write access strategies of Hibernate. The query results and update timestamps regions
+ * stay local to the node, as in {@link CachingRegionFactory}.
+ * <p/>
+ * e.g. {@code options.put( AvailableSettings.CACHE_REGION_FACTORY, ClusteredRegionFactory.class.getName() )}, with
+ * the other nodes built by {@link WildFlyFunctionalTestCase#buildClusterNode()}
+ */
+public class ClusteredRegionFactory extends CachingRegionFactory {
+	private LoopbackCluster.Node node;
+
+	public ClusteredRegionFactory() {
+	}
+
+	public ClusteredRegionFactory(Properties properties) {
+		super( properties );
+	}
+
+	@Override
+	protected void prepareForUse(SessionFactoryOptions settings, Map configValues) {
+		super.prepareForUse( settings, configValues );
+		node = LoopbackCluster.join( configValues );
+	}
+
+	@Override
+	public DomainDataRegion buildDomainDataRegion(
+			DomainDataRegionConfig regionConfig,
+			DomainDataRegionBuildingContext buildingContext) {
+		verifyStarted();
+		return new DomainDataRegionTemplate(
+				regionConfig,
+				this,
+				new ClusteredStorageAccess( node.store( regionConfig.getRegionName() ) ),
+				getImplicitCacheKeysFactory(),
+				buildingContext
+		);
+	}
+
+	/**
+	 * @return this EntityManagerFactory in the cluster
+	 */
+	public LoopbackCluster.Node getNode() {
+		return node;
+	}
+
+	@Override
+	protected void releaseFromUse() {
+		if ( node != null ) {
+			node.leave();
+			node = null;
+		}
+		super.releaseFromUse();
+	}
+
+	private static class ClusteredStorageAccess implements DomainDataStorageAccess {
+		private final ClusteredStore store;
+
+		private ClusteredStorageAccess(ClusteredStore store) {
+			this.store = store;
+		}
+
+		@Override
+		public Object getFromCache(Object key, SharedSessionContractImplementor session) {
+			return store.get( key );
+		}
+
+		@Override
+		public void putIntoCache(Object key, Object value, SharedSessionContractImplementor session) {
+			store.put( key, value );
+		}
+
+		@Override
+		public void removeFromCache(Object key, SharedSessionContractImplementor session) {
+			store.remove( key );
+		}
+
+		@Override
+		public void clearCache(SharedSessionContractImplementor session) {
+			store.clear();
+		}
+
+		@Override
+		public boolean contains(Object key) {
+			return store.containsKey( key );
+		}
+
+		@Override
+		public void evictData() {
+			store.clear();
+		}
+
+		@Override
+		public void evictData(Object key) {
+			store.remove( key );
+		}
+
+		@Override
+		public void release() {
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.util.Map;
+
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+
+/**
+ * Gives each test JVM, and each test class within it, its own in-memory H2 database by suffixing the database name
+ * of the connection url ({@code jdbc:h2:mem:db1} becomes {@code jdbc:h2:mem:db1_<fork>_<TestClass>}), so that test
+ * classes can run concurrently in Gradle forks ({@code maxParallelForks}) and never see the tables of another class.
+ * Within a JVM test classes still have to run one at a time: the hibernate-testing runner closes every
+ * SessionFactory left open when a test class completes, including the ones of classes running in parallel.
+ * <p/>
+ * The fork is identified by the {@code org.gradle.test.worker} system property Gradle sets in its test workers, or
+ * else by the process id. Setting {@value #ENABLED} to {@code false} keeps the configured url, e.g. to inspect the
+ * database from another connection.
+ */
+public final class DatabaseIsolation {
+	public static final String ENABLED = "harness.db.isolation";
+
+	private static final String FORK = System.getProperty(
+			"org.gradle.test.worker",
+			String.valueOf( ProcessHandle.current().pid() )
+	);
+
+	private DatabaseIsolation() {
+	}
+
+	/**
+	 * Rewrites the in-memory H2 connection url of the settings for the given test class.
+	 */
+	@SuppressWarnings("unchecked")
+	public static void applySettings(Map settings, Class<?> testClass) {
+		final Object url = settings.get( AvailableSettings.URL );
+		if ( url == null
+				|| !url.toString().startsWith( "jdbc:h2:mem:" )
+				|| !ConfigurationHelper.getBoolean( ENABLED, settings, true ) ) {
+			return;
+		}
+		final String value = url.toString();
+		final int parameters = value.indexOf( ';' );
+		final String database = parameters < 0 ? value : value.substring( 0, parameters );
+		final String rest = parameters < 0 ? "" : value.substring( parameters );
+		settings.put( AvailableSettings.URL, database + "_" + FORK + "_" + testClass.getSimpleName() + rest );
+	}
+}
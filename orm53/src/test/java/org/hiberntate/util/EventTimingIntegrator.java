@@ -0,0 +1,227 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.hibernate.boot.Metadata;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerGroup;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Integrator timing every Hibernate event listener group: for each {@link EventType} a listener recording the start
+ * time is prepended to the group and a listener recording the elapsed time is appended to it, so the measured time
+ * covers all the listeners of the group, including the nested events they trigger (e.g. the loads caused by a
+ * flush). Timings are accumulated per event type and entity name. The listeners returning a result, such as the
+ * pre-insert, pre-update and pre-delete ones, are timed too; the proxies never veto the operation.
+ * <p/>
+ * The harness registers it when the {@value #ENABLED} setting is {@code true} and logs the report after each test.
+ * Note that adding listeners to an otherwise empty group makes Hibernate build and fire events it would skip.
+ */
+public class EventTimingIntegrator implements Integrator {
+	public static final String ENABLED = "harness.event_timing";
+
+	private static final Logger log = Logger.getLogger( EventTimingIntegrator.class );
+
+	private static final String NO_ENTITY = "-";
+	private static final Map<Class<?>, Function<Object, String>> ENTITY_NAME_RESOLVERS = new ConcurrentHashMap<>();
+
+	private final ThreadLocal<Map<Object, Long>> inProgress = ThreadLocal.withInitial( WeakHashMap::new );
+	private final Map<String, LatencySamples> timings = new ConcurrentHashMap<>();
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void integrate(
+			Metadata metadata,
+			SessionFactoryImplementor sessionFactory,
+			SessionFactoryServiceRegistry serviceRegistry) {
+		final EventListenerRegistry registry = serviceRegistry.getService( EventListenerRegistry.class );
+		for ( EventType eventType : EventType.values() ) {
+			register( registry, eventType );
+		}
+	}
+
+	private <T> void register(EventListenerRegistry registry, EventType<T> eventType) {
+		final EventListenerGroup<T> group = registry.getEventListenerGroup( eventType );
+		group.prependListener( listener( eventType, StartListener.class, this::started ) );
+		group.appendListener( listener( eventType, EndListener.class, event -> completed( eventType, event ) ) );
+	}
+
+	/**
+	 * Hibernate rejects two listeners of the same class in a group (JPA duplication strategy), so the start and end
+	 * proxies implement different marker interfaces to get distinct proxy classes.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T listener(EventType<T> eventType, Class<?> marker, Consumer<Object> onEvent) {
+		final InvocationHandler handler = new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if ( method.getDeclaringClass() == Object.class ) {
+					switch ( method.getName() ) {
+						case "equals":
+							return proxy == args[0];
+						case "hashCode":
+							return System.identityHashCode( proxy );
+						default:
+							return "EventTimingListener(" + eventType.eventName() + ")";
+					}
+				}
+				if ( args != null && args.length > 0 && args[0] != null && !( args[0] instanceof EntityPersister ) ) {
+					onEvent.accept( args[0] );
+				}
+				// the pre-insert, pre-update and pre-delete listeners return whether they veto the operation, and
+				// PostInsertEventListener#requiresPostCommitHanding whether it needs the transaction outcome
+				return method.getReturnType() == boolean.class ? Boolean.FALSE : null;
+			}
+		};
+		return (T) Proxy.newProxyInstance(
+				EventTimingIntegrator.class.getClassLoader(),
+				new Class[] { eventType.baseListenerInterface(), marker },
+				handler
+		);
+	}
+
+	private void started(Object event) {
+		inProgress.get().put( event, System.nanoTime() );
+	}
+
+	private void completed(EventType<?> eventType, Object event) {
+		final Long start = inProgress.get().remove( event );
+		if ( start != null ) {
+			final long elapsed = System.nanoTime() - start;
+			timings.computeIfAbsent(
+					eventType.eventName() + " " + entityName( event ),
+					k -> new LatencySamples()
+			).record( elapsed );
+		}
+	}
+
+	private static String entityName(Object event) {
+		return ENTITY_NAME_RESOLVERS.computeIfAbsent( event.getClass(), EventTimingIntegrator::entityNameResolver )
+				.apply( event );
+	}
+
+	private static Function<Object, String> entityNameResolver(Class<?> eventClass) {
+		for ( String getter : new String[] { "getEntityName", "getEntityClassName", "getAffectedOwnerEntityName" } ) {
+			try {
+				final Method method = eventClass.getMethod( getter );
+				return event -> {
+					try {
+						final Object name = method.invoke( event );
+						return name == null ? NO_ENTITY : name.toString();
+					}
+					catch (ReflectiveOperationException e) {
+						return NO_ENTITY;
+					}
+				};
+			}
+			catch (NoSuchMethodException ignore) {
+			}
+		}
+		try {
+			final Method entry = eventClass.getMethod( "getEntityEntry" );
+			return event -> {
+				try {
+					final EntityEntry entityEntry = (EntityEntry) entry.invoke( event );
+					return entityEntry == null ? NO_ENTITY : entityEntry.getEntityName();
+				}
+				catch (ReflectiveOperationException e) {
+					return NO_ENTITY;
+				}
+			};
+		}
+		catch (NoSuchMethodException ignore) {
+		}
+		try {
+			final Method persister = eventClass.getMethod( "getPersister" );
+			if ( EntityPersister.class.isAssignableFrom( persister.getReturnType() ) ) {
+				return event -> {
+					try {
+						final EntityPersister entityPersister = (EntityPersister) persister.invoke( event );
+						return entityPersister == null ? NO_ENTITY : entityPersister.getEntityName();
+					}
+					catch (ReflectiveOperationException e) {
+						return NO_ENTITY;
+					}
+				};
+			}
+		}
+		catch (NoSuchMethodException ignore) {
+		}
+		return event -> NO_ENTITY;
+	}
+
+	interface StartListener {
+	}
+
+	interface EndListener {
+	}
+
+	@Override
+	public void disintegrate(SessionFactoryImplementor sessionFactory, SessionFactoryServiceRegistry serviceRegistry) {
+	}
+
+	/**
+	 * @return the accumulated timings keyed by {@code "<event type> <entity name>"}
+	 */
+	public Map<String, LatencySamples> getTimings() {
+		return timings;
+	}
+
+	public void logReport(String title) {
+		if ( timings.isEmpty() ) {
+			return;
+		}
+		final List<Map.Entry<String, LatencySamples>> entries = new ArrayList<>( timings.entrySet() );
+		entries.sort( Comparator.comparingLong( (Map.Entry<String, LatencySamples> e) -> e.getValue().getTotal() )
+							.reversed() );
+
+		final StringBuilder report = new StringBuilder( "Hibernate event timings for " ).append( title )
+				.append( String.format(
+						"%n%-70s %8s %12s %10s %10s %10s %10s",
+						"event entity",
+						"calls",
+						"total ms",
+						"mean us",
+						"p50 us",
+						"p99 us",
+						"max us"
+				) );
+		for ( Map.Entry<String, LatencySamples> entry : entries ) {
+			final LatencySamples samples = entry.getValue();
+			report.append( String.format(
+					"%n%-70s %8d %12.3f %10.1f %10.1f %10.1f %10.1f",
+					entry.getKey(),
+					samples.getCount(),
+					samples.getTotal() / 1_000_000d,
+					samples.getMean() / 1_000d,
+					samples.getPercentile( 50 ) / 1_000d,
+					samples.getPercentile( 99 ) / 1_000d,
+					samples.getMax() / 1_000d
+			) );
+		}
+		log.info( report );
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Class rule collecting the {@link GcPressure} of each test method of the class and logging them as one table,
+ * the methods promoting the most bytes first, once the class completed.
+ */
+public class GcPressureSummaryRule implements TestRule {
+	private static final Logger log = Logger.getLogger( GcPressureSummaryRule.class );
+
+	private final List<Map.Entry<String, GcPressure>> methods = new ArrayList<>();
+
+	public synchronized void add(String methodName, GcPressure gcPressure) {
+		methods.add( Map.entry( methodName, gcPressure ) );
+	}
+
+	@Override
+	public Statement apply(Statement base, Description description) {
+		return new Statement() {
+			@Override
+			public void evaluate() throws Throwable {
+				try {
+					base.evaluate();
+				}
+				finally {
+					logSummary( description.getTestClass().getSimpleName() );
+				}
+			}
+		};
+	}
+
+	private synchronized void logSummary(String testClassName) {
+		if ( methods.isEmpty() ) {
+			return;
+		}
+		methods.sort( Comparator.comparing(
+				(Map.Entry<String, GcPressure> method) -> method.getValue().getPromotedBytes()
+		).reversed() );
+		final StringBuilder summary = new StringBuilder( "GC pressure of " ).append( testClassName ).append( ':' );
+		summary.append( String.format(
+				"%n  %-40s %8s %8s %20s %14s %16s",
+				"method",
+				"young",
+				"old",
+				"collection time (ms)",
+				"promoted (KB)",
+				"old peak (KB)"
+		) );
+		for ( Map.Entry<String, GcPressure> method : methods ) {
+			final GcPressure gcPressure = method.getValue();
+			summary.append( String.format(
+					"%n  %-40s %8d %8d %20d %14d %16d",
+					method.getKey(),
+					gcPressure.getYoungCollections(),
+					gcPressure.getOldCollections(),
+					gcPressure.getCollectionMillis(),
+					gcPressure.getPromotedBytes() / 1024,
+					gcPressure.getPeakOldGenBytes() / 1024
+			) );
+		}
+		log.info( summary );
+		methods.clear();
+	}
+}
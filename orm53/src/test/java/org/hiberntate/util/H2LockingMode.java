@@ -0,0 +1,91 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.hibernate.cfg.AvailableSettings;
+
+/**
+ * The storage engine and concurrency control of the H2 test database.
+ * <p/>
+ * Setting {@value #SETTING} (as a system property, in {@code addConfigOptions} or through {@link SettingsMatrix})
+ * to one of the constant names rewrites the H2 connection url so that it opens a database of its own (named after
+ * the mode, since the settings only apply when an in-memory database is created) with the matching
+ * {@code MV_STORE} and {@code MVCC} flags. {@value #LOCK_TIMEOUT} sets the H2 {@code LOCK_TIMEOUT}, in milliseconds.
+ * Without the setting the url of {@code hibernate.properties} is used unchanged, which with H2 1.4 means
+ * {@link #MVSTORE_MVCC}.
+ */
+public enum H2LockingMode {
+	/**
+	 * MVStore with row level multi version concurrency control, the closest to production databases.
+	 */
+	MVSTORE_MVCC( true, true ),
+	/**
+	 * MVStore with table level locks.
+	 */
+	MVSTORE_TABLE_LOCKS( true, false ),
+	/**
+	 * Legacy page store with row level multi version concurrency control.
+	 */
+	PAGESTORE_MVCC( false, true ),
+	/**
+	 * Legacy page store with table level locks: writers block every reader of the table until they complete.
+	 */
+	PAGESTORE_TABLE_LOCKS( false, false );
+
+	public static final String SETTING = "harness.h2.locking_mode";
+	public static final String LOCK_TIMEOUT = "harness.h2.lock_timeout";
+
+	private static final Pattern MODE_PARAMETERS = Pattern.compile( "(?i);(MV_STORE|MVCC|LOCK_TIMEOUT)=[^;]*" );
+
+	private final boolean mvStore;
+	private final boolean mvcc;
+
+	H2LockingMode(boolean mvStore, boolean mvcc) {
+		this.mvStore = mvStore;
+		this.mvcc = mvcc;
+	}
+
+	public static H2LockingMode fromSetting(Object value) {
+		return value == null ? null : valueOf( value.toString().trim().toUpperCase( Locale.ROOT ).replace( '-', '_' ) );
+	}
+
+	/**
+	 * Rewrites the H2 connection url of the settings according to {@value #SETTING} and {@value #LOCK_TIMEOUT}.
+	 */
+	@SuppressWarnings("unchecked")
+	public static void applySettings(Map settings) {
+		final H2LockingMode mode = fromSetting( settings.get( SETTING ) );
+		final Object lockTimeout = settings.get( LOCK_TIMEOUT );
+		final Object url = settings.get( AvailableSettings.URL );
+		if ( ( mode == null && lockTimeout == null ) || url == null || !url.toString().startsWith( "jdbc:h2:" ) ) {
+			return;
+		}
+
+		String rewritten = MODE_PARAMETERS.matcher( url.toString() ).replaceAll( "" );
+		if ( mode != null ) {
+			rewritten = mode.rewrite( rewritten );
+		}
+		if ( lockTimeout != null ) {
+			rewritten += ";LOCK_TIMEOUT=" + lockTimeout;
+		}
+		settings.put( AvailableSettings.URL, rewritten );
+	}
+
+	private String rewrite(String url) {
+		final int parameters = url.indexOf( ';' );
+		final String database = parameters < 0 ? url : url.substring( 0, parameters );
+		final String rest = parameters < 0 ? "" : url.substring( parameters );
+		return database + "_" + name().toLowerCase( Locale.ROOT )
+				+ rest
+				+ ";MV_STORE=" + String.valueOf( mvStore ).toUpperCase( Locale.ROOT )
+				+ ";MVCC=" + String.valueOf( mvcc ).toUpperCase( Locale.ROOT );
+	}
+}
@@ -0,0 +1,645 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.engine.jdbc.connections.internal.DriverManagerConnectionProviderImpl;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Profiling layer between Hibernate and the JDBC driver: the connections of the Hibernate built-in pool are wrapped
+ * in proxies, as are the statements and result sets they create, timing every call made to the driver and counting
+ * <ul>
+ * <li>the round trips, i.e. the calls a client/server driver sends to the database: statement and batch executions,
+ * commits and rollbacks,</li>
+ * <li>the statements prepared, and among them the ones whose SQL was already prepared on the same connection (which
+ * a statement cache would have saved), and the re-executions of an already executed statement,</li>
+ * <li>the sizes of the batches actually executed and the rows fetched from the result sets,</li>
+ * <li>the connection acquisitions and releases by Hibernate, the checkouts from the pool with their wait and hold
+ * times.</li>
+ * </ul>
+ * Each unit of work on a connection, from its acquisition or the end of the previous one to the commit, rollback or
+ * release of the connection, is also timed: the time spent outside of the driver is the time spent in Hibernate and
+ * in the test code.
+ * <p/>
+ * The harness installs it when the {@value #ENABLED} setting is {@code true}, unless the test configures its own
+ * {@link AvailableSettings#CONNECTION_PROVIDER}, and logs the report after each test. With the
+ * {@value #AGGRESSIVE_RELEASE} setting the pool also supports the after-statement release of
+ * {@code hibernate.connection.handling_mode} the way the JTA datasources of WildFly do: a connection released in the
+ * middle of a transaction stays enlisted with the thread, and the next acquisition of the thread gets it back without
+ * going through the pool.
+ */
+public class JdbcProfiler {
+	public static final String ENABLED = "harness.jdbc_profiling";
+	public static final String AGGRESSIVE_RELEASE = "harness.jdbc_profiling.aggressive_release";
+
+	private static final Logger log = Logger.getLogger( JdbcProfiler.class );
+
+	private final LongAdder roundTrips = new LongAdder();
+	private final LongAdder executions = new LongAdder();
+	private final LongAdder commits = new LongAdder();
+	private final LongAdder rollbacks = new LongAdder();
+	private final LongAdder statementsPrepared = new LongAdder();
+	private final LongAdder repeatedPrepares = new LongAdder();
+	private final LongAdder reExecutions = new LongAdder();
+	private final LongAdder rowsFetched = new LongAdder();
+	private final LongAdder driverNanos = new LongAdder();
+	private final LongAdder acquisitions = new LongAdder();
+	private final LongAdder releases = new LongAdder();
+	private final LongAdder poolCheckouts = new LongAdder();
+	private final Map<Integer, LongAdder> batchSizes = new ConcurrentSkipListMap<>();
+	private final AtomicInteger checkedOut = new AtomicInteger();
+	private ProfilingConnectionProvider provider;
+	private volatile LatencySamples poolWaits = new LatencySamples();
+	private volatile LatencySamples holdTimes = new LatencySamples();
+	private volatile LatencySamples transactions = new LatencySamples();
+	private volatile LatencySamples transactionDriverTimes = new LatencySamples();
+
+	/**
+	 * Configures the connection provider of the settings to profile the JDBC calls when the {@value #ENABLED} setting
+	 * is {@code true}.
+	 *
+	 * @return the profiler, {@code null} when profiling is not enabled
+	 */
+	@SuppressWarnings("unchecked")
+	public static JdbcProfiler applySettings(Map settings) {
+		if ( !ConfigurationHelper.getBoolean( ENABLED, settings, false )
+				|| settings.containsKey( AvailableSettings.CONNECTION_PROVIDER ) ) {
+			return null;
+		}
+		final JdbcProfiler profiler = new JdbcProfiler();
+		profiler.provider = new ProfilingConnectionProvider(
+				profiler,
+				ConfigurationHelper.getBoolean( AGGRESSIVE_RELEASE, settings, false )
+		);
+		settings.put( AvailableSettings.CONNECTION_PROVIDER, profiler.provider );
+		return profiler;
+	}
+
+	/**
+	 * Discards what was profiled so far, e.g. the schema creation and the test data.
+	 */
+	public void reset() {
+		for ( LongAdder counter : new LongAdder[] {
+				roundTrips, executions, commits, rollbacks, statementsPrepared, repeatedPrepares, reExecutions,
+				rowsFetched, driverNanos, acquisitions, releases, poolCheckouts
+		} ) {
+			counter.reset();
+		}
+		batchSizes.clear();
+		poolWaits = new LatencySamples();
+		holdTimes = new LatencySamples();
+		transactions = new LatencySamples();
+		transactionDriverTimes = new LatencySamples();
+	}
+
+	public long getRoundTrips() {
+		return roundTrips.sum();
+	}
+
+	public long getExecutions() {
+		return executions.sum();
+	}
+
+	public long getCommits() {
+		return commits.sum();
+	}
+
+	public long getRollbacks() {
+		return rollbacks.sum();
+	}
+
+	public long getStatementsPrepared() {
+		return statementsPrepared.sum();
+	}
+
+	/**
+	 * @return the statements prepared with an SQL already prepared before on the same connection
+	 */
+	public long getRepeatedPrepares() {
+		return repeatedPrepares.sum();
+	}
+
+	/**
+	 * @return the executions of a statement which had already been executed
+	 */
+	public long getReExecutions() {
+		return reExecutions.sum();
+	}
+
+	public long getRowsFetched() {
+		return rowsFetched.sum();
+	}
+
+	public long getDriverNanos() {
+		return driverNanos.sum();
+	}
+
+	/**
+	 * @return the number of connections Hibernate obtained from the connection provider
+	 */
+	public long getAcquisitions() {
+		return acquisitions.sum();
+	}
+
+	/**
+	 * @return the number of connections Hibernate released to the connection provider
+	 */
+	public long getReleases() {
+		return releases.sum();
+	}
+
+	/**
+	 * @return the number of connections taken out of the pool, lower than the acquisitions when the connections
+	 * enlisted with a transaction are handed back (see {@value #AGGRESSIVE_RELEASE})
+	 */
+	public long getPoolCheckouts() {
+		return poolCheckouts.sum();
+	}
+
+	/**
+	 * @return the connections currently checked out of the pool, not reset with the counters
+	 */
+	public int getCheckedOutConnections() {
+		return checkedOut.get();
+	}
+
+	/**
+	 * @return the connections currently idle in the pool, {@code -1} when the pool cannot be inspected
+	 */
+	public int getIdleConnections() {
+		return provider == null ? -1 : provider.idleConnections();
+	}
+
+	/**
+	 * @return the time taken by the checkouts from the pool
+	 */
+	public LatencySamples getPoolWaits() {
+		return poolWaits;
+	}
+
+	/**
+	 * @return the time from the checkout of a connection from the pool to its return
+	 */
+	public LatencySamples getHoldTimes() {
+		return holdTimes;
+	}
+
+	/**
+	 * @return the number of executed batches keyed by batch size, smallest first
+	 */
+	public Map<Integer, Long> getBatchSizes() {
+		final Map<Integer, Long> sizes = new TreeMap<>();
+		batchSizes.forEach( (size, count) -> sizes.put( size, count.sum() ) );
+		return sizes;
+	}
+
+	/**
+	 * @return the elapsed time of the units of work on the connections
+	 */
+	public LatencySamples getTransactions() {
+		return transactions;
+	}
+
+	/**
+	 * @return the time spent in the driver by the units of work on the connections
+	 */
+	public LatencySamples getTransactionDriverTimes() {
+		return transactionDriverTimes;
+	}
+
+	/**
+	 * @return the share of the units of work time spent in the driver
+	 */
+	public double getDriverShare() {
+		final long total = transactions.getTotal();
+		return total == 0 ? 0 : (double) transactionDriverTimes.getTotal() / total;
+	}
+
+	/**
+	 * @return the totals recorded as performance metrics by metric name, e.g. {@code jdbc.roundTrips}
+	 */
+	public Map<String, Number> getMetrics() {
+		final Map<String, Number> metrics = new LinkedHashMap<>();
+		metrics.put( "jdbc.roundTrips", getRoundTrips() );
+		metrics.put( "jdbc.statementsPrepared", getStatementsPrepared() );
+		metrics.put( "jdbc.acquisitions", getAcquisitions() );
+		metrics.put( "jdbc.rowsFetched", getRowsFetched() );
+		metrics.put( "jdbc.driverMillis", getDriverNanos() / 1_000_000d );
+		metrics.put( "jdbc.driverShare", getDriverShare() );
+		return metrics;
+	}
+
+	public void logReport(String title) {
+		if ( getRoundTrips() == 0 && transactions.getCount() == 0 && getAcquisitions() == 0 ) {
+			return;
+		}
+		final LatencySamples transactions = this.transactions;
+		final LatencySamples driverTimes = this.transactionDriverTimes;
+		log.infof(
+				"JDBC profile of %s: %s%n  per unit of work: mean %.1f us, of which %.1f us in the driver and %.1f us "
+						+ "in Hibernate and the test; p50 %.1f us, p99 %.1f us, driver p99 %.1f us%n"
+						+ "  pool checkouts: wait mean %.1f us, p99 %.1f us; hold mean %.1f us, p99 %.1f us",
+				title,
+				this,
+				transactions.getMean() / 1_000d,
+				driverTimes.getMean() / 1_000d,
+				( transactions.getMean() - driverTimes.getMean() ) / 1_000d,
+				transactions.getPercentile( 50 ) / 1_000d,
+				transactions.getPercentile( 99 ) / 1_000d,
+				driverTimes.getPercentile( 99 ) / 1_000d,
+				poolWaits.getMean() / 1_000d,
+				poolWaits.getPercentile( 99 ) / 1_000d,
+				holdTimes.getMean() / 1_000d,
+				holdTimes.getPercentile( 99 ) / 1_000d
+		);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%d units of work, %d round trips (%d executions, %d commits, %d rollbacks), %d statements prepared "
+						+ "(%d with an SQL already prepared on the connection), %d re-executions, batch sizes %s, "
+						+ "%d rows fetched, %.3f ms in the driver (%.1f%% of the units of work), %d connection acquisitions "
+						+ "and %d releases (%d pool checkouts)",
+				transactions.getCount(),
+				getRoundTrips(),
+				getExecutions(),
+				getCommits(),
+				getRollbacks(),
+				getStatementsPrepared(),
+				getRepeatedPrepares(),
+				getReExecutions(),
+				getBatchSizes(),
+				getRowsFetched(),
+				getDriverNanos() / 1_000_000d,
+				getDriverShare() * 100,
+				getAcquisitions(),
+				getReleases(),
+				getPoolCheckouts()
+		);
+	}
+
+	private void roundTrip() {
+		roundTrips.increment();
+	}
+
+	private void batchExecuted(int size) {
+		batchSizes.computeIfAbsent( size, s -> new LongAdder() ).increment();
+	}
+
+	private void unitOfWorkCompleted(long nanos, long driverNanos) {
+		transactions.record( nanos );
+		transactionDriverTimes.record( driverNanos );
+		log.tracef( "Unit of work of %s us, %s us in the driver", nanos / 1_000, driverNanos / 1_000 );
+	}
+
+	private static Object delegate(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke( target, args );
+		}
+		catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static Object objectMethod(Object proxy, Method method, Object[] args) {
+		switch ( method.getName() ) {
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode( proxy );
+			default:
+				return "Profiled" + proxy.getClass().getInterfaces()[0].getSimpleName() + "@"
+						+ Integer.toHexString( System.identityHashCode( proxy ) );
+		}
+	}
+
+	private static boolean isWrapperMethod(Method method) {
+		return method.getName().equals( "unwrap" ) || method.getName().equals( "isWrapperFor" );
+	}
+
+	/**
+	 * The Hibernate built-in pool, handing out profiled connections.
+	 */
+	private static class ProfilingConnectionProvider extends DriverManagerConnectionProviderImpl {
+		private static final Field POOL;
+
+		static {
+			try {
+				POOL = DriverManagerConnectionProviderImpl.class.getDeclaredField( "pool" );
+				POOL.setAccessible( true );
+			}
+			catch (NoSuchFieldException e) {
+				throw new ExceptionInInitializerError( e );
+			}
+		}
+
+		private final JdbcProfiler profiler;
+		private final boolean aggressiveRelease;
+		private final ThreadLocal<Connection> enlisted = new ThreadLocal<>();
+		private final Set<ConnectionHandler> enlistedHandlers = ConcurrentHashMap.newKeySet();
+
+		private ProfilingConnectionProvider(JdbcProfiler profiler, boolean aggressiveRelease) {
+			this.profiler = profiler;
+			this.aggressiveRelease = aggressiveRelease;
+		}
+
+		@Override
+		public Connection getConnection() throws SQLException {
+			profiler.acquisitions.increment();
+			final Connection connection = enlisted.get();
+			if ( connection != null ) {
+				enlisted.remove();
+				enlistedHandlers.remove( (ConnectionHandler) Proxy.getInvocationHandler( connection ) );
+				return connection;
+			}
+			final long start = System.nanoTime();
+			final Connection target = super.getConnection();
+			profiler.poolWaits.record( System.nanoTime() - start );
+			profiler.poolCheckouts.increment();
+			profiler.checkedOut.incrementAndGet();
+			final ConnectionHandler handler = new ConnectionHandler( profiler, target );
+			return (Connection) Proxy.newProxyInstance(
+					JdbcProfiler.class.getClassLoader(),
+					new Class[] { Connection.class },
+					handler
+			);
+		}
+
+		@Override
+		public void closeConnection(Connection connection) throws SQLException {
+			if ( Proxy.isProxyClass( connection.getClass() )
+					&& Proxy.getInvocationHandler( connection ) instanceof ConnectionHandler ) {
+				profiler.releases.increment();
+				final ConnectionHandler handler = (ConnectionHandler) Proxy.getInvocationHandler( connection );
+				if ( aggressiveRelease && handler.inTransaction() && enlisted.get() == null ) {
+					enlisted.set( connection );
+					enlistedHandlers.add( handler );
+					return;
+				}
+				returnToPool( handler );
+			}
+			else {
+				super.closeConnection( connection );
+			}
+		}
+
+		private void returnToPool(ConnectionHandler handler) throws SQLException {
+			handler.released();
+			profiler.checkedOut.decrementAndGet();
+			profiler.holdTimes.record( System.nanoTime() - handler.checkedOut );
+			super.closeConnection( handler.target );
+		}
+
+		private int idleConnections() {
+			try {
+				final Object pool = POOL.get( this );
+				return pool == null ? 0 : (Integer) pool.getClass().getMethod( "size" ).invoke( pool );
+			}
+			catch (ReflectiveOperationException e) {
+				log.debugf( e, "Unable to inspect the connection pool" );
+				return -1;
+			}
+		}
+
+		@Override
+		public boolean supportsAggressiveRelease() {
+			return aggressiveRelease;
+		}
+
+		@Override
+		public void stop() {
+			// connections still enlisted with a thread, whose transaction never completed
+			for ( ConnectionHandler handler : enlistedHandlers ) {
+				try {
+					returnToPool( handler );
+				}
+				catch (SQLException e) {
+					log.debugf( e, "Unable to return an enlisted connection to the pool" );
+				}
+			}
+			enlistedHandlers.clear();
+			super.stop();
+		}
+	}
+
+	/**
+	 * The state of a connection, only used by one thread at a time.
+	 */
+	private static class ConnectionHandler implements InvocationHandler {
+		private final JdbcProfiler profiler;
+		private final Connection target;
+		private final Set<String> preparedSql = new HashSet<>();
+		private final long checkedOut = System.nanoTime();
+		private long unitOfWorkStart;
+		private long unitOfWorkDriverNanos;
+		private boolean unitOfWorkActive;
+		private boolean unitOfWorkUsedStatements;
+
+		private ConnectionHandler(JdbcProfiler profiler, Connection target) {
+			this.profiler = profiler;
+			this.target = target;
+			this.unitOfWorkStart = System.nanoTime();
+			this.unitOfWorkActive = true;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if ( method.getDeclaringClass() == Object.class ) {
+				return objectMethod( proxy, method, args );
+			}
+			if ( isWrapperMethod( method ) ) {
+				return delegate( target, method, args );
+			}
+			final Object result = timed( target, method, args );
+			switch ( method.getName() ) {
+				case "prepareStatement":
+				case "prepareCall":
+					profiler.statementsPrepared.increment();
+					if ( !preparedSql.add( (String) args[0] ) ) {
+						profiler.repeatedPrepares.increment();
+					}
+					return statement( proxy, method.getReturnType(), (Statement) result );
+				case "createStatement":
+					return statement( proxy, method.getReturnType(), (Statement) result );
+				case "commit":
+					profiler.commits.increment();
+					profiler.roundTrip();
+					completed();
+					return result;
+				case "rollback":
+					if ( args == null ) {
+						profiler.rollbacks.increment();
+						profiler.roundTrip();
+						completed();
+					}
+					return result;
+				default:
+					return result;
+			}
+		}
+
+		private Object timed(Object target, Method method, Object[] args) throws Throwable {
+			final long start = System.nanoTime();
+			if ( !unitOfWorkActive ) {
+				unitOfWorkStart = start;
+				unitOfWorkDriverNanos = 0;
+				unitOfWorkActive = true;
+				unitOfWorkUsedStatements = false;
+			}
+			try {
+				return delegate( target, method, args );
+			}
+			finally {
+				final long elapsed = System.nanoTime() - start;
+				profiler.driverNanos.add( elapsed );
+				unitOfWorkDriverNanos += elapsed;
+			}
+		}
+
+		private Object statement(Object connection, Class<?> type, Statement statement) {
+			unitOfWorkUsedStatements = true;
+			return Proxy.newProxyInstance(
+					JdbcProfiler.class.getClassLoader(),
+					new Class[] { type },
+					new StatementHandler( this, connection, statement )
+			);
+		}
+
+		private void completed() {
+			if ( unitOfWorkActive ) {
+				profiler.unitOfWorkCompleted( System.nanoTime() - unitOfWorkStart, unitOfWorkDriverNanos );
+				unitOfWorkActive = false;
+			}
+		}
+
+		/**
+		 * @return whether statements were used since the last commit or rollback
+		 */
+		private boolean inTransaction() {
+			return unitOfWorkActive && unitOfWorkUsedStatements;
+		}
+
+		/**
+		 * A unit of work without commit or rollback, e.g. reads in auto-commit mode, ends with the connection release;
+		 * the connection housekeeping calls Hibernate makes after a commit are not a unit of work.
+		 */
+		private void released() {
+			if ( unitOfWorkActive && unitOfWorkUsedStatements ) {
+				completed();
+			}
+		}
+	}
+
+	private static class StatementHandler implements InvocationHandler {
+		private final ConnectionHandler connection;
+		private final Object connectionProxy;
+		private final Statement target;
+		private boolean executed;
+		private int pendingBatch;
+
+		private StatementHandler(ConnectionHandler connection, Object connectionProxy, Statement target) {
+			this.connection = connection;
+			this.connectionProxy = connectionProxy;
+			this.target = target;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if ( method.getDeclaringClass() == Object.class ) {
+				return objectMethod( proxy, method, args );
+			}
+			if ( isWrapperMethod( method ) ) {
+				return delegate( target, method, args );
+			}
+			if ( method.getName().equals( "getConnection" ) ) {
+				return connectionProxy;
+			}
+			final Object result = connection.timed( target, method, args );
+			final JdbcProfiler profiler = connection.profiler;
+			final String name = method.getName();
+			if ( name.startsWith( "execute" ) ) {
+				if ( name.endsWith( "Batch" ) ) {
+					profiler.batchExecuted( pendingBatch );
+					pendingBatch = 0;
+				}
+				profiler.executions.increment();
+				profiler.roundTrip();
+				if ( executed ) {
+					profiler.reExecutions.increment();
+				}
+				executed = true;
+			}
+			else if ( name.equals( "addBatch" ) ) {
+				pendingBatch++;
+			}
+			else if ( name.equals( "clearBatch" ) ) {
+				pendingBatch = 0;
+			}
+			if ( result instanceof ResultSet ) {
+				return Proxy.newProxyInstance(
+						JdbcProfiler.class.getClassLoader(),
+						new Class[] { ResultSet.class },
+						new ResultSetHandler( connection, proxy, (ResultSet) result )
+				);
+			}
+			return result;
+		}
+	}
+
+	private static class ResultSetHandler implements InvocationHandler {
+		private final ConnectionHandler connection;
+		private final Object statementProxy;
+		private final ResultSet target;
+
+		private ResultSetHandler(ConnectionHandler connection, Object statementProxy, ResultSet target) {
+			this.connection = connection;
+			this.statementProxy = statementProxy;
+			this.target = target;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if ( method.getDeclaringClass() == Object.class ) {
+				return objectMethod( proxy, method, args );
+			}
+			if ( isWrapperMethod( method ) ) {
+				return delegate( target, method, args );
+			}
+			if ( method.getName().equals( "getStatement" ) ) {
+				return statementProxy;
+			}
+			final Object result = connection.timed( target, method, args );
+			if ( method.getName().equals( "next" ) && Boolean.TRUE.equals( result ) ) {
+				connection.profiler.rowsFetched.increment();
+			}
+			return result;
+		}
+	}
+}
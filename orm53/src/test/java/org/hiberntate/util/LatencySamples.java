@@ -0,0 +1,95 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Thread safe accumulator of latencies, in nanoseconds, keeping the exact count, total and maximum and a bounded
+ * uniform sample (reservoir sampling) of the recorded values to estimate percentiles.
+ */
+public class LatencySamples {
+	private static final int DEFAULT_CAPACITY = 10_000;
+
+	private final long[] samples;
+	private long count;
+	private long total;
+	private long max;
+
+	public LatencySamples() {
+		this( DEFAULT_CAPACITY );
+	}
+
+	public LatencySamples(int capacity) {
+		this.samples = new long[capacity];
+	}
+
+	public synchronized void record(long nanos) {
+		if ( count < samples.length ) {
+			samples[(int) count] = nanos;
+		}
+		else {
+			final long slot = ThreadLocalRandom.current().nextLong( count + 1 );
+			if ( slot < samples.length ) {
+				samples[(int) slot] = nanos;
+			}
+		}
+		count++;
+		total += nanos;
+		max = Math.max( max, nanos );
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	public synchronized long getTotal() {
+		return total;
+	}
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+	public synchronized double getMean() {
+		return count == 0 ? 0 : (double) total / count;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 */
+	public synchronized long getPercentile(double percentile) {
+		if ( count == 0 ) {
+			return 0;
+		}
+		final long[] sorted = Arrays.copyOf( samples, (int) Math.min( count, samples.length ) );
+		Arrays.sort( sorted );
+		final int index = (int) Math.ceil( percentile / 100d * sorted.length ) - 1;
+		return sorted[Math.max( 0, Math.min( index, sorted.length - 1 ) )];
+	}
+
+	/**
+	 * @return the standard deviation of the sampled values
+	 */
+	public synchronized double getStandardDeviation() {
+		final int size = (int) Math.min( count, samples.length );
+		if ( size < 2 ) {
+			return 0;
+		}
+		double mean = 0;
+		for ( int i = 0; i < size; i++ ) {
+			mean += samples[i];
+		}
+		mean /= size;
+		double squares = 0;
+		for ( int i = 0; i < size; i++ ) {
+			squares += ( samples[i] - mean ) * ( samples[i] - mean );
+		}
+		return Math.sqrt( squares / ( size - 1 ) );
+	}
+}
@@ -0,0 +1,543 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import javax.persistence.Entity;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+import org.hibernate.Version;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.internal.util.config.ConfigurationHelper;
+
+import org.hiberntate.util.jfr.FlightRecordingRule;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Standalone load generator: runs one of the built-in {@link Scenario workloads} against the EntityManagerFactory
+ * of the harness, bootstrapped as in WildFly by {@link WildFlyBootstrap} with the {@code hibernate.*} and
+ * {@code harness.*} system properties, on a number of threads for a duration, outside of JUnit and Gradle. It is the
+ * main class of the fat jar built by the {@code loadGeneratorJar} task of each module, e.g.
+ * <pre>
+ * java -Dhibernate.connection.url=jdbc:h2:tcp://db/perf -Dharness.jdbc_profiling=true \
+ *     -jar orm53/target/libs/orm53-load-generator.jar --workload mixed --threads 32 --duration PT30M \
+ *     --dataset 100000 --report mixed.json
+ * </pre>
+ * The dataset is inserted with a stateless session before the run. The transactions of the warm-up are executed but
+ * not measured; every transaction after it is timed, including the failed ones, which are counted by exception class.
+ * The report is a JSON file with the throughput, the latency percentiles in microseconds, the failures and the
+ * metrics the harness records for a test (GC pressure, JDBC profile, query plan cache), prefixed with the workload
+ * name instead of the test method.
+ */
+public class LoadGenerator {
+	private static final Logger log = Logger.getLogger( LoadGenerator.class );
+
+	private static final int CATEGORIES = 100;
+	private static final int PAGE_SIZE = 20;
+
+	public enum Scenario {
+		READ( "finds a product by id" ) {
+			@Override
+			void execute(EntityManager entityManager, LoadGenerator generator, ThreadLocalRandom random) {
+				entityManager.find( Product.class, random.nextInt( generator.dataset ) );
+			}
+		},
+		READ_WRITE( "finds a product by id and updates its stock one time out of five" ) {
+			@Override
+			void execute(EntityManager entityManager, LoadGenerator generator, ThreadLocalRandom random) {
+				final Product product = entityManager.find( Product.class, random.nextInt( generator.dataset ) );
+				if ( random.nextInt( 5 ) == 0 ) {
+					product.stock = random.nextInt( 1_000 );
+				}
+			}
+		},
+		QUERY( "queries the cheapest products of a category" ) {
+			@Override
+			void execute(EntityManager entityManager, LoadGenerator generator, ThreadLocalRandom random) {
+				entityManager.createQuery(
+						"select p from Product p where p.category = :category order by p.price",
+						Product.class
+				)
+						.setParameter( "category", random.nextInt( CATEGORIES ) )
+						.setMaxResults( PAGE_SIZE )
+						.getResultList();
+			}
+		},
+		INSERT( "inserts a product" ) {
+			@Override
+			void execute(EntityManager entityManager, LoadGenerator generator, ThreadLocalRandom random) {
+				entityManager.persist( new Product( generator.nextId.getAndIncrement(), random ) );
+			}
+		},
+		MIXED( "60% reads, 20% queries, 15% updates and 5% inserts" ) {
+			@Override
+			void execute(EntityManager entityManager, LoadGenerator generator, ThreadLocalRandom random) {
+				final int dice = random.nextInt( 100 );
+				if ( dice < 60 ) {
+					READ.execute( entityManager, generator, random );
+				}
+				else if ( dice < 80 ) {
+					QUERY.execute( entityManager, generator, random );
+				}
+				else if ( dice < 95 ) {
+					entityManager.find( Product.class, random.nextInt( generator.dataset ) ).stock = random.nextInt( 1_000 );
+				}
+				else {
+					INSERT.execute( entityManager, generator, random );
+				}
+			}
+		};
+
+		private final String description;
+
+		Scenario(String description) {
+			this.description = description;
+		}
+
+		abstract void execute(EntityManager entityManager, LoadGenerator generator, ThreadLocalRandom random);
+
+		public String getName() {
+			return name().toLowerCase( Locale.ROOT ).replace( '_', '-' );
+		}
+
+		public static Scenario fromName(String name) {
+			for ( Scenario scenario : values() ) {
+				if ( scenario.getName().equalsIgnoreCase( name ) || scenario.name().equalsIgnoreCase( name ) ) {
+					return scenario;
+				}
+			}
+			throw new IllegalArgumentException( "Unknown workload " + name );
+		}
+	}
+
+	private Scenario scenario = Scenario.MIXED;
+	private int threads = 8;
+	private Duration duration = Duration.ofMinutes( 1 );
+	private Duration warmUp = Duration.ofSeconds( 10 );
+	private Duration progressInterval = Duration.ofSeconds( 10 );
+	private int dataset = 10_000;
+	private Path reportFile = Paths.get( "load-report.json" );
+
+	private final AtomicInteger nextId = new AtomicInteger();
+	private EntityManagerFactory entityManagerFactory;
+
+	public static void main(String[] args) {
+		final LoadGenerator generator = new LoadGenerator();
+		try {
+			generator.parse( args );
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println( e.getMessage() );
+			System.err.println( usage() );
+			System.exit( 2 );
+		}
+		final Report report = generator.run();
+		System.out.println( report );
+		System.exit( report.transactions > 0 ? 0 : 1 );
+	}
+
+	public static String usage() {
+		final StringBuilder usage = new StringBuilder( "Options:" )
+				.append( "\n  --workload <name>    the workload to run, default mixed:" );
+		for ( Scenario scenario : Scenario.values() ) {
+			usage.append( String.format( "%n    %-19s%s", scenario.getName(), scenario.description ) );
+		}
+		return usage
+				.append( "\n  --threads <n>        the number of threads running transactions, default 8" )
+				.append( "\n  --duration <iso>     the measured duration as an ISO-8601 duration, default PT1M" )
+				.append( "\n  --warmup <iso>       the duration of the warm-up before it, default PT10S" )
+				.append( "\n  --dataset <n>        the number of products inserted before the run, default 10000" )
+				.append( "\n  --report <file>      the JSON report file, default load-report.json" )
+				.append( "\n  --progress <iso>     the interval between two progress log lines, default PT10S" )
+				.append( "\nThe EntityManagerFactory is configured with the hibernate.* and harness.* system properties." )
+				.toString();
+	}
+
+	/**
+	 * Applies the command line options, see {@link #usage()}.
+	 *
+	 * @throws IllegalArgumentException on an unknown option or an invalid value
+	 */
+	public LoadGenerator parse(String... args) {
+		for ( int i = 0; i < args.length; i++ ) {
+			final String option = args[i];
+			if ( "--help".equals( option ) || "-h".equals( option ) ) {
+				throw new IllegalArgumentException( "Standalone load generator of the Hibernate " + Version.getVersionString() + " harness" );
+			}
+			if ( i + 1 == args.length ) {
+				throw new IllegalArgumentException( "Missing value of " + option );
+			}
+			final String value = args[++i];
+			try {
+				switch ( option ) {
+					case "--workload":
+						scenario = Scenario.fromName( value );
+						break;
+					case "--threads":
+						threads = positive( option, Integer.parseInt( value ) );
+						break;
+					case "--duration":
+						duration = Duration.parse( value );
+						break;
+					case "--warmup":
+						warmUp = Duration.parse( value );
+						break;
+					case "--dataset":
+						dataset = positive( option, Integer.parseInt( value ) );
+						break;
+					case "--report":
+						reportFile = Paths.get( value );
+						break;
+					case "--progress":
+						progressInterval = Duration.parse( value );
+						break;
+					default:
+						throw new IllegalArgumentException( "Unknown option " + option );
+				}
+			}
+			catch (NumberFormatException | DateTimeParseException e) {
+				throw new IllegalArgumentException( "Invalid value of " + option + ": " + value, e );
+			}
+		}
+		return this;
+	}
+
+	private static int positive(String option, int value) {
+		if ( value < 1 ) {
+			throw new IllegalArgumentException( option + " must be positive" );
+		}
+		return value;
+	}
+
+	/**
+	 * Bootstraps the EntityManagerFactory, inserts the dataset, runs the workload and writes the report. The GC
+	 * pressure, JDBC profile and query plan cache metrics cover the run, warm-up included, as they cover a test of
+	 * the harness.
+	 */
+	public Report run() {
+		final Map<Object, Object> settings = WildFlyBootstrap.createSettings(
+				new Class[] { Product.class },
+				Collections.emptyMap(),
+				Collections.emptyMap(),
+				new String[0]
+		);
+		WildFlyBootstrap.applyDatabaseSettings( settings, LoadGenerator.class, WildFlyBootstrap.getDialect(), true );
+		WildFlyBootstrap.applyEnhancementSettings( settings, LoadGenerator.class.getClassLoader() );
+		final JdbcProfiler jdbcProfiler = JdbcProfiler.applySettings( settings );
+		final List<Integrator> integrators = new ArrayList<>();
+		FlightRecordingRule.applySettings( settings, integrators );
+		WildFlyBootstrap.applyIntegrators( settings, integrators );
+
+		final Report report;
+		entityManagerFactory = WildFlyBootstrap.build( LoadGenerator.class.getSimpleName(), settings );
+		try {
+			insertDataset();
+			final QueryPlanCacheStatistics queryPlanCacheStatistics =
+					ConfigurationHelper.getBoolean( QueryPlanCacheStatistics.ENABLED, settings, false )
+							? QueryPlanCacheStatistics.install( entityManagerFactory )
+							: null;
+			if ( jdbcProfiler != null ) {
+				jdbcProfiler.reset();
+			}
+			final GcPressure.Measurement gcPressure = ConfigurationHelper.getBoolean( GcPressure.ENABLED, settings, true )
+					? GcPressure.start()
+					: null;
+			report = generateLoad();
+			if ( gcPressure != null ) {
+				report.addMetrics( gcPressure.stop().getMetrics() );
+			}
+			if ( queryPlanCacheStatistics != null ) {
+				queryPlanCacheStatistics.logReport( scenario.getName(), 10 );
+				report.addMetrics( queryPlanCacheStatistics.getMetrics() );
+			}
+			if ( jdbcProfiler != null ) {
+				jdbcProfiler.logReport( scenario.getName() );
+				report.addMetrics( jdbcProfiler.getMetrics() );
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException( "Interrupted while generating load", e );
+		}
+		finally {
+			entityManagerFactory.close();
+			entityManagerFactory = null;
+		}
+		try {
+			if ( reportFile.toAbsolutePath().getParent() != null ) {
+				Files.createDirectories( reportFile.toAbsolutePath().getParent() );
+			}
+			Files.write( reportFile, report.toJson().getBytes( StandardCharsets.UTF_8 ) );
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException( "Unable to write the report to " + reportFile, e );
+		}
+		log.infof( "Load report written to %s", reportFile.toAbsolutePath() );
+		return report;
+	}
+
+	private void insertDataset() {
+		final ThroughputReport inserted = TransactionUtil.inStatelessSession(
+				entityManagerFactory,
+				IntStream.range( 0, dataset ).iterator(),
+				(session, id) -> session.insert( new Product( id, ThreadLocalRandom.current() ) )
+		);
+		nextId.set( dataset );
+		log.infof( "Inserted a dataset of %d products: %s", dataset, inserted );
+	}
+
+	private Report generateLoad() throws InterruptedException {
+		final Report report = new Report( scenario, threads, dataset );
+		final long start = System.nanoTime();
+		final long measureStart = start + warmUp.toNanos();
+		final long end = measureStart + duration.toNanos();
+		log.infof(
+				"Running the %s workload on %d threads, %s of warm-up and %s measured, Hibernate %s",
+				scenario.getName(),
+				threads,
+				warmUp,
+				duration,
+				Version.getVersionString()
+		);
+		try ( TransactionExecutor executor = TransactionExecutor.platformThreads( threads ) ) {
+			final List<CompletableFuture<Void>> workers = new ArrayList<>();
+			for ( int i = 0; i < threads; i++ ) {
+				workers.add( executor.submit( () -> {
+					final ThreadLocalRandom random = ThreadLocalRandom.current();
+					for ( long transactionStart = System.nanoTime(); transactionStart < end; transactionStart = System.nanoTime() ) {
+						try {
+							TransactionUtil.inTransaction(
+									entityManagerFactory,
+									entityManager -> scenario.execute( entityManager, this, random )
+							);
+						}
+						catch (RuntimeException e) {
+							if ( transactionStart >= measureStart ) {
+								report.failures.computeIfAbsent( e.getClass().getName(), name -> new LongAdder() ).increment();
+							}
+						}
+						if ( transactionStart >= measureStart ) {
+							report.latencies.record( System.nanoTime() - transactionStart );
+						}
+						else {
+							report.warmUpTransactions.increment();
+						}
+					}
+					return null;
+				} ) );
+			}
+			final CompletableFuture<Void> done = CompletableFuture.allOf( workers.toArray( new CompletableFuture[0] ) );
+			long previous = 0;
+			while ( !done.isDone() ) {
+				try {
+					done.get( progressInterval.toNanos(), TimeUnit.NANOSECONDS );
+				}
+				catch (TimeoutException e) {
+					final long now = System.nanoTime();
+					if ( now < measureStart ) {
+						log.infof( "Warming up, %d transactions", report.warmUpTransactions.sum() );
+					}
+					else {
+						final long transactions = report.latencies.getCount();
+						log.infof(
+								"%d s: %.1f transactions/s, %d transactions, %d failures",
+								Duration.ofNanos( now - measureStart ).getSeconds(),
+								( transactions - previous ) * 1_000_000_000d / progressInterval.toNanos(),
+								transactions,
+								report.failureCount()
+						);
+						previous = transactions;
+					}
+				}
+				catch (ExecutionException e) {
+					throw new IllegalStateException( "Load generator thread failed", e.getCause() );
+				}
+			}
+		}
+		report.wallNanos = Math.max( System.nanoTime() - measureStart, 1 );
+		report.transactions = report.latencies.getCount();
+		log.info( report );
+		return report;
+	}
+
+	public static class Report {
+		private final Scenario scenario;
+		private final int threads;
+		private final int dataset;
+		private final LatencySamples latencies = new LatencySamples( 100_000 );
+		private final LongAdder warmUpTransactions = new LongAdder();
+		private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+		private final Map<String, Number> metrics = new TreeMap<>();
+		private long transactions;
+		private long wallNanos;
+
+		private Report(Scenario scenario, int threads, int dataset) {
+			this.scenario = scenario;
+			this.threads = threads;
+			this.dataset = dataset;
+		}
+
+		public Scenario getScenario() {
+			return scenario;
+		}
+
+		/**
+		 * @return the number of measured transactions, including the failed ones
+		 */
+		public long getTransactions() {
+			return transactions;
+		}
+
+		public double getTransactionsPerSecond() {
+			return transactions * 1_000_000_000d / wallNanos;
+		}
+
+		public LatencySamples getLatencies() {
+			return latencies;
+		}
+
+		/**
+		 * @return the number of failed measured transactions per exception class
+		 */
+		public Map<String, Long> getFailures() {
+			final Map<String, Long> counts = new TreeMap<>();
+			failures.forEach( (type, count) -> counts.put( type, count.sum() ) );
+			return counts;
+		}
+
+		public long failureCount() {
+			return failures.values().stream().mapToLong( LongAdder::sum ).sum();
+		}
+
+		/**
+		 * @return the metrics recorded by the harness, e.g. {@code mixed.gc.youngCollections}
+		 */
+		public Map<String, Number> getMetrics() {
+			return metrics;
+		}
+
+		private void addMetrics(Map<String, Number> metrics) {
+			metrics.forEach( (name, value) -> this.metrics.put( scenario.getName() + "." + name, value ) );
+		}
+
+		String toJson() {
+			final StringBuilder json = new StringBuilder( "{\n" );
+			json.append( "  \"workload\": \"" ).append( scenario.getName() ).append( "\",\n" );
+			json.append( "  \"hibernate\": \"" ).append( Version.getVersionString() ).append( "\",\n" );
+			json.append( "  \"threads\": " ).append( threads ).append( ",\n" );
+			json.append( "  \"dataset\": " ).append( dataset ).append( ",\n" );
+			json.append( "  \"durationSeconds\": " ).append( number( wallNanos / 1_000_000_000d ) ).append( ",\n" );
+			json.append( "  \"transactions\": " ).append( transactions ).append( ",\n" );
+			json.append( "  \"transactionsPerSecond\": " ).append( number( getTransactionsPerSecond() ) ).append( ",\n" );
+			json.append( "  \"latencyMicros\": {" )
+					.append( " \"mean\": " ).append( number( latencies.getMean() / 1_000d ) )
+					.append( ", \"p50\": " ).append( number( latencies.getPercentile( 50 ) / 1_000d ) )
+					.append( ", \"p90\": " ).append( number( latencies.getPercentile( 90 ) / 1_000d ) )
+					.append( ", \"p99\": " ).append( number( latencies.getPercentile( 99 ) / 1_000d ) )
+					.append( ", \"max\": " ).append( number( latencies.getMax() / 1_000d ) )
+					.append( " },\n" );
+			json.append( "  \"failures\": {" );
+			appendEntries( json, getFailures() );
+			json.append( "},\n  \"metrics\": {" );
+			appendEntries( json, metrics );
+			return json.append( "}\n}\n" ).toString();
+		}
+
+		private static void appendEntries(StringBuilder json, Map<String, ? extends Number> entries) {
+			String separator = "\n    ";
+			for ( Map.Entry<String, ? extends Number> entry : entries.entrySet() ) {
+				json.append( separator ).append( '"' ).append( entry.getKey().replace( "\\", "\\\\" ).replace( "\"", "\\\"" ) )
+						.append( "\": " ).append( number( entry.getValue().doubleValue() ) );
+				separator = ",\n    ";
+			}
+			if ( !entries.isEmpty() ) {
+				json.append( "\n  " );
+			}
+		}
+
+		private static String number(double value) {
+			if ( Double.isNaN( value ) || Double.isInfinite( value ) ) {
+				return "null";
+			}
+			return value == Math.rint( value ) && Math.abs( value ) < 1e15
+					? String.valueOf( (long) value )
+					: String.format( Locale.ROOT, "%.3f", value );
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%s workload on %d threads: %d transactions in %.1f s, %.1f transactions/s, latency mean %.1f us, "
+							+ "p50 %.1f us, p99 %.1f us, max %.1f us, %d failures %s",
+					scenario.getName(),
+					threads,
+					transactions,
+					wallNanos / 1_000_000_000d,
+					getTransactionsPerSecond(),
+					latencies.getMean() / 1_000d,
+					latencies.getPercentile( 50 ) / 1_000d,
+					latencies.getPercentile( 99 ) / 1_000d,
+					latencies.getMax() / 1_000d,
+					failureCount(),
+					getFailures()
+			);
+		}
+	}
+
+	@Entity(name = "Product")
+	@Table(indexes = @Index(columnList = "category, price"))
+	public static class Product {
+		@Id
+		Integer id;
+
+		String name;
+
+		int category;
+
+		int price;
+
+		int stock;
+
+		Product() {
+		}
+
+		Product(Integer id, ThreadLocalRandom random) {
+			this.id = id;
+			this.name = "product " + id;
+			this.category = random.nextInt( CATEGORIES );
+			this.price = random.nextInt( 10_000 );
+			this.stock = random.nextInt( 1_000 );
+		}
+	}
+}
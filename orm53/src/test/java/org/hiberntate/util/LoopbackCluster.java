@@ -0,0 +1,297 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.internal.util.config.ConfigurationHelper;
+
+import org.jboss.logging.Logger;
+
+/**
+ * An in-JVM stand-in for the JGroups channel of a clustered second level cache: the {@link ClusteredRegionFactory}
+ * of each EntityManagerFactory joins the cluster named by the {@value #NAME} setting as a node, and sends the
+ * invalidations or replicated entries of its regions to the same regions of the other nodes. Each node receives its
+ * messages in order on its own delivery thread, {@value #LATENCY} microseconds after they were sent, standing for the
+ * network round trip; a sender configured with {@value #SYNC} waits until every other node applied the message, as
+ * with a synchronous Infinispan cache. The values are handed over by reference, without the serialization a network
+ * transport would add.
+ * <p/>
+ * The cluster records the messages sent and delivered and the delivery latencies, from the send to the message
+ * being applied; it goes away with its last node.
+ */
+public class LoopbackCluster {
+	private static final Logger log = Logger.getLogger( LoopbackCluster.class );
+
+	/**
+	 * The name of the cluster to join, {@code harness} by default.
+	 */
+	public static final String NAME = "harness.cache.cluster";
+	/**
+	 * The name of the node in the cluster, {@code node-0} by default.
+	 */
+	public static final String NODE = "harness.cache.cluster.node";
+	/**
+	 * One of {@link Mode}, {@code INVALIDATION} by default.
+	 */
+	public static final String MODE = "harness.cache.cluster.mode";
+	/**
+	 * Whether a node waits until the other nodes applied its messages, {@code true} by default.
+	 */
+	public static final String SYNC = "harness.cache.cluster.sync";
+	/**
+	 * The delay between sending a message and its delivery, in microseconds, {@code 0} by default.
+	 */
+	public static final String LATENCY = "harness.cache.cluster.latency_micros";
+
+	public enum Mode {
+		/**
+		 * The writes of a node invalidate the entries of the other nodes, which load the new state from the database.
+		 */
+		INVALIDATION,
+		/**
+		 * The writes and loads of a node are copied to the other nodes.
+		 */
+		REPLICATION;
+
+		public static Mode fromSetting(Object value) {
+			return value == null ? INVALIDATION : valueOf( value.toString().trim().toUpperCase( Locale.ROOT ) );
+		}
+	}
+
+	private static final Map<String, LoopbackCluster> clusters = new ConcurrentHashMap<>();
+
+	private final String name;
+	private final List<Node> nodes = new CopyOnWriteArrayList<>();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final LatencySamples deliveryLatencies = new LatencySamples();
+
+	private LoopbackCluster(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return the cluster of the given name, {@code null} when no node joined it
+	 */
+	public static LoopbackCluster get(String name) {
+		return clusters.get( name );
+	}
+
+	/**
+	 * Joins the cluster named in the settings.
+	 */
+	public static Node join(Map settings) {
+		final String clusterName = ConfigurationHelper.getString( NAME, settings, "harness" );
+		final Node node = new Node(
+				ConfigurationHelper.getString( NODE, settings, "node-0" ),
+				Mode.fromSetting( settings.get( MODE ) ),
+				ConfigurationHelper.getBoolean( SYNC, settings, true ),
+				TimeUnit.MICROSECONDS.toNanos( ConfigurationHelper.getLong( LATENCY, settings, 0 ) )
+		);
+		synchronized ( clusters ) {
+			node.cluster = clusters.computeIfAbsent( clusterName, LoopbackCluster::new );
+			node.cluster.nodes.add( node );
+		}
+		log.debugf( "%s joined cluster %s as %s", node.name, clusterName, node.mode );
+		return node;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public List<Node> getNodes() {
+		return new ArrayList<>( nodes );
+	}
+
+	public long getMessagesSent() {
+		return sent.get();
+	}
+
+	public long getMessagesDelivered() {
+		return delivered.get();
+	}
+
+	/**
+	 * @return the time between sending the messages and their being applied by each other node
+	 */
+	public LatencySamples getDeliveryLatencies() {
+		return deliveryLatencies;
+	}
+
+	/**
+	 * Waits until every message sent so far was applied.
+	 */
+	public void awaitDelivery() {
+		for ( Node node : nodes ) {
+			node.pending().join();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%d nodes, %d messages sent, %d delivered, delivery mean %.1f us, p99 %.1f us",
+				nodes.size(),
+				sent.get(),
+				delivered.get(),
+				deliveryLatencies.getMean() / 1_000d,
+				deliveryLatencies.getPercentile( 99 ) / 1_000d
+		);
+	}
+
+	/**
+	 * A member of the cluster, sending the messages of the regions of one EntityManagerFactory and applying the
+	 * messages of the other members to them.
+	 */
+	public static class Node {
+		private final String name;
+		private final Mode mode;
+		private final boolean sync;
+		private final long latencyNanos;
+		private final Map<String, ClusteredStore> stores = new ConcurrentHashMap<>();
+		private final ScheduledExecutorService delivery;
+		private LoopbackCluster cluster;
+
+		private Node(String name, Mode mode, boolean sync, long latencyNanos) {
+			this.name = name;
+			this.mode = mode;
+			this.sync = sync;
+			this.latencyNanos = latencyNanos;
+			this.delivery = Executors.newSingleThreadScheduledExecutor( runnable -> {
+				final Thread thread = new Thread( runnable, "cluster-" + name );
+				thread.setDaemon( true );
+				return thread;
+			} );
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Mode getMode() {
+			return mode;
+		}
+
+		public LoopbackCluster getCluster() {
+			return cluster;
+		}
+
+		/**
+		 * @return the store of the region of the given name on this node, created on first use
+		 */
+		public ClusteredStore store(String regionName) {
+			return stores.computeIfAbsent( regionName, region -> new ClusteredStore( region, this ) );
+		}
+
+		/**
+		 * @return the stores of the regions of this node, by region name
+		 */
+		public Map<String, ClusteredStore> getStores() {
+			return Collections.unmodifiableMap( stores );
+		}
+
+		/**
+		 * Sends a message to the same region of every other node, and waits until they applied it when synchronous.
+		 */
+		void send(String regionName, ClusteredStore.Message message) {
+			final List<CompletableFuture<Void>> deliveries = new ArrayList<>();
+			final long sentAt = System.nanoTime();
+			for ( Node node : cluster.nodes ) {
+				if ( node != this ) {
+					cluster.sent.incrementAndGet();
+					deliveries.add( node.receive( regionName, message, sentAt, latencyNanos ) );
+				}
+			}
+			if ( sync && !deliveries.isEmpty() ) {
+				CompletableFuture.allOf( deliveries.toArray( new CompletableFuture[0] ) ).join();
+			}
+		}
+
+		private CompletableFuture<Void> receive(String regionName, ClusteredStore.Message message, long sentAt, long delayNanos) {
+			final CompletableFuture<Void> applied = new CompletableFuture<>();
+			try {
+				delivery.schedule(
+						() -> {
+							try {
+								store( regionName ).apply( message );
+								cluster.delivered.incrementAndGet();
+								cluster.deliveryLatencies.record( System.nanoTime() - sentAt );
+								applied.complete( null );
+							}
+							catch (RuntimeException e) {
+								applied.completeExceptionally( e );
+							}
+						},
+						delayNanos,
+						TimeUnit.NANOSECONDS
+				);
+			}
+			catch (RejectedExecutionException e) {
+				// the node left in the meantime
+				applied.complete( null );
+			}
+			return applied;
+		}
+
+		/**
+		 * @return completes once the messages this node received so far were applied
+		 */
+		private CompletableFuture<Void> pending() {
+			final CompletableFuture<Void> marker = new CompletableFuture<>();
+			try {
+				// a message received later is scheduled after the ones already waiting
+				delivery.schedule( () -> marker.complete( null ), latencyNanos(), TimeUnit.NANOSECONDS );
+			}
+			catch (RejectedExecutionException e) {
+				marker.complete( null );
+			}
+			return marker;
+		}
+
+		private long latencyNanos() {
+			long max = 0;
+			for ( Node node : cluster.nodes ) {
+				max = Math.max( max, node.latencyNanos );
+			}
+			return max;
+		}
+
+		/**
+		 * Leaves the cluster, dropping the messages not delivered to this node yet.
+		 */
+		public void leave() {
+			delivery.shutdownNow();
+			synchronized ( clusters ) {
+				cluster.nodes.remove( this );
+				if ( cluster.nodes.isEmpty() ) {
+					clusters.remove( cluster.name, cluster );
+					log.debugf( "Cluster %s: %s", cluster.name, cluster );
+				}
+			}
+			stores.clear();
+		}
+
+		@Override
+		public String toString() {
+			return name + " (" + mode + ( sync ? ", sync" : ", async" ) + ")";
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hibernate.boot.spi.SessionFactoryOptions;
+import org.hibernate.cache.cfg.spi.DomainDataRegionBuildingContext;
+import org.hibernate.cache.cfg.spi.DomainDataRegionConfig;
+import org.hibernate.cache.spi.DomainDataRegion;
+import org.hibernate.cache.spi.support.DomainDataRegionTemplate;
+import org.hibernate.cache.spi.support.DomainDataStorageAccess;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.testing.cache.CachingRegionFactory;
+
+/**
+ * Region factory keeping the entity, collection and natural id regions in {@link OffHeapStore}s, one per region,
+ * configured by the {@code harness.cache.offheap.*} settings. The read-only, nonstrict-read-write and read-write
+ * access strategies are the ones of Hibernate, working on the off-heap storage; the query results and update
+ * timestamps regions stay on the heap, as in {@link CachingRegionFactory}.
+ * <p/>
+ * e.g. {@code options.put( AvailableSettings.CACHE_REGION_FACTORY, OffHeapRegionFactory.class.getName() )}
+ */
+public class OffHeapRegionFactory extends CachingRegionFactory {
+	private final Map<String, OffHeapStore> stores = new ConcurrentHashMap<>();
+	private Map settings = Collections.emptyMap();
+
+	public OffHeapRegionFactory() {
+	}
+
+	public OffHeapRegionFactory(Properties properties) {
+		super( properties );
+	}
+
+	@Override
+	protected void prepareForUse(SessionFactoryOptions settings, Map configValues) {
+		super.prepareForUse( settings, configValues );
+		this.settings = configValues;
+	}
+
+	@Override
+	public DomainDataRegion buildDomainDataRegion(
+			DomainDataRegionConfig regionConfig,
+			DomainDataRegionBuildingContext buildingContext) {
+		verifyStarted();
+		final OffHeapStore store = stores.computeIfAbsent(
+				regionConfig.getRegionName(),
+				name -> OffHeapStore.create( name, settings )
+		);
+		return new DomainDataRegionTemplate(
+				regionConfig,
+				this,
+				new OffHeapStorageAccess( store ),
+				getImplicitCacheKeysFactory(),
+				buildingContext
+		);
+	}
+
+	/**
+	 * @return the stores of the regions, by region name
+	 */
+	public Map<String, OffHeapStore> getStores() {
+		return Collections.unmodifiableMap( stores );
+	}
+
+	@Override
+	protected void releaseFromUse() {
+		for ( OffHeapStore store : stores.values() ) {
+			store.close();
+		}
+		stores.clear();
+		super.releaseFromUse();
+	}
+
+	private static class OffHeapStorageAccess implements DomainDataStorageAccess {
+		private final OffHeapStore store;
+
+		private OffHeapStorageAccess(OffHeapStore store) {
+			this.store = store;
+		}
+
+		@Override
+		public Object getFromCache(Object key, SharedSessionContractImplementor session) {
+			return store.get( key );
+		}
+
+		@Override
+		public void putIntoCache(Object key, Object value, SharedSessionContractImplementor session) {
+			store.put( key, value );
+		}
+
+		@Override
+		public void removeFromCache(Object key, SharedSessionContractImplementor session) {
+			store.remove( key );
+		}
+
+		@Override
+		public void clearCache(SharedSessionContractImplementor session) {
+			store.clear();
+		}
+
+		@Override
+		public boolean contains(Object key) {
+			return store.containsKey( key );
+		}
+
+		@Override
+		public void evictData() {
+			store.clear();
+		}
+
+		@Override
+		public void evictData(Object key) {
+			store.remove( key );
+		}
+
+		@Override
+		public void release() {
+			store.close();
+		}
+	}
+}
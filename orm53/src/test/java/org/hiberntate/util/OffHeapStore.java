@@ -0,0 +1,443 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.internal.util.config.ConfigurationHelper;
+
+/**
+ * Size bounded map keeping its values serialized outside of the Java heap, in direct or memory-mapped buffers, for
+ * the second level cache regions of {@link OffHeapRegionFactory}.
+ * <p/>
+ * The buffers are allocated one segment of up to 1 GB at a time and split in blocks of the size set by
+ * {@value #BLOCK_SIZE} (128 bytes by default); a value occupies a chain of blocks, each starting with the index of
+ * the next one, and the blocks of removed values are kept in a free list linked the same way. Only the keys and a
+ * small entry per key (first block, length, hit count) stay on the heap. When a value does not fit in the capacity
+ * set by {@value #CAPACITY} any more, entries are evicted least recently used first ({@link Eviction#LRU}) or, with
+ * {@link Eviction#LFU}, the least frequently used of the {@value #LFU_SAMPLE} least recently used entries, an
+ * approximation that needs no frequency ordered structure.
+ * <p/>
+ * Values are copies: every {@link #get} deserializes a new instance, as a distributed cache would. Serialization
+ * happens outside of the lock guarding the buffers, so concurrent readers only contend on the block copy.
+ * {@link #put} and {@link #remove} do not return the previous value.
+ */
+public class OffHeapStore extends AbstractMap<Object, Object> {
+	public static final String CAPACITY = "harness.cache.offheap.capacity";
+	public static final String BLOCK_SIZE = "harness.cache.offheap.block_size";
+	public static final String EVICTION = "harness.cache.offheap.eviction";
+	public static final String BUFFER = "harness.cache.offheap.buffer";
+
+	public enum Eviction {
+		LRU,
+		LFU
+	}
+
+	public enum BufferType {
+		DIRECT,
+		MAPPED
+	}
+
+	private static final int SEGMENT_SIZE = 1 << 30;
+	private static final int NEXT_BYTES = Integer.BYTES;
+	private static final int NO_BLOCK = -1;
+	private static final int LFU_SAMPLE = 16;
+
+	private final String name;
+	private final int blockSize;
+	private final int totalBlocks;
+	private final int blocksPerSegment;
+	private final Eviction eviction;
+	private final BufferType bufferType;
+
+	private final Map<Object, Entry> index = new LinkedHashMap<>( 16, 0.75f, true );
+	private final List<ByteBuffer> segments = new ArrayList<>();
+	private Path file;
+	private FileChannel channel;
+
+	private int highWaterBlock;
+	private int freeHead = NO_BLOCK;
+	private int freeBlocks;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long rejections;
+
+	public OffHeapStore(String name, long capacityBytes, int blockSize, Eviction eviction, BufferType bufferType) {
+		if ( blockSize <= NEXT_BYTES || SEGMENT_SIZE % blockSize != 0 ) {
+			throw new IllegalArgumentException( "The block size must be a power of two larger than " + NEXT_BYTES );
+		}
+		this.name = name;
+		this.blockSize = blockSize;
+		this.totalBlocks = (int) Math.min( Integer.MAX_VALUE, capacityBytes / blockSize );
+		this.blocksPerSegment = SEGMENT_SIZE / blockSize;
+		this.eviction = eviction;
+		this.bufferType = bufferType;
+	}
+
+	/**
+	 * Creates a store configured by the {@value #CAPACITY} (bytes, with an optional {@code k}, {@code m} or
+	 * {@code g} suffix, 64m by default), {@value #BLOCK_SIZE} (128 by default), {@value #EVICTION} and
+	 * {@value #BUFFER} settings.
+	 */
+	public static OffHeapStore create(String name, Map settings) {
+		return new OffHeapStore(
+				name,
+				parseSize( ConfigurationHelper.getString( CAPACITY, settings, "64m" ) ),
+				ConfigurationHelper.getInt( BLOCK_SIZE, settings, 128 ),
+				Eviction.valueOf( ConfigurationHelper.getString( EVICTION, settings, "LRU" ).toUpperCase( Locale.ROOT ) ),
+				BufferType.valueOf( ConfigurationHelper.getString( BUFFER, settings, "DIRECT" ).toUpperCase( Locale.ROOT ) )
+		);
+	}
+
+	static long parseSize(String size) {
+		final String value = size.trim().toLowerCase( Locale.ROOT );
+		final int last = value.length() - 1;
+		switch ( value.charAt( last ) ) {
+			case 'k':
+				return Long.parseLong( value.substring( 0, last ) ) << 10;
+			case 'm':
+				return Long.parseLong( value.substring( 0, last ) ) << 20;
+			case 'g':
+				return Long.parseLong( value.substring( 0, last ) ) << 30;
+			default:
+				return Long.parseLong( value );
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public Object get(Object key) {
+		final byte[] bytes = read( key );
+		return bytes == null ? null : deserialize( bytes );
+	}
+
+	@Override
+	public Object put(Object key, Object value) {
+		write( key, serialize( value ) );
+		return null;
+	}
+
+	@Override
+	public synchronized boolean containsKey(Object key) {
+		return index.containsKey( key );
+	}
+
+	@Override
+	public synchronized Object remove(Object key) {
+		final Entry entry = index.remove( key );
+		if ( entry != null ) {
+			release( entry );
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized void clear() {
+		for ( Entry entry : index.values() ) {
+			release( entry );
+		}
+		index.clear();
+	}
+
+	@Override
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * @return a deserialized snapshot of the entries
+	 */
+	@Override
+	public Set<Map.Entry<Object, Object>> entrySet() {
+		final Map<Object, Object> snapshot = new HashMap<>();
+		final List<Object> keys;
+		synchronized ( this ) {
+			keys = new ArrayList<>( index.keySet() );
+		}
+		for ( Object key : keys ) {
+			final byte[] bytes = read( key );
+			if ( bytes != null ) {
+				snapshot.put( key, deserialize( bytes ) );
+			}
+		}
+		return snapshot.entrySet();
+	}
+
+	/**
+	 * Removes every entry and releases the buffers.
+	 */
+	public synchronized void close() {
+		index.clear();
+		segments.clear();
+		highWaterBlock = 0;
+		freeHead = NO_BLOCK;
+		freeBlocks = 0;
+		if ( channel != null ) {
+			try {
+				channel.close();
+				Files.deleteIfExists( file );
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException( "Unable to delete " + file, e );
+			}
+			channel = null;
+		}
+	}
+
+	private synchronized byte[] read(Object key) {
+		final Entry entry = index.get( key );
+		if ( entry == null ) {
+			misses++;
+			return null;
+		}
+		hits++;
+		entry.hits++;
+		final byte[] bytes = new byte[entry.length];
+		int block = entry.firstBlock;
+		for ( int offset = 0; offset < bytes.length; offset += blockSize - NEXT_BYTES ) {
+			final ByteBuffer segment = segment( block );
+			final int position = position( block );
+			segment.position( position + NEXT_BYTES );
+			segment.get( bytes, offset, Math.min( blockSize - NEXT_BYTES, bytes.length - offset ) );
+			block = segment.getInt( position );
+		}
+		return bytes;
+	}
+
+	private synchronized void write(Object key, byte[] bytes) {
+		final Entry previous = index.remove( key );
+		if ( previous != null ) {
+			release( previous );
+		}
+		final int blocks = Math.max( 1, ( bytes.length + blockSize - NEXT_BYTES - 1 ) / ( blockSize - NEXT_BYTES ) );
+		if ( blocks > totalBlocks ) {
+			rejections++;
+			return;
+		}
+		while ( freeBlocks + totalBlocks - highWaterBlock < blocks ) {
+			evict();
+		}
+		int first = NO_BLOCK;
+		int previousBlock = NO_BLOCK;
+		for ( int i = 0; i < blocks; i++ ) {
+			final int block = allocate();
+			if ( previousBlock == NO_BLOCK ) {
+				first = block;
+			}
+			else {
+				segment( previousBlock ).putInt( position( previousBlock ), block );
+			}
+			final int offset = i * ( blockSize - NEXT_BYTES );
+			final ByteBuffer segment = segment( block );
+			segment.putInt( position( block ), NO_BLOCK );
+			segment.position( position( block ) + NEXT_BYTES );
+			segment.put( bytes, offset, Math.min( blockSize - NEXT_BYTES, bytes.length - offset ) );
+			previousBlock = block;
+		}
+		index.put( key, new Entry( first, bytes.length, blocks ) );
+	}
+
+	private void evict() {
+		final Iterator<Map.Entry<Object, Entry>> entries = index.entrySet().iterator();
+		Map.Entry<Object, Entry> victim = entries.next();
+		if ( eviction == Eviction.LFU ) {
+			for ( int i = 1; i < LFU_SAMPLE && entries.hasNext(); i++ ) {
+				final Map.Entry<Object, Entry> candidate = entries.next();
+				if ( candidate.getValue().hits < victim.getValue().hits ) {
+					victim = candidate;
+				}
+			}
+		}
+		index.remove( victim.getKey() );
+		release( victim.getValue() );
+		evictions++;
+	}
+
+	private int allocate() {
+		if ( freeHead != NO_BLOCK ) {
+			final int block = freeHead;
+			freeHead = segment( block ).getInt( position( block ) );
+			freeBlocks--;
+			return block;
+		}
+		final int block = highWaterBlock++;
+		if ( block / blocksPerSegment == segments.size() ) {
+			segments.add( newSegment( (int) Math.min( SEGMENT_SIZE, (long) ( totalBlocks - block ) * blockSize ) ) );
+		}
+		return block;
+	}
+
+	private void release(Entry entry) {
+		int last = entry.firstBlock;
+		for ( int i = 1; i < entry.blocks; i++ ) {
+			last = segment( last ).getInt( position( last ) );
+		}
+		segment( last ).putInt( position( last ), freeHead );
+		freeHead = entry.firstBlock;
+		freeBlocks += entry.blocks;
+	}
+
+	private ByteBuffer newSegment(int size) {
+		if ( bufferType == BufferType.DIRECT ) {
+			return ByteBuffer.allocateDirect( size );
+		}
+		try {
+			if ( channel == null ) {
+				file = Files.createTempFile( "hibernate-offheap-" + name.replaceAll( "[^A-Za-z0-9.]", "_" ), ".cache" );
+				file.toFile().deleteOnExit();
+				channel = FileChannel.open( file, StandardOpenOption.READ, StandardOpenOption.WRITE );
+			}
+			return channel.map( FileChannel.MapMode.READ_WRITE, (long) segments.size() * SEGMENT_SIZE, size );
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException( "Unable to map the cache file of " + name, e );
+		}
+	}
+
+	private ByteBuffer segment(int block) {
+		return segments.get( block / blocksPerSegment );
+	}
+
+	private int position(int block) {
+		return ( block % blocksPerSegment ) * blockSize;
+	}
+
+	/**
+	 * @return the bytes of the allocated buffers
+	 */
+	public synchronized long getOffHeapBytes() {
+		return (long) highWaterBlock * blockSize;
+	}
+
+	/**
+	 * @return the bytes of the blocks holding values
+	 */
+	public synchronized long getUsedBytes() {
+		return (long) ( highWaterBlock - freeBlocks ) * blockSize;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return the number of values larger than the whole capacity, which were not stored
+	 */
+	public synchronized long getRejections() {
+		return rejections;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"%s: %d entries in %d KB of %d KB %s buffers, %d hits, %d misses, %d evictions (%s)",
+				name,
+				index.size(),
+				getUsedBytes() / 1024,
+				getOffHeapBytes() / 1024,
+				bufferType,
+				hits,
+				misses,
+				evictions,
+				eviction
+		);
+	}
+
+	private static byte[] serialize(Object value) {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream( 256 );
+		try (ObjectOutputStream output = new ObjectOutputStream( bytes )) {
+			output.writeObject( value );
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException( "Unable to serialize " + value, e );
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) {
+		try (ObjectInputStream input = new ContextObjectInputStream( new ByteArrayInputStream( bytes ) )) {
+			return input.readObject();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException( "Unable to deserialize a cache entry", e );
+		}
+		catch (ClassNotFoundException e) {
+			throw new IllegalStateException( "Unable to deserialize a cache entry", e );
+		}
+	}
+
+	private static class Entry {
+		private final int firstBlock;
+		private final int length;
+		private final int blocks;
+		private long hits;
+
+		private Entry(int firstBlock, int length, int blocks) {
+			this.firstBlock = firstBlock;
+			this.length = length;
+			this.blocks = blocks;
+		}
+	}
+
+	/**
+	 * Resolves the classes of the entries with the context class loader first, as the entity classes may not be
+	 * visible from this class loader.
+	 */
+	private static class ContextObjectInputStream extends ObjectInputStream {
+		private ContextObjectInputStream(InputStream input) throws IOException {
+			super( input );
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass description) throws IOException, ClassNotFoundException {
+			final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+			if ( classLoader != null ) {
+				try {
+					return Class.forName( description.getName(), false, classLoader );
+				}
+				catch (ClassNotFoundException e) {
+					// fall back to the default resolution
+				}
+			}
+			return super.resolveClass( description );
+		}
+	}
+}
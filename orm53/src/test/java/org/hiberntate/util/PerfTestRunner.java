@@ -0,0 +1,191 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hibernate.testing.junit4.CustomRunner;
+import org.junit.runner.manipulation.NoTestsRemainException;
+import org.junit.runners.model.FrameworkMethod;
+import org.junit.runners.model.InitializationError;
+import org.junit.runners.model.Statement;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Runner of the {@link WildFlyFunctionalTestCase} tests, repeating the invocation of the methods annotated with
+ * {@link PerfTest} or {@link SoakTest} inside the {@code @Before}/{@code @After} callbacks and the rules.
+ */
+public class PerfTestRunner extends CustomRunner {
+	private static final Logger log = Logger.getLogger( PerfTestRunner.class );
+
+	public PerfTestRunner(Class<?> testClass) throws InitializationError, NoTestsRemainException {
+		super( testClass );
+	}
+
+	@Override
+	protected Statement methodInvoker(FrameworkMethod method, Object test) {
+		final Statement invoker = super.methodInvoker( method, test );
+		final SoakTest soakTest = method.getAnnotation( SoakTest.class );
+		if ( soakTest != null ) {
+			return new Statement() {
+				@Override
+				public void evaluate() throws Throwable {
+					soak( invoker, (WildFlyFunctionalTestCase) test, method.getName(), soakTest );
+				}
+			};
+		}
+		final PerfTest perfTest = method.getAnnotation( PerfTest.class );
+		if ( perfTest == null ) {
+			return invoker;
+		}
+		return new Statement() {
+			@Override
+			public void evaluate() throws Throwable {
+				final Class<?> testClass = getTestClass().getJavaClass();
+				final ExecutorService executor = perfTest.threads() > 1
+						? Executors.newFixedThreadPool( perfTest.threads() )
+						: null;
+				try {
+					run( invoker, perfTest.warmup(), perfTest.threads(), executor, null );
+					final LatencySamples samples = new LatencySamples();
+					run( invoker, perfTest.iterations(), perfTest.threads(), executor, samples );
+					report( testClass, method.getName(), perfTest, samples );
+				}
+				finally {
+					if ( executor != null ) {
+						executor.shutdownNow();
+					}
+				}
+			}
+		};
+	}
+
+	private static void run(
+			Statement invoker,
+			int passes,
+			int threads,
+			ExecutorService executor,
+			LatencySamples samples) throws Throwable {
+		for ( int pass = 0; pass < passes; pass++ ) {
+			if ( executor == null ) {
+				record( samples, timed( invoker ) );
+				continue;
+			}
+			final List<Future<Long>> futures = new ArrayList<>( threads );
+			for ( int thread = 0; thread < threads; thread++ ) {
+				futures.add( executor.submit( () -> {
+					try {
+						return timed( invoker );
+					}
+					catch (Exception | Error e) {
+						throw e;
+					}
+					catch (Throwable t) {
+						throw new IllegalStateException( t );
+					}
+				} ) );
+			}
+			for ( Future<Long> future : futures ) {
+				try {
+					record( samples, future.get() );
+				}
+				catch (ExecutionException e) {
+					throw e.getCause();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Repeats the method body until the duration of the soak test elapsed, sampling the gauges of the
+	 * {@link SoakMonitor} in between, and fails when one of them leaks.
+	 */
+	private static void soak(Statement invoker, WildFlyFunctionalTestCase test, String methodName, SoakTest soakTest)
+			throws Throwable {
+		final long durationNanos = SoakMonitor.duration( soakTest ).toNanos();
+		final long intervalNanos = SoakMonitor.sampleInterval( soakTest ).toNanos();
+		final SoakMonitor monitor = new SoakMonitor( test.entityManagerFactory(), test.jdbcProfiler() );
+		final long start = System.nanoTime();
+		long nextSample = start + intervalNanos;
+		long iterations = 0;
+		monitor.sample( iterations );
+		while ( System.nanoTime() - start < durationNanos ) {
+			invoker.evaluate();
+			iterations++;
+			if ( System.nanoTime() >= nextSample ) {
+				monitor.sample( iterations );
+				nextSample += intervalNanos;
+			}
+		}
+		monitor.sample( iterations );
+
+		final Class<?> testClass = test.getClass();
+		final String title = testClass.getSimpleName() + "#" + methodName;
+		monitor.logReport( title );
+		for ( Map.Entry<SoakMonitor.Gauge, Long> growth : monitor.getGrowth().entrySet() ) {
+			if ( growth.getValue() >= 0 ) {
+				PerformanceResults.record(
+						testClass,
+						methodName + ".soak." + growth.getKey().name().toLowerCase( Locale.ROOT ) + ".growth",
+						growth.getValue()
+				);
+			}
+		}
+		final Map<SoakMonitor.Gauge, String> leaks = monitor.findLeaks();
+		log.infof(
+				"%s, %d iterations in %d s: %s",
+				title,
+				iterations,
+				( System.nanoTime() - start ) / 1_000_000_000L,
+				leaks.isEmpty() ? "no leak" : leaks.values()
+		);
+		if ( !leaks.isEmpty() ) {
+			throw new AssertionError( title + " leaks: " + String.join( "; ", leaks.values() ) );
+		}
+	}
+
+	private static long timed(Statement invoker) throws Throwable {
+		final long start = System.nanoTime();
+		invoker.evaluate();
+		return System.nanoTime() - start;
+	}
+
+	private static void record(LatencySamples samples, long nanos) {
+		if ( samples != null ) {
+			samples.record( nanos );
+		}
+	}
+
+	private static void report(Class<?> testClass, String methodName, PerfTest perfTest, LatencySamples samples) {
+		final double mean = samples.getMean();
+		log.infof(
+				"%s#%s, %d warmup and %d measured passes on %d threads: mean %.3f ms, p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms, stddev %.3f ms, cv %.1f%%",
+				testClass.getSimpleName(),
+				methodName,
+				perfTest.warmup(),
+				perfTest.iterations(),
+				perfTest.threads(),
+				mean / 1_000_000d,
+				samples.getPercentile( 50 ) / 1_000_000d,
+				samples.getPercentile( 90 ) / 1_000_000d,
+				samples.getPercentile( 99 ) / 1_000_000d,
+				samples.getMax() / 1_000_000d,
+				samples.getStandardDeviation() / 1_000_000d,
+				mean == 0 ? 0 : samples.getStandardDeviation() / mean * 100
+		);
+		PerformanceResults.record( testClass, methodName + ".perf.meanMicros", Math.round( mean / 1_000d ) );
+		PerformanceResults.record( testClass, methodName + ".perf.p99Micros", samples.getPercentile( 99 ) / 1_000 );
+	}
+}
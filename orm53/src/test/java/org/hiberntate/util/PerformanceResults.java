@@ -0,0 +1,80 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the performance metrics recorded by the tests and writes them as one JSON file per test class, e.g.
+ * {@code target/perf-results/LazyLoadingBenchmarkTest.json}, so that they can be compared with the committed
+ * {@code perf-baseline.json} of the module by the {@code checkPerformanceBaseline} Gradle task.
+ * <p/>
+ * The output directory can be changed with the {@value #RESULTS_DIR} system property.
+ */
+public final class PerformanceResults {
+	public static final String RESULTS_DIR = "harness.perf.results.dir";
+
+	private static final Path DIRECTORY = Paths.get( System.getProperty( RESULTS_DIR, "target/perf-results" ) );
+	private static final Map<Class<?>, Map<String, Number>> RESULTS = new HashMap<>();
+
+	private PerformanceResults() {
+	}
+
+	/**
+	 * Records the value of a metric of the given test class, replacing any previously recorded value, and
+	 * rewrites the JSON file of the class.
+	 */
+	public static synchronized void record(Class<?> testClass, String metric, Number value) {
+		final Map<String, Number> metrics = RESULTS.computeIfAbsent( testClass, k -> new TreeMap<>() );
+		metrics.put( testClass.getSimpleName() + "." + metric, value );
+		write( testClass, metrics );
+	}
+
+	/**
+	 * @return the metrics recorded so far for the given test class, by their full name, e.g.
+	 * {@code GcPressureTest.testPagedResults.gc.promotedBytes}
+	 */
+	public static synchronized Map<String, Number> get(Class<?> testClass) {
+		final Map<String, Number> metrics = RESULTS.get( testClass );
+		return metrics == null ? Collections.emptyMap() : Collections.unmodifiableMap( new TreeMap<>( metrics ) );
+	}
+
+	private static void write(Class<?> testClass, Map<String, Number> metrics) {
+		final StringBuilder json = new StringBuilder( "{" );
+		String separator = "\n";
+		for ( Map.Entry<String, Number> metric : metrics.entrySet() ) {
+			json.append( separator )
+					.append( "  \"" ).append( escape( metric.getKey() ) ).append( "\": " )
+					.append( metric.getValue() );
+			separator = ",\n";
+		}
+		json.append( "\n}\n" );
+		try {
+			Files.createDirectories( DIRECTORY );
+			Files.write(
+					DIRECTORY.resolve( testClass.getSimpleName() + ".json" ),
+					json.toString().getBytes( StandardCharsets.UTF_8 )
+			);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException( "Unable to write the performance results of " + testClass.getName(), e );
+		}
+	}
+
+	private static String escape(String value) {
+		return value.replace( "\\", "\\\\" ).replace( "\"", "\\\"" );
+	}
+}
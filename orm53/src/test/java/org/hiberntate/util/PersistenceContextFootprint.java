@@ -0,0 +1,278 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.persistence.EntityManager;
+
+import org.hibernate.engine.spi.CollectionEntry;
+import org.hibernate.engine.spi.CollectionKey;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.engine.spi.ManagedEntity;
+import org.hibernate.engine.spi.PersistenceContext;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.proxy.HibernateProxy;
+
+/**
+ * Estimated retained heap of a persistence context, computed by walking it: the entity entries and keys, the loaded
+ * state snapshots kept for dirty checking, the collection entries and their snapshots and the uninitialized proxies.
+ * The managed entities themselves and the values shared between an entity and its snapshot are not counted, since
+ * the application retains them anyway.
+ * <p/>
+ * Sizes are estimated from the field layout of the classes, assuming a 64-bit JVM with compressed oops (12 byte
+ * object headers, 4 byte references, 8 byte alignment), and the usual layout of the JDK collections.
+ * <p/>
+ * The harness records the footprint at the end of each {@code inTransaction}/{@code fromTransaction} unit of work
+ * when the {@value #ENABLED} setting is {@code true}, and logs the largest one after each test.
+ */
+public class PersistenceContextFootprint {
+	public static final String ENABLED = "harness.pc_footprint";
+
+	private static final int HEADER = 12;
+	private static final int REFERENCE = 4;
+	private static final int ARRAY_HEADER = 16;
+	private static final int HASH_MAP_NODE = 32;
+
+	private static final Map<Class<?>, Long> SHALLOW_SIZES = new ConcurrentHashMap<>();
+
+	private static final Field PROXIES_BY_KEY = proxiesByKeyField();
+
+	private int entities;
+	private int readOnlyEntities;
+	private int snapshots;
+	private int collections;
+	private int proxies = -1;
+
+	private long entityEntryBytes;
+	private long snapshotBytes;
+	private long collectionBytes;
+	private long proxyBytes;
+
+	private PersistenceContextFootprint() {
+	}
+
+	public static PersistenceContextFootprint of(EntityManager entityManager) {
+		return of( entityManager.unwrap( SessionImplementor.class ).getPersistenceContext() );
+	}
+
+	public static PersistenceContextFootprint of(PersistenceContext persistenceContext) {
+		final PersistenceContextFootprint footprint = new PersistenceContextFootprint();
+		for ( Map.Entry<Object, EntityEntry> entry : persistenceContext.reentrantSafeEntityEntries() ) {
+			footprint.addEntity( entry.getKey(), entry.getValue() );
+		}
+		for ( Object entry : persistenceContext.getCollectionEntries().entrySet() ) {
+			footprint.addCollection( (CollectionEntry) ( (Map.Entry) entry ).getValue() );
+		}
+		footprint.addProxies( persistenceContext );
+		return footprint;
+	}
+
+	private void addEntity(Object entity, EntityEntry entry) {
+		entities++;
+		// entitiesByKey node, entity entry and key, plus the identity map slot and holder of non enhanced entities
+		entityEntryBytes += HASH_MAP_NODE + shallowSize( entry.getClass() ) + shallowSize( EntityKey.class );
+		if ( !( entity instanceof ManagedEntity ) ) {
+			entityEntryBytes += 2 * REFERENCE + align( HEADER + 4 * REFERENCE );
+		}
+		if ( entry.isReadOnly() ) {
+			readOnlyEntities++;
+		}
+		final Object[] loadedState = entry.getLoadedState();
+		if ( loadedState != null ) {
+			snapshots++;
+			snapshotBytes += arraySize( loadedState.length, REFERENCE );
+			final Object[] currentState = entry.getPersister().getPropertyValues( entity );
+			for ( int i = 0; i < loadedState.length; i++ ) {
+				// immutable values are shared with the entity, mutable ones (dates, arrays, ...) are deep copies
+				if ( loadedState[i] != null && ( i >= currentState.length || loadedState[i] != currentState[i] ) ) {
+					snapshotBytes += valueSize( loadedState[i] );
+				}
+			}
+		}
+	}
+
+	private void addCollection(CollectionEntry entry) {
+		collections++;
+		// collectionEntries and collectionsByKey nodes, entry and key
+		collectionBytes += 2 * HASH_MAP_NODE + shallowSize( CollectionEntry.class ) + shallowSize( CollectionKey.class );
+		final Object snapshot = entry.getSnapshot();
+		if ( snapshot instanceof Map ) {
+			// HashMap<E, E> for sets and maps
+			final int size = ( (Map) snapshot ).size();
+			collectionBytes += 48 + arraySize( tableSize( size ), REFERENCE ) + (long) size * HASH_MAP_NODE;
+		}
+		else if ( snapshot instanceof Collection ) {
+			// ArrayList for bags and lists
+			collectionBytes += 24 + arraySize( ( (Collection) snapshot ).size(), REFERENCE );
+		}
+		else if ( snapshot != null ) {
+			collectionBytes += valueSize( snapshot );
+		}
+	}
+
+	private void addProxies(PersistenceContext persistenceContext) {
+		if ( PROXIES_BY_KEY == null ) {
+			return;
+		}
+		try {
+			final Map<?, ?> proxiesByKey = (Map<?, ?>) PROXIES_BY_KEY.get( persistenceContext );
+			proxies = 0;
+			for ( Object proxy : proxiesByKey.values() ) {
+				proxies++;
+				proxyBytes += HASH_MAP_NODE + shallowSize( EntityKey.class ) + shallowSize( proxy.getClass() );
+				if ( proxy instanceof HibernateProxy ) {
+					proxyBytes += shallowSize( ( (HibernateProxy) proxy ).getHibernateLazyInitializer().getClass() );
+				}
+			}
+		}
+		catch (IllegalAccessException | RuntimeException e) {
+			proxies = -1;
+		}
+	}
+
+	private static Field proxiesByKeyField() {
+		try {
+			final Field field = Class.forName( "org.hibernate.engine.internal.StatefulPersistenceContext" )
+					.getDeclaredField( "proxiesByKey" );
+			field.setAccessible( true );
+			return field;
+		}
+		catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	static long shallowSize(Class<?> type) {
+		return SHALLOW_SIZES.computeIfAbsent( type, t -> {
+			long size = HEADER;
+			for ( Class<?> c = t; c != null; c = c.getSuperclass() ) {
+				for ( Field field : c.getDeclaredFields() ) {
+					if ( !Modifier.isStatic( field.getModifiers() ) ) {
+						size += fieldSize( field.getType() );
+					}
+				}
+			}
+			return align( size );
+		} );
+	}
+
+	private static long valueSize(Object value) {
+		if ( value instanceof String ) {
+			return shallowSize( String.class ) + arraySize( ( (String) value ).length(), 1 );
+		}
+		if ( value instanceof Date ) {
+			return shallowSize( Date.class );
+		}
+		if ( value.getClass().isArray() ) {
+			final Class<?> componentType = value.getClass().getComponentType();
+			return arraySize( Array.getLength( value ), componentType.isPrimitive() ? fieldSize( componentType ) : REFERENCE );
+		}
+		return shallowSize( value.getClass() );
+	}
+
+	private static int fieldSize(Class<?> type) {
+		if ( type == long.class || type == double.class ) {
+			return 8;
+		}
+		if ( type == int.class || type == float.class ) {
+			return 4;
+		}
+		if ( type == short.class || type == char.class ) {
+			return 2;
+		}
+		if ( type == byte.class || type == boolean.class ) {
+			return 1;
+		}
+		return REFERENCE;
+	}
+
+	private static long arraySize(int length, int elementSize) {
+		return align( ARRAY_HEADER + (long) length * elementSize );
+	}
+
+	private static int tableSize(int size) {
+		int table = 16;
+		while ( table * 0.75 < size ) {
+			table <<= 1;
+		}
+		return table;
+	}
+
+	private static long align(long size) {
+		return ( size + 7 ) & ~7;
+	}
+
+	public int getEntities() {
+		return entities;
+	}
+
+	public int getReadOnlyEntities() {
+		return readOnlyEntities;
+	}
+
+	/**
+	 * @return the number of loaded state snapshots kept for dirty checking (none for read-only entities)
+	 */
+	public int getSnapshots() {
+		return snapshots;
+	}
+
+	public int getCollections() {
+		return collections;
+	}
+
+	/**
+	 * @return the number of proxies, {@code -1} when they cannot be inspected
+	 */
+	public int getProxies() {
+		return proxies;
+	}
+
+	public long getEntityEntryBytes() {
+		return entityEntryBytes;
+	}
+
+	public long getSnapshotBytes() {
+		return snapshotBytes;
+	}
+
+	public long getCollectionBytes() {
+		return collectionBytes;
+	}
+
+	public long getProxyBytes() {
+		return proxyBytes;
+	}
+
+	public long getEstimatedBytes() {
+		return entityEntryBytes + snapshotBytes + collectionBytes + proxyBytes;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%d entities (%d read-only, %d snapshots), %d collections, %d proxies: ~%d bytes (entries %d, snapshots %d, collections %d, proxies %d)",
+				entities,
+				readOnlyEntities,
+				snapshots,
+				collections,
+				proxies,
+				getEstimatedBytes(),
+				entityEntryBytes,
+				snapshotBytes,
+				collectionBytes,
+				proxyBytes
+		);
+	}
+}
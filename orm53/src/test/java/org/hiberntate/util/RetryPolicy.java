@@ -0,0 +1,137 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.OptimisticLockException;
+
+import org.hibernate.StaleStateException;
+import org.hibernate.dialect.lock.OptimisticEntityLockException;
+
+/**
+ * How {@link TransactionUtil} retries a unit of work failing because of an optimistic locking conflict
+ * ({@link OptimisticLockException}, {@link org.hibernate.StaleObjectStateException} and the like, possibly wrapped):
+ * up to {@code maxAttempts} executions, sleeping between them a random ("full jitter") delay between 0 and
+ * {@code min(maxBackoff, minBackoff * 2^retry)} milliseconds.
+ * <p/>
+ * The policy also counts the attempts, conflicts, retries, successes and exhausted retries of the units of work
+ * executed with it, to report the conflict rate and the retries per success of a workload.
+ */
+public class RetryPolicy {
+	private final int maxAttempts;
+	private final long minBackoffMillis;
+	private final long maxBackoffMillis;
+
+	private final AtomicLong attempts = new AtomicLong();
+	private final AtomicLong conflicts = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong successes = new AtomicLong();
+	private final AtomicLong exhausted = new AtomicLong();
+
+	public RetryPolicy(int maxAttempts, long minBackoffMillis, long maxBackoffMillis) {
+		if ( maxAttempts < 1 ) {
+			throw new IllegalArgumentException( "maxAttempts must be at least 1" );
+		}
+		this.maxAttempts = maxAttempts;
+		this.minBackoffMillis = minBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public static boolean isOptimisticLockFailure(Throwable failure) {
+		for ( Throwable t = failure; t != null; t = t.getCause() ) {
+			if ( t instanceof OptimisticLockException
+					|| t instanceof StaleStateException
+					|| t instanceof OptimisticEntityLockException ) {
+				return true;
+			}
+			if ( t.getCause() == t ) {
+				break;
+			}
+		}
+		return false;
+	}
+
+	void attempted() {
+		attempts.incrementAndGet();
+	}
+
+	void succeeded() {
+		successes.incrementAndGet();
+	}
+
+	/**
+	 * Records a conflict of the given (1 based) attempt and sleeps before the next one.
+	 *
+	 * @return {@code false} if the attempts are exhausted
+	 */
+	boolean conflicted(int attempt) {
+		conflicts.incrementAndGet();
+		if ( attempt >= maxAttempts ) {
+			exhausted.incrementAndGet();
+			return false;
+		}
+		final long ceiling = Math.min( maxBackoffMillis, minBackoffMillis << Math.min( attempt - 1, 30 ) );
+		if ( ceiling > 0 ) {
+			try {
+				TimeUnit.MILLISECONDS.sleep( ThreadLocalRandom.current().nextLong( ceiling + 1 ) );
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		retries.incrementAndGet();
+		return true;
+	}
+
+	public long getAttempts() {
+		return attempts.get();
+	}
+
+	public long getConflicts() {
+		return conflicts.get();
+	}
+
+	public long getRetries() {
+		return retries.get();
+	}
+
+	public long getSuccesses() {
+		return successes.get();
+	}
+
+	public long getExhausted() {
+		return exhausted.get();
+	}
+
+	/**
+	 * @return the fraction of the attempts failing with an optimistic locking conflict
+	 */
+	public double getConflictRate() {
+		final long attemptCount = attempts.get();
+		return attemptCount == 0 ? 0 : (double) conflicts.get() / attemptCount;
+	}
+
+	public double getRetriesPerSuccess() {
+		final long successCount = successes.get();
+		return successCount == 0 ? 0 : (double) retries.get() / successCount;
+	}
+
+	public void reset() {
+		attempts.set( 0 );
+		conflicts.set( 0 );
+		retries.set( 0 );
+		successes.set( 0 );
+		exhausted.set( 0 );
+	}
+}
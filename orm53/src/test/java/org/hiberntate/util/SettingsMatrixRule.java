@@ -0,0 +1,313 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Runs a test annotated with {@link SettingsMatrix} once per combination of settings, recording the wall time,
+ * the number of SQL statements and the bytes allocated by the test thread for each run and logging the
+ * combinations ranked from the fastest to the slowest.
+ * <p/>
+ * Since the rule wraps the {@code @Before} and {@code @After} methods, a new EntityManagerFactory is built for each
+ * combination; the measurement itself only covers what happens between {@link #startMeasurement()} and
+ * {@link #stopMeasurement()}.
+ */
+public class SettingsMatrixRule implements TestRule {
+	private static final Logger log = Logger.getLogger( SettingsMatrixRule.class );
+
+	private final StatementCounter statementCounter;
+	private final List<Result> results = new ArrayList<>();
+
+	private Description currentDescription;
+	private int operations;
+	private Map<String, String> currentSettings;
+	private String currentSettingsLabel;
+	private long startNanos;
+	private long startAllocatedBytes;
+
+	public SettingsMatrixRule(StatementCounter statementCounter) {
+		this.statementCounter = statementCounter;
+	}
+
+	@Override
+	public Statement apply(Statement base, Description description) {
+		final SettingsMatrix matrix = description.getAnnotation( SettingsMatrix.class );
+		if ( matrix == null ) {
+			return base;
+		}
+		return new Statement() {
+			@Override
+			public void evaluate() throws Throwable {
+				results.clear();
+				currentDescription = description;
+				operations = Math.max( 1, matrix.operations() );
+				try {
+					final List<Map<String, String>> combinations = matrix.mode() == SettingsMatrix.Mode.ONE_AT_A_TIME
+							? interleavedVariations( matrix.value() )
+							: combinations( matrix.value() );
+					for ( int i = 0; i < combinations.size(); i++ ) {
+						currentSettings = combinations.get( i );
+						currentSettingsLabel = matrix.mode() == SettingsMatrix.Mode.ONE_AT_A_TIME
+								? variationLabel( combinations.get( 0 ), currentSettings, i )
+								: label( currentSettings );
+						base.evaluate();
+					}
+				}
+				finally {
+					currentSettings = null;
+					currentSettingsLabel = null;
+				}
+				logResults( description );
+				if ( matrix.mode() == SettingsMatrix.Mode.ONE_AT_A_TIME ) {
+					logSensitivity( description );
+				}
+			}
+		};
+	}
+
+	public boolean isActive() {
+		return currentSettings != null;
+	}
+
+	/**
+	 * @return the settings of the combination currently running, {@code null} outside of a matrix
+	 */
+	public Map<String, String> getCurrentSettings() {
+		return currentSettings;
+	}
+
+	/**
+	 * @return the label of the combination currently running, as used in the names of the recorded metrics, or an
+	 * empty string outside of a matrix: {@code [name=value,...]} for {@link SettingsMatrix.Mode#ALL_COMBINATIONS},
+	 * and for {@link SettingsMatrix.Mode#ONE_AT_A_TIME} only the varied setting, {@code [name=value]}, or
+	 * {@code [baseline-n]} for the n-th run of the baseline
+	 */
+	public String getCurrentSettingsLabel() {
+		return isActive() ? currentSettingsLabel : "";
+	}
+
+	static String label(Map<String, String> settings) {
+		return settings.toString()
+				.replace( '{', '[' )
+				.replace( '}', ']' )
+				.replace( " ", "" );
+	}
+
+	/**
+	 * @param index the position of the run in the {@link #interleavedVariations}, where the baseline takes every
+	 * even position
+	 */
+	static String variationLabel(Map<String, String> baseline, Map<String, String> variation, int index) {
+		if ( index % 2 == 0 ) {
+			return "[baseline-" + ( index / 2 + 1 ) + "]";
+		}
+		final Map<String, String> changed = new LinkedHashMap<>( variation );
+		changed.entrySet().removeAll( baseline.entrySet() );
+		return label( changed );
+	}
+
+	/**
+	 * Adds the settings of the combination currently running to the given configuration.
+	 */
+	@SuppressWarnings("unchecked")
+	public void applySettings(Map config) {
+		if ( isActive() ) {
+			config.putAll( currentSettings );
+		}
+	}
+
+	public void startMeasurement() {
+		if ( isActive() ) {
+			statementCounter.reset();
+			startAllocatedBytes = ThreadAllocation.currentThreadAllocatedBytes();
+			startNanos = System.nanoTime();
+		}
+	}
+
+	public void stopMeasurement() {
+		if ( isActive() && startNanos != 0 ) {
+			final long wallNanos = System.nanoTime() - startNanos;
+			final long allocatedBytes = ThreadAllocation.currentThreadAllocatedBytes() - startAllocatedBytes;
+			final Result result = new Result( currentSettings, wallNanos, statementCounter.getCount(), allocatedBytes );
+			results.add( result );
+			record( result );
+			startNanos = 0;
+		}
+	}
+
+	/**
+	 * @return the results of the last executed matrix, in execution order
+	 */
+	public List<Result> getResults() {
+		return Collections.unmodifiableList( results );
+	}
+
+	private void record(Result result) {
+		final String prefix = currentDescription.getMethodName() + getCurrentSettingsLabel();
+		final Class<?> testClass = currentDescription.getTestClass();
+		PerformanceResults.record( testClass, prefix + ".statements", result.getStatements() );
+		if ( result.getAllocatedBytes() >= 0 ) {
+			PerformanceResults.record( testClass, prefix + ".allocatedBytesPerOperation", result.getAllocatedBytes() / operations );
+		}
+	}
+
+	private void logResults(Description description) {
+		final List<Result> ranked = new ArrayList<>( results );
+		ranked.sort( Comparator.comparingLong( Result::getWallNanos ) );
+
+		final StringBuilder report = new StringBuilder( "Settings matrix for " )
+				.append( description.getDisplayName() )
+				.append( ", fastest first:" );
+		int rank = 1;
+		for ( Result result : ranked ) {
+			report.append( String.format(
+					"%n%3d. %10.3f ms %8d statements %14d bytes  %s",
+					rank++,
+					result.getWallNanos() / 1_000_000d,
+					result.getStatements(),
+					result.getAllocatedBytes(),
+					result.getSettings()
+			) );
+		}
+		log.info( report );
+	}
+
+	/**
+	 * Compares each variation with the mean of the baseline runs just before and after it, which cancels most of the
+	 * drift caused by the JIT compilation going on during the matrix.
+	 */
+	private void logSensitivity(Description description) {
+		if ( results.size() < 3 ) {
+			return;
+		}
+		final Map<String, String> baselineSettings = results.get( 0 ).getSettings();
+		final StringBuilder report = new StringBuilder( "Sensitivity of " )
+				.append( description.getDisplayName() )
+				.append( " to each setting, compared to " )
+				.append( baselineSettings )
+				.append( ':' );
+		for ( int i = 1; i + 1 < results.size(); i += 2 ) {
+			final Result result = results.get( i );
+			final Result before = results.get( i - 1 );
+			final Result after = results.get( i + 1 );
+			final double baselineThroughput = ( throughput( before ) + throughput( after ) ) / 2;
+			final double baselineAllocatedBytes = ( before.getAllocatedBytes() + after.getAllocatedBytes() ) / 2d;
+			final Map<String, String> changed = new LinkedHashMap<>( result.getSettings() );
+			changed.entrySet().removeAll( baselineSettings.entrySet() );
+			report.append( String.format(
+					"%n  %-60s %10.1f ops/s (%+6.1f%%) %8d statements (%+5d) %10d bytes/op (%+6.1f%%)",
+					changed,
+					throughput( result ),
+					( throughput( result ) / baselineThroughput - 1 ) * 100,
+					result.getStatements(),
+					result.getStatements() - before.getStatements(),
+					result.getAllocatedBytes() / operations,
+					( result.getAllocatedBytes() / Math.max( 1, baselineAllocatedBytes ) - 1 ) * 100
+			) );
+		}
+		log.info( report );
+	}
+
+	private double throughput(Result result) {
+		return operations * 1_000_000_000d / Math.max( 1, result.getWallNanos() );
+	}
+
+	/**
+	 * @return the {@link #variations} with the baseline run again after each of them
+	 */
+	static List<Map<String, String>> interleavedVariations(SettingsMatrix.Setting[] settings) {
+		final List<Map<String, String>> variations = variations( settings );
+		final Map<String, String> baseline = variations.get( 0 );
+		final List<Map<String, String>> interleaved = new ArrayList<>();
+		interleaved.add( baseline );
+		for ( Map<String, String> variation : variations.subList( 1, variations.size() ) ) {
+			interleaved.add( variation );
+			interleaved.add( baseline );
+		}
+		return interleaved;
+	}
+
+	/**
+	 * @return the baseline made of the first value of each setting, followed by one variation per other value of each
+	 * setting
+	 */
+	static List<Map<String, String>> variations(SettingsMatrix.Setting[] settings) {
+		final Map<String, String> baseline = new LinkedHashMap<>();
+		for ( SettingsMatrix.Setting setting : settings ) {
+			baseline.put( setting.name(), setting.values()[0] );
+		}
+		final List<Map<String, String>> variations = new ArrayList<>();
+		variations.add( baseline );
+		for ( SettingsMatrix.Setting setting : settings ) {
+			for ( int i = 1; i < setting.values().length; i++ ) {
+				final Map<String, String> variation = new LinkedHashMap<>( baseline );
+				variation.put( setting.name(), setting.values()[i] );
+				variations.add( variation );
+			}
+		}
+		return variations;
+	}
+
+	static List<Map<String, String>> combinations(SettingsMatrix.Setting[] settings) {
+		List<Map<String, String>> combinations = new ArrayList<>();
+		combinations.add( new LinkedHashMap<>() );
+		for ( SettingsMatrix.Setting setting : settings ) {
+			final List<Map<String, String>> expanded = new ArrayList<>();
+			for ( Map<String, String> combination : combinations ) {
+				for ( String value : setting.values() ) {
+					final Map<String, String> copy = new LinkedHashMap<>( combination );
+					copy.put( setting.name(), value );
+					expanded.add( copy );
+				}
+			}
+			combinations = expanded;
+		}
+		return combinations;
+	}
+
+	public static class Result {
+		private final Map<String, String> settings;
+		private final long wallNanos;
+		private final long statements;
+		private final long allocatedBytes;
+
+		public Result(Map<String, String> settings, long wallNanos, long statements, long allocatedBytes) {
+			this.settings = settings;
+			this.wallNanos = wallNanos;
+			this.statements = statements;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		public Map<String, String> getSettings() {
+			return settings;
+		}
+
+		public long getWallNanos() {
+			return wallNanos;
+		}
+
+		public long getStatements() {
+			return statements;
+		}
+
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Turns a test method into a soak test: the method body (without {@code @Before}/{@code @After}, so with the same
+ * EntityManagerFactory) is executed over and over for {@link #duration()}, and a {@link SoakMonitor} samples the open
+ * EntityManagers, the connections, the loaded classes, the metaspace and the old generation after a full GC every
+ * {@link #sampleInterval()}. The test fails when one of them keeps growing after the first quarter of the run.
+ * <p/>
+ * Both are ISO-8601 durations, overridden for every soak test by the {@value SoakMonitor#DURATION} and
+ * {@value SoakMonitor#SAMPLE_INTERVAL} system properties, e.g. {@code -Dharness.soak.duration=PT4H
+ * -Dharness.soak.sample_interval=PT1M} for an overnight run.
+ * <pre>
+ * &#64;Test
+ * &#64;SoakTest(duration = "PT1M", sampleInterval = "PT5S")
+ * public void testIt() { ... }
+ * </pre>
+ *
+ * @see PerfTestRunner
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface SoakTest {
+	String duration() default "PT1M";
+
+	String sampleInterval() default "PT5S";
+}
@@ -0,0 +1,31 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.util.regex.Pattern;
+
+/**
+ * Reduces a SQL or HQL/JPQL statement to its shape, replacing string and numeric literals with {@code ?} and
+ * collapsing whitespace, so that statements differing only by their literal values can be grouped together.
+ */
+public final class SqlShape {
+	private static final Pattern STRING_LITERAL = Pattern.compile( "'(?:[^']|'')*'" );
+	private static final Pattern NUMERIC_LITERAL = Pattern.compile( "(?<![\\w.])-?\\d+(?:\\.\\d+)?\\b" );
+	private static final Pattern WHITESPACE = Pattern.compile( "\\s+" );
+
+	private SqlShape() {
+	}
+
+	public static String of(String statement) {
+		if ( statement == null ) {
+			return null;
+		}
+		String shape = STRING_LITERAL.matcher( statement ).replaceAll( "?" );
+		shape = NUMERIC_LITERAL.matcher( shape ).replaceAll( "?" );
+		return WHITESPACE.matcher( shape ).replaceAll( " " ).trim();
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reads the number of bytes allocated by the current thread, when the JVM supports it.
+ */
+public final class ThreadAllocation {
+	private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+	private ThreadAllocation() {
+	}
+
+	/**
+	 * @return the bytes allocated so far by the current thread, or {@code -1} if not supported
+	 */
+	public static long currentThreadAllocatedBytes() {
+		if ( THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean ) {
+			return ( (com.sun.management.ThreadMXBean) THREAD_MX_BEAN ).getThreadAllocatedBytes(
+					Thread.currentThread().getId()
+			);
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Bounded executor of the asynchronous units of work of {@link TransactionUtil}: at most {@code maxConcurrency}
+ * units of work (normally the size of the connection pool) run at the same time, the others wait for a permit.
+ * <p/>
+ * The time from submission to the start of the unit of work (queueing delay) and its execution time (database time)
+ * are recorded separately.
+ */
+public class TransactionExecutor implements AutoCloseable {
+	/**
+	 * Setting selecting virtual threads instead of a fixed pool of platform threads, see
+	 * {@link #create(int, boolean)}.
+	 */
+	public static final String VIRTUAL_THREADS = "harness.async.virtual_threads";
+
+	private static final Logger log = Logger.getLogger( TransactionExecutor.class );
+
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final int maxConcurrency;
+
+	private final LatencySamples queueDelays = new LatencySamples();
+	private final LatencySamples executionTimes = new LatencySamples();
+
+	private TransactionExecutor(ExecutorService executor, int maxConcurrency) {
+		if ( maxConcurrency < 1 ) {
+			throw new IllegalArgumentException( "maxConcurrency must be at least 1" );
+		}
+		this.executor = executor;
+		this.permits = new Semaphore( maxConcurrency, true );
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	public static TransactionExecutor platformThreads(int maxConcurrency) {
+		return new TransactionExecutor( Executors.newFixedThreadPool( maxConcurrency ), maxConcurrency );
+	}
+
+	/**
+	 * One virtual thread per unit of work, falling back to platform threads on JDKs without virtual threads (the
+	 * harness still compiles against older JDKs, hence the reflective lookup).
+	 */
+	public static TransactionExecutor virtualThreads(int maxConcurrency) {
+		try {
+			final ExecutorService executor = (ExecutorService) Executors.class
+					.getMethod( "newVirtualThreadPerTaskExecutor" )
+					.invoke( null );
+			return new TransactionExecutor( executor, maxConcurrency );
+		}
+		catch (ReflectiveOperationException e) {
+			log.warnf( "Virtual threads are not available on Java %s, using platform threads", System.getProperty( "java.version" ) );
+			return platformThreads( maxConcurrency );
+		}
+	}
+
+	public static TransactionExecutor create(int maxConcurrency, boolean virtualThreads) {
+		return virtualThreads ? virtualThreads( maxConcurrency ) : platformThreads( maxConcurrency );
+	}
+
+	/**
+	 * @return a future completed with the result of the unit of work, or with the exception it threw
+	 */
+	public <R> CompletableFuture<R> submit(Supplier<R> unitOfWork) {
+		final CompletableFuture<R> future = new CompletableFuture<>();
+		final long submitted = System.nanoTime();
+		try {
+			executor.execute( () -> run( unitOfWork, future, submitted ) );
+		}
+		catch (RejectedExecutionException e) {
+			future.completeExceptionally( e );
+		}
+		return future;
+	}
+
+	private <R> void run(Supplier<R> unitOfWork, CompletableFuture<R> future, long submitted) {
+		try {
+			permits.acquire();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.completeExceptionally( e );
+			return;
+		}
+		final long started = System.nanoTime();
+		queueDelays.record( started - submitted );
+		R result = null;
+		Throwable failure = null;
+		try {
+			result = unitOfWork.get();
+		}
+		catch (Throwable t) {
+			failure = t;
+		}
+		finally {
+			executionTimes.record( System.nanoTime() - started );
+			permits.release();
+		}
+		// completed after recording and releasing the permit so that the callers observe a consistent state
+		if ( failure == null ) {
+			future.complete( result );
+		}
+		else {
+			future.completeExceptionally( failure );
+		}
+	}
+
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	/**
+	 * @return the time the units of work waited between their submission and their start, in nanoseconds
+	 */
+	public LatencySamples getQueueDelays() {
+		return queueDelays;
+	}
+
+	/**
+	 * @return the time the units of work ran, in nanoseconds
+	 */
+	public LatencySamples getExecutionTimes() {
+		return executionTimes;
+	}
+
+	@Override
+	public void close() {
+		executor.shutdown();
+		try {
+			if ( !executor.awaitTermination( 30, TimeUnit.SECONDS ) ) {
+				log.warn( "Asynchronous units of work still running after 30 seconds, interrupting them" );
+				executor.shutdownNow();
+			}
+		}
+		catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -6,18 +6,37 @@
  */
 package org.hiberntate.util;
 
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
 
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+
+import org.hiberntate.util.jfr.FlightRecordingRule;
+import org.hiberntate.util.jfr.TransactionEvent;
+
 import org.jboss.logging.Logger;
 
 public class TransactionUtil {
 	private static final Logger log = Logger.getLogger( TransactionUtil.class );
 	public static final String ACTION_COMPLETED_TXN = "Execution of action caused managed transaction to be completed";
 
+	/**
+	 * The outcomes of a unit of work, as reported by the {@link SlowTransactionDetector} and the JFR
+	 * {@link TransactionEvent}.
+	 */
+	public static final String COMMITTED = "committed";
+	public static final String ROLLED_BACK = "rolled back";
+	public static final String FAILED = "failed";
+
 	public static void inEntityManager(EntityManagerFactory emf, Consumer<EntityManager> action) {
 		log.trace( "#inEntityManager(EntityManagerFactory,action)" );
 		final EntityManager entityManager = emf.createEntityManager();
@@ -68,111 +87,374 @@ public class TransactionUtil {
 		);
 	}
 
-	public static void inTransaction(EntityManager entityManager, Consumer<EntityManager> action) {
-		log.trace( "inTransaction(entityManager,action)" );
+	/**
+	 * Executes the action in a new EntityManager and transaction, reported by the {@link SlowTransactionDetector} when
+	 * it takes longer than the threshold.
+	 *
+	 * @param slowThreshold the threshold of this unit of work, {@code null} for the global one
+	 */
+	public static void inTransaction(EntityManagerFactory factory, Duration slowThreshold, Consumer<EntityManager> action) {
+		log.trace( "#inTransaction(factory, slowThreshold, action)" );
 
-		final EntityTransaction txn = entityManager.getTransaction();
-		log.trace( "Started transaction" );
+		inEntityManager(
+				factory,
+				entityManager -> inTransaction( entityManager, slowThreshold, action )
+		);
+	}
 
-		try {
-			txn.begin();
-			log.trace( "Calling action in txn" );
-			action.accept( entityManager );
-			log.trace( "Called action - in txn" );
+	/**
+	 * @see #inTransaction(EntityManagerFactory, Duration, Consumer)
+	 */
+	public static <R> R fromTransaction(EntityManagerFactory factory, Duration slowThreshold, Function<EntityManager, R> action) {
+		log.trace( "#fromTransaction(factory, slowThreshold, action)" );
+
+		return fromEntityManager(
+				factory,
+				entityManager -> fromTransaction( entityManager, slowThreshold, action )
+		);
+	}
+
+	/**
+	 * Executes the action in a new EntityManager and transaction, executing it again in a fresh EntityManager when
+	 * it fails because of an optimistic locking conflict, as allowed by the retry policy.
+	 */
+	public static void inTransaction(EntityManagerFactory factory, RetryPolicy retryPolicy, Consumer<EntityManager> action) {
+		log.trace( "#inTransaction(factory, retryPolicy, action)" );
+
+		fromTransaction(
+				factory,
+				retryPolicy,
+				entityManager -> {
+					action.accept( entityManager );
+					return Boolean.TRUE;
+				}
+		);
+	}
+
+	/**
+	 * @see #inTransaction(EntityManagerFactory, RetryPolicy, Consumer)
+	 */
+	public static <R> R fromTransaction(EntityManagerFactory factory, RetryPolicy retryPolicy, Function<EntityManager, R> action) {
+		log.trace( "#fromTransaction(factory, retryPolicy, action)" );
 
-			if ( !txn.isActive() ) {
-				throw new TransactionManagementException( ACTION_COMPLETED_TXN );
+		for ( int attempt = 1; ; attempt++ ) {
+			retryPolicy.attempted();
+			try {
+				final R result = fromTransaction( factory, action );
+				retryPolicy.succeeded();
+				return result;
+			}
+			catch (RuntimeException e) {
+				if ( !RetryPolicy.isOptimisticLockFailure( e ) || !retryPolicy.conflicted( attempt ) ) {
+					throw e;
+				}
+				log.debugf( "Optimistic locking conflict on attempt %s, retrying", attempt );
 			}
 		}
-		catch (Exception e) {
-			// an error happened in the action
-			if ( !txn.isActive() ) {
-				log.warn( ACTION_COMPLETED_TXN, e );
+	}
+
+	/**
+	 * Executes the action in a new EntityManager and transaction on the given executor. When the action fails the
+	 * transaction is rolled back and the future completes exceptionally with the action's exception.
+	 */
+	public static CompletableFuture<Void> inTransactionAsync(
+			EntityManagerFactory factory,
+			TransactionExecutor executor,
+			Consumer<EntityManager> action) {
+		log.trace( "#inTransactionAsync(factory, executor, action)" );
+
+		return executor.submit( () -> {
+			inTransaction( factory, action );
+			return null;
+		} );
+	}
+
+	/**
+	 * @see #inTransactionAsync(EntityManagerFactory, TransactionExecutor, Consumer)
+	 */
+	public static <R> CompletableFuture<R> fromTransactionAsync(
+			EntityManagerFactory factory,
+			TransactionExecutor executor,
+			Function<EntityManager, R> action) {
+		log.trace( "#fromTransactionAsync(factory, executor, action)" );
+
+		return executor.submit( () -> fromTransaction( factory, action ) );
+	}
+
+	/**
+	 * Executes the action in a new {@link StatelessSession} and transaction of the SessionFactory underlying the
+	 * EntityManagerFactory, rolling back when the action fails. Inserts, updates and deletes are batched according to
+	 * {@code hibernate.jdbc.batch_size}.
+	 */
+	public static void inStatelessSession(EntityManagerFactory factory, Consumer<StatelessSession> action) {
+		log.trace( "#inStatelessSession(factory, action)" );
+
+		fromStatelessSession(
+				factory,
+				session -> {
+					action.accept( session );
+					return Boolean.TRUE;
+				}
+		);
+	}
+
+	/**
+	 * @see #inStatelessSession(EntityManagerFactory, Consumer)
+	 */
+	public static <R> R fromStatelessSession(EntityManagerFactory factory, Function<StatelessSession, R> action) {
+		log.trace( "#fromStatelessSession(factory, action)" );
+
+		final StatelessSession session = factory.unwrap( SessionFactory.class ).openStatelessSession();
+		try {
+			final Transaction txn = session.beginTransaction();
+			final R result;
+			try {
+				result = action.apply( session );
 			}
-			else {
-				log.trace( "Rolling back transaction due to action error" );
+			catch (RuntimeException e) {
+				log.trace( "Rolling back stateless session transaction due to action error" );
 				try {
-					txn.rollback();
-					log.trace( "Rolled back transaction due to action error" );
+					if ( txn.getStatus().canRollback() ) {
+						txn.rollback();
+					}
 				}
-				catch (Exception inner) {
-					log.trace( "Rolling back transaction due to action error failed; throwing original error" );
+				catch (RuntimeException inner) {
+					log.trace( "Rolling back stateless session transaction due to action error failed; throwing original error" );
 				}
+				throw e;
 			}
-
-			throw e;
+			txn.commit();
+			return result;
+		}
+		finally {
+			session.close();
 		}
+	}
 
-		// action completed with no errors - attempt to commit the transaction allowing
-		// 		any RollbackException to propagate.  Note that when we get here we know the
-		//		txn is active
+	/**
+	 * Streams the input through the action in a single {@link StatelessSession} and transaction.
+	 *
+	 * @return the number of processed input elements, the elapsed time and the bytes allocated by the calling thread
+	 */
+	public static <T> ThroughputReport inStatelessSession(
+			EntityManagerFactory factory,
+			Iterator<T> input,
+			BiConsumer<StatelessSession, T> action) {
+		log.trace( "#inStatelessSession(factory, input, action)" );
 
-		log.trace( "Committing transaction after successful action execution" );
+		return ThroughputReport.measure( () -> fromStatelessSession(
+				factory,
+				session -> {
+					long rows = 0;
+					while ( input.hasNext() ) {
+						action.accept( session, input.next() );
+						rows++;
+					}
+					return rows;
+				}
+		) );
+	}
+
+	public static void inTransaction(EntityManager entityManager, Consumer<EntityManager> action) {
+		inTransaction( entityManager, null, action );
+	}
+
+	/**
+	 * Executes the action in a transaction of the EntityManager, reported by the {@link SlowTransactionDetector} when
+	 * it takes longer than the threshold.
+	 *
+	 * @param slowThreshold the threshold of this unit of work, {@code null} for the global one
+	 */
+	public static void inTransaction(EntityManager entityManager, Duration slowThreshold, Consumer<EntityManager> action) {
+		log.trace( "inTransaction(entityManager,action)" );
+
+		final EntityTransaction txn = entityManager.getTransaction();
+		final UnitOfWorkListener event = startEvent();
+		final SlowTransactionDetector.Trace trace = SlowTransactionDetector.start( entityManager, slowThreshold );
+		log.trace( "Started transaction" );
+
+		// reported when an Error interrupts the unit of work
+		String outcome = FAILED;
 		try {
-			txn.commit();
-			log.trace( "Committing transaction after successful action execution - success" );
+			try {
+				txn.begin();
+				log.trace( "Calling action in txn" );
+				action.accept( entityManager );
+				log.trace( "Called action - in txn" );
+
+				if ( !txn.isActive() ) {
+					throw new TransactionManagementException( ACTION_COMPLETED_TXN );
+				}
+			}
+			catch (Exception e) {
+				// an error happened in the action
+				event.actionCompleted();
+				trace.actionCompleted();
+				if ( !txn.isActive() ) {
+					log.warn( ACTION_COMPLETED_TXN, e );
+				}
+				else {
+					log.trace( "Rolling back transaction due to action error" );
+					try {
+						txn.rollback();
+						outcome = ROLLED_BACK;
+						log.trace( "Rolled back transaction due to action error" );
+					}
+					catch (Exception inner) {
+						log.trace( "Rolling back transaction due to action error failed; throwing original error" );
+					}
+				}
+				// failed unless the transaction was rolled back here: the action may have completed it, txn.begin()
+				// may have failed or the rollback itself
+				event.completed( outcome );
+
+				throw e;
+			}
+
+			// action completed with no errors - attempt to commit the transaction allowing
+			// 		any RollbackException to propagate.  Note that when we get here we know the
+			//		txn is active
+
+			log.trace( "Committing transaction after successful action execution" );
+			event.actionCompleted();
+			trace.actionCompleted();
+			try {
+				txn.commit();
+				event.completed( COMMITTED );
+				log.trace( "Committing transaction after successful action execution - success" );
+			}
+			catch (Exception e) {
+				event.completed( FAILED );
+				log.trace( "Committing transaction after successful action execution - failure" );
+				throw e;
+			}
+			outcome = COMMITTED;
 		}
-		catch (Exception e) {
-			log.trace( "Committing transaction after successful action execution - failure" );
-			throw e;
+		finally {
+			trace.completed( outcome );
 		}
 	}
 
 	public static <R> R fromTransaction(EntityManager entityManager, Function<EntityManager, R> action) {
+		return fromTransaction( entityManager, null, action );
+	}
+
+	/**
+	 * @see #inTransaction(EntityManager, Duration, Consumer)
+	 */
+	public static <R> R fromTransaction(EntityManager entityManager, Duration slowThreshold, Function<EntityManager, R> action) {
 		log.trace( "inTransaction(entityManager,action)" );
 
 		final EntityTransaction txn = entityManager.getTransaction();
+		final UnitOfWorkListener event = startEvent();
+		final SlowTransactionDetector.Trace trace = SlowTransactionDetector.start( entityManager, slowThreshold );
 
 		log.trace( "Started transaction" );
 		final R result;
+		// reported when an Error interrupts the unit of work
+		String outcome = FAILED;
 		try {
-			txn.begin();
-			log.trace( "Calling action in txn" );
-			result = action.apply( entityManager );
-			log.trace( "Called action - in txn" );
+			try {
+				txn.begin();
+				log.trace( "Calling action in txn" );
+				result = action.apply( entityManager );
+				log.trace( "Called action - in txn" );
 
-			if ( !txn.isActive() ) {
-				throw new TransactionManagementException( ACTION_COMPLETED_TXN );
-			}
-		}
-		catch (Exception e) {
-			// an error happened in the action
-			if ( !txn.isActive() ) {
-				log.warn( ACTION_COMPLETED_TXN, e );
+				if ( !txn.isActive() ) {
+					throw new TransactionManagementException( ACTION_COMPLETED_TXN );
+				}
 			}
-			else {
-				log.trace( "Rolling back transaction due to action error" );
-				try {
-					txn.rollback();
-					log.trace( "Rolled back transaction due to action error" );
+			catch (Exception e) {
+				// an error happened in the action
+				event.actionCompleted();
+				trace.actionCompleted();
+				if ( !txn.isActive() ) {
+					log.warn( ACTION_COMPLETED_TXN, e );
 				}
-				catch (Exception inner) {
-					log.trace( "Rolling back transaction due to action error failed; throwing original error" );
+				else {
+					log.trace( "Rolling back transaction due to action error" );
+					try {
+						txn.rollback();
+						outcome = ROLLED_BACK;
+						log.trace( "Rolled back transaction due to action error" );
+					}
+					catch (Exception inner) {
+						log.trace( "Rolling back transaction due to action error failed; throwing original error" );
+					}
 				}
-			}
+				// failed unless the transaction was rolled back here: the action may have completed it, txn.begin()
+				// may have failed or the rollback itself
+				event.completed( outcome );
 
-			throw e;
-		}
+				throw e;
+			}
 
-		assert result != null;
+			assert result != null;
 
-		// action completed with no errors - attempt to commit the transaction allowing
-		// 		any RollbackException to propagate.  Note that when we get here we know the
-		//		txn is active
+			// action completed with no errors - attempt to commit the transaction allowing
+			// 		any RollbackException to propagate.  Note that when we get here we know the
+			//		txn is active
 
-		log.trace( "Committing transaction after successful action execution" );
-		try {
-			txn.commit();
-			log.trace( "Committing transaction after successful action execution - success" );
+			log.trace( "Committing transaction after successful action execution" );
+			event.actionCompleted();
+			trace.actionCompleted();
+			try {
+				txn.commit();
+				event.completed( COMMITTED );
+				log.trace( "Committing transaction after successful action execution - success" );
+			}
+			catch (Exception e) {
+				event.completed( FAILED );
+				log.trace( "Committing transaction after successful action execution - failure" );
+				throw e;
+			}
+			outcome = COMMITTED;
 		}
-		catch (Exception e) {
-			log.trace( "Committing transaction after successful action execution - failure" );
-			throw e;
+		finally {
+			trace.completed( outcome );
 		}
 
 		return result;
 	}
 
+	/**
+	 * @return a started {@link TransactionEvent} when {@link FlightRecordingRule} records, or a listener ignoring the
+	 * unit of work; the jdk.jfr classes are only loaded in the former case
+	 */
+	private static UnitOfWorkListener startEvent() {
+		if ( !FlightRecordingRule.isEnabled() ) {
+			return UnitOfWorkListener.NONE;
+		}
+		final TransactionEvent event = new TransactionEvent();
+		event.start();
+		return event;
+	}
+
+	/**
+	 * Observes the two phases of a unit of work: the action, then the commit or rollback of the transaction.
+	 */
+	public interface UnitOfWorkListener {
+		UnitOfWorkListener NONE = new UnitOfWorkListener() {
+			@Override
+			public void actionCompleted() {
+			}
+
+			@Override
+			public void completed(String outcome) {
+			}
+		};
+
+		/**
+		 * Marks the end of the action and the start of the completion phase.
+		 */
+		void actionCompleted();
+
+		/**
+		 * @param outcome {@link #COMMITTED}, {@link #ROLLED_BACK} or {@link #FAILED}
+		 */
+		void completed(String outcome);
+	}
+
 	private static class TransactionManagementException extends RuntimeException {
 		public TransactionManagementException(String message) {
 			super( message );
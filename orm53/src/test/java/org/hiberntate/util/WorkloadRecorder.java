@@ -0,0 +1,468 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import javax.persistence.LockModeType;
+import javax.persistence.Parameter;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+import javax.persistence.metamodel.EntityType;
+import javax.transaction.UserTransaction;
+
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.Status;
+import org.hibernate.id.Assigned;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.type.Type;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Records the EntityManager operations of an application, typically an integration test running inside WildFly, and
+ * the shapes of the SQL statements they cause, into a {@link Workload} which {@link WorkloadReplayer} re-executes
+ * against the unit test harness.
+ * <p/>
+ * The application uses the EntityManager and transaction returned by the {@code wrap} methods between {@link #start}
+ * and {@link #stop}. Persist, merge, remove, find, getReference, flush, clear and the JPQL, named and native queries
+ * are recorded with their arguments, along with the changes Hibernate finds by dirty checking before each flush,
+ * query and commit; the SQL statements are seen through {@link StatementCounter}, which must be the statement
+ * inspector of the persistence unit ({@code hibernate.session_factory.statement_inspector}). Statements of lazy
+ * initializations are recorded too, but not replayed as such.
+ */
+public class WorkloadRecorder {
+	/**
+	 * System property of the directory of {@link #file}, {@code target/workloads} by default.
+	 */
+	public static final String DIRECTORY = "harness.workload.dir";
+
+	private static final Logger log = Logger.getLogger( WorkloadRecorder.class );
+
+	private final Workload workload = new Workload();
+	private final List<EntityManager> entityManagers = new ArrayList<>();
+	private final Map<Object, Object[]> recordedStates = new IdentityHashMap<>();
+	private final Set<String> unsupported = new HashSet<>();
+
+	/**
+	 * @return the file of the workload recorded by the given test class
+	 */
+	public static Path file(Class<?> testClass) {
+		return Paths.get( System.getProperty( DIRECTORY, "target/workloads" ), testClass.getSimpleName() + ".workload" );
+	}
+
+	/**
+	 * Starts recording the statements prepared by the calling thread.
+	 */
+	public void start() {
+		StatementCounter.listen( this::statement );
+	}
+
+	public Workload stop() {
+		StatementCounter.listen( null );
+		return workload;
+	}
+
+	public Workload getWorkload() {
+		return workload;
+	}
+
+	public void writeTo(Path file) {
+		workload.write( file );
+		log.infof( "Recorded workload %s: %s", file, workload );
+	}
+
+	public EntityManager wrap(EntityManager entityManager) {
+		synchronized ( this ) {
+			entityManagers.add( entityManager );
+		}
+		return (EntityManager) Proxy.newProxyInstance(
+				WorkloadRecorder.class.getClassLoader(),
+				new Class[] { EntityManager.class },
+				new EntityManagerHandler( entityManager )
+		);
+	}
+
+	/**
+	 * Wraps the JTA transaction of a container, recording the changes of the wrapped EntityManagers before it
+	 * commits.
+	 */
+	public UserTransaction wrap(UserTransaction transaction) {
+		return (UserTransaction) Proxy.newProxyInstance(
+				WorkloadRecorder.class.getClassLoader(),
+				new Class[] { UserTransaction.class },
+				(proxy, method, args) -> {
+					switch ( method.getName() ) {
+						case "begin":
+							delegate( transaction, method, args );
+							record( Workload.BEGIN );
+							return null;
+						case "commit":
+							for ( EntityManager entityManager : entityManagersSnapshot() ) {
+								recordChanges( entityManager );
+							}
+							delegate( transaction, method, args );
+							record( Workload.COMMIT );
+							forgetStates();
+							return null;
+						case "rollback":
+							delegate( transaction, method, args );
+							record( Workload.ROLLBACK );
+							forgetStates();
+							return null;
+						default:
+							return delegate( transaction, method, args );
+					}
+				}
+		);
+	}
+
+	private synchronized List<EntityManager> entityManagersSnapshot() {
+		return new ArrayList<>( entityManagers );
+	}
+
+	private synchronized void forgetStates() {
+		recordedStates.clear();
+	}
+
+	private synchronized void statement(String sql) {
+		workload.addStatement( SqlShape.of( sql ) );
+	}
+
+	private synchronized void record(char type, String... arguments) {
+		workload.add( type, Arrays.asList( arguments ) );
+	}
+
+	private synchronized void record(char type, List<String> arguments) {
+		workload.add( type, arguments );
+	}
+
+	/**
+	 * Records the state of an entity just persisted or merged.
+	 */
+	private void recordEntity(char type, EntityManager entityManager, Object entity, String idFlag) {
+		final SessionImplementor session = entityManager.unwrap( SessionImplementor.class );
+		final EntityEntry entry = session.getPersistenceContext().getEntry( entity );
+		if ( entry == null ) {
+			return;
+		}
+		final EntityPersister persister = entry.getPersister();
+		final Object[] state = persister.getPropertyValues( entity );
+		final List<String> arguments = new ArrayList<>();
+		arguments.add( entityName( entityManager, persister.getMappedClass() ) );
+		arguments.add( encode( entityManager, entry.getId() ) );
+		arguments.add( idFlag );
+		for ( int i = 0; i < state.length; i++ ) {
+			addProperty( arguments, entityManager, persister, i, state[i] );
+		}
+		synchronized ( this ) {
+			recordedStates.put( entity, state );
+			record( type, arguments );
+		}
+	}
+
+	/**
+	 * Records the properties of the managed entities which changed since they were loaded or last recorded.
+	 */
+	private void recordChanges(EntityManager entityManager) {
+		if ( !entityManager.isOpen() ) {
+			return;
+		}
+		final SessionImplementor session = entityManager.unwrap( SessionImplementor.class );
+		for ( Map.Entry<Object, EntityEntry> managed : session.getPersistenceContext().reentrantSafeEntityEntries() ) {
+			final EntityEntry entry = managed.getValue();
+			if ( entry.getStatus() != Status.MANAGED || entry.getLoadedState() == null ) {
+				continue;
+			}
+			final Object entity = managed.getKey();
+			final EntityPersister persister = entry.getPersister();
+			final Object[] state = persister.getPropertyValues( entity );
+			final Object[] previous;
+			synchronized ( this ) {
+				previous = recordedStates.getOrDefault( entity, entry.getLoadedState() );
+			}
+			final int[] dirty = persister.findDirty( state, previous, entity, session );
+			if ( dirty == null ) {
+				continue;
+			}
+			final List<String> arguments = new ArrayList<>();
+			arguments.add( entityName( entityManager, persister.getMappedClass() ) );
+			arguments.add( encode( entityManager, entry.getId() ) );
+			for ( int i : dirty ) {
+				addProperty( arguments, entityManager, persister, i, state[i] );
+			}
+			synchronized ( this ) {
+				recordedStates.put( entity, state );
+				if ( arguments.size() > 2 ) {
+					record( Workload.UPDATE, arguments );
+				}
+			}
+		}
+	}
+
+	private void addProperty(List<String> arguments, EntityManager entityManager, EntityPersister persister, int i, Object value) {
+		final Type type = persister.getPropertyTypes()[i];
+		if ( type.isCollectionType() || persister.isVersioned() && i == persister.getVersionProperty() ) {
+			return;
+		}
+		final String name = persister.getPropertyNames()[i];
+		try {
+			arguments.add( name + "=" + encode( entityManager, value ) );
+		}
+		catch (IllegalArgumentException e) {
+			if ( unsupported.add( persister.getEntityName() + "." + name ) ) {
+				log.warnf( "Not recording %s.%s: %s", persister.getEntityName(), name, e.getMessage() );
+			}
+		}
+	}
+
+	private String entityName(EntityManager entityManager, Class<?> entityClass) {
+		return entityManager.getMetamodel().entity( entityClass ).getName();
+	}
+
+	private String encode(EntityManager entityManager, Object value) {
+		return Workload.encode( value, candidate -> reference( entityManager, candidate ) );
+	}
+
+	private String reference(EntityManager entityManager, Object value) {
+		final Class<?> type = value instanceof HibernateProxy
+				? ( (HibernateProxy) value ).getHibernateLazyInitializer().getPersistentClass()
+				: value.getClass();
+		for ( EntityType<?> entityType : entityManager.getMetamodel().getEntities() ) {
+			if ( entityType.getJavaType() == type ) {
+				final Object id = entityManager.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier( value );
+				return entityType.getName() + ":" + encode( entityManager, id );
+			}
+		}
+		return null;
+	}
+
+	private static Object delegate(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke( target, args );
+		}
+		catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private class EntityManagerHandler implements InvocationHandler {
+		private final EntityManager entityManager;
+
+		private EntityManagerHandler(EntityManager entityManager) {
+			this.entityManager = entityManager;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch ( method.getName() ) {
+				case "persist": {
+					final EntityPersister persister = entityManager.unwrap( SessionImplementor.class )
+							.getEntityPersister( null, args[0] );
+					delegate( entityManager, method, args );
+					recordEntity(
+							Workload.PERSIST,
+							entityManager,
+							args[0],
+							persister.getIdentifierGenerator() instanceof Assigned ? "a" : "g"
+					);
+					return null;
+				}
+				case "merge": {
+					final boolean generated = entityManager.getEntityManagerFactory()
+							.getPersistenceUnitUtil()
+							.getIdentifier( args[0] ) == null;
+					final Object merged = delegate( entityManager, method, args );
+					recordEntity( Workload.MERGE, entityManager, merged, generated ? "g" : "e" );
+					return merged;
+				}
+				case "remove": {
+					final String reference = reference( entityManager, args[0] );
+					delegate( entityManager, method, args );
+					if ( reference != null ) {
+						final int separator = reference.indexOf( ':' );
+						record( Workload.REMOVE, reference.substring( 0, separator ), reference.substring( separator + 1 ) );
+					}
+					return null;
+				}
+				case "find":
+				case "getReference": {
+					final Object result = delegate( entityManager, method, args );
+					final List<String> arguments = new ArrayList<>();
+					arguments.add( entityName( entityManager, (Class<?>) args[0] ) );
+					arguments.add( encode( entityManager, args[1] ) );
+					if ( args.length > 2 && args[2] instanceof LockModeType ) {
+						arguments.add( ( (LockModeType) args[2] ).name() );
+					}
+					record( method.getName().equals( "find" ) ? Workload.FIND : Workload.GET_REFERENCE, arguments );
+					return result;
+				}
+				case "flush":
+					recordChanges( entityManager );
+					delegate( entityManager, method, args );
+					record( Workload.FLUSH );
+					return null;
+				case "clear":
+					delegate( entityManager, method, args );
+					record( Workload.CLEAR );
+					forgetStates();
+					return null;
+				case "getTransaction":
+					return wrap( (EntityTransaction) delegate( entityManager, method, args ) );
+				case "createQuery":
+					if ( args[0] instanceof String ) {
+						return wrap( method, args, Workload.QueryDefinition.JPQL );
+					}
+					return delegate( entityManager, method, args );
+				case "createNamedQuery":
+					return wrap( method, args, Workload.QueryDefinition.NAMED );
+				case "createNativeQuery":
+					return wrap( method, args, Workload.QueryDefinition.NATIVE );
+				default:
+					return delegate( entityManager, method, args );
+			}
+		}
+
+		private EntityTransaction wrap(EntityTransaction transaction) {
+			return (EntityTransaction) Proxy.newProxyInstance(
+					WorkloadRecorder.class.getClassLoader(),
+					new Class[] { EntityTransaction.class },
+					(proxy, method, args) -> {
+						switch ( method.getName() ) {
+							case "begin":
+								delegate( transaction, method, args );
+								record( Workload.BEGIN );
+								return null;
+							case "commit":
+								recordChanges( entityManager );
+								delegate( transaction, method, args );
+								record( Workload.COMMIT );
+								forgetStates();
+								return null;
+							case "rollback":
+								delegate( transaction, method, args );
+								record( Workload.ROLLBACK );
+								forgetStates();
+								return null;
+							default:
+								return delegate( transaction, method, args );
+						}
+					}
+			);
+		}
+
+		private Query wrap(Method method, Object[] args, String kind) throws Throwable {
+			final Query query = (Query) delegate( entityManager, method, args );
+			String resultClass = Workload.NULL;
+			if ( args.length > 1 && args[1] instanceof Class && !kind.equals( Workload.QueryDefinition.JPQL ) ) {
+				resultClass = "c:" + ( (Class<?>) args[1] ).getName();
+			}
+			else if ( args.length > 1 && args[1] instanceof String ) {
+				resultClass = "m:" + Workload.urlEncode( (String) args[1] );
+			}
+			final int number;
+			synchronized ( WorkloadRecorder.this ) {
+				number = workload.query( new Workload.QueryDefinition( kind, resultClass, (String) args[0] ) );
+			}
+			return (Query) Proxy.newProxyInstance(
+					WorkloadRecorder.class.getClassLoader(),
+					new Class[] { query instanceof TypedQuery ? TypedQuery.class : Query.class },
+					new QueryHandler( entityManager, query, number )
+			);
+		}
+	}
+
+	private class QueryHandler implements InvocationHandler {
+		private final EntityManager entityManager;
+		private final Query query;
+		private final int number;
+		private final Map<String, String> options = new LinkedHashMap<>();
+
+		private QueryHandler(EntityManager entityManager, Query query, int number) {
+			this.entityManager = entityManager;
+			this.query = query;
+			this.number = number;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch ( method.getName() ) {
+				case "setParameter":
+					setParameter( args );
+					break;
+				case "setLockMode":
+					options.put( "lock", String.valueOf( args[0] ) );
+					break;
+				case "setFlushMode":
+					options.put( "flush", String.valueOf( args[0] ) );
+					break;
+				case "getResultList":
+				case "getResultStream":
+					return execute( "L", method, args );
+				case "getSingleResult":
+					return execute( "S", method, args );
+				case "executeUpdate":
+					return execute( "X", method, args );
+				default:
+					break;
+			}
+			final Object result = delegate( query, method, args );
+			// keeps the fluent calls going through the proxy
+			return result == query ? proxy : result;
+		}
+
+		private void setParameter(Object[] args) {
+			final String value = encode( entityManager, args[1] );
+			if ( args[0] instanceof String ) {
+				options.put( "n:" + Workload.urlEncode( (String) args[0] ), value );
+			}
+			else if ( args[0] instanceof Integer ) {
+				options.put( "p:" + args[0], value );
+			}
+			else {
+				final Parameter<?> parameter = (Parameter<?>) args[0];
+				options.put(
+						parameter.getName() != null
+								? "n:" + Workload.urlEncode( parameter.getName() )
+								: "p:" + parameter.getPosition(),
+						value
+				);
+			}
+		}
+
+		private Object execute(String mode, Method method, Object[] args) throws Throwable {
+			recordChanges( entityManager );
+			final Object result = delegate( query, method, args );
+			final List<String> arguments = new ArrayList<>();
+			arguments.add( String.valueOf( number ) );
+			arguments.add( mode );
+			arguments.add( String.valueOf( query.getFirstResult() ) );
+			arguments.add( String.valueOf( query.getMaxResults() ) );
+			for ( Map.Entry<String, String> option : options.entrySet() ) {
+				arguments.add( option.getKey() + "=" + option.getValue() );
+			}
+			record( Workload.QUERY, arguments );
+			return result;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util.jfr;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.stat.internal.StatisticsInitiator;
+
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import org.jboss.logging.Logger;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+/**
+ * Class rule starting a JDK Flight Recorder recording for the whole test class when the {@value #ENABLED} system
+ * property is {@code true}, dumping it to {@code target/jfr/<TestClass>.jfr} (see {@value #DIRECTORY}).
+ * <p/>
+ * Besides the JDK events of the {@value #CONFIGURATION} configuration, the recording contains the harness
+ * {@link TransactionEvent}s, and the {@link FlushEvent}s, {@link LoadEvent}s and {@link QueryEvent}s produced by the
+ * integrator and statistics registered by {@link #applySettings(Map, List)}.
+ */
+public class FlightRecordingRule implements TestRule {
+	public static final String ENABLED = "harness.jfr";
+	public static final String DIRECTORY = "harness.jfr.dir";
+	public static final String CONFIGURATION = "harness.jfr.configuration";
+
+	private static final Logger log = Logger.getLogger( FlightRecordingRule.class );
+
+	public static boolean isEnabled() {
+		return Boolean.getBoolean( ENABLED );
+	}
+
+	/**
+	 * Adds the {@link JfrIntegrator} to the integrators and registers the {@link JfrStatistics} when recording is
+	 * enabled.
+	 */
+	@SuppressWarnings("unchecked")
+	public static void applySettings(Map settings, List<Integrator> integrators) {
+		if ( isEnabled() ) {
+			integrators.add( new JfrIntegrator() );
+			settings.put( StatisticsInitiator.STATS_BUILDER, JfrStatistics.Factory.class.getName() );
+			settings.put( AvailableSettings.GENERATE_STATISTICS, "true" );
+		}
+	}
+
+	@Override
+	public Statement apply(Statement base, Description description) {
+		if ( !isEnabled() ) {
+			return base;
+		}
+		return new Statement() {
+			@Override
+			public void evaluate() throws Throwable {
+				final Path directory = Paths.get( System.getProperty( DIRECTORY, "target/jfr" ) );
+				Files.createDirectories( directory );
+				final Path destination = directory.resolve( description.getTestClass().getSimpleName() + ".jfr" );
+
+				try (Recording recording = new Recording(
+						Configuration.getConfiguration( System.getProperty( CONFIGURATION, "default" ) ) )) {
+					recording.setName( description.getDisplayName() );
+					recording.enable( TransactionEvent.class );
+					recording.enable( FlushEvent.class );
+					recording.enable( LoadEvent.class );
+					recording.enable( QueryEvent.class );
+					recording.setDestination( destination );
+					recording.start();
+					try {
+						base.evaluate();
+					}
+					finally {
+						recording.stop();
+						log.infof( "Flight recording of %s written to %s", description.getDisplayName(), destination );
+					}
+				}
+			}
+		};
+	}
+}
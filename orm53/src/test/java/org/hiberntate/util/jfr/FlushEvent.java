@@ -0,0 +1,30 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * An explicit or commit time flush of a Session.
+ */
+@Name("org.hiberntate.Flush")
+@Label("Flush")
+@Category({ "Hibernate", "Harness" })
+@Description("A Hibernate Session flush")
+public class FlushEvent extends Event {
+	@Label("Entities")
+	@Description("Number of entities processed by the flush")
+	public int entityCount;
+
+	@Label("Collections")
+	@Description("Number of collections processed by the flush")
+	public int collectionCount;
+}
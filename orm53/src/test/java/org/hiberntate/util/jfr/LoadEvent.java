@@ -0,0 +1,35 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The load of an entity by id, including proxy initializations and association fetches.
+ */
+@Name("org.hiberntate.Load")
+@Label("Load")
+@Category({ "Hibernate", "Harness" })
+@Description("A Hibernate entity load")
+public class LoadEvent extends Event {
+	@Label("Entity Name")
+	public String entityName;
+
+	@Label("Identifier")
+	public String id;
+
+	@Label("Association Fetch")
+	public boolean associationFetch;
+
+	@Label("Rows")
+	@Description("1 when the entity was found, 0 otherwise")
+	public int rowCount;
+}
@@ -0,0 +1,66 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hiberntate.util.jfr;
+
+import org.hiberntate.util.TransactionUtil;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A unit of work executed by {@link org.hiberntate.util.TransactionUtil}, from the transaction begin to its
+ * completion.
+ */
+@Name("org.hiberntate.Transaction")
+@Label("Transaction")
+@Category({ "Hibernate", "Harness" })
+@Description("A TransactionUtil unit of work")
+public class TransactionEvent extends Event implements TransactionUtil.UnitOfWorkListener {
+	@Label("Action Time")
+	@Description("Time spent executing the unit of work before completion")
+	@Timespan(Timespan.NANOSECONDS)
+	public long actionTime;
+
+	@Label("Completion Time")
+	@Description("Time spent committing or rolling back the transaction")
+	@Timespan(Timespan.NANOSECONDS)
+	public long completionTime;
+
+	@Label("Outcome")
+	public String outcome;
+
+	private transient long phaseStart;
+
+	@Override
+	public void actionCompleted() {
+		final long now = System.nanoTime();
+		actionTime = now - phaseStart;
+		phaseStart = now;
+	}
+
+	public void start() {
+		begin();
+		phaseStart = System.nanoTime();
+	}
+
+	/**
+	 * Ends the completion phase and commits the event when the recording is interested in it.
+	 */
+	@Override
+	public void completed(String outcome) {
+		completionTime = System.nanoTime() - phaseStart;
+		this.outcome = outcome;
+		end();
+		if ( shouldCommit() ) {
+			commit();
+		}
+	}
+}